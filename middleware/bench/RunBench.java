@@ -0,0 +1,116 @@
+/**
+    RunBench.java
+    04-12-2017
+
+    @Description: Runs the microbenchmarks of the middleware hot paths on the local machine. This allows to measure a change of the request processing in isolation before running experiments on the cloud. This should be run through "ant bench".
+    @Author: Jakob Beckmann
+*/
+
+package asl_project;
+
+import java.util.*;
+
+import asl_project.harness.*;
+import asl_project.util.*;
+
+public class RunBench {
+
+    static int warmups = 5;
+    static int iterations = 10;
+    static long iterationMillis = 1000L;
+    static List<String> filters = new ArrayList<String>();
+
+    public static void main(String[] args) throws Exception {
+
+        // -----------------------------------------------------------------------------
+        // Parse and prepare arguments
+        // -----------------------------------------------------------------------------
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-w") && i + 1 < args.length) {
+                warmups = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-i") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-r") && i + 1 < args.length) {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if(args[i].charAt(0) == '-') {
+                System.err.println("Usage: [-w <WarmupIterations>] [-i <Iterations>] [-r <IterationMillis>] [<NameFilter> ...]");
+                System.exit(1);
+            } else {
+                filters.add(args[i]);
+            }
+        }
+
+        // -----------------------------------------------------------------------------
+        // Run the benchmarks
+        // -----------------------------------------------------------------------------
+
+        System.out.println(MicroBench.Result.header());
+        for(MicroBench bench: benchmarks()) {
+            if(!selected(bench.getName())) {
+                continue;
+            }
+            System.out.println(bench.measure(warmups, iterations, iterationMillis * 1000000L));
+        }
+    }
+
+    /**
+        @return List of all benchmarks.
+    */
+    private static List<MicroBench> benchmarks() {
+        List<MicroBench> benchmarks = new ArrayList<MicroBench>();
+
+        benchmarks.add(ParseBench.get(16));
+        benchmarks.add(ParseBench.get(250));
+        benchmarks.add(ParseBench.multiget(3, 16));
+        benchmarks.add(ParseBench.multiget(10, 16));
+        benchmarks.add(ParseBench.multiget(10, 250));
+        benchmarks.add(ParseBench.set(32));
+        benchmarks.add(ParseBench.set(1024));
+        benchmarks.add(ParseBench.set(3900));
+
+        benchmarks.add(new ResponseBench(0, 0));
+        benchmarks.add(new ResponseBench(1, 1024));
+        benchmarks.add(new ResponseBench(10, 1024));
+
+        List<ProtocolScanner> scanners = new ArrayList<ProtocolScanner>();
+        scanners.add(ProtocolScanner.scalar());
+        if(ProtocolScanner.vector() != null) {
+            scanners.add(ProtocolScanner.vector());
+        }
+        for(ProtocolScanner scanner: scanners) {
+            for(boolean direct: new boolean[] {false, true}) {
+                benchmarks.add(ScanBench.crlf(10, scanner, direct));
+                benchmarks.add(ScanBench.crlf(100, scanner, direct));
+                benchmarks.add(ScanBench.tokens(10, scanner, direct));
+                benchmarks.add(ScanBench.tokens(100, scanner, direct));
+                benchmarks.add(ScanBench.values(10, 1024, scanner, direct));
+            }
+        }
+
+        benchmarks.add(new ShardBench(2, 3));
+        benchmarks.add(new ShardBench(6, 3));
+        benchmarks.add(new ShardBench(10, 3));
+
+        benchmarks.add(new QueueBench());
+        benchmarks.add(new QueueBench(true));
+
+        benchmarks.add(new StatsBench.Completed());
+        benchmarks.add(new StatsBench.GetRecord(8));
+        benchmarks.add(new StatsBench.GetRecord(64));
+
+        return benchmarks;
+    }
+
+    private static boolean selected(String name) {
+        if(filters.isEmpty()) {
+            return true;
+        }
+        for(String filter: filters) {
+            if(name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
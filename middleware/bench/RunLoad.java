@@ -0,0 +1,432 @@
+/**
+    RunLoad.java
+    05-12-2017
+
+    @Description: Runs throughput / response time experiments on a single machine. For every configuration of the sweep, fake memcached servers and a middleware are started in-process on the loopback interface and loaded by closed or open loop clients. Each configuration results in one line containing the middleware statistics, in the columns of Worker.initLog() averaged over the measurement window, followed by the statistics measured by the clients. This should be run through "ant loadgen".
+    @Author: Jakob Beckmann
+*/
+
+package asl_project;
+
+import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+
+import asl_project.loadgen.*;
+import asl_project.util.*;
+
+public class RunLoad {
+
+    static List<String> clientCounts = Arrays.asList("8");
+    static List<String> workerCounts = Arrays.asList("8");
+    static List<String> serverCounts = Arrays.asList("1");
+    static List<String> shardings = Arrays.asList("false");
+    static boolean openLoop = false;
+    static double rate = 1000.0;
+    static String ratio = "1:10";
+    static int multigetKeys = 1;
+    static int keyMaximum = 10000;
+    static double zipf = 0.0;
+    static int valueSize = 1024;
+    static long serviceMicros = 0L;
+    static long slowServiceMicros = -1L;
+    static boolean exponential = false;
+    static double hitRatio = 1.0;
+    static int warmup = 10;
+    static int duration = 20;
+    static String logDir = null;
+    static int minWorkers = 1;
+    static int maxWorkers = 0;
+    static ReplicaSelector.Policy replicaSelection = ReplicaSelector.Policy.ROUND_ROBIN;
+    static double hedgePercentile = 0.0;
+    static double hedgeBudget = 5.0;
+    static long admissionDeadline = 0L;
+    static long codelTarget = 0L;
+    static int clientLimit = 0;
+    static int[] laneWeights = null;
+    static int[] laneReserved = null;
+    static long serverTimeout = 0L;
+    static int failureThreshold = 3;
+    static long probeInterval = 1000L;
+    static int repairLog = 0;
+    static double readRepairPercent = 1.0;
+    static double failPercent = 0.0;
+    static int hotKeys = 0;
+    static int hotKeySampling = 1;
+    static int joinAfter = -1;
+    static int unreachable = 0;
+    static long connectTimeout = 1000L;
+    static int minConnections = 1;
+    static String[] cpuSets = null;
+    static int compressThreshold = 0;
+    static int writeQuorum = 0;
+    static boolean useUdp = false;
+    static String captureFile = null;
+    static Trace trace = null;
+    static double replaySpeed = 1.0;
+    static String jfrFile = null;
+    static long jfrThreshold = 1000L;
+    static boolean queueingModel = false;
+    static String poolsFile = null;
+    static int seriesSeconds = 0;
+    static int controlPort = -1;
+    static int mwWarmup = 10;
+
+    public static void main(String[] args) throws Exception {
+
+        // -----------------------------------------------------------------------------
+        // Parse and prepare arguments
+        // -----------------------------------------------------------------------------
+
+        parseArguments(args);
+        if(trace != null) {
+            System.err.println(String.format("Replaying %d requests of %d connections over %.1f s (%s) at %s.",
+                                             trace.requests, trace.connections.size(), trace.duration / 1000000.0, trace.mode,
+                                             replaySpeed > 0 ? replaySpeed + "x" : "maximum speed"));
+        }
+
+        // The middleware logs into the home directory, use a separate one for the experiments
+        if(logDir == null) {
+            logDir = Files.createTempDirectory("loadgen").toString();
+        }
+        new File(logDir).mkdirs();
+        System.setProperty("user.home", logDir);
+        System.err.println("Middleware logs are written to " + logDir);
+
+        // -----------------------------------------------------------------------------
+        // Run the sweep
+        // -----------------------------------------------------------------------------
+
+        System.out.println(String.format("%5s %5s %4s %5s %s %9s %9s %8s %8s %8s %6s",
+                                         "CLNTS", "WRKRS", "SVRS", "SHRD", Worker.initLog(), "CL TPUT", "CL RT", "CL P50", "CL P99", "CL P99.9", "ERRS"));
+        for(String servers: serverCounts) {
+            for(String sharded: shardings) {
+                for(String workers: workerCounts) {
+                    for(String clients: clientCounts) {
+                        runExperiment(Integer.parseInt(clients),
+                                      Integer.parseInt(workers),
+                                      Integer.parseInt(servers),
+                                      Boolean.parseBoolean(sharded));
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+        Runs a single configuration and prints its result line.
+        @param clients: Integer of the number of client connections.
+        @param workers: Integer of the number of worker threads of the middleware.
+        @param servers: Integer of the number of memcached servers.
+        @param sharded: Boolean for sharded multigets.
+    */
+    private static void runExperiment(int clients, int workers, int servers, boolean sharded) throws Exception {
+        // A trace is replayed by one client per captured connection, with values as large as the captured ones
+        int valueSize = RunLoad.valueSize;
+        if(trace != null) {
+            clients = trace.connections.size();
+            valueSize = Math.max(valueSize, trace.maxValue);
+        }
+        // Start the servers
+        List<FakeMemcached> memcached = new ArrayList<FakeMemcached>();
+        List<String> mcAddresses = new ArrayList<String>();
+        for(int idx = 0; idx < servers; idx++) {
+            // The first server can be made slower to compare load balancing policies
+            long service = idx == 0 && slowServiceMicros >= 0 ? slowServiceMicros : serviceMicros;
+            FakeMemcached server = new FakeMemcached(service, exponential, hitRatio, valueSize);
+            if(idx == 0) {
+                server.setFailureRatio(failPercent / 100.0);
+            }
+            mcAddresses.add("127.0.0.1:" + server.start());
+            memcached.add(server);
+        }
+        // Servers that are down, i.e. ports nothing listens on, to check the startup with missing servers
+        for(int idx = 0; idx < unreachable; idx++) {
+            try(ServerSocket closed = new ServerSocket(0)) {
+                mcAddresses.add("127.0.0.1:" + closed.getLocalPort());
+            }
+        }
+
+        // Start the middleware. With open loop clients, the middleware corrects its percentiles using
+        // the mean interval between two requests of a client.
+        Options options = new Options();
+        if(openLoop) {
+            options.expectedInterval = (long) (1000000.0 / rate);
+        }
+        options.minWorkers = minWorkers;
+        options.maxWorkers = maxWorkers;
+        options.replicaSelection = replicaSelection;
+        options.hedgePercentile = hedgePercentile;
+        options.hedgeBudget = hedgeBudget;
+        options.admissionDeadline = admissionDeadline;
+        options.codelTarget = codelTarget;
+        options.clientLimit = clientLimit;
+        options.laneWeights = laneWeights;
+        options.laneReserved = laneReserved;
+        options.serverTimeout = serverTimeout;
+        options.failureThreshold = failureThreshold;
+        options.probeInterval = probeInterval;
+        options.repairLog = repairLog;
+        options.readRepairPercent = readRepairPercent;
+        options.hotKeys = hotKeys;
+        options.hotKeySampling = hotKeySampling;
+        options.connectTimeout = connectTimeout;
+        options.minConnections = minConnections;
+        options.cpuSets = cpuSets;
+        options.compressThreshold = compressThreshold;
+        options.writeQuorum = writeQuorum;
+        options.udpPort = useUdp ? 0 : -1;
+        options.captureFile = captureFile;
+        options.jfrFile = jfrFile;
+        options.jfrThreshold = jfrThreshold;
+        options.queueingModel = queueingModel;
+        options.poolsFile = poolsFile;
+        options.seriesSeconds = seriesSeconds;
+        options.controlPort = controlPort;
+        options.warmupSeconds = mwWarmup;
+        long created = System.nanoTime() >> 10;
+        final MyMiddleware mw = new MyMiddleware("127.0.0.1", 0, mcAddresses, workers, sharded, options);
+        long accepting = System.nanoTime() >> 10;
+        boolean ready = mw.awaitReady(connectTimeout + 1000L);
+        System.err.println(String.format("Middleware accepting after %.1f ms, %s after %.1f ms.",
+                                         (accepting - created) / 1000.0, ready ? "ready" : "not ready",
+                                         ((System.nanoTime() >> 10) - created) / 1000.0));
+        Thread netThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mw.run();
+            }
+        }, "net-thread");
+        netThread.start();
+
+        // Start the clients
+        Workload workload = new Workload(ratio, trace != null ? Math.max(multigetKeys, trace.maxKeys) : multigetKeys, keyMaximum, valueSize);
+        workload.setZipf(zipf);
+        List<LoadClient> loadClients = new ArrayList<LoadClient>();
+        long now = System.nanoTime() >> 10;
+        long measureFrom = now + warmup * 1000000L;
+        long measureUntil = measureFrom + duration * 1000000L;
+        for(int idx = 0; idx < clients; idx++) {
+            LoadClient client;
+            if(trace != null) {
+                client = new LoadClient.Replay(idx, "127.0.0.1", mw.getLocalPort(), workload, trace.connections.get(idx), now, replaySpeed);
+            } else if(openLoop) {
+                client = new LoadClient.OpenLoop(idx, "127.0.0.1", mw.getLocalPort(), workload, rate);
+            } else {
+                client = new LoadClient.ClosedLoop(idx, "127.0.0.1", mw.getLocalPort(), workload);
+            }
+            if(useUdp) {
+                client.useUdp(mw.getUdpPort());
+            }
+            client.schedule(measureFrom, measureUntil, measureUntil);
+            client.start();
+            loadClients.add(client);
+        }
+
+        // Discard the records of the warm up and collect the ones of the measurement window
+        Thread.sleep(warmup * 1000L);
+        mw.getSummary();
+        if(joinAfter >= 0 && joinAfter < duration) {
+            // Add a server during the measurement window
+            Thread.sleep(joinAfter * 1000L);
+            FakeMemcached server = new FakeMemcached(serviceMicros, exponential, hitRatio, valueSize);
+            List<String> joined = new ArrayList<String>(mcAddresses);
+            joined.add("127.0.0.1:" + server.start());
+            memcached.add(server);
+            mw.setServers(joined);
+            Thread.sleep((duration - joinAfter) * 1000L);
+        } else {
+            Thread.sleep(duration * 1000L);
+        }
+        StatsRecord record = mw.getSummary();
+
+        ClientStats stats = new ClientStats();
+        for(LoadClient client: loadClients) {
+            client.join(10000L);
+            stats.add(client.getStats());
+        }
+
+        mw.shutdown();
+        netThread.join(10000L);
+        for(FakeMemcached server: memcached) {
+            server.stop();
+        }
+
+        StringBuilder line = new StringBuilder(128);
+        record.format(line);
+        // Percentiles are taken from the intended send times, for closed loop clients these are the
+        // actual send times.
+        System.out.println(String.format("%5d %5d %4d %5b %s %9.2f %9.2f %8d %8d %8d %6d",
+                                         clients,
+                                         workers,
+                                         servers,
+                                         sharded,
+                                         line,
+                                         stats.requests / (double) duration,
+                                         stats.responseTime(),
+                                         stats.latencies_intended.getValueAtPercentile(50.0),
+                                         stats.latencies_intended.getValueAtPercentile(99.0),
+                                         stats.latencies_intended.getValueAtPercentile(99.9),
+                                         stats.errors));
+    }
+
+    private static void parseArguments(String[] args) {
+        Map<String, List<String>> params = new HashMap<>();
+
+        List<String> options = null;
+        for (int i = 0; i < args.length; i++) {
+            final String a = args[i];
+
+            if (a.charAt(0) == '-') {
+                if (a.length() < 2) {
+                    System.err.println("Error at argument " + a);
+                    System.exit(1);
+                }
+
+                options = new ArrayList<String>();
+                params.put(a.substring(1), options);
+            } else if (options != null) {
+                options.add(a);
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        try {
+            if (params.get("c") != null)
+                clientCounts = params.get("c");
+            if (params.get("t") != null)
+                workerCounts = params.get("t");
+            if (params.get("n") != null)
+                serverCounts = params.get("n");
+            if (params.get("s") != null)
+                shardings = params.get("s");
+            if (params.get("mode") != null)
+                openLoop = params.get("mode").get(0).equals("open");
+            if (params.get("rate") != null)
+                rate = Double.parseDouble(params.get("rate").get(0));
+            if (params.get("ratio") != null)
+                ratio = params.get("ratio").get(0);
+            if (params.get("k") != null)
+                multigetKeys = Integer.parseInt(params.get("k").get(0));
+            if (params.get("keys") != null)
+                keyMaximum = Integer.parseInt(params.get("keys").get(0));
+            if (params.get("zipf") != null)
+                zipf = Double.parseDouble(params.get("zipf").get(0));
+            if (params.get("v") != null)
+                valueSize = Integer.parseInt(params.get("v").get(0));
+            if (params.get("st") != null)
+                serviceMicros = Long.parseLong(params.get("st").get(0));
+            if (params.get("slow") != null)
+                slowServiceMicros = Long.parseLong(params.get("slow").get(0));
+            if (params.get("exp") != null)
+                exponential = Boolean.parseBoolean(params.get("exp").get(0));
+            if (params.get("hr") != null)
+                hitRatio = Double.parseDouble(params.get("hr").get(0));
+            if (params.get("w") != null)
+                warmup = Integer.parseInt(params.get("w").get(0));
+            if (params.get("d") != null)
+                duration = Integer.parseInt(params.get("d").get(0));
+            if (params.get("o") != null)
+                logDir = params.get("o").get(0);
+            if (params.get("ta") != null) {
+                minWorkers = Integer.parseInt(params.get("ta").get(0));
+                maxWorkers = Integer.parseInt(params.get("ta").get(1));
+            }
+            if (params.get("rs") != null)
+                replicaSelection = ReplicaSelector.parsePolicy(params.get("rs").get(0));
+            if (params.get("ad") != null)
+                admissionDeadline = Long.parseLong(params.get("ad").get(0));
+            if (params.get("codel") != null)
+                codelTarget = Long.parseLong(params.get("codel").get(0));
+            if (params.get("cl") != null)
+                clientLimit = Integer.parseInt(params.get("cl").get(0));
+            if (params.get("lanes") != null) {
+                List<String> lanes = params.get("lanes");
+                laneWeights = new int[] {Integer.parseInt(lanes.get(0)), Integer.parseInt(lanes.get(1)), Integer.parseInt(lanes.get(2))};
+                if (lanes.size() > 3)
+                    laneReserved = new int[] {Integer.parseInt(lanes.get(3)), Integer.parseInt(lanes.get(4)), Integer.parseInt(lanes.get(5))};
+            }
+            if (params.get("hedge") != null) {
+                hedgePercentile = Double.parseDouble(params.get("hedge").get(0));
+                if (params.get("hedge").size() > 1)
+                    hedgeBudget = Double.parseDouble(params.get("hedge").get(1));
+            }
+            if (params.get("to") != null) {
+                serverTimeout = Long.parseLong(params.get("to").get(0));
+                if (params.get("to").size() > 1) {
+                    failureThreshold = Integer.parseInt(params.get("to").get(1));
+                    probeInterval = Long.parseLong(params.get("to").get(2));
+                }
+            }
+            if (params.get("repair") != null) {
+                repairLog = Integer.parseInt(params.get("repair").get(0));
+                if (params.get("repair").size() > 1)
+                    readRepairPercent = Double.parseDouble(params.get("repair").get(1));
+            }
+            if (params.get("hot") != null) {
+                hotKeys = Integer.parseInt(params.get("hot").get(0));
+                if (params.get("hot").size() > 1)
+                    hotKeySampling = Integer.parseInt(params.get("hot").get(1));
+            }
+            if (params.get("join") != null)
+                joinAfter = Integer.parseInt(params.get("join").get(0));
+            if (params.get("fail") != null)
+                failPercent = Double.parseDouble(params.get("fail").get(0));
+            if (params.get("compress") != null)
+                compressThreshold = Integer.parseInt(params.get("compress").get(0));
+            if (params.get("capture") != null)
+                captureFile = params.get("capture").get(0);
+            if (params.get("replay") != null) {
+                trace = new Trace(params.get("replay").get(0));
+                if (params.get("replay").size() > 1)
+                    replaySpeed = params.get("replay").get(1).equals("max") ? 0.0 : Double.parseDouble(params.get("replay").get(1));
+            }
+            if (params.get("model") != null)
+                queueingModel = Boolean.parseBoolean(params.get("model").get(0));
+            if (params.get("pools") != null)
+                poolsFile = params.get("pools").get(0);
+            if (params.get("series") != null) {
+                seriesSeconds = Integer.parseInt(params.get("series").get(0));
+                if (params.get("series").size() > 1)
+                    controlPort = Integer.parseInt(params.get("series").get(1));
+            }
+            if (params.get("warmup") != null)
+                mwWarmup = params.get("warmup").get(0).equals("auto") ? -1 : Integer.parseInt(params.get("warmup").get(0));
+            if (params.get("jfr") != null) {
+                jfrFile = params.get("jfr").get(0);
+                if (params.get("jfr").size() > 1)
+                    jfrThreshold = Long.parseLong(params.get("jfr").get(1));
+            }
+            if (params.get("udp") != null)
+                useUdp = Boolean.parseBoolean(params.get("udp").get(0));
+            if (params.get("quorum") != null)
+                writeQuorum = Integer.parseInt(params.get("quorum").get(0));
+            if (params.get("cpu") != null)
+                cpuSets = params.get("cpu").toArray(new String[0]);
+            if (params.get("down") != null)
+                unreachable = Integer.parseInt(params.get("down").get(0));
+            if (params.get("ct") != null) {
+                connectTimeout = Long.parseLong(params.get("ct").get(0));
+                if (params.get("ct").size() > 1)
+                    minConnections = Integer.parseInt(params.get("ct").get(1));
+            }
+        } catch(IllegalArgumentException | IndexOutOfBoundsException ex) {
+            printUsage();
+            System.exit(1);
+        } catch(IOException ex) {
+            System.err.println("Could not read the trace: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println();
+        System.err.println(
+                "Usage: [-c <Clients> ...] [-t <Workers> ...] [-n <Servers> ...] [-s <readSharded> ...] [-mode closed|open] [-rate <RequestsPerSecPerClient>] [-ratio <Sets:Gets>] [-k <KeysPerGet>] [-keys <KeyMaximum>] [-zipf <Exponent>] [-v <ValueSize>] [-st <ServiceTimeMicros>] [-slow <FirstServerServiceTimeMicros>] [-fail <FirstServerFailedSetPercent>] [-join <AfterSecs>] [-down <UnreachableServers>] [-exp <ExponentialServiceTime>] [-hr <HitRatio>] [-w <WarmupSecs>] [-d <DurationSecs>] [-o <LogDir>] [-ta <MinActiveWorkers> <MaxActiveWorkers>] [-rs rr|p2c|least] [-hedge <Percentile> [<BudgetPercent>]] [-ad <DeadlineMicros>] [-codel <TargetMicros>] [-cl <MaxRequestsPerClient>] [-lanes <Weights> [<Reserved>]] [-to <TimeoutMillis> [<FailureThreshold> <ProbeIntervalMillis>]] [-repair <RetryLogSize> [<ReadRepairPercent>]] [-hot <TopKeys> [<SampleEvery>]] [-ct <ConnectTimeoutMillis> [<MinConnectionsPerServer>]] [-cpu auto|<NetCpus> [<WorkerCpus> [<BackgroundCpus>]]] [-compress <MinValueBytes>] [-quorum <Servers>] [-udp <GetsOverUdp>] [-capture <TraceFile>] [-replay <TraceFile> [<Speed>|max]] [-jfr <RecordingFile> [<ThresholdMicros>]] [-model <QueueingModel>] [-pools <RulesFile>] [-series <Seconds> [<ControlPort>]] [-warmup auto|<Seconds>]");
+    }
+}
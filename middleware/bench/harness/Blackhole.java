@@ -0,0 +1,43 @@
+/*
+    Blackhole.java
+    04-12-2017
+
+    @Description: Sink for values computed by benchmarks. Consuming a value prevents the JIT compiler from removing the computation that produced it as dead code.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.harness;
+
+
+public final class Blackhole {
+    // Never equal to any consumed object, but the compiler can not know this
+    private volatile Object trap = new Object();
+    private volatile int sink;
+    private int accumulator;
+
+    public void consume(int value) {
+        accumulator ^= value;
+    }
+
+    public void consume(long value) {
+        accumulator ^= (int) (value ^ (value >>> 32));
+    }
+
+    public void consume(boolean value) {
+        accumulator ^= value ? 1 : 0;
+    }
+
+    public void consume(Object value) {
+        if(value == trap) {
+            accumulator++;
+        }
+    }
+
+    /**
+        Publishes the accumulated value. Called by the harness after every measured batch.
+    */
+    public void flush() {
+        sink = accumulator;
+    }
+}
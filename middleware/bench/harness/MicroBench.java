@@ -0,0 +1,170 @@
+/*
+    MicroBench.java
+    04-12-2017
+
+    @Description: Base class of the microbenchmarks of the middleware hot paths. A benchmark is measured in a JMH like fashion: the batch size is calibrated first, then a number of warm up iterations are run and discarded, before the measured iterations. Each iteration runs batches for a fixed time and yields a time per operation. The score is the mean over the measured iterations with a 99.9% confidence interval. Allocations of the benchmark thread are reported as bytes per operation when the JVM supports it.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.harness;
+
+import java.lang.management.ManagementFactory;
+
+
+public abstract class MicroBench {
+    // Minimum duration of one batch, such that timer overhead is negligible (in nanoseconds)
+    private static final long MIN_BATCH = 1000000L;
+
+    private final String name;
+
+
+    /**
+        Constructor.
+        @param name: String identifying the benchmark and its parameters.
+    */
+    protected MicroBench(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+        Called once before the benchmark is measured.
+    */
+    public void setup() throws Exception {}
+
+    /**
+        Called once after the benchmark was measured.
+    */
+    public void teardown() throws Exception {}
+
+    /**
+        Runs the operation under test.
+        @param ops: Integer of the number of operations to perform.
+        @param bh: Blackhole results should be consumed into.
+    */
+    public abstract void run(int ops, Blackhole bh) throws Exception;
+
+
+    /**
+        Measures the benchmark. Note that setup() and teardown() are called by this function.
+        @param warmups: Integer of the number of warm up iterations.
+        @param iterations: Integer of the number of measured iterations.
+        @param iterationNanos: Long of the duration of each iteration in nanoseconds.
+        @return Result of the measurement.
+    */
+    public Result measure(int warmups, int iterations, long iterationNanos) throws Exception {
+        Blackhole bh = new Blackhole();
+        setup();
+        try {
+            // Calibrate the batch size
+            int batch = 1;
+            while(batch < (1 << 30)) {
+                long start = System.nanoTime();
+                run(batch, bh);
+                if(System.nanoTime() - start >= MIN_BATCH) {
+                    break;
+                }
+                batch <<= 1;
+            }
+
+            for(int iteration = 0; iteration < warmups; iteration++) {
+                iterate(batch, iterationNanos, bh);
+            }
+
+            double[] scores = new double[iterations];
+            long allocated = allocatedBytes();
+            long totalOps = 0L;
+            for(int iteration = 0; iteration < iterations; iteration++) {
+                long[] measured = iterate(batch, iterationNanos, bh);
+                scores[iteration] = measured[1] / (double) measured[0];
+                totalOps += measured[0];
+            }
+            allocated = allocatedBytes() - allocated;
+            return new Result(name, scores, allocated < 0 ? -1.0 : allocated / (double) totalOps);
+        } finally {
+            teardown();
+        }
+    }
+
+    /**
+        Runs batches until the iteration time elapsed.
+        @return Long array with the number of operations and the elapsed time in nanoseconds.
+    */
+    private long[] iterate(int batch, long iterationNanos, Blackhole bh) throws Exception {
+        long ops = 0L;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            run(batch, bh);
+            bh.flush();
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < iterationNanos);
+        return new long[] {ops, elapsed};
+    }
+
+    /**
+        @return Long of the bytes allocated by the current thread so far, or a negative value if not supported.
+    */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+
+
+    /**
+        Class holding the result of a measurement.
+    */
+    public static class Result {
+        public final String name;
+        public final double score;
+        public final double error;
+        public final double bytesPerOp;
+        public final int count;
+
+        Result(String name, double[] scores, double bytesPerOp) {
+            this.name = name;
+            this.count = scores.length;
+            this.bytesPerOp = bytesPerOp;
+
+            double sum = 0.0;
+            for(double score: scores) {
+                sum += score;
+            }
+            this.score = sum / scores.length;
+
+            double variance = 0.0;
+            for(double score: scores) {
+                variance += (score - this.score) * (score - this.score);
+            }
+            // Student t quantile for 99.9% is approximated by the normal one, iterations are few but this
+            // is only meant as an indication of the noise.
+            this.error = scores.length > 1 ? 3.29 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+        }
+
+        /**
+            @return String with the header matching toString().
+        */
+        public static String header() {
+            return String.format("%-48s %5s %12s %10s %8s %10s", "Benchmark", "Cnt", "Score", "Error", "Units", "B/op");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %5d %12.2f %10.2f %8s %10s",
+                                 name,
+                                 count,
+                                 score,
+                                 error,
+                                 "ns/op",
+                                 bytesPerOp < 0 ? "---" : String.format("%.1f", bytesPerOp));
+        }
+    }
+}
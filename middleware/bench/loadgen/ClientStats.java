@@ -0,0 +1,71 @@
+/*
+    ClientStats.java
+    05-12-2017
+
+    @Description: Statistics collected by a load generator client on its side of the connection. Every client has its own instance, they are added up once the clients stopped. Response times are measured from the time the request was sent, and from the time it was intended to be sent. For an open loop client, the latter includes the time a request waited because the previous response was late, which a closed loop client omits.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.loadgen;
+
+import asl_project.util.LatencyHistogram;
+
+
+public class ClientStats {
+    public long requests = 0L;
+    public long sets = 0L;
+    public long gets = 0L;
+    public long hits = 0L;
+    public long errors = 0L;
+    public long total_time = 0L;
+    public final LatencyHistogram latencies = new LatencyHistogram();
+    public final LatencyHistogram latencies_intended = new LatencyHistogram();
+
+
+    /**
+        Records a completed request.
+        @param set: Boolean, true if the request was a set.
+        @param hits: Integer of the number of values returned, or 1 for a stored set.
+        @param error: Boolean, true if the middleware answered with an error.
+        @param time: Long of the response time from the time the request was sent in microseconds.
+        @param timeIntended: Long of the response time from the time the request was intended to be sent in microseconds.
+    */
+    public void record(boolean set, int hits, boolean error, long time, long timeIntended) {
+        this.requests++;
+        if(set) {
+            this.sets++;
+        } else {
+            this.gets++;
+        }
+        this.hits += hits;
+        if(error) {
+            this.errors++;
+        }
+        this.total_time += time;
+        this.latencies.record(time);
+        this.latencies_intended.record(timeIntended);
+    }
+
+    /**
+        Adds the values of another instance to this one.
+        @param other: ClientStats to add.
+    */
+    public void add(ClientStats other) {
+        requests += other.requests;
+        sets += other.sets;
+        gets += other.gets;
+        hits += other.hits;
+        errors += other.errors;
+        total_time += other.total_time;
+        latencies.add(other.latencies);
+        latencies_intended.add(other.latencies_intended);
+    }
+
+    /**
+        @return Double of the average response time in microseconds.
+    */
+    public double responseTime() {
+        return total_time / (double) requests;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+    FakeMemcached.java
+    05-12-2017
+
+    @Description: In-process stand-in for a memcached server, understanding the subset of the protocol used by the middleware (set, get and multi-key get). The service time and the hit ratio of gets are configurable, such that the behaviour of a loaded memcached server can be reproduced on a single machine. Every connection is served by its own thread, as the middleware keeps one connection per worker open.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class FakeMemcached {
+    private final long serviceMicros;
+    private final boolean exponential;
+    private final double hitRatio;
+    private final byte[] defaultValue;
+    private volatile double failureRatio = 0.0;
+    private final ConcurrentHashMap<String, byte[]> store = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, String> flags = new ConcurrentHashMap<String, String>();
+
+    private ServerSocketChannel serverChannel;
+    private final ArrayList<SocketChannel> connections = new ArrayList<SocketChannel>();
+    private volatile boolean running = true;
+
+
+    /**
+        Constructor.
+        @param serviceMicros: Long of the mean time in microseconds the server takes to answer a request.
+        @param exponential: Boolean, if true service times are exponentially distributed, otherwise constant.
+        @param hitRatio: Double between 0 and 1 of the probability a key of a get is found.
+        @param valueSize: Integer of the size of the value returned for keys that were never set.
+    */
+    public FakeMemcached(long serviceMicros, boolean exponential, double hitRatio, int valueSize) {
+        this.serviceMicros = serviceMicros;
+        this.exponential = exponential;
+        this.hitRatio = hitRatio;
+        this.defaultValue = new byte[valueSize];
+        for(int idx = 0; idx < valueSize; idx++) {
+            defaultValue[idx] = (byte) ('a' + idx % 26);
+        }
+    }
+
+    /**
+        Makes the server answer a fraction of the sets with an error instead of storing them, such that replicas diverge.
+        @param failureRatio: Double between 0 and 1 of the probability a set fails.
+    */
+    public void setFailureRatio(double failureRatio) {
+        this.failureRatio = failureRatio;
+    }
+
+    /**
+        Starts listening on the loopback interface.
+        @return Integer of the port the server listens to.
+    */
+    public int start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "fake-memcached-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+        Stops the server and closes all connections.
+    */
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+            synchronized(connections) {
+                for(SocketChannel connection: connections) {
+                    connection.close();
+                }
+            }
+        } catch(IOException ex) {
+            // The connection threads terminate on their own
+        }
+    }
+
+    private void accept() {
+        while(running) {
+            try {
+                final SocketChannel connection = serverChannel.accept();
+                connection.socket().setTcpNoDelay(true);
+                synchronized(connections) {
+                    connections.add(connection);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                }, "fake-memcached-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch(IOException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+        Serves the requests of one connection. Requests may arrive fragmented or several at once.
+        @param connection: SocketChannel to serve.
+    */
+    private void serve(SocketChannel connection) {
+        // Large enough for a SET of the largest value and a multiget of large values
+        ByteBuffer in = ByteBuffer.allocate(Math.max(1 << 16, 2 * defaultValue.length + 1024));
+        ByteBuffer out = ByteBuffer.allocate(Math.max(1 << 16, 16 * (defaultValue.length + 300)));
+        try {
+            while(running) {
+                if(connection.read(in) < 0) {
+                    return;
+                }
+                in.flip();
+                int consumed;
+                while((consumed = handle(in, out, connection)) > 0) {
+                    in.position(in.position() + consumed);
+                }
+                in.compact();
+                flush(connection, out);
+            }
+        } catch(IOException ex) {
+            // Connection closed by the middleware
+        } finally {
+            try {
+                connection.close();
+            } catch(IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+        Handles the request at the position of the input buffer if it is complete.
+        @param in: ByteBuffer of the received data, this is not modified.
+        @param out: ByteBuffer the response is appended to.
+        @param connection: SocketChannel the output is flushed to if a response does not fit in the output buffer.
+        @return Integer of the number of bytes consumed from the input, 0 if the request is incomplete.
+    */
+    private int handle(ByteBuffer in, ByteBuffer out, SocketChannel connection) throws IOException {
+        int start = in.position();
+        int end = -1;
+        for(int idx = start; idx + 1 < in.limit(); idx++) {
+            if(in.get(idx) == '\r' && in.get(idx + 1) == '\n') {
+                end = idx;
+                break;
+            }
+        }
+        if(end < 0) {
+            return 0;
+        }
+        String[] command = new String(in.array(), start, end - start).trim().split(" ");
+        int consumed = end + 2 - start;
+
+        if((command[0].equals("set") || command[0].equals("add")) && command.length >= 5) {
+            int length = Integer.parseInt(command[4]);
+            if(in.limit() < end + 2 + length + 2) {
+                return 0;
+            }
+            byte[] value = new byte[length];
+            for(int idx = 0; idx < length; idx++) {
+                value[idx] = in.get(end + 2 + idx);
+            }
+            serviceTime();
+            if(failureRatio > 0 && ThreadLocalRandom.current().nextDouble() < failureRatio) {
+                out.put("SERVER_ERROR out of memory storing object\r\n".getBytes());
+                return consumed + length + 2;
+            }
+            if(command[0].equals("add") && store.putIfAbsent(command[1], value) != null) {
+                out.put("NOT_STORED\r\n".getBytes());
+            } else {
+                flags.put(command[1], command[2]);
+                store.put(command[1], value);
+                out.put("STORED\r\n".getBytes());
+            }
+            return consumed + length + 2;
+        } else if(command[0].equals("get") || command[0].equals("gets")) {
+            serviceTime();
+            for(int idx = 1; idx < command.length; idx++) {
+                if(ThreadLocalRandom.current().nextDouble() >= hitRatio) {
+                    continue;
+                }
+                byte[] value = store.get(command[idx]);
+                String valueFlags = flags.getOrDefault(command[idx], "0");
+                if(value == null) {
+                    value = defaultValue;
+                    valueFlags = "0";
+                }
+                if(out.remaining() < value.length + command[idx].length() + 32) {
+                    break;
+                }
+                out.put(("VALUE " + command[idx] + " " + valueFlags + " " + value.length + "\r\n").getBytes());
+                out.put(value);
+                out.put("\r\n".getBytes());
+            }
+            out.put("END\r\n".getBytes());
+            return consumed;
+        } else if(command[0].equals("lru_crawler") && command.length == 3 && command[1].equals("metadump")) {
+            // Lists the keys as memcached does, in chunks as the list might not fit in the output buffer
+            for(String key: store.keySet()) {
+                if(out.remaining() < key.length() + 64) {
+                    flush(connection, out);
+                }
+                out.put(("key=" + key + " exp=-1 la=0 cas=0 fetch=no cls=1 size=" + store.get(key).length + "\r\n").getBytes());
+            }
+            out.put("END\r\n".getBytes());
+            return consumed;
+        }
+        out.put("ERROR\r\n".getBytes());
+        return consumed;
+    }
+
+    /**
+        Writes the output buffer to the connection and clears it.
+    */
+    private static void flush(SocketChannel connection, ByteBuffer out) throws IOException {
+        if(out.position() > 0) {
+            out.flip();
+            while(out.hasRemaining()) {
+                connection.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+        Blocks the connection thread for the duration of a service time.
+    */
+    private void serviceTime() {
+        if(serviceMicros <= 0) {
+            return;
+        }
+        long micros = serviceMicros;
+        if(exponential) {
+            micros = (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * serviceMicros);
+        }
+        LockSupport.parkNanos(micros * 1000L);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+    LoadClient.java
+    05-12-2017
+
+    @Description: Base class of the load generator clients. A client holds one connection to the middleware and sends one request at a time, as memtier does with a pipeline depth of one. Subclasses decide when the next request is sent. Only requests sent within the measurement window are recorded, which allows to discard warm up and cool down.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.loadgen;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+
+public abstract class LoadClient extends Thread {
+    protected final Workload workload;
+    protected final ClientStats stats = new ClientStats();
+    private final String host;
+    private final int port;
+    private final ByteBuffer response;
+    private SocketChannel channel;
+
+    // GETs are sent over UDP if a port is set, see useUdp()
+    private static final int UDP_TIMEOUT = 1000;
+    private static final int UDP_PAYLOAD = 1392;
+    private int udpPort = -1;
+    private DatagramChannel udp;
+    private short requestId = 0;
+    private final byte[] datagram = new byte[65536];
+
+    // Measurement window and end of the run, in microseconds on the System.nanoTime() scale
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+    private volatile long stopAt = Long.MAX_VALUE;
+
+
+    /**
+        Constructor.
+        @param name: String naming the thread.
+        @param host: String of the address of the middleware.
+        @param port: Integer of the port of the middleware.
+        @param workload: Workload describing the requests to send.
+    */
+    protected LoadClient(String name, String host, int port, Workload workload) {
+        super(name);
+        setDaemon(true);
+        this.host = host;
+        this.port = port;
+        this.workload = workload;
+        // Large enough for a multiget of large values
+        this.response = ByteBuffer.allocate(Math.max(1 << 16, workload.multigetKeys * (workload.valueSize + 300) + 16));
+    }
+
+    /**
+        Sets the time window in which requests are recorded and the time the client stops.
+        @param measureFrom: Long of the start of the measurement in microseconds (System.nanoTime() >> 10).
+        @param measureUntil: Long of the end of the measurement in microseconds.
+        @param stopAt: Long of the time the client stops sending requests in microseconds.
+    */
+    public void schedule(long measureFrom, long measureUntil, long stopAt) {
+        this.measureFrom = measureFrom;
+        this.measureUntil = measureUntil;
+        this.stopAt = stopAt;
+    }
+
+    /**
+        Makes the client send its GETs over UDP with the framing of memcached. GETs whose response is not complete within a second are counted as errors.
+        @param port: Integer of the UDP port of the middleware.
+    */
+    public void useUdp(int port) {
+        this.udpPort = port;
+    }
+
+    /**
+        @return ClientStats of the requests recorded. This should only be read once the client terminated.
+    */
+    public ClientStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void run() {
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            if(udpPort >= 0) {
+                udp = DatagramChannel.open();
+                udp.connect(new InetSocketAddress(host, udpPort));
+                udp.socket().setSoTimeout(UDP_TIMEOUT);
+            }
+            while(true) {
+                long now = System.nanoTime() >> 10;
+                if(now >= stopAt) {
+                    break;
+                }
+                if(!next(now)) {
+                    break;
+                }
+            }
+        } catch(IOException ex) {
+            System.err.println(getName() + ": connection to the middleware failed: " + ex.getMessage());
+        } finally {
+            try {
+                if(channel != null) {
+                    channel.close();
+                }
+                if(udp != null) {
+                    udp.close();
+                }
+            } catch(IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+        Sends the next request. Implemented by the subclasses using send().
+        @param now: Long of the current time in microseconds.
+        @return false if the client should stop.
+    */
+    protected abstract boolean next(long now) throws IOException;
+
+    /**
+        @param time: Long of a time in microseconds.
+        @return true if the time is within the measurement window.
+    */
+    protected boolean measuring(long time) {
+        return time >= measureFrom && time < measureUntil;
+    }
+
+    /**
+        @return Long of the time the client stops in microseconds.
+    */
+    protected long stopAt() {
+        return stopAt;
+    }
+
+    /**
+        Sends a request generated from the workload and waits for the complete response. Requests are attributed to the measurement window by their actual send time, as an overloaded open loop client might never reach the window with its intended send times.
+        @param intended: Long of the time the request was intended to be sent in microseconds.
+    */
+    protected void send(long intended) throws IOException {
+        boolean set = workload.nextIsSet();
+        send(intended, set ? workload.set() : workload.get(), set);
+    }
+
+    /**
+        Sends the given request and waits for the complete response.
+        @param intended: Long of the time the request was intended to be sent in microseconds.
+        @param command: Byte array of the complete request.
+        @param set: Boolean, true if the request is a set.
+    */
+    protected void send(long intended, byte[] command, boolean set) throws IOException {
+        long start = System.nanoTime() >> 10;
+        boolean lost = false;
+        if(!set && udp != null) {
+            lost = !sendUdp(command);
+        } else {
+            ByteBuffer request = ByteBuffer.wrap(command);
+            while(request.hasRemaining()) {
+                channel.write(request);
+            }
+
+            response.clear();
+            while(!complete(set)) {
+                if(channel.read(response) < 0) {
+                    throw new IOException("Middleware closed the connection");
+                }
+            }
+        }
+        long end = System.nanoTime() >> 10;
+
+        if(measuring(start)) {
+            boolean error = lost || endsWith("ERROR\r\n") || startsWith("SERVER_ERROR");
+            int hits = set ? (startsWith("STORED") ? 1 : 0) : count("VALUE ");
+            stats.record(set, hits, error, end - start, end - intended);
+        }
+    }
+
+    /**
+        Sends a GET in a datagram and reassembles the datagrams of the response in order of their sequence numbers. Datagrams of earlier requests are discarded.
+        @return true if the response is complete, false if a datagram was lost.
+    */
+    private boolean sendUdp(byte[] command) throws IOException {
+        requestId++;
+        ByteBuffer request = ByteBuffer.allocate(8 + command.length);
+        request.putShort(requestId).putShort((short) 0).putShort((short) 1).putShort((short) 0).put(command);
+        request.flip();
+        udp.write(request);
+
+        response.clear();
+        int received = 0;
+        int total = 1;
+        DatagramPacket packet = new DatagramPacket(datagram, datagram.length);
+        try {
+            while(received < total) {
+                udp.socket().receive(packet);
+                ByteBuffer frame = ByteBuffer.wrap(datagram, 0, packet.getLength());
+                if(packet.getLength() < 8 || frame.getShort(0) != requestId) {
+                    continue;
+                }
+                int sequence = frame.getShort(2) & 0xFFFF;
+                total = frame.getShort(4) & 0xFFFF;
+                int length = packet.getLength() - 8;
+                // All datagrams but the last one carry UDP_PAYLOAD bytes
+                int offset = sequence * UDP_PAYLOAD;
+                if(offset + length > response.capacity()) {
+                    return false;
+                }
+                System.arraycopy(datagram, 8, response.array(), offset, length);
+                if(sequence + 1 == total) {
+                    response.position(offset + length);
+                }
+                received++;
+            }
+        } catch(SocketTimeoutException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+        @return true if the response received so far is complete.
+    */
+    private boolean complete(boolean set) {
+        if(set) {
+            return endsWith("\r\n");
+        }
+        return endsWith("END\r\n") || endsWith("ERROR\r\n") || (startsWith("SERVER_ERROR") && endsWith("\r\n"));
+    }
+
+    private boolean endsWith(String suffix) {
+        int length = suffix.length();
+        int end = response.position();
+        if(end < length) {
+            return false;
+        }
+        for(int idx = 0; idx < length; idx++) {
+            if(response.get(end - length + idx) != suffix.charAt(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(String prefix) {
+        if(response.position() < prefix.length()) {
+            return false;
+        }
+        for(int idx = 0; idx < prefix.length(); idx++) {
+            if(response.get(idx) != prefix.charAt(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+        Counts the lines of the response starting with the given prefix.
+    */
+    private int count(String prefix) {
+        int count = 0;
+        int lineStart = 0;
+        int end = response.position();
+        while(lineStart < end) {
+            boolean match = lineStart + prefix.length() <= end;
+            for(int idx = 0; match && idx < prefix.length(); idx++) {
+                match = response.get(lineStart + idx) == prefix.charAt(idx);
+            }
+            if(match) {
+                count++;
+                // Skip the header line and the data block of the value
+                int headerEnd = indexOfCrlf(lineStart, end);
+                String[] header = new String(response.array(), lineStart, headerEnd - lineStart).split(" ");
+                lineStart = headerEnd + 2 + Integer.parseInt(header[3]) + 2;
+            } else {
+                lineStart = indexOfCrlf(lineStart, end) + 2;
+            }
+        }
+        return count;
+    }
+
+    private int indexOfCrlf(int from, int end) {
+        for(int idx = from; idx + 1 < end; idx++) {
+            if(response.get(idx) == '\r' && response.get(idx + 1) == '\n') {
+                return idx;
+            }
+        }
+        return end;
+    }
+
+
+    /**
+        Closed loop client: the next request is sent as soon as the response to the previous one arrived, like memtier.
+    */
+    public static class ClosedLoop extends LoadClient {
+        public ClosedLoop(int id, String host, int port, Workload workload) {
+            super("closed-loop-client-" + id, host, port, workload);
+        }
+
+        @Override
+        protected boolean next(long now) throws IOException {
+            send(now);
+            return true;
+        }
+    }
+
+    /**
+        Open loop client: requests are sent following a Poisson process of the given rate. As a connection only carries one request at a time, a request is sent late if the previous response arrived after its scheduled time. The response time from the scheduled time is recorded as well, which does not suffer from coordinated omission.
+    */
+    public static class OpenLoop extends LoadClient {
+        private final double meanInterval;
+        private long scheduled = -1L;
+
+        /**
+            Constructor.
+            @param rate: Double of the mean number of requests per second sent by this client.
+        */
+        public OpenLoop(int id, String host, int port, Workload workload, double rate) {
+            super("open-loop-client-" + id, host, port, workload);
+            this.meanInterval = 1000000.0 / rate;
+        }
+
+        @Override
+        protected boolean next(long now) throws IOException {
+            if(scheduled < 0) {
+                scheduled = now;
+            }
+            scheduled += (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * meanInterval);
+            if(scheduled >= stopAt()) {
+                return false;
+            }
+            long wait = scheduled - (System.nanoTime() >> 10);
+            if(wait > 0) {
+                LockSupport.parkNanos(wait << 10);
+            }
+            send(scheduled);
+            return true;
+        }
+    }
+
+    /**
+        Replay client: sends the requests of one connection of a trace in order. With a speed factor, a request is sent at its time in the trace divided by the factor, or as soon as the previous response arrived if that is later. With a speed of 0, the requests are sent back to back.
+    */
+    public static class Replay extends LoadClient {
+        private final List<Trace.Entry> entries;
+        private final long start;
+        private final double speed;
+        private int next = 0;
+
+        /**
+            Constructor.
+            @param entries: List of the requests of the connection.
+            @param start: Long of the time the replay of the trace starts in microseconds.
+            @param speed: Double of the speed factor, 0 for back to back.
+        */
+        public Replay(int id, String host, int port, Workload workload, List<Trace.Entry> entries, long start, double speed) {
+            super("replay-client-" + id, host, port, workload);
+            this.entries = entries;
+            this.start = start;
+            this.speed = speed;
+        }
+
+        @Override
+        protected boolean next(long now) throws IOException {
+            if(next == entries.size()) {
+                return false;
+            }
+            Trace.Entry entry = entries.get(next++);
+            long scheduled = now;
+            if(speed > 0) {
+                scheduled = start + (long) (entry.time / speed);
+                if(scheduled >= stopAt()) {
+                    return false;
+                }
+                long wait = scheduled - (System.nanoTime() >> 10);
+                if(wait > 0) {
+                    LockSupport.parkNanos(wait << 10);
+                }
+            }
+            send(scheduled, entry.request, entry.set);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+    Trace.java
+    17-12-2017
+
+    @Description: Trace of client requests captured by the middleware (see TrafficCapture), read for replay. The requests are grouped by the connection they arrived on, such that every connection is replayed by one client in its original order. Values that were not captured are replaced by generated values of the captured length.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import asl_project.util.TrafficCapture;
+
+
+public class Trace {
+    /**
+        Request of the trace.
+    */
+    public static class Entry {
+        public final long time;         // Microseconds since the first request of the trace
+        public final byte[] request;
+        public final boolean set;
+
+        Entry(long time, byte[] request, boolean set) {
+            this.time = time;
+            this.request = request;
+            this.set = set;
+        }
+    }
+
+    public final TrafficCapture.Mode mode;
+    public final List<List<Entry>> connections = new ArrayList<List<Entry>>();
+    public long requests = 0L;
+    public long duration = 0L;          // Microseconds between the first and the last request
+    public int maxValue = 0;
+    public int maxKeys = 1;
+
+
+    /**
+        Constructor. Reads the complete trace into memory. A record cut off at the end of the file is ignored.
+        @param file: String of the path of the trace file.
+    */
+    public Trace(String file) throws IOException {
+        Map<Integer, List<Entry>> byConnection = new LinkedHashMap<Integer, List<Entry>>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if(in.readLong() != TrafficCapture.MAGIC) {
+                throw new IOException(file + " is not a trace of the middleware.");
+            }
+            this.mode = TrafficCapture.Mode.values()[in.readByte()];
+            in.readLong();
+            long first = -1L;
+            while(true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch(EOFException ex) {
+                    break;
+                }
+                try {
+                    int connection = in.readInt();
+                    byte[] line = new byte[in.readUnsignedShort()];
+                    in.readFully(line);
+                    int valueLength = in.readInt();
+                    byte[] value = null;
+                    if(in.readByte() == 1) {
+                        value = new byte[valueLength];
+                        in.readFully(value);
+                    }
+                    if(first < 0) {
+                        first = time;
+                    }
+                    Entry entry = build(time - first, line, valueLength, value);
+                    List<Entry> entries = byConnection.get(connection);
+                    if(entries == null) {
+                        entries = new ArrayList<Entry>();
+                        byConnection.put(connection, entries);
+                    }
+                    entries.add(entry);
+                    requests++;
+                    duration = time - first;
+                } catch(EOFException ex) {
+                    break;
+                }
+            }
+        }
+        connections.addAll(byConnection.values());
+    }
+
+    /**
+        Builds the bytes of a request.
+    */
+    private Entry build(long time, byte[] line, int valueLength, byte[] value) {
+        boolean set = valueLength >= 0;
+        int length = line.length + 2 + (set ? valueLength + 2 : 0);
+        byte[] request = new byte[length];
+        System.arraycopy(line, 0, request, 0, line.length);
+        request[line.length] = '\r';
+        request[line.length + 1] = '\n';
+        if(set) {
+            int offset = line.length + 2;
+            for(int idx = 0; idx < valueLength; idx++) {
+                request[offset + idx] = value != null ? value[idx] : (byte) ('A' + idx % 26);
+            }
+            request[length - 2] = '\r';
+            request[length - 1] = '\n';
+            maxValue = Math.max(maxValue, valueLength);
+        } else {
+            int keys = 0;
+            for(byte b: line) {
+                keys += b == ' ' ? 1 : 0;
+            }
+            maxKeys = Math.max(maxKeys, keys);
+        }
+        return new Entry(time, request, set);
+    }
+}
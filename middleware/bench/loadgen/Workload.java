@@ -0,0 +1,110 @@
+/*
+    Workload.java
+    05-12-2017
+
+    @Description: Describes the requests sent by the load generator clients, similarly to the options of memtier: ratio of sets to gets, number of keys per get, size of the key space and size of the values.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public class Workload {
+    public final int sets;
+    public final int gets;
+    public final int multigetKeys;
+    public final int keyMaximum;
+    public final int valueSize;
+    private final byte[] value;
+    private double[] cumulative = null;
+
+
+    /**
+        Constructor.
+        @param ratio: String of the ratio of sets to gets, e.g. "1:10" as for memtier.
+        @param multigetKeys: Integer of the number of keys of each get, 1 for simple gets.
+        @param keyMaximum: Integer of the number of distinct keys.
+        @param valueSize: Integer of the size of the values set in bytes.
+    */
+    public Workload(String ratio, int multigetKeys, int keyMaximum, int valueSize) {
+        String[] parts = ratio.split(":");
+        this.sets = Integer.parseInt(parts[0]);
+        this.gets = Integer.parseInt(parts[1]);
+        if(sets + gets <= 0) {
+            throw new IllegalArgumentException("Ratio must contain at least one set or get: " + ratio);
+        }
+        this.multigetKeys = Math.max(multigetKeys, 1);
+        this.keyMaximum = keyMaximum;
+        this.valueSize = valueSize;
+        this.value = new byte[valueSize];
+        for(int idx = 0; idx < valueSize; idx++) {
+            value[idx] = (byte) ('A' + idx % 26);
+        }
+    }
+
+    /**
+        Makes the keys Zipf distributed instead of uniformly, such that a few keys are hot. The key of rank r is drawn with a probability proportional to 1 / r^exponent.
+        @param exponent: Double of the exponent of the distribution, 0 keeps the keys uniformly distributed.
+    */
+    public void setZipf(double exponent) {
+        if(exponent <= 0) {
+            cumulative = null;
+            return;
+        }
+        cumulative = new double[keyMaximum];
+        double sum = 0.0;
+        for(int rank = 0; rank < keyMaximum; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for(int rank = 0; rank < keyMaximum; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    /**
+        @return true if the next request should be a set.
+    */
+    public boolean nextIsSet() {
+        return ThreadLocalRandom.current().nextInt(sets + gets) < sets;
+    }
+
+    /**
+        Builds a set request for a random key.
+        @return byte array of the complete request.
+    */
+    public byte[] set() {
+        String key = key();
+        byte[] command = ("set " + key + " 0 0 " + valueSize + "\r\n").getBytes();
+        byte[] request = new byte[command.length + valueSize + 2];
+        System.arraycopy(command, 0, request, 0, command.length);
+        System.arraycopy(value, 0, request, command.length, valueSize);
+        request[request.length - 2] = '\r';
+        request[request.length - 1] = '\n';
+        return request;
+    }
+
+    /**
+        Builds a get request for random keys.
+        @return byte array of the complete request.
+    */
+    public byte[] get() {
+        StringBuilder command = new StringBuilder("get");
+        for(int idx = 0; idx < multigetKeys; idx++) {
+            command.append(' ').append(key());
+        }
+        return command.append("\r\n").toString().getBytes();
+    }
+
+    private String key() {
+        if(cumulative == null) {
+            return "memtier-" + ThreadLocalRandom.current().nextInt(keyMaximum);
+        }
+        int rank = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return "memtier-" + Math.min(rank < 0 ? -rank - 1 : rank, keyMaximum - 1);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+    ParseBench.java
+    04-12-2017
+
+    @Description: Benchmarks Request.parse() for the request types and sizes sent by memtier. The request buffer is reset before every parse, such that every operation parses the complete message as the workers do.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import asl_project.harness.*;
+
+
+public class ParseBench extends MicroBench {
+    private final byte[] message;
+    private ByteBuffer buffer;
+    private Request request;
+
+
+    /**
+        Constructor.
+        @param name: String describing the parameters.
+        @param message: String of the complete message as sent by the client.
+    */
+    public ParseBench(String name, String message) {
+        super("Request.parse:" + name);
+        this.message = message.getBytes();
+    }
+
+    /**
+        @param keySize: Integer of the size of the key in bytes.
+        @return ParseBench parsing a GET request.
+    */
+    public static ParseBench get(int keySize) {
+        return new ParseBench("get/key=" + keySize, "get " + key(0, keySize) + "\r\n");
+    }
+
+    /**
+        @param keys: Integer of the number of keys in the multiget.
+        @param keySize: Integer of the size of every key in bytes.
+        @return ParseBench parsing a MULTIGET request.
+    */
+    public static ParseBench multiget(int keys, int keySize) {
+        StringBuilder command = new StringBuilder("get");
+        for(int idx = 0; idx < keys; idx++) {
+            command.append(' ').append(key(idx, keySize));
+        }
+        return new ParseBench("multiget/keys=" + keys + "/key=" + keySize, command.append("\r\n").toString());
+    }
+
+    /**
+        @param valueSize: Integer of the size of the value in bytes.
+        @return ParseBench parsing a SET request.
+    */
+    public static ParseBench set(int valueSize) {
+        StringBuilder value = new StringBuilder(valueSize);
+        for(int idx = 0; idx < valueSize; idx++) {
+            value.append((char) ('a' + idx % 26));
+        }
+        return new ParseBench("set/value=" + valueSize, "set " + key(0, 16) + " 0 0 " + valueSize + "\r\n" + value + "\r\n");
+    }
+
+    /**
+        Generates a key similar to the ones generated by memtier.
+        @param idx: Integer making the key unique.
+        @param size: Integer of the size of the key in bytes.
+        @return String of the key.
+    */
+    static String key(int idx, int size) {
+        StringBuilder key = new StringBuilder("memtier-").append(idx);
+        while(key.length() < size) {
+            key.append('0');
+        }
+        key.setLength(size);
+        return key.toString();
+    }
+
+    @Override
+    public void setup() {
+        buffer = ByteBuffer.allocate(4096);
+        buffer.put(message);
+        request = new Request(buffer, (SocketChannel) null);
+    }
+
+    @Override
+    public void run(int ops, Blackhole bh) {
+        for(int op = 0; op < ops; op++) {
+            // Restore the state the buffer has after being read from the client
+            buffer.limit(buffer.capacity());
+            buffer.position(message.length);
+            bh.consume(request.parse());
+            bh.consume(request.multigetLength);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+    QueueBench.java
+    04-12-2017
+
+    @Description: Benchmarks the hand-off of requests between threads through a BlockingQueue, as done between the net thread and the workers. An echo thread takes every request from one queue and offers it to a second queue, hence an operation is a round trip of two hand-offs. The requests can be handed to the echo thread through the LaneScheduler instead.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import asl_project.harness.*;
+
+
+public class QueueBench extends MicroBench {
+    private BlockingQueue<Request> requests;
+    private BlockingQueue<Request> responses;
+    private Thread echo;
+    private Request request;
+    private final boolean lanes;
+
+
+    public QueueBench() {
+        this(false);
+    }
+
+    public QueueBench(boolean lanes) {
+        super(lanes ? "LaneScheduler:round-trip" : "LinkedBlockingQueue:round-trip");
+        this.lanes = lanes;
+    }
+
+    @Override
+    public void setup() {
+        if(lanes) {
+            requests = new LaneScheduler(new int[] {4, 2, 1}, null);
+        } else {
+            requests = new LinkedBlockingQueue<Request>();
+        }
+        responses = new LinkedBlockingQueue<Request>();
+        request = new Request(ByteBuffer.allocate(4096), (SocketChannel) null);
+        echo = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        responses.offer(requests.take());
+                    }
+                } catch(InterruptedException ex) {
+                    // Benchmark finished
+                }
+            }
+        }, "queue-bench-echo");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @Override
+    public void teardown() throws InterruptedException {
+        echo.interrupt();
+        echo.join();
+    }
+
+    @Override
+    public void run(int ops, Blackhole bh) throws InterruptedException {
+        for(int op = 0; op < ops; op++) {
+            requests.offer(request);
+            bh.consume(responses.take());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+    ResponseBench.java
+    04-12-2017
+
+    @Description: Benchmarks the end-of-message detection of server responses as done by the workers. The response is delivered in chunks of the size of a TCP segment and after every chunk the data received so far is checked for its terminator, like Worker.run() does after every read(). The hits of the complete response are counted afterwards.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+
+import asl_project.harness.*;
+
+
+public class ResponseBench extends MicroBench {
+    // Payload of a TCP segment on ethernet
+    private static final int SEGMENT = 1448;
+
+    private final byte[] message;
+    private ByteBuffer buffer;
+
+
+    /**
+        Constructor.
+        @param values: Integer of the number of values in the response, 0 for a miss.
+        @param valueSize: Integer of the size of each value in bytes.
+    */
+    public ResponseBench(int values, int valueSize) {
+        super("Worker.isResponseComplete:values=" + values + "/size=" + valueSize);
+        this.message = response(values, valueSize).getBytes();
+    }
+
+    /**
+        Builds a response as memcached sends it.
+        @param values: Integer of the number of values in the response.
+        @param valueSize: Integer of the size of each value in bytes.
+        @return String of the response.
+    */
+    static String response(int values, int valueSize) {
+        StringBuilder value = new StringBuilder(valueSize);
+        for(int idx = 0; idx < valueSize; idx++) {
+            value.append((char) ('a' + idx % 26));
+        }
+        StringBuilder response = new StringBuilder();
+        for(int idx = 0; idx < values; idx++) {
+            response.append("VALUE ").append(ParseBench.key(idx, 16)).append(" 0 ").append(valueSize).append("\r\n");
+            response.append(value).append("\r\n");
+        }
+        return response.append("END\r\n").toString();
+    }
+
+    @Override
+    public void setup() {
+        buffer = ByteBuffer.allocate(Math.max(16384, message.length));
+        buffer.put(message);
+    }
+
+    @Override
+    public void run(int ops, Blackhole bh) {
+        ProtocolScanner scanner = ProtocolScanner.get();
+        for(int op = 0; op < ops; op++) {
+            int received = 0;
+            do {
+                received = Math.min(received + SEGMENT, message.length);
+                buffer.position(received);
+            } while(!Worker.isResponseComplete(buffer));
+            bh.consume(scanner.countValues(buffer, 0, received));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+    ScanBench.java
+    19-12-2017
+
+    @Description: Benchmarks the implementations of ProtocolScanner against each other on heap and direct buffers: finding the end of the command line and counting the keys of a multiget as done in Request.parse(), and counting the values of a multiget response as done by the workers. The vector implementation is only benchmarked if the JVM runs with the vector API (ant bench adds it on Java 16 and later).
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+
+import asl_project.harness.*;
+
+
+public class ScanBench extends MicroBench {
+    private static enum Operation {
+        CRLF,
+        TOKENS,
+        VALUES,
+    }
+
+    private final Operation operation;
+    private final ProtocolScanner scanner;
+    private final boolean direct;
+    private final byte[] message;
+    private ByteBuffer buffer;
+
+
+    private ScanBench(Operation operation, String parameters, ProtocolScanner scanner, boolean direct, String message) {
+        super("ProtocolScanner." + operation.name().toLowerCase() + ":" + parameters + "/impl=" + (scanner == ProtocolScanner.scalar() ? "scalar" : "vector") + "/buffer=" + (direct ? "direct" : "heap"));
+        this.operation = operation;
+        this.scanner = scanner;
+        this.direct = direct;
+        this.message = message.getBytes();
+    }
+
+    /**
+        @param keys: Integer of the number of keys of the multiget, of 16 bytes each.
+        @param scanner: ProtocolScanner benchmarked.
+        @param direct: true to scan a direct buffer.
+        @return ScanBench finding the "\r\n" of a multiget command.
+    */
+    public static ScanBench crlf(int keys, ProtocolScanner scanner, boolean direct) {
+        return new ScanBench(Operation.CRLF, "keys=" + keys, scanner, direct, command(keys));
+    }
+
+    /**
+        @return ScanBench counting the tokens of a multiget command, see crlf().
+    */
+    public static ScanBench tokens(int keys, ProtocolScanner scanner, boolean direct) {
+        return new ScanBench(Operation.TOKENS, "keys=" + keys, scanner, direct, command(keys));
+    }
+
+    /**
+        @param values: Integer of the number of values in the response.
+        @param valueSize: Integer of the size of each value in bytes.
+        @return ScanBench counting the values of a multiget response, see crlf().
+    */
+    public static ScanBench values(int values, int valueSize, ProtocolScanner scanner, boolean direct) {
+        return new ScanBench(Operation.VALUES, "values=" + values + "/size=" + valueSize, scanner, direct, ResponseBench.response(values, valueSize));
+    }
+
+    private static String command(int keys) {
+        StringBuilder command = new StringBuilder("get");
+        for(int idx = 0; idx < keys; idx++) {
+            command.append(' ').append(ParseBench.key(idx, 16));
+        }
+        return command.append("\r\n").toString();
+    }
+
+    @Override
+    public void setup() {
+        buffer = direct ? ByteBuffer.allocateDirect(message.length) : ByteBuffer.allocate(message.length);
+        buffer.put(message);
+    }
+
+    @Override
+    public void run(int ops, Blackhole bh) {
+        int length = message.length;
+        for(int op = 0; op < ops; op++) {
+            switch(operation) {
+                case CRLF:
+                    bh.consume(scanner.indexOfCrlf(buffer, 0, length));
+                    break;
+                case TOKENS:
+                    bh.consume(scanner.countTokens(buffer, 0, length - 2));
+                    break;
+                case VALUES:
+                    bh.consume(scanner.countValues(buffer, 0, length));
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    ShardBench.java
+    04-12-2017
+
+    @Description: Benchmarks the splitting of multiget keys across servers as done in Worker.shardedRead(). Every operation splits the command and builds the commands for all servers.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+
+import asl_project.harness.*;
+
+
+public class ShardBench extends MicroBench {
+    private final byte[] message;
+    private final int serverCount;
+    private ByteBuffer buffer;
+    private ByteBuffer[] commands;
+    private int[] bounds;
+
+
+    /**
+        Constructor.
+        @param keys: Integer of the number of keys in the multiget.
+        @param serverCount: Integer of the number of servers the keys are distributed across.
+    */
+    public ShardBench(int keys, int serverCount) {
+        super("Worker.shardCommand:keys=" + keys + "/servers=" + serverCount);
+        StringBuilder command = new StringBuilder("get");
+        for(int idx = 0; idx < keys; idx++) {
+            command.append(' ').append(ParseBench.key(idx, 16));
+        }
+        this.message = command.append("\r\n").toString().getBytes();
+        this.serverCount = serverCount;
+    }
+
+    @Override
+    public void setup() {
+        buffer = ByteBuffer.allocate(4096);
+        buffer.put(message);
+        buffer.flip();
+        commands = new ByteBuffer[serverCount];
+        for(int server = 0; server < serverCount; server++) {
+            commands[server] = ByteBuffer.allocate(4096);
+        }
+        bounds = new int[2 * message.length];
+    }
+
+    @Override
+    public void run(int ops, Blackhole bh) {
+        byte[] array = buffer.array();
+        for(int op = 0; op < ops; op++) {
+            int keys = Worker.splitKeys(buffer, bounds);
+            for(int server = 0; server < serverCount; server++) {
+                commands[server].clear();
+            }
+            if(keys < serverCount) {
+                for(int idx = 0; idx < keys; idx++) {
+                    Worker.appendKey(commands[idx], array, bounds[2 * idx], bounds[2 * idx + 1]);
+                }
+            } else {
+                for(int server = 0; server < serverCount; server++) {
+                    Worker.shardCommand(commands[server], array, bounds, keys, server, serverCount);
+                }
+            }
+            for(int server = 0; server < serverCount; server++) {
+                bh.consume(Worker.endCommand(commands[server]));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+    StatsBench.java
+    04-12-2017
+
+    @Description: Benchmarks the statistics of the workers: recording a completed request with Worker.completed(), and aggregating the records of all workers with Worker.getRecord() as the logger does every second.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import asl_project.harness.*;
+
+
+public abstract class StatsBench extends MicroBench {
+    protected ArrayList<Worker> workers;
+    protected Request[] requests;
+    private final int workerCount;
+
+
+    /**
+        Constructor.
+        @param name: String identifying the benchmark.
+        @param workerCount: Integer of the number of workers to create. Note that the workers do not connect to any server.
+    */
+    protected StatsBench(String name, int workerCount) {
+        super(name);
+        this.workerCount = workerCount;
+    }
+
+    @Override
+    public void setup() throws InterruptedException {
+        workers = new ArrayList<Worker>();
+        for(int idx = 0; idx < workerCount; idx++) {
+            workers.add(new Worker(new LinkedBlockingQueue<Request>(), idx, new ArrayList<String>(), false));
+        }
+
+        // A mix of request types with response times between 0.5 and 3 milliseconds
+        Request.Type[] types = {Request.Type.SET, Request.Type.GET, Request.Type.MULTIGET};
+        requests = new Request[64];
+        for(int idx = 0; idx < requests.length; idx++) {
+            Request request = new Request(ByteBuffer.allocate(16), (SocketChannel) null);
+            request.type = types[idx % types.length];
+            request.hit = idx % 5 != 0;
+            request.multigetLength = request.type == Request.Type.MULTIGET ? 6 : 0;
+            request.time_created = 0L;
+            request.time_dqed = 50L + idx;
+            request.time_mmcd_sent = 100L + idx;
+            request.time_mmcd_rcvd = 400L + 37L * idx;
+            requests[idx] = request;
+        }
+
+        // Clear the histograms as the first call to getRecord() does
+        Worker.getRecord(workers, 0, new StatsRecord());
+    }
+
+    /**
+        Benchmark of Worker.completed() on a single worker.
+    */
+    public static class Completed extends StatsBench {
+        public Completed() {
+            super("Worker.completed", 1);
+        }
+
+        @Override
+        public void run(int ops, Blackhole bh) throws InterruptedException {
+            Worker worker = workers.get(0);
+            for(int op = 0; op < ops; op++) {
+                Request request = requests[op & (requests.length - 1)];
+                worker.completed(request);
+            }
+            bh.consume(worker.histogram.size());
+        }
+    }
+
+    /**
+        Benchmark of Worker.getRecord() over a number of workers that all completed some requests.
+    */
+    public static class GetRecord extends StatsBench {
+        private final StatsRecord record = new StatsRecord();
+        private final StringBuilder line = new StringBuilder(128);
+
+        public GetRecord(int workerCount) {
+            super("Worker.getRecord:workers=" + workerCount, workerCount);
+        }
+
+        @Override
+        public void run(int ops, Blackhole bh) throws InterruptedException {
+            for(int op = 0; op < ops; op++) {
+                workers.get(op % workers.size()).completed(requests[op & (requests.length - 1)]);
+                Worker.getRecord(workers, op & 15, record);
+                line.setLength(0);
+                record.format(line);
+                bh.consume(line.length());
+            }
+        }
+    }
+}
@@ -19,6 +19,15 @@ import java.util.concurrent.*;
 import java.util.logging.*;
 import java.io.PrintWriter;
 import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+import jdk.jfr.Recording;
 
 import asl_project.util.*;
 import asl_project.logging.*;
@@ -29,9 +38,17 @@ import asl_project.logging.*;
 public class MyMiddleware {
     // Logging
     private static final Logger SYS_LOG = Logger.getLogger("System");
-    private static final Logger ANA_LOG = Logger.getLogger("Analysis");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
+    private AsyncHandler sysHandler;
+    private AsyncAppender anaLog;
+    private AsyncAppender hotLog = null;
+    private AsyncAppender modelLog = null;
+    private QueueingModel model = null;
+    private TimeSeries series = null;
+    private ControlSocket control = null;
+    private volatile long netBusy = 0L;         // Time the net thread handled selected keys in microseconds
     private String home;
-    private static final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledExecutorService ses;
 
     // Private fields
     private Selector selector;
@@ -39,7 +56,32 @@ public class MyMiddleware {
     private ExecutorService threadPool;
     private BlockingQueue<Request> queue;
     private ArrayList<Worker> workers;
+    private ArrayList<SelectionKey> paused = new ArrayList<SelectionKey>();     // Clients not read from, see AdmissionController
+    private PoolController pool = null;
+    private Membership membership;
+    private StartupMonitor startup;
+    private ThreadPlacement placement = null;
+    private HedgePolicy hedge = null;
+    private AdmissionController admission = null;
+    private ReplicaRepair repair = null;
+    private Compression compression = null;
+    private Journal journal = null;
+    private KeyRouter router = null;
+    private UdpFrontEnd udp = null;
+    private TrafficCapture capture = null;
+    private Recording recording = null;
+    private Options options;
+
+    // Keys counted during the last interval and since the start, see HotKeys
+    private HotKeys hotKeys = null;
+    private HotKeys hotKeysTotal = null;
     private long timeRun;
+    private volatile boolean running = true;
+    private ShutDown shutDownHook = null;
+    private String finalStats = null;
+
+    // Records aggregated since the last call to getSummary()
+    private final StatsRecord summary = new StatsRecord();
 
 
     /**
@@ -51,21 +93,46 @@ public class MyMiddleware {
         @param readSharded: Boolean for read sharding. If this is true, GET requests containing serveral keys will be split into smaller requests accross the servers.
     */
     public MyMiddleware(String myIP, int port, List<String> mcAddresses, int numThreadsPTP, boolean readSharded) {
+        this(myIP, port, mcAddresses, numThreadsPTP, readSharded, new Options());
+    }
+
+    /**
+        Constructor.
+        @param myIP: String of the local IP address the listener socket should listen to.
+        @param port: Integer of the port the listener socket listens to.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers.
+        @param numThreadsPTP: Integer representing the number of worker threads this middleware should utilise.
+        @param readSharded: Boolean for read sharding. If this is true, GET requests containing serveral keys will be split into smaller requests accross the servers.
+        @param options: Options containing the optional settings of the middleware.
+    */
+    public MyMiddleware(String myIP, int port, List<String> mcAddresses, int numThreadsPTP, boolean readSharded, Options options) {
         // The buffer needs to be large enough to contain up to 10 * 250 byte keys and 1k bytes of data
         this.timeRun = - System.nanoTime() >> 10;                   // In microseconds
         this.workers = new ArrayList<Worker>();
-        this.queue = new LinkedBlockingQueue<Request>();
+        if(options.laneWeights != null) {
+            this.queue = new LaneScheduler(options.laneWeights, options.laneReserved);
+        } else {
+            this.queue = new LinkedBlockingQueue<Request>();
+        }
         home = System.getProperty("user.home");
 
+        // Threads are pinned to CPUs if requested, logging, repair, journal and control threads run on the background CPUs
+        if(options.cpuSets != null) {
+            this.placement = new ThreadPlacement(options.cpuSets);
+        }
+        this.ses = Executors.newSingleThreadScheduledExecutor(backgroundFactory("logger"));
+
         // ===========================================================================
         // LOGGING
         // ===========================================================================
 
-        // Set up the system logger for system critical information
+        // Set up the system logger for system critical information. The file is written from a separate
+        // thread such that logging never blocks the net thread or the workers on file I/O.
         try {
             FileHandler fh = new FileHandler(home + "/system_report.log", true);
             fh.setFormatter(new SysFormatter());
-            SYS_LOG.addHandler(fh);
+            this.sysHandler = new AsyncHandler(fh, 1024, backgroundFactory("async-log"));
+            SYS_LOG.addHandler(sysHandler);
             SYS_LOG.setUseParentHandlers(false);
             SYS_LOG.setLevel(Level.CONFIG);
             SYS_LOG.info(String.format("\n\n%60s\n\n", "Middleware booting."));
@@ -74,23 +141,64 @@ public class MyMiddleware {
             System.exit(1);
         }
 
-        // Set up logger for system analysis
+        // Set up logger for system analysis. Lines are written to the log file and the console by the
+        // writer thread of the appender.
         try {
-            FileHandler fh = new FileHandler(home + "/analysis.log", true);
-            ConsoleHandler ch = new ConsoleHandler();
-            fh.setFormatter(new AnaFormatter());
-            ch.setFormatter(new ConFormatter());
-            ANA_LOG.addHandler(fh);
-            ANA_LOG.addHandler(ch);
-            ANA_LOG.setUseParentHandlers(false);
-            ANA_LOG.setLevel(Level.FINEST);
+            this.anaLog = new AsyncAppender(backgroundFactory("analysis-log"), 256, 128);
+            anaLog.addOutput(new BufferedOutputStream(new FileOutputStream(home + "/analysis.log", true)), new AnaFormatter());
+            anaLog.addOutput(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err)), new ConFormatter());
+            anaLog.start();
         } catch(IOException ex) {
             SYS_LOG.severe("Could not set up data logger. Terminating ...");
             System.exit(1);
         }
-        ANA_LOG.info(String.format("Threads: %d, Sharded reads: %b, Number of Memcached servers: %d.\n", numThreadsPTP, readSharded, mcAddresses.size()));
-        ANA_LOG.info("All measures in microseconds.");
-        ANA_LOG.info(Worker.initLog());
+        anaLog.append(String.format("Threads: %d, Sharded reads: %b, Number of Memcached servers: %d.\n", numThreadsPTP, readSharded, mcAddresses.size()));
+        anaLog.append("All measures in microseconds.");
+        anaLog.append(Worker.initLog());
+
+        // Set up the log of the most requested keys, written every second like the analysis log
+        this.options = options;
+        if(options.hotKeys > 0) {
+            try {
+                this.hotLog = new AsyncAppender(backgroundFactory("hotkeys-log"), 64, 64 * options.hotKeys);
+                hotLog.addOutput(new BufferedOutputStream(new FileOutputStream(home + "/hotkeys.log", true)), new AnaFormatter());
+                hotLog.start();
+            } catch(IOException ex) {
+                SYS_LOG.severe("Could not set up hot key logger. Terminating ...");
+                System.exit(1);
+            }
+            this.hotKeys = new HotKeys(16 * options.hotKeys);
+            this.hotKeysTotal = new HotKeys(16 * options.hotKeys);
+        }
+
+        // Set up the log of the queueing models, written every second like the analysis log
+        if(options.queueingModel) {
+            try {
+                this.modelLog = new AsyncAppender(backgroundFactory("model-log"), 64, 256);
+                modelLog.addOutput(new BufferedOutputStream(new FileOutputStream(home + "/model.log", true)), new AnaFormatter());
+                modelLog.start();
+            } catch(IOException ex) {
+                SYS_LOG.severe("Could not set up the queueing model logger. Terminating ...");
+                System.exit(1);
+            }
+            modelLog.append("Utilizations, and times in microseconds.");
+            modelLog.append(QueueingModel.initLog());
+            this.model = new QueueingModel();
+        }
+
+        // Keep the records of the last seconds in memory, which is also needed to detect the end of the warm-up
+        if(options.seriesSeconds > 0 || options.warmupSeconds < 0) {
+            this.series = new TimeSeries(options.seriesSeconds > 0 ? options.seriesSeconds : 600, options.warmupSeconds < 0, options.warmupMaxSeconds);
+            if(options.controlPort >= 0) {
+                try {
+                    this.control = new ControlSocket(series, options.controlPort);
+                    this.control.start(backgroundFactory("control-socket"));
+                    SYS_LOG.info(String.format("Control socket listening on port %d.", control.getLocalPort()));
+                } catch(IOException ex) {
+                    SYS_LOG.warning("Could not open the control socket: " + ex);
+                }
+            }
+        }
 
 
 
@@ -111,24 +219,190 @@ public class MyMiddleware {
             SYS_LOG.warning("Could not set up the ServerSocketChannel. Terminating ...");
             System.exit(1);
         }
+        if(options.captureFile != null) {
+            try {
+                this.capture = new TrafficCapture(options.captureFile, options.captureMode);
+                this.capture.start(backgroundFactory("capture-writer"));
+                SYS_LOG.info(String.format("Capturing the requests of the clients to %s (%s).", options.captureFile, options.captureMode));
+            } catch(IOException ex) {
+                SYS_LOG.severe("Could not create the trace " + options.captureFile + ". Terminating ...");
+                System.exit(1);
+            }
+        }
+        // Events of the flight recorder are emitted whenever a recording runs, -jfr starts one
+        FlightEvents.install(queue);
+        if(options.jfrFile != null) {
+            try {
+                this.recording = FlightEvents.start(Paths.get(options.jfrFile), options.jfrThreshold);
+                SYS_LOG.info(String.format("Flight recording to %s, requests slower than %d us.", options.jfrFile, options.jfrThreshold));
+            } catch(IOException | ParseException ex) {
+                SYS_LOG.warning("Could not start the flight recording: " + ex);
+            }
+        }
+        // GETs over UDP are read by the same selector
+        if(options.udpPort >= 0) {
+            try {
+                this.udp = new UdpFrontEnd(myIP, options.udpPort, options.udpMaxDatagrams);
+                this.udp.register(selector);
+                SYS_LOG.info(String.format("Accepting GETs over UDP on port %d.", udp.getLocalPort()));
+            } catch(IOException ex) {
+                SYS_LOG.warning("Could not set up the DatagramChannel. Terminating ...");
+                System.exit(1);
+            }
+        }
 
-        // Create a thread pool executor of fixed size
-        this.threadPool = Executors.newFixedThreadPool(numThreadsPTP);
-        // Launch worker threads
-        for(int threadID = 0; threadID < numThreadsPTP; threadID++) {
-            workers.add(new Worker(queue, threadID, mcAddresses, readSharded));
+        // Create a thread pool executor of fixed size. With an adaptive pool, all workers up to the maximum
+        // are created, but only the ones activated by the controller take requests.
+        int numWorkers = numThreadsPTP;
+        if(options.maxWorkers > 0) {
+            this.pool = new PoolController(options.minWorkers, options.maxWorkers, numThreadsPTP);
+            numWorkers = Math.max(options.maxWorkers, options.minWorkers);
+        }
+        if(placement != null) {
+            placement.logTopology();
+            this.threadPool = Executors.newFixedThreadPool(numWorkers, placement.workerFactory("worker"));
+        } else {
+            this.threadPool = Executors.newFixedThreadPool(numWorkers);
+        }
+        this.membership = new Membership(mcAddresses, options);
+        if(options.admissionDeadline > 0 || options.codelTarget > 0 || options.clientLimit > 0) {
+            this.admission = new AdmissionController(options.admissionDeadline, options.codelTarget, options.codelInterval, options.clientLimit);
+        }
+        if(options.hedgePercentile > 0) {
+            this.hedge = new HedgePolicy(options.hedgePercentile, options.hedgeBudget);
+        }
+        if(options.repairLog > 0 && mcAddresses.size() > 1) {
+            this.repair = new ReplicaRepair(mcAddresses, options.repairLog, options.readRepairPercent, options.serverTimeout > 0 ? options.serverTimeout : 1000L);
+            this.repair.start(backgroundFactory("replica-repair"));
+        }
+        if(options.compressThreshold > 0) {
+            this.compression = new Compression(options.compressThreshold);
+        }
+        if(options.poolsFile != null) {
+            try {
+                this.router = new KeyRouter(options.poolsFile, mcAddresses, readSharded);
+            } catch(IOException | IllegalArgumentException ex) {
+                SYS_LOG.severe("Could not read the server pools: " + ex.getMessage() + ". Terminating ...");
+                System.exit(1);
+            }
+            if(options.writeQuorum > 0) {
+                SYS_LOG.warning("The write quorum is ignored with server pools, SETs are stored on all replicas of their key.");
+            }
+        }
+        if(options.writeQuorum > 0 && options.writeQuorum < mcAddresses.size() && router == null) {
+            String directory = options.journalDir != null ? options.journalDir : home + "/journal";
+            try {
+                this.journal = new Journal(mcAddresses, directory, options.journalSegmentMB << 20, options.serverTimeout > 0 ? options.serverTimeout : 1000L);
+                this.journal.start(backgroundFactory("journal-replicator"));
+            } catch(IOException ex) {
+                SYS_LOG.severe("Could not set up the journal in " + directory + ". Terminating ...");
+                System.exit(1);
+            }
+        }
+        // Launch worker threads. They connect to the memcached servers in parallel once they run, such that
+        // the middleware accepts clients at once, see StartupMonitor.
+        this.startup = new StartupMonitor(mcAddresses, options.minConnections, numWorkers);
+        for(int threadID = 0; threadID < numWorkers; threadID++) {
+            workers.add(new Worker(queue, threadID, mcAddresses, readSharded, options));
+            workers.get(threadID).setStartupMonitor(startup);
+            workers.get(threadID).setMembership(membership);
+            if(hedge != null) {
+                workers.get(threadID).setHedgePolicy(hedge);
+            }
+            if(admission != null) {
+                workers.get(threadID).setAdmissionController(admission);
+            }
+            if(repair != null) {
+                workers.get(threadID).setReplicaRepair(repair);
+            }
+            if(compression != null) {
+                workers.get(threadID).setCompression(compression);
+            }
+            if(journal != null) {
+                workers.get(threadID).setJournal(journal, options.writeQuorum);
+            }
+            if(router != null) {
+                workers.get(threadID).setKeyRouter(router);
+            }
+            if(series != null) {
+                workers.get(threadID).setIntervalLatencies();
+            }
+            if(hotKeys != null) {
+                workers.get(threadID).setHotKeys(Math.max(4 * options.hotKeys, 32), options.hotKeySampling);
+            }
+            if(pool != null) {
+                workers.get(threadID).setPoolController(pool);
+            }
             this.threadPool.execute(workers.get(threadID));
         }
-        SYS_LOG.info(String.format("Middleware finished booting with %d threads.", numThreadsPTP));
+        if(queue instanceof LaneScheduler && ((LaneScheduler) queue).getReservedWorkers() >= (pool != null ? options.minWorkers : numWorkers)) {
+            SYS_LOG.warning("All workers are reserved for lanes, some lanes might never be served.");
+        }
+        if(pool != null) {
+            SYS_LOG.info(String.format("Middleware finished booting with %d threads, %d of which are active.", numWorkers, pool.getActive()));
+        } else {
+            SYS_LOG.info(String.format("Middleware finished booting with %d threads.", numThreadsPTP));
+        }
+        SYS_LOG.info("Protocol scanning: " + ProtocolScanner.get().getName() + ".");
 
 
         // ===========================================================================
         // LOG FLUSHING
         // ===========================================================================
 
-        // Set up the scheduling for loggging data, note the first delay is of 5 seconds. This is in
-        // order to remove the warm up by not considering the first log record.
-        MyMiddleware.ses.scheduleWithFixedDelay(new LoggerRunnable(this), 10, 1, TimeUnit.SECONDS);
+        // Set up the scheduling for loggging data, note the first delay is of 10 seconds by default. This is in
+        // order to remove the warm up by not considering the first log record. If the end of the warm-up is
+        // detected, the records are taken from the first second on and logged once it ended.
+        this.ses.scheduleWithFixedDelay(new LoggerRunnable(this), options.warmupSeconds >= 0 ? options.warmupSeconds : 1, 1, TimeUnit.SECONDS);
+        if(options.membershipFile != null) {
+            this.ses.scheduleWithFixedDelay(new MembershipWatcher(this, new File(options.membershipFile)), 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+
+    /**
+        Waits until every memcached server has the minimum number of connections. Clients are accepted before, their requests wait in the queue until a worker is connected.
+        @param timeoutMillis: Long of the maximum time to wait in milliseconds.
+        @return true if the middleware is ready, false if the timeout expired.
+    */
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return startup.awaitReady(timeoutMillis);
+    }
+
+
+    /**
+        Changes the memcached servers while the middleware runs. Workers switch to the new servers after their current request. Keys are copied to the servers that were added from a server that is read from, and the added servers are only read from once the copy is done.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers.
+    */
+    public synchronized void setServers(List<String> mcAddresses) {
+        if(finalStats != null) {
+            return;
+        }
+        Membership.View previous = membership.getView();
+        List<String> added = membership.setServers(mcAddresses, options.migrateKeys);
+        Membership.View current = membership.getView();
+        if(repair != null) {
+            repair.setServers(current.addresses);
+        }
+        if(journal != null) {
+            journal.setServers(current.addresses);
+        }
+
+        // The keys are copied from a server that stays and is read from
+        String source = null;
+        for(int server = 0; server < previous.addresses.length && source == null; server++) {
+            int index = current.indexOf(previous.addresses[server]);
+            if(previous.isReadable(server) && index >= 0 && current.isReadable(index)) {
+                source = previous.addresses[server];
+            }
+        }
+        for(String address: added) {
+            if(source != null) {
+                new KeyMigrator(source, address, membership, options.serverTimeout > 0 ? options.serverTimeout : 1000L).start(backgroundFactory("key-migration"));
+            } else {
+                membership.ready(address);
+            }
+        }
     }
 
 
@@ -137,15 +411,46 @@ public class MyMiddleware {
     */
     public void run() {
         // Add shutdown hook for interruption signals
-        Runtime.getRuntime().addShutdownHook(new ShutDown(this));
+        synchronized(this) {
+            if(running) {
+                this.shutDownHook = new ShutDown(this);
+                Runtime.getRuntime().addShutdownHook(shutDownHook);
+            }
+        }
 
         // Perform the work for the net thread
-        while(true) {
+        if(placement != null) {
+            placement.pinNetThread();
+        }
+        while(running) {
             // Get the keys in the selected-set of the selector
+            long time_select = System.nanoTime() >> 10;
             try {
                 selector.select();
             } catch(IOException ex) {
                 SYS_LOG.info("Selector selected-set could not be updated.");
+            } catch(ClosedSelectorException ex) {
+                break;
+            }
+            // Java gives no access to the kernel receive timestamps, the time the selector returned is the
+            // earliest time any of the selected requests could be seen by the middleware.
+            long time_selected = System.nanoTime() >> 10;           // In microseconds
+            FlightEvents.SelectorEvent event = FlightEvents.recording() ? new FlightEvents.SelectorEvent() : null;
+            if(event != null) {
+                event.begin();
+                event.keys = selector.selectedKeys().size();
+                event.blocked = time_selected - time_select;
+            }
+
+            // Clients whose requests were answered are read from again
+            for(Iterator<SelectionKey> iterator = paused.iterator(); iterator.hasNext(); ) {
+                SelectionKey key = iterator.next();
+                if(!key.isValid()) {
+                    iterator.remove();
+                } else if(admission.mayRead(queue.size(), (AdmissionController.Client) key.attachment())) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    iterator.remove();
+                }
             }
 
             Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
@@ -157,14 +462,35 @@ public class MyMiddleware {
                     try {
                         SocketChannel channel = serverChannel.accept();
                         channel.configureBlocking(false);
-                        SelectionKey newKey = channel.register(selector, SelectionKey.OP_READ);
+                        // The attachment counts the requests of the client in the middleware
+                        SelectionKey newKey = channel.register(selector, SelectionKey.OP_READ, new AdmissionController.Client());
                         SYS_LOG.info("New client added to the selector.");
                     } catch(ClosedChannelException ex) {
                         SYS_LOG.info("Client closed the connection before he could be added to the selector.");
                     } catch(IOException ex) {
                         SYS_LOG.warning("Failure to open a new channel for a client.");
                     }
+                } else if(key.isReadable() && key.attachment() == udp) {
+                    // Every datagram is a request of its own, read all that arrived
+                    Request request;
+                    while((request = udp.receive()) != null) {
+                        request.time_arrived = time_selected;
+                        if(admission != null && !admission.admit(queue.size(), null)) {
+                            udp.reject(request);
+                            continue;
+                        }
+                        queue.offer(request);
+                    }
                 } else if(key.isReadable()) {
+                    // Responses must be written in the order of the requests, hence a client with too many requests
+                    // in the middleware, or any while it is overloaded, is not read from until they were answered
+                    AdmissionController.Client client = (AdmissionController.Client) key.attachment();
+                    if(admission != null && !admission.mayRead(queue.size(), client)) {
+                        key.interestOps(0);
+                        paused.add(key);
+                        continue;
+                    }
+
                     // Create a ByteBuffer to read data from client
                     ByteBuffer buffer = ByteBuffer.allocate(4096);
 
@@ -174,7 +500,7 @@ public class MyMiddleware {
                     try {
                         bytesRead = channel.read(buffer);
                     } catch(IOException ex) {
-                        SYS_LOG.info("Could not read request from client. Dropping request.");
+                        HOT_LOG.log(SYS_LOG, Level.INFO, "Could not read request from client. Dropping request.");
                         continue;
                     }
 
@@ -187,14 +513,208 @@ public class MyMiddleware {
                             SYS_LOG.info("Could not close channel after client request connection closure.");
                         }
                         key.cancel();
+                        if(capture != null) {
+                            capture.closed(key);
+                        }
                         continue;
                     }
-                    queue.offer(new Request(buffer, key));
+                    if(capture != null) {
+                        capture.capture(key, buffer, time_selected);
+                    }
+                    Request request = new Request(buffer, key);
+                    request.time_arrived = time_selected;
+
+                    // The rest of a large SET is read by the worker, the client is not read from meanwhile. Such a
+                    // SET is still queued if it is rejected, as its value must be read before the next request.
+                    boolean partial = request.isPartialSet();
+                    if(partial) {
+                        key.interestOps(0);
+                    }
+                    if(admission != null) {
+                        // The client has no other request in the middleware if this is rejected
+                        if(admission.admit(queue.size(), client)) {
+                            request.client = client;
+                        } else if(partial) {
+                            request.shed = true;
+                        } else {
+                            try {
+                                channel.write(ByteBuffer.wrap(AdmissionController.REJECTED));
+                            } catch(IOException ex) {
+                                HOT_LOG.log(SYS_LOG, Level.INFO, "Could not reject request of client.");
+                            }
+                            continue;
+                        }
+                    }
+                    queue.offer(request);
                 } else {
                     SYS_LOG.warning("Invalid SelectionKey in selection-set.");
                 }
             }
+            if(event != null) {
+                event.commit();
+            }
+            // Only the net thread writes the counter
+            netBusy += (System.nanoTime() >> 10) - time_selected;
         }
+
+        // The middleware was shut down, close all client connections
+        try {
+            for(SelectionKey key: selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch(IOException ex) {
+            SYS_LOG.info("Some client connections did not close properly.");
+        } catch(ClosedSelectorException ex) {
+            // Already closed
+        }
+    }
+
+
+    /**
+        @return Integer of the port the middleware listens to. This is useful if the middleware was created with port 0.
+    */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+        @return Integer of the UDP port the middleware listens to, -1 if it does not accept UDP.
+    */
+    public int getUdpPort() {
+        return udp != null ? udp.getLocalPort() : -1;
+    }
+
+    /**
+        Returns the records logged since the last call to this function, added up. Counts of the returned record are per logging interval when formatted. This allows to summarise an experiment without interfering with the analysis log.
+        @return StatsRecord of the data aggregated since the last call.
+    */
+    public StatsRecord getSummary() {
+        StatsRecord result = new StatsRecord();
+        synchronized(summary) {
+            result.set(summary);
+            summary.clear();
+        }
+        return result;
+    }
+
+    /**
+        @param name: String prefix of the names of the threads.
+        @return ThreadFactory of background threads, pinned to the background CPUs if threads are placed.
+    */
+    private ThreadFactory backgroundFactory(String name) {
+        return placement != null ? placement.backgroundFactory(name) : ThreadPlacement.unpinned(name);
+    }
+
+    /**
+        Shuts the middleware down: stops the net thread, interrupts the worker threads, stops logging and appends the final statistics to the analysis log. This is called by the shutdown hook on OS signals, but can also be called to stop a middleware running within another program. Calling it more than once has no effect.
+        @return String containing the final statistics, see Worker.getFinalStats().
+    */
+    public synchronized String shutdown() {
+        if(finalStats != null) {
+            return finalStats;
+        }
+        running = false;
+        timeRun += System.nanoTime() >> 10;
+        if(shutDownHook != null && Thread.currentThread() != shutDownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutDownHook);
+            } catch(IllegalStateException ex) {
+                // The JVM is already shutting down
+            }
+        }
+
+        SYS_LOG.info("Shutting down middleware.");
+        selector.wakeup();
+        threadPool.shutdownNow();
+        try {
+            threadPool.awaitTermination(10, TimeUnit.SECONDS);
+            serverChannel.close();
+        } catch(InterruptedException ex) {
+            SYS_LOG.info("Some threads might not have finished shutting down properly.");
+        } catch(IOException ex) {
+            SYS_LOG.info("The ServerSocketChannel did not close properly");
+        }
+        ses.shutdown();
+        if(repair != null) {
+            repair.stop();
+        }
+        if(journal != null) {
+            journal.stop();
+        }
+        if(capture != null) {
+            capture.stop();
+        }
+        if(control != null) {
+            control.stop();
+        }
+        if(recording != null) {
+            recording.stop();
+            recording.close();
+        }
+
+        // Write the remaining analysis lines before appending the final statistics to the same file
+        anaLog.close();
+        if(modelLog != null) {
+            modelLog.close();
+        }
+        if(hotLog != null) {
+            hotLog.close();
+        }
+        if(anaLog.getDropped() > 0 || sysHandler.getDropped() > 0) {
+            SYS_LOG.warning(String.format("Dropped %d analysis lines and %d system log records.", anaLog.getDropped(), sysHandler.getDropped()));
+        }
+        SYS_LOG.removeHandler(sysHandler);
+        sysHandler.close();
+
+        // Print to file, note loggers do not work in shutdown hooks
+        Membership.View view = membership.getView();
+        finalStats = Worker.getFinalStats(workers, timeRun) + view.selector.getStats();
+        if(hedge != null) {
+            finalStats += hedge.getStats();
+        }
+        if(admission != null) {
+            finalStats += admission.getStats();
+        }
+        if(queue instanceof LaneScheduler) {
+            finalStats += ((LaneScheduler) queue).getStats();
+        }
+        if(view.breaker != null) {
+            finalStats += view.breaker.getStats();
+        }
+        if(repair != null) {
+            finalStats += repair.getStats();
+        }
+        if(compression != null) {
+            finalStats += compression.getStats();
+        }
+        if(journal != null) {
+            finalStats += journal.getStats();
+        }
+        if(udp != null) {
+            finalStats += udp.getStats();
+        }
+        if(capture != null) {
+            finalStats += capture.getStats();
+        }
+        if(model != null) {
+            finalStats += model.getStats();
+        }
+        if(series != null) {
+            finalStats += series.getStats();
+        }
+        if(hotKeysTotal != null) {
+            Worker.drainHotKeys(workers, hotKeysTotal);
+            finalStats += hotKeysTotal.getStats(options.hotKeys, Math.max(options.hotKeySampling, 1), timeRun / 1000000.0);
+        }
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(home + "/analysis.log", true));
+            out.println(finalStats);
+            out.close();
+        } catch(IOException ex) {
+            System.out.println("ATTENTION: Could not print final statistics to log file.");
+        }
+        return finalStats;
     }
 
 
@@ -203,12 +723,26 @@ public class MyMiddleware {
     */
     private class LoggerRunnable implements Runnable {
         private MyMiddleware mw;
+        // Reused for every record, these are only accessed by the thread of the scheduled executor
+        private final StatsRecord record = new StatsRecord();
+        private final StringBuilder line = new StringBuilder(128);
+        private final StringBuilder hotLine = new StringBuilder(1024);
+        private final StringBuilder modelLine = new StringBuilder(256);
+        private final LatencyHistogram[] latencies;
         /**
             Constructor.
             @param mw: MyMiddleware object to get data from.
         */
         public LoggerRunnable(MyMiddleware mw) {
             this.mw = mw;
+            if(mw.series != null) {
+                this.latencies = new LatencyHistogram[Request.Type.values().length];
+                for(int type = 0; type < latencies.length; type++) {
+                    this.latencies[type] = new LatencyHistogram();
+                }
+            } else {
+                this.latencies = null;
+            }
         }
 
         /**
@@ -217,13 +751,98 @@ public class MyMiddleware {
         @Override
         public void run() {
             try {
-                ANA_LOG.info(Worker.getRecord(mw.workers, mw.queue.size()));
+                Worker.getRecord(mw.workers, mw.queue.size(), record, latencies);
+                if(mw.admission != null) {
+                    mw.admission.update(record, mw.pool != null ? mw.pool.getActive() : mw.workers.size());
+                }
+                // Records of the warm-up are kept in the time series only, the histograms of the final
+                // statistics start once it ended
+                boolean warmingUp = false;
+                if(mw.series != null) {
+                    warmingUp = !mw.series.isWarmedUp();
+                    if(mw.series.record(record, latencies, mw.membership.getView().selector)) {
+                        Worker.clearHistograms(mw.workers);
+                    }
+                }
+                if(!warmingUp) {
+                    line.setLength(0);
+                    record.format(line);
+                    mw.anaLog.append(line);
+                    synchronized(mw.summary) {
+                        mw.summary.add(record);
+                    }
+                }
+                if(mw.pool != null) {
+                    mw.pool.update(record, 1.0);
+                }
+                if(mw.hedge != null) {
+                    mw.hedge.update();
+                }
+                if(mw.model != null) {
+                    modelLine.setLength(0);
+                    mw.model.update(record, mw.netBusy, mw.pool != null ? mw.pool.getActive() : mw.workers.size(), mw.membership.getView().selector, modelLine);
+                    mw.modelLog.append(modelLine);
+                }
+                if(mw.hotKeys != null) {
+                    Worker.drainHotKeys(mw.workers, mw.hotKeys);
+                    hotLine.setLength(0);
+                    mw.hotKeys.format(hotLine, mw.options.hotKeys, Math.max(mw.options.hotKeySampling, 1), 1.0);
+                    mw.hotLog.append(hotLine);
+                    mw.hotKeys.drainTo(mw.hotKeysTotal);
+                }
             } catch(InterruptedException ex) {
                 SYS_LOG.info("Scheduled logger was interrupted while printing to logfile.");
             }
         }
     }
 
+    /**
+        Class MembershipWatcher implementing Runnable. This should be launched in an executor service to reload the memcached servers from a file whenever it was modified. The file contains one address and port per line, empty lines and lines starting with "#" are ignored.
+    */
+    private class MembershipWatcher implements Runnable {
+        private MyMiddleware mw;
+        private File file;
+        private long lastModified = 0L;
+        /**
+            Constructor.
+            @param mw: MyMiddleware object whose servers are changed.
+            @param file: File containing the servers.
+        */
+        public MembershipWatcher(MyMiddleware mw, File file) {
+            this.mw = mw;
+            this.file = file;
+        }
+
+        /**
+            Override called when launching the thread.
+        */
+        @Override
+        public void run() {
+            long modified = file.lastModified();
+            if(modified == 0L || modified == lastModified) {
+                return;
+            }
+            lastModified = modified;
+            try {
+                List<String> addresses = new ArrayList<String>();
+                for(String line: Files.readAllLines(file.toPath())) {
+                    line = line.trim();
+                    if(line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    if(!line.matches("[^:\\s]+:\\d+")) {
+                        SYS_LOG.warning(String.format("Ignoring %s, the line \"%s\" is not an address and port.", file, line));
+                        return;
+                    }
+                    addresses.add(line);
+                }
+                mw.setServers(addresses);
+            } catch(IOException ex) {
+                SYS_LOG.warning(String.format("Could not read the memcached servers from %s: %s", file, ex));
+            }
+        }
+    }
+
     /**
         Class Shutdown extending Thread. This can be used as a shutdown hook.
     */
@@ -242,29 +861,8 @@ public class MyMiddleware {
         */
         @Override
         public void run() {
-            mw.timeRun += System.nanoTime() >> 10;
             SYS_LOG.info("Shutting down middleware cleanly after OS signal reception.");
-            threadPool.shutdownNow();
-            try {
-                threadPool.awaitTermination(10, TimeUnit.SECONDS);
-                serverChannel.close();
-            } catch(InterruptedException ex) {
-                SYS_LOG.info("Some threads might not have finished shutting down properly.");
-            } catch(IOException ex) {
-                SYS_LOG.info("The ServerSocketChannel did not close properly");
-            }
-            MyMiddleware.ses.shutdown();
-
-            // Print to file and console, note loggers do not work in shutdown hooks
-            try {
-                PrintWriter out = new PrintWriter(new FileWriter(mw.home + "/analysis.log", true));
-                out.println(Worker.getFinalStats(mw.workers, mw.timeRun));
-                out.flush();
-            } catch(IOException ex) {
-                System.out.println("ATTENTION: Could not print final statistics to log file.");
-            } finally {
-                System.out.println(Worker.getFinalStats(mw.workers, mw.timeRun));
-            }
+            System.out.println(mw.shutdown());
         }
     }
 }
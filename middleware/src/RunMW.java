@@ -2,6 +2,11 @@ package asl_project;
 
 import java.util.*;
 
+import asl_project.util.Options;
+import asl_project.util.ReplicaSelector;
+import asl_project.util.ThreadPlacement;
+import asl_project.util.TrafficCapture;
+
 public class RunMW {
 
     static String myIp = null;
@@ -9,6 +14,7 @@ public class RunMW {
     static List<String> mcAddresses = null;
     static int numThreadsPTP = -1;
     static boolean readSharded = false;
+    static Options mwOptions = new Options();
 
     public static void main(String[] args) throws Exception {
 
@@ -22,7 +28,7 @@ public class RunMW {
         // Start the Middleware
         // -----------------------------------------------------------------------------
 
-        new MyMiddleware(myIp, myPort, mcAddresses, numThreadsPTP, readSharded).run();
+        new MyMiddleware(myIp, myPort, mcAddresses, numThreadsPTP, readSharded, mwOptions).run();
 
     }
 
@@ -90,12 +96,202 @@ public class RunMW {
             System.exit(1);
         }
 
+        // -----------------------------------------------------------------------------
+        // Optional arguments
+        // -----------------------------------------------------------------------------
+
+        if (params.get("co") != null)
+            mwOptions.expectedInterval = Long.parseLong(params.get("co").get(0));
+
+        if (params.get("ta") != null) {
+            if (params.get("ta").size() != 2) {
+                printUsageWithError("Provide the minimum and maximum number of active threads!");
+                System.exit(1);
+            }
+            mwOptions.minWorkers = Integer.parseInt(params.get("ta").get(0));
+            mwOptions.maxWorkers = Integer.parseInt(params.get("ta").get(1));
+        }
+
+        if (params.get("rs") != null) {
+            try {
+                mwOptions.replicaSelection = ReplicaSelector.parsePolicy(params.get("rs").get(0));
+            } catch (IllegalArgumentException ex) {
+                printUsageWithError("Provide rr, p2c or least as replica selection policy!");
+                System.exit(1);
+            }
+        }
+
+        if (params.get("ad") != null)
+            mwOptions.admissionDeadline = Long.parseLong(params.get("ad").get(0));
+
+        if (params.get("codel") != null) {
+            mwOptions.codelTarget = Long.parseLong(params.get("codel").get(0));
+            if (params.get("codel").size() > 1)
+                mwOptions.codelInterval = Long.parseLong(params.get("codel").get(1));
+        }
+
+        if (params.get("cl") != null)
+            mwOptions.clientLimit = Integer.parseInt(params.get("cl").get(0));
+
+        if (params.get("lanes") != null) {
+            List<String> lanes = params.get("lanes");
+            if (lanes.size() != 3 && lanes.size() != 6) {
+                printUsageWithError("Provide the weights of the GET, SET and MULTIGET lanes, optionally followed by their reserved threads!");
+                System.exit(1);
+            }
+            mwOptions.laneWeights = new int[3];
+            for (int i = 0; i < 3; i++)
+                mwOptions.laneWeights[i] = Integer.parseInt(lanes.get(i));
+            if (lanes.size() == 6) {
+                mwOptions.laneReserved = new int[3];
+                for (int i = 0; i < 3; i++)
+                    mwOptions.laneReserved[i] = Integer.parseInt(lanes.get(3 + i));
+            }
+        }
+
+        if (params.get("hedge") != null) {
+            mwOptions.hedgePercentile = Double.parseDouble(params.get("hedge").get(0));
+            if (params.get("hedge").size() > 1)
+                mwOptions.hedgeBudget = Double.parseDouble(params.get("hedge").get(1));
+        }
+
+        if (params.get("to") != null) {
+            List<String> timeout = params.get("to");
+            if (timeout.size() != 1 && timeout.size() != 3) {
+                printUsageWithError("Provide the server timeout, optionally followed by the failure threshold and probe interval!");
+                System.exit(1);
+            }
+            mwOptions.serverTimeout = Long.parseLong(timeout.get(0));
+            if (timeout.size() == 3) {
+                mwOptions.failureThreshold = Integer.parseInt(timeout.get(1));
+                mwOptions.probeInterval = Long.parseLong(timeout.get(2));
+            }
+        }
+
+        if (params.get("hot") != null) {
+            mwOptions.hotKeys = Integer.parseInt(params.get("hot").get(0));
+            if (params.get("hot").size() > 1)
+                mwOptions.hotKeySampling = Integer.parseInt(params.get("hot").get(1));
+        }
+
+        if (params.get("mf") != null) {
+            mwOptions.membershipFile = params.get("mf").get(0);
+            if (params.get("mf").size() > 1)
+                mwOptions.migrateKeys = Boolean.parseBoolean(params.get("mf").get(1));
+        }
+
+        if (params.get("repair") != null) {
+            mwOptions.repairLog = Integer.parseInt(params.get("repair").get(0));
+            if (params.get("repair").size() > 1)
+                mwOptions.readRepairPercent = Double.parseDouble(params.get("repair").get(1));
+        }
+
+        if (params.get("cpu") != null) {
+            List<String> cpus = params.get("cpu");
+            try {
+                if (cpus.size() > 3)
+                    throw new IllegalArgumentException();
+                if (!cpus.get(0).equals("auto"))
+                    for (String list : cpus)
+                        ThreadPlacement.parse(list);
+            } catch (IllegalArgumentException ex) {
+                printUsageWithError("Provide auto or the CPU lists of the net thread, the workers and optionally the background threads, e.g. 0 1-7!");
+                System.exit(1);
+            }
+            mwOptions.cpuSets = cpus.toArray(new String[0]);
+        }
+
+        if (params.get("compress") != null)
+            mwOptions.compressThreshold = Integer.parseInt(params.get("compress").get(0));
+
+        if (params.get("ct") != null) {
+            List<String> connect = params.get("ct");
+            mwOptions.connectTimeout = Long.parseLong(connect.get(0));
+            if (connect.size() > 1)
+                mwOptions.minConnections = Integer.parseInt(connect.get(1));
+            if (connect.size() > 2)
+                mwOptions.reconnectInterval = Long.parseLong(connect.get(2));
+        }
+
+        if (params.get("capture") != null) {
+            List<String> capture = params.get("capture");
+            mwOptions.captureFile = capture.get(0);
+            if (capture.size() > 1) {
+                try {
+                    mwOptions.captureMode = TrafficCapture.Mode.valueOf(capture.get(1).toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    printUsageWithError("Provide raw or hashed as capture mode!");
+                    System.exit(1);
+                }
+            }
+        }
+
+        if (params.get("model") != null)
+            mwOptions.queueingModel = Boolean.parseBoolean(params.get("model").get(0));
+
+        if (params.get("jfr") != null) {
+            mwOptions.jfrFile = params.get("jfr").get(0);
+            if (params.get("jfr").size() > 1)
+                mwOptions.jfrThreshold = Long.parseLong(params.get("jfr").get(1));
+        }
+
+        if (params.get("udp") != null) {
+            mwOptions.udpPort = Integer.parseInt(params.get("udp").get(0));
+            if (params.get("udp").size() > 1)
+                mwOptions.udpMaxDatagrams = Integer.parseInt(params.get("udp").get(1));
+        }
+
+        if (params.get("pools") != null)
+            mwOptions.poolsFile = params.get("pools").get(0);
+
+        if (params.get("series") != null) {
+            mwOptions.seriesSeconds = Integer.parseInt(params.get("series").get(0));
+            if (params.get("series").size() > 1)
+                mwOptions.controlPort = Integer.parseInt(params.get("series").get(1));
+        }
+
+        if (params.get("warmup") != null) {
+            List<String> warmup = params.get("warmup");
+            mwOptions.warmupSeconds = warmup.get(0).equals("auto") ? -1 : Integer.parseInt(warmup.get(0));
+            if (warmup.size() > 1)
+                mwOptions.warmupMaxSeconds = Integer.parseInt(warmup.get(1));
+        }
+
+        if (params.get("quorum") != null) {
+            List<String> quorum = params.get("quorum");
+            mwOptions.writeQuorum = Integer.parseInt(quorum.get(0));
+            if (quorum.size() > 1)
+                mwOptions.journalDir = quorum.get(1);
+            if (quorum.size() > 2)
+                mwOptions.journalSegmentMB = Integer.parseInt(quorum.get(2));
+        }
+
     }
 
     private static void printUsageWithError(String errorMessage) {
         System.err.println();
         System.err.println(
                 "Usage: -l <MyIP> -p <MyListenPort> -t <NumberOfThreadsInPool> -s <readSharded> -m <MemcachedIP:Port> <MemcachedIP2:Port2> ...");
+        System.err.println(
+                "Optional: -co <ExpectedIntervalMicros> -ta <MinActiveThreads> <MaxActiveThreads> -rs rr|p2c|least -hedge <Percentile> [<BudgetPercent>]");
+        System.err.println(
+                "          -ad <DeadlineMicros> -codel <TargetMicros> [<IntervalMicros>] -cl <MaxRequestsPerClient>");
+        System.err.println(
+                "          -lanes <GetWeight> <SetWeight> <MultigetWeight> [<GetReserved> <SetReserved> <MultigetReserved>]");
+        System.err.println(
+                "          -to <TimeoutMillis> [<FailureThreshold> <ProbeIntervalMillis>] -repair <RetryLogSize> [<ReadRepairPercent>]");
+        System.err.println(
+                "          -hot <TopKeys> [<SampleEvery>] -mf <MembershipFile> [<MigrateKeys>]");
+        System.err.println(
+                "          -ct <ConnectTimeoutMillis> [<MinConnectionsPerServer> [<ReconnectIntervalMillis>]] -cpu auto|<NetCpus> [<WorkerCpus> [<BackgroundCpus>]]");
+        System.err.println(
+                "          -compress <MinValueBytes> -quorum <Servers> [<JournalDir> [<SegmentMB>]]");
+        System.err.println(
+                "          -udp <Port> [<MaxDatagramsPerResponse>] -capture <TraceFile> [raw|hashed]");
+        System.err.println(
+                "          -jfr <RecordingFile> [<ThresholdMicros>] -model <QueueingModel> -pools <RulesFile>");
+        System.err.println(
+                "          -series <Seconds> [<ControlPort>] -warmup auto|<Seconds> [<MaxSeconds>]");
         if (errorMessage != null) {
             System.err.println();
             System.err.println("Error message: " + errorMessage);
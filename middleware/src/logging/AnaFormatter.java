@@ -11,14 +11,22 @@
 package asl_project.logging;
 
 import java.text.DateFormat;
+import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.*;
 
 
-public class AnaFormatter extends Formatter {
+public class AnaFormatter extends Formatter implements LineFormatter {
     private static final DateFormat df = new SimpleDateFormat("dd/MM/yy HH:mm:ss:SSS");
 
+    // Reused by format(long, CharSequence, StringBuilder). Note that this is not thread safe and should only
+    // be called from the writer thread of an AsyncAppender.
+    private final DateFormat lineDf = new SimpleDateFormat("dd/MM/yy HH:mm:ss:SSS");
+    private final Date date = new Date();
+    private final StringBuffer dateBuffer = new StringBuffer(32);
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+
     public String format(LogRecord record) {
         StringBuilder builder = new StringBuilder(1000);
         builder.append(df.format(new Date(record.getMillis()))).append(" - ");
@@ -26,6 +34,14 @@ public class AnaFormatter extends Formatter {
         return builder.toString();
     }
 
+    public void format(long millis, CharSequence message, StringBuilder out) {
+        date.setTime(millis);
+        dateBuffer.setLength(0);
+        lineDf.format(date, dateBuffer, fieldPosition);
+        out.append(dateBuffer).append(" - ");
+        out.append(message).append("\n");
+    }
+
     public String getHead(Handler handler) {
         return super.getHead(handler);
     }
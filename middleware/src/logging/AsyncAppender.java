@@ -0,0 +1,189 @@
+/*
+    AsyncAppender.java
+    04-12-2017
+
+    @Description: Asynchronous appender for the analysis log. Lines are copied into a preallocated ring of reusable StringBuilder slots and written to the outputs by a dedicated writer thread. Appending never blocks: if the ring is full, the line is dropped and counted. Each output has its own LineFormatter, the formatting into bytes is done by the writer thread in reusable buffers.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class AsyncAppender {
+    // Time the writer thread parks when the ring is empty (in nanoseconds)
+    private static final long IDLE_PARK = 1000000L;
+
+    // Ring buffer
+    private final StringBuilder[] slots;
+    private final long[] timestamps;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(0L);
+    private volatile long consumed = 0L;
+    private final AtomicLong dropped = new AtomicLong(0L);
+
+    // Outputs
+    private final ArrayList<OutputStream> outputs = new ArrayList<OutputStream>();
+    private final ArrayList<LineFormatter> formatters = new ArrayList<LineFormatter>();
+
+    // Writer thread and its reusable buffers
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final StringBuilder line = new StringBuilder(1024);
+    private byte[] bytes = new byte[1024];
+
+
+    /**
+        Constructor. The writer thread is only started once start() is called, such that outputs can be added before.
+        @param threads: ThreadFactory creating the writer thread.
+        @param capacity: Integer of the number of lines the ring can hold. This is rounded up to a power of two.
+        @param lineLength: Integer of the initial capacity of every slot in characters.
+    */
+    public AsyncAppender(ThreadFactory threads, int capacity, int lineLength) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new StringBuilder[size];
+        this.timestamps = new long[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for(int idx = 0; idx < size; idx++) {
+            slots[idx] = new StringBuilder(lineLength);
+            published.set(idx, idx - size);
+        }
+
+        this.writer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        this.writer.setDaemon(true);
+    }
+
+    /**
+        Adds an output to the appender. This must be called before start().
+        @param out: OutputStream to write the lines to.
+        @param formatter: LineFormatter used to format the lines for this output.
+    */
+    public void addOutput(OutputStream out, LineFormatter formatter) {
+        outputs.add(out);
+        formatters.add(formatter);
+    }
+
+    /**
+        Starts the writer thread.
+    */
+    public void start() {
+        writer.start();
+    }
+
+    /**
+        Appends a line to the log. The characters are copied into the ring, hence the caller can reuse its builder right after this call returns. This never blocks.
+        @param message: CharSequence containing the line without trailing newline.
+        @return true if the line was accepted, false if it was dropped as the ring was full.
+    */
+    public boolean append(CharSequence message) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if(seq - consumed >= slots.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while(!claimed.compareAndSet(seq, seq + 1));
+
+        int idx = (int) seq & mask;
+        StringBuilder slot = slots[idx];
+        slot.setLength(0);
+        slot.append(message);
+        timestamps[idx] = System.currentTimeMillis();
+        published.set(idx, seq);
+        return true;
+    }
+
+    /**
+        @return Long of the number of lines dropped since the appender was created.
+    */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+        Stops the writer thread after it wrote all lines appended before this call, and flushes the outputs. Note that the outputs are not closed, as one of them might be the console.
+    */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+        Body of the writer thread. Writes lines as long as some are published, and flushes the outputs before parking.
+    */
+    private void drain() {
+        while(true) {
+            boolean stopping = !running;
+            int written = 0;
+            long seq = consumed;
+            while(published.get((int) seq & mask) == seq) {
+                int idx = (int) seq & mask;
+                for(int out = 0; out < outputs.size(); out++) {
+                    line.setLength(0);
+                    formatters.get(out).format(timestamps[idx], slots[idx], line);
+                    write(outputs.get(out), line);
+                }
+                seq++;
+                consumed = seq;
+                written++;
+            }
+
+            if(written > 0) {
+                for(OutputStream out: outputs) {
+                    try {
+                        out.flush();
+                    } catch(IOException ex) {
+                        // Nothing sensible to do, the log output is lost
+                    }
+                }
+            }
+
+            if(stopping) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK);
+        }
+    }
+
+    /**
+        Encodes the line into the reusable byte buffer and writes it to the output. Log lines only contain ASCII characters, other characters are replaced by '?'.
+        @param out: OutputStream to write to.
+        @param text: StringBuilder containing the formatted line.
+    */
+    private void write(OutputStream out, StringBuilder text) {
+        int length = text.length();
+        if(bytes.length < length) {
+            bytes = new byte[Integer.highestOneBit(length) << 1];
+        }
+        for(int idx = 0; idx < length; idx++) {
+            char c = text.charAt(idx);
+            bytes[idx] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        try {
+            out.write(bytes, 0, length);
+        } catch(IOException ex) {
+            // Nothing sensible to do, the log output is lost
+        }
+    }
+}
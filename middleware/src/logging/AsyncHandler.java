@@ -0,0 +1,100 @@
+/*
+    AsyncHandler.java
+    04-12-2017
+
+    @Description: Handler forwarding log records to a target handler from a dedicated writer thread. Records are put into a bounded, preallocated queue. If the queue is full the record is dropped, hence publishing a record never blocks on file I/O.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+
+public class AsyncHandler extends Handler {
+    private final Handler target;
+    private final ArrayBlockingQueue<LogRecord> records;
+    private final AtomicLong dropped = new AtomicLong(0L);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+
+    /**
+        Constructor. Starts the writer thread.
+        @param target: Handler the records are forwarded to.
+        @param capacity: Integer of the maximum number of records waiting to be written.
+        @param threads: ThreadFactory creating the writer thread.
+    */
+    public AsyncHandler(Handler target, int capacity, ThreadFactory threads) {
+        this.target = target;
+        this.records = new ArrayBlockingQueue<LogRecord>(capacity);
+        this.writer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if(!isLoggable(record)) {
+            return;
+        }
+        // The caller has to be inferred on the thread that logged the record, the stack is lost afterwards
+        record.getSourceClassName();
+        if(!records.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+        @return Long of the number of records dropped because the queue was full.
+    */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(5000);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    /**
+        Body of the writer thread.
+    */
+    private void drain() {
+        while(running || !records.isEmpty()) {
+            try {
+                LogRecord record = records.poll(100, TimeUnit.MILLISECONDS);
+                if(record != null) {
+                    target.publish(record);
+                    if(records.isEmpty()) {
+                        target.flush();
+                    }
+                }
+            } catch(InterruptedException ex) {
+                return;
+            }
+        }
+        target.flush();
+    }
+}
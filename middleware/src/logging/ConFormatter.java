@@ -12,13 +12,17 @@ package asl_project.logging;
 import java.util.logging.*;
 
 
-public class ConFormatter extends Formatter {
+public class ConFormatter extends Formatter implements LineFormatter {
     public String format(LogRecord record) {
         StringBuilder builder = new StringBuilder(1000);
         builder.append(formatMessage(record)).append("\n");
         return builder.toString();
     }
 
+    public void format(long millis, CharSequence message, StringBuilder out) {
+        out.append(message).append("\n");
+    }
+
     public String getHead(Handler handler) {
         return super.getHead(handler);
     }
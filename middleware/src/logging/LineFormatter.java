@@ -0,0 +1,21 @@
+/*
+    LineFormatter.java
+    04-12-2017
+
+    @Description: Interface for formatters used by the AsyncAppender. Contrary to the java.util.logging formatters, a line formatter writes into a builder provided by the caller, so that no objects need to be allocated per line.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.logging;
+
+
+public interface LineFormatter {
+    /**
+        Formats a single line into the given builder. The builder is not cleared before the line is appended.
+        @param millis: Long of the time at which the line was logged in milliseconds since the epoch.
+        @param message: CharSequence containing the message to format.
+        @param out: StringBuilder the formatted line is appended to, including the trailing newline.
+    */
+    public void format(long millis, CharSequence message, StringBuilder out);
+}
@@ -0,0 +1,72 @@
+/*
+    RateLimiter.java
+    04-12-2017
+
+    @Description: Limits the number of log messages emitted from the request processing path. At most a fixed number of messages are let through per second, the others are only counted. The count of suppressed messages is appended to the next message let through.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.logging;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+
+public class RateLimiter {
+    private static final StackWalker WALKER = StackWalker.getInstance();
+
+    private final int permits;
+    private final AtomicLong window = new AtomicLong(-1L);
+    private final AtomicInteger used = new AtomicInteger(0);
+    private final AtomicLong suppressed = new AtomicLong(0L);
+
+
+    /**
+        Constructor.
+        @param permitsPerSecond: Integer of the number of messages let through per second.
+    */
+    public RateLimiter(int permitsPerSecond) {
+        this.permits = permitsPerSecond;
+    }
+
+    /**
+        Tries to acquire a permit. This does not lock and is cheap enough to be called for every request.
+        @return true if the message may be logged.
+    */
+    public boolean tryAcquire() {
+        long now = System.nanoTime() >> 30;         // Roughly in seconds
+        long current = window.get();
+        if(now != current && window.compareAndSet(current, now)) {
+            used.set(0);
+        }
+        if(used.incrementAndGet() <= permits) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+        Logs the message if a permit is available. The source class and method of the record are set to the caller of this function.
+        @param logger: Logger to log to.
+        @param level: Level of the message.
+        @param message: String of the message to log.
+    */
+    public void log(Logger logger, Level level, String message) {
+        if(!logger.isLoggable(level) || !tryAcquire()) {
+            return;
+        }
+        long count = suppressed.getAndSet(0L);
+        if(count > 0) {
+            message = message + " (" + count + " similar messages suppressed)";
+        }
+        StackWalker.StackFrame caller = WALKER.walk(frames -> frames.skip(1).findFirst()).orElse(null);
+        if(caller == null) {
+            logger.log(level, message);
+        } else {
+            logger.logp(level, caller.getClassName(), caller.getMethodName(), message);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+    TextFormat.java
+    04-12-2017
+
+    @Description: Helper functions appending right aligned numbers to a StringBuilder. These produce the same output as the "%<width>d" and "%<width>.<decimals>f" patterns of String.format, but do not allocate any objects, which makes them suitable for the periodic statistics.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.logging;
+
+
+public final class TextFormat {
+    private static final long[] POWERS = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+    private TextFormat() {}
+
+    /**
+        Appends a right aligned integer, equivalent to "%<width>d".
+        @param out: StringBuilder to append to.
+        @param value: Long to append.
+        @param width: Integer of the minimum width of the field.
+    */
+    public static void appendPadded(StringBuilder out, long value, int width) {
+        pad(out, width - digits(value));
+        out.append(value);
+    }
+
+    /**
+        Appends a right aligned decimal number, equivalent to "%<width>.<decimals>f". The value is rounded half up.
+        @param out: StringBuilder to append to.
+        @param value: Double to append.
+        @param width: Integer of the minimum width of the field.
+        @param decimals: Integer of the number of decimals between 0 and 6.
+    */
+    public static void appendFixed(StringBuilder out, double value, int width, int decimals) {
+        if(Double.isNaN(value)) {
+            pad(out, width - 3);
+            out.append("NaN");
+            return;
+        }
+        if(Double.isInfinite(value)) {
+            pad(out, width - (value > 0 ? 8 : 9));
+            out.append(value > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+
+        long scale = POWERS[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        long integral = scaled / scale;
+        long fraction = scaled % scale;
+        boolean negative = value < 0 && scaled != 0;
+
+        int length = digits(integral) + (negative ? 1 : 0) + (decimals > 0 ? decimals + 1 : 0);
+        pad(out, width - length);
+        if(negative) {
+            out.append('-');
+        }
+        out.append(integral);
+        if(decimals > 0) {
+            out.append('.');
+            for(int idx = decimals - 1; idx >= 0; idx--) {
+                out.append((char) ('0' + (fraction / POWERS[idx]) % 10));
+            }
+        }
+    }
+
+    /**
+        Appends a right aligned string, equivalent to "%<width>s".
+        @param out: StringBuilder to append to.
+        @param value: CharSequence to append.
+        @param width: Integer of the minimum width of the field.
+    */
+    public static void appendPadded(StringBuilder out, CharSequence value, int width) {
+        pad(out, width - value.length());
+        out.append(value);
+    }
+
+    private static int digits(long value) {
+        int count = value < 0 ? 2 : 1;
+        long rest = Math.abs(value / 10);
+        while(rest > 0) {
+            rest /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static void pad(StringBuilder out, int count) {
+        for(int idx = 0; idx < count; idx++) {
+            out.append(' ');
+        }
+    }
+}
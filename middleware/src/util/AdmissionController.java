@@ -0,0 +1,221 @@
+/**
+    AdmissionController.java
+    08-12-2017
+
+    @Description: Sheds load when the middleware is overloaded, such that the requests that are processed are answered in time instead of all requests waiting in an ever growing queue. Load is controlled at three points, each of which is optional:
+        - At the net thread, if a client already has the maximum number of requests in the middleware, the net thread stops reading from the client until one of them was answered (back-pressure). This stops a single connection from filling the queue at the expense of the others.
+        - At the net thread, if the predicted queue time exceeds a deadline. The queue time is predicted from the queue length, the average processing time of the last logging interval and the number of workers.
+        - At the dequeue by a worker, using CoDel: if the queue time of the requests stayed above a target for a whole interval, requests are dropped at a rate increasing with the square root of the number of drops until the queue time falls below the target again.
+    Rejected requests are answered with "SERVER_ERROR overloaded". The memcached protocol has no request ids, hence a client must get its responses in order: the net thread only writes a rejection if the client has no other request in the middleware, otherwise it stops reading from the client like for the client limit. The number of rejected requests is reported per logging interval.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    Class implementing the admission control shared by the net thread and the workers.
+*/
+public class AdmissionController {
+    // Response sent for rejected requests
+    public static final byte[] REJECTED = "SERVER_ERROR overloaded\r\n".getBytes();
+
+    private final long deadline;
+    private final long target;
+    private final long interval;
+    private final int clientLimit;
+
+    // Average processing time in microseconds and number of workers, updated once per logging interval
+    private volatile double processingTime = 0.0;
+    private volatile int workers = 1;
+
+    // CoDel state, guarded by the lock of this object
+    private long firstAboveTime = 0L;
+    private long dropNext = 0L;
+    private int dropCount = 0;
+    private boolean dropping = false;
+
+    // Counters of rejected requests, and of the times a client was not read from
+    private final AtomicLong shedInterval = new AtomicLong();
+    private final AtomicLong pausedClient = new AtomicLong();
+    private final AtomicLong shedDeadline = new AtomicLong();
+    private final AtomicLong shedCoDel = new AtomicLong();
+
+
+    /**
+        Requests of a client connection in the middleware, attached to the selection key of the client.
+    */
+    public static class Client {
+        final AtomicInteger inflight = new AtomicInteger();
+        volatile boolean paused = false;
+
+        /**
+            @return Integer of the number of requests of the client in the middleware.
+        */
+        public int inflight() {
+            return inflight.get();
+        }
+    }
+
+
+    /**
+        Constructor.
+        @param deadline: Long of the maximum predicted queue time in microseconds for a request to be admitted, 0 disables the check.
+        @param target: Long of the CoDel target queue time in microseconds, 0 disables CoDel.
+        @param interval: Long of the CoDel interval in microseconds.
+        @param clientLimit: Integer of the maximum number of requests of a client in the middleware, 0 disables the limit.
+    */
+    public AdmissionController(long deadline, long target, long interval, int clientLimit) {
+        this.deadline = deadline;
+        this.target = target;
+        this.interval = interval;
+        this.clientLimit = clientLimit;
+    }
+
+    /**
+        Decides whether the net thread reads the next request of a client. If not, the client is marked as paused and the selector is woken up once one of its requests is released, until the client may be read from again.
+        @param queueLength: Integer of the current queue length.
+        @param client: Client to read from.
+        @return true if the client may be read from, false if its key must not be selected for reading.
+    */
+    public boolean mayRead(int queueLength, Client client) {
+        int inflight = client.inflight.get();
+        if(inflight == 0 || (inflight < clientLimit || clientLimit <= 0) && !overloaded(queueLength)) {
+            // A client read from again no longer wakes the selector up when its requests are released
+            if(client.paused) {
+                client.paused = false;
+            }
+            return true;
+        }
+        client.paused = true;
+        // A request released before the client was marked did not wake the selector up, check again
+        inflight = client.inflight.get();
+        if(inflight == 0 || (inflight < clientLimit || clientLimit <= 0) && !overloaded(queueLength)) {
+            client.paused = false;
+            return true;
+        }
+        pausedClient.incrementAndGet();
+        return false;
+    }
+
+    /**
+        Decides whether a request read by the net thread is queued. If it is, it is counted for its client until it is released. Note that a request is only rejected if its client has no other request in the middleware, see mayRead().
+        @param queueLength: Integer of the current queue length.
+        @param client: Client of the request, may be null.
+        @return true if the request should be queued, false if it should be rejected.
+    */
+    public boolean admit(int queueLength, Client client) {
+        if(overloaded(queueLength) && (client == null || client.inflight.get() == 0)) {
+            shedDeadline.incrementAndGet();
+            shedInterval.incrementAndGet();
+            return false;
+        }
+        if(client != null) {
+            client.inflight.incrementAndGet();
+        }
+        return true;
+    }
+
+    private boolean overloaded(int queueLength) {
+        return deadline > 0 && queueLength * processingTime / workers > deadline;
+    }
+
+    /**
+        Decides whether a request taken from the queue by a worker is dropped, following the CoDel algorithm.
+        @param request: Request taken from the queue, with time_dqed set.
+        @return true if the request should be dropped.
+    */
+    public boolean drop(Request request) {
+        if(target <= 0) {
+            return false;
+        }
+        long now = request.time_dqed;
+        long sojourn = request.time_dqed - request.time_created;
+        boolean drop = false;
+        synchronized(this) {
+            boolean okToDrop = false;
+            if(sojourn < target) {
+                firstAboveTime = 0L;
+            } else if(firstAboveTime == 0L) {
+                firstAboveTime = now + interval;
+            } else if(now >= firstAboveTime) {
+                okToDrop = true;
+            }
+
+            if(dropping) {
+                if(!okToDrop) {
+                    dropping = false;
+                } else if(now >= dropNext) {
+                    drop = true;
+                    dropCount++;
+                    dropNext = controlLaw(dropNext, dropCount);
+                }
+            } else if(okToDrop) {
+                // Start dropping, resuming at a higher rate if the last dropping state ended recently
+                drop = true;
+                dropping = true;
+                dropCount = dropCount > 2 && now - dropNext < 16 * interval ? dropCount - 2 : 1;
+                dropNext = controlLaw(now, dropCount);
+            }
+        }
+        if(drop) {
+            shedCoDel.incrementAndGet();
+            shedInterval.incrementAndGet();
+        }
+        return drop;
+    }
+
+    private long controlLaw(long time, int count) {
+        return time + (long) (interval / Math.sqrt(count));
+    }
+
+    /**
+        Must be called once a request that was admitted has been answered or dropped.
+        @param request: Request that was processed.
+    */
+    public static void release(Request request) {
+        Client client = request.client;
+        if(client != null) {
+            request.client = null;
+            client.inflight.decrementAndGet();
+            if(client.paused && request.key != null) {
+                request.key.selector().wakeup();
+            }
+        }
+    }
+
+    /**
+        Updates the prediction of the queue time with the statistics of the last logging interval, and moves the requests rejected in the interval to the record.
+        @param record: StatsRecord of the last interval.
+        @param workers: Integer of the number of active workers.
+    */
+    public void update(StatsRecord record, int workers) {
+        long count = record.count();
+        if(count > 0) {
+            this.processingTime = (record.total_time - record.total_q_time) / (double) count;
+        }
+        this.workers = Math.max(workers, 1);
+        record.count_shed = shedInterval.getAndSet(0L);
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the number of rejected requests.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(512);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n ADMISSION CONTROL (deadline %d us, CoDel target %d us, interval %d us, client limit %d)\n", deadline, target, interval, clientLimit);
+        formatter.format("%-10s|%10s|%10s|%10s\n", "Shed", "Deadline", "CoDel", "Paused");
+        formatter.format("%10d|%10d|%10d|%10d\n",
+                         shedDeadline.get() + shedCoDel.get(),
+                         shedDeadline.get(),
+                         shedCoDel.get(),
+                         pausedClient.get());
+        formatter.format("Shed requests are not included in the request counts, response times and histograms.\n");
+        return result.toString();
+    }
+}
@@ -0,0 +1,30 @@
+/**
+    BackendException.java
+    09-12-2017
+
+    @Description: Thrown by the workers when the communication with a memcached server failed, such that the failure can be told apart from a failure of the client connection and attributed to the server.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+
+/**
+    Exception wrapping the IOException of a server connection.
+*/
+class BackendException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int server;
+
+    /**
+        Constructor.
+        @param server: Integer of the index of the server.
+        @param cause: IOException raised by the connection.
+    */
+    BackendException(int server, IOException cause) {
+        super(cause);
+        this.server = server;
+    }
+}
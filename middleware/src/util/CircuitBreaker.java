@@ -0,0 +1,142 @@
+/**
+    CircuitBreaker.java
+    09-12-2017
+
+    @Description: Keeps track of the health of the memcached servers, shared by all workers. A server is marked down (the circuit is open) after a number of consecutive errors or timeouts, and requests are then routed to the other servers. Once the probe interval has passed, a single request is let through as a trial (half open). If it succeeds, the server is marked up again, otherwise it stays down for another probe interval. Every change of state is logged.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.List;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+    Class implementing a circuit breaker per server.
+*/
+public class CircuitBreaker {
+    // States of a server
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATES = {"up", "down", "probing"};
+
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    private final String[] addresses;
+    private final int threshold;
+    private final long probeInterval;
+    private final AtomicIntegerArray states;
+    private final AtomicIntegerArray consecutiveFailures;
+    private final AtomicLongArray openedAt;
+
+    // Counters for the final statistics
+    private final AtomicLongArray failures;
+    private final AtomicLongArray trips;
+    private final AtomicLong degradedSets = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+
+
+    /**
+        Constructor.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers, in the order of the connections of the workers.
+        @param threshold: Integer of the number of consecutive failures after which a server is marked down.
+        @param probeInterval: Long of the time in microseconds after which a server that is down is tried again.
+    */
+    public CircuitBreaker(List<String> mcAddresses, int threshold, long probeInterval) {
+        this.addresses = mcAddresses.toArray(new String[0]);
+        this.threshold = Math.max(threshold, 1);
+        this.probeInterval = probeInterval;
+        this.states = new AtomicIntegerArray(addresses.length);
+        this.consecutiveFailures = new AtomicIntegerArray(addresses.length);
+        this.openedAt = new AtomicLongArray(addresses.length);
+        this.failures = new AtomicLongArray(addresses.length);
+        this.trips = new AtomicLongArray(addresses.length);
+    }
+
+    /**
+        Checks if a request may be sent to a server. If the server is down and the probe interval has passed, the calling worker gets to send the trial request and must report its outcome.
+        @param server: Integer of the index of the server.
+        @return true if a request may be sent to the server.
+    */
+    public boolean isAvailable(int server) {
+        int state = states.get(server);
+        if(state == CLOSED) {
+            return true;
+        }
+        if(state == OPEN && (System.nanoTime() >> 10) - openedAt.get(server) >= probeInterval) {
+            return states.compareAndSet(server, OPEN, HALF_OPEN);
+        }
+        return false;
+    }
+
+    /**
+        Must be called when a server answered a request.
+        @param server: Integer of the index of the server.
+    */
+    public void success(int server) {
+        if(consecutiveFailures.get(server) != 0) {
+            consecutiveFailures.set(server, 0);
+        }
+        if(states.get(server) != CLOSED && states.compareAndSet(server, HALF_OPEN, CLOSED)) {
+            SYS_LOG.info(String.format("Memcached server %s answered the trial request and is marked up again.", addresses[server]));
+        }
+    }
+
+    /**
+        Must be called when a request to a server failed or timed out, or the connection could not be established.
+        @param server: Integer of the index of the server.
+    */
+    public void failure(int server) {
+        failures.incrementAndGet(server);
+        int count = consecutiveFailures.incrementAndGet(server);
+        if(states.compareAndSet(server, HALF_OPEN, OPEN)) {
+            openedAt.set(server, System.nanoTime() >> 10);
+            SYS_LOG.info(String.format("Trial request to memcached server %s failed, it stays down.", addresses[server]));
+        } else if(count >= threshold && states.compareAndSet(server, CLOSED, OPEN)) {
+            openedAt.set(server, System.nanoTime() >> 10);
+            trips.incrementAndGet(server);
+            SYS_LOG.warning(String.format("Memcached server %s is marked down after %d consecutive failures.", addresses[server], count));
+        }
+    }
+
+    /**
+        Must be called when a SET was stored on some, but not all servers.
+    */
+    public void degraded() {
+        degradedSets.incrementAndGet();
+    }
+
+    /**
+        Must be called when a request could not be answered by any server.
+    */
+    public void failed() {
+        failedRequests.incrementAndGet();
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the state and failures of every server.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n SERVER HEALTH (down after %d consecutive failures, probed every %d us)\n", threshold, probeInterval);
+        formatter.format("%-22s|%10s|%10s|%10s\n", "Server", "State", "Failures", "Trips");
+        for(int server = 0; server < addresses.length; server++) {
+            formatter.format("%-22s|%10s|%10d|%10d\n",
+                             addresses[server],
+                             STATES[states.get(server)],
+                             failures.get(server),
+                             trips.get(server));
+        }
+        formatter.format("SETs stored on a subset of the servers: %d\n", degradedSets.get());
+        formatter.format("Requests no server could answer: %d\n", failedRequests.get());
+        return result.toString();
+    }
+}
@@ -0,0 +1,280 @@
+/**
+    Compression.java
+    14-12-2017
+
+    @Description: Compresses values between the middleware and memcached. Values of SETs of at least the threshold size are compressed with LZ4 once by the worker before they are sent to all replicas, such that the network and the memory of every server only carry the compressed value. Compressed values are marked with a reserved bit of the memcached flags and start with their uncompressed length (4 bytes, big endian). Responses to GETs and MULTIGETs are decompressed before they are relayed to the client, which never sees the bit. Values that do not get smaller are stored as they are. Every worker owns a Codec with its own buffers, the statistics are shared.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Formatter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+    Class holding the settings and statistics of the compression.
+*/
+public class Compression {
+    // Bit of the memcached flags marking compressed values, clients must not use it
+    public static final long FLAG = 1L << 30;
+
+    // Response to SETs from clients that use the reserved bit, and to GETs of corrupt values
+    static final byte[] RESERVED_FLAG = "CLIENT_ERROR flag bit 30 is reserved by the middleware\r\n".getBytes();
+    static final byte[] CORRUPT = "SERVER_ERROR compressed value is corrupt\r\n".getBytes();
+
+    // Largest value memcached stores by default, larger lengths of compressed values are corrupt
+    private static final int MAX_VALUE = 1 << 20;
+
+    private static final byte[] VALUE = "VALUE ".getBytes();
+
+    private final int threshold;
+
+    // Counters for the final statistics
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder incompressible = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+
+
+    /**
+        Constructor.
+        @param threshold: Integer of the minimum size of the values that are compressed in bytes.
+    */
+    public Compression(int threshold) {
+        this.threshold = Math.max(threshold, 1);
+    }
+
+    /**
+        @return Codec with its own buffers, to be used by a single worker.
+    */
+    public Codec newCodec() {
+        return new Codec();
+    }
+
+    /**
+        Compressor and decompressor of a worker. Note that this is not thread safe.
+    */
+    public class Codec {
+        private final int[] table = new int[Lz4.TABLE_SIZE];
+        private ByteBuffer encoded = ByteBuffer.allocate(4096);
+        private ByteBuffer decoded = ByteBuffer.allocate(16384);
+
+        private Codec() {
+        }
+
+        /**
+            Compresses the value of a SET.
+            @param command: ByteBuffer of the SET from position 0 to its limit, this is not modified.
+            @return ByteBuffer of the SET to send to the servers, the command itself if the value is not compressed or the command is malformed, or null if the client used the reserved bit.
+        */
+        public ByteBuffer encode(ByteBuffer command) {
+            byte[] array = command.array();
+            ProtocolScanner scanner = ProtocolScanner.get();
+            int header = scanner.indexOfCrlf(command, 0, command.limit());
+            if(header < 0) {
+                return command;
+            }
+            // set <key> <flags> <exptime> <bytes> [noreply]
+            int flagsStart = scanner.tokenStart(command, 0, header, 2);
+            int lengthStart = scanner.tokenStart(command, 0, header, 4);
+            if(lengthStart < 0) {
+                return command;
+            }
+            int flagsEnd = scanner.tokenEnd(command, flagsStart, header);
+            int lengthEnd = scanner.tokenEnd(command, lengthStart, header);
+            long flags = ProtocolScanner.parseLong(command, flagsStart, flagsEnd);
+            long value = ProtocolScanner.parseLong(command, lengthStart, lengthEnd);
+            if(flags < 0 || value < 0 || value > Integer.MAX_VALUE) {
+                // Malformed SETs are passed on unchanged, memcached answers them with a CLIENT_ERROR
+                return command;
+            }
+            int length = (int) value;
+            if((flags & FLAG) != 0) {
+                return null;
+            }
+            if(length < threshold || header + 2L + length > command.limit()) {
+                return command;
+            }
+
+            long start = System.nanoTime();
+            int bound = Lz4.maxCompressedLength(length);
+            encoded.clear();
+            encoded = ensure(encoded, header + 32 + 4 + bound + 2);
+            byte[] out = encoded.array();
+            // The block is compressed behind the space of the header, then moved behind the header once
+            // the compressed length is known. The command starts at index 0 like the ones of the clients.
+            int size = Lz4.compress(array, header + 2, length, out, header + 32 + 4, bound, table);
+            compressNanos.add(System.nanoTime() - start);
+            if(size < 0 || size + 4 >= length) {
+                incompressible.increment();
+                return command;
+            }
+
+            // The header gets the reserved bit and the compressed length, it grows by fewer than 32 bytes
+            encoded.put(array, 0, flagsStart);
+            putNumber(encoded, flags | FLAG);
+            encoded.put(array, flagsEnd, lengthStart - flagsEnd);
+            putNumber(encoded, size + 4);
+            encoded.put(array, lengthEnd, header + 2 - lengthEnd);
+            int body = encoded.position();
+            System.arraycopy(out, header + 32 + 4, out, body + 4, size);
+            out[body] = (byte) (length >>> 24);
+            out[body + 1] = (byte) (length >>> 16);
+            out[body + 2] = (byte) (length >>> 8);
+            out[body + 3] = (byte) length;
+            out[body + 4 + size] = '\r';
+            out[body + 4 + size + 1] = '\n';
+
+            compressed.increment();
+            bytesIn.add(length);
+            bytesOut.add(size + 4);
+            encoded.limit(body + 4 + size + 2);
+            encoded.position(0);
+            return encoded;
+        }
+
+        /**
+            Decompresses the values of a response to a GET or MULTIGET.
+            @param response: ByteBuffer of the response from position 0 to its limit, this is not modified.
+            @return ByteBuffer of the response for the client, the response itself if no value is compressed.
+        */
+        public ByteBuffer decode(ByteBuffer response) {
+            byte[] array = response.array();
+            int limit = response.limit();
+            ByteBuffer out = null;
+            int copied = 0;
+            int pos = 0;
+            ProtocolScanner scanner = ProtocolScanner.get();
+            try {
+                while(pos < limit) {
+                    int end = scanner.indexOfCrlf(response, pos, limit);
+                    if(end < 0 || end - pos < VALUE.length || !ProtocolScanner.startsWith(response, pos, VALUE)) {
+                        break;
+                    }
+                    // VALUE <key> <flags> <bytes> [<cas>]
+                    int flagsStart = scanner.tokenStart(response, pos, end, 2);
+                    int lengthStart = scanner.tokenStart(response, pos, end, 3);
+                    if(lengthStart < 0) {
+                        throw new IOException("Value without length.");
+                    }
+                    int flagsEnd = scanner.tokenEnd(response, flagsStart, end);
+                    int lengthEnd = scanner.tokenEnd(response, lengthStart, end);
+                    long flags = ProtocolScanner.parseLong(response, flagsStart, flagsEnd);
+                    long value = ProtocolScanner.parseLong(response, lengthStart, lengthEnd);
+                    if(flags < 0 || value < 0 || value > Integer.MAX_VALUE) {
+                        throw new IOException("Value with invalid flags or length.");
+                    }
+                    int length = (int) value;
+                    int data = end + 2;
+                    if((flags & FLAG) == 0) {
+                        pos = data + length + 2;
+                        continue;
+                    }
+
+                    long start = System.nanoTime();
+                    if(out == null) {
+                        decoded.clear();
+                        out = decoded;
+                    }
+                    // Copy the response up to this value unchanged
+                    out = ensure(out, pos - copied);
+                    out.put(array, copied, pos - copied);
+                    if(length < 4) {
+                        throw new IOException("Compressed value without length.");
+                    }
+                    int original = ((array[data] & 0xFF) << 24) | ((array[data + 1] & 0xFF) << 16) | ((array[data + 2] & 0xFF) << 8) | (array[data + 3] & 0xFF);
+                    if(original < 0 || original > MAX_VALUE) {
+                        throw new IOException("Compressed value with invalid length.");
+                    }
+                    // The line gets the flags of the client and the original length, which has at most 7 digits
+                    out = ensure(out, end + 2 - pos + 8 + original + 2);
+                    out.put(array, pos, flagsStart - pos);
+                    putNumber(out, flags & ~FLAG);
+                    out.put(array, flagsEnd, lengthStart - flagsEnd);
+                    putNumber(out, original);
+                    out.put(array, lengthEnd, end + 2 - lengthEnd);
+                    int size = Lz4.decompress(array, data + 4, length - 4, out.array(), out.position(), original);
+                    if(size != original) {
+                        throw new IOException("Compressed value has the wrong length.");
+                    }
+                    out.position(out.position() + size);
+                    out.put((byte) '\r').put((byte) '\n');
+                    pos = data + length + 2;
+                    copied = pos;
+                    decompressed.increment();
+                    decompressNanos.add(System.nanoTime() - start);
+                }
+            } catch(IOException | RuntimeException ex) {
+                corrupt.increment();
+                return ByteBuffer.wrap(CORRUPT);
+            }
+            if(out == null) {
+                return response;
+            }
+            out = ensure(out, limit - copied);
+            out.put(array, copied, limit - copied);
+            out.flip();
+            decoded = out;
+            return out;
+        }
+
+        /**
+            @return ByteBuffer with the content and at least the given remaining space, the buffer itself if it is large enough.
+        */
+        private ByteBuffer ensure(ByteBuffer buffer, int remaining) {
+            if(buffer.remaining() >= remaining) {
+                return buffer;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + remaining));
+            buffer.flip();
+            larger.put(buffer);
+            if(buffer == decoded) {
+                decoded = larger;
+            }
+            return larger;
+        }
+    }
+
+    /**
+        Writes a number in decimal at the position of a buffer with enough space, and moves the position behind it.
+        @param buffer: ByteBuffer to write to.
+        @param value: Long of the number, not negative.
+    */
+    private static void putNumber(ByteBuffer buffer, long value) {
+        int digits = 1;
+        for(long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int start = buffer.position();
+        for(int idx = start + digits - 1; idx >= start; idx--) {
+            buffer.put(idx, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(start + digits);
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the compression ratio and the time spent compressing.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(512);
+        Formatter formatter = new Formatter(result);
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        long values = compressed.sum();
+        long reads = decompressed.sum();
+        formatter.format("\n\n COMPRESSION (values of at least %d bytes)\n", threshold);
+        formatter.format("Values compressed: %d, stored uncompressed as they did not get smaller: %d\n", values, incompressible.sum());
+        formatter.format("Bytes before and after compression: %d, %d (ratio %.2f)\n", in, out, out > 0 ? (double) in / out : 0.0);
+        formatter.format("Time per SET compressing: %.2f us\n", values + incompressible.sum() > 0 ? compressNanos.sum() / 1000.0 / (values + incompressible.sum()) : 0.0);
+        formatter.format("Values decompressed: %d, time per value: %.2f us, corrupt: %d\n", reads, reads > 0 ? decompressNanos.sum() / 1000.0 / reads : 0.0, corrupt.sum());
+        return result.toString();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+    ControlSocket.java
+    19-12-2017
+
+    @Description: Local socket answering queries about the records kept by TimeSeries, e.g. with "nc localhost <port>". It only listens on the loopback address. Commands are lines of text, answers end with "END" like the stats of memcached:
+        metrics                     lists the columns
+        stats <column> [<seconds>]  count, mean, standard deviation, minimum, maximum and trend per second of the column
+        series <column> [<seconds>] one line per second with the wall clock time in milliseconds and the value
+        warmup                      seconds of the warm-up, -1 while it lasts
+        quit                        closes the connection
+    Without seconds, the window contains all records kept after the warm-up. Every connection is served by its own thread, the queries are answered from the ring and never block the workers.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Formatter;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+    Class implementing the control socket.
+*/
+public class ControlSocket implements Runnable {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    private final TimeSeries series;
+    private final ServerSocket socket;
+    private Thread thread;
+    private ThreadFactory threads;
+    private volatile boolean running = true;
+
+
+    /**
+        Constructor. Opens the socket.
+        @param series: TimeSeries that is queried.
+        @param port: Integer of the port to listen on, 0 for any free port.
+    */
+    public ControlSocket(TimeSeries series, int port) throws IOException {
+        this.series = series;
+        this.socket = new ServerSocket();
+        this.socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+        @return Integer of the port the socket listens to.
+    */
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+        Starts the thread accepting the connections.
+        @param threads: ThreadFactory creating the accepting thread and the threads serving the connections.
+    */
+    public void start(ThreadFactory threads) {
+        this.threads = threads;
+        thread = threads.newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        Closes the socket, connections that are open are closed by their client.
+    */
+    public void stop() {
+        running = false;
+        try {
+            socket.close();
+        } catch(IOException ex) {
+            SYS_LOG.info("The control socket did not close properly.");
+        }
+    }
+
+    /**
+        Accepts connections until the socket is closed.
+    */
+    @Override
+    public void run() {
+        while(running) {
+            final Socket connection;
+            try {
+                connection = socket.accept();
+            } catch(IOException ex) {
+                if(running) {
+                    SYS_LOG.warning("Could not accept a connection to the control socket: " + ex);
+                }
+                continue;
+            }
+            Thread handler = threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(connection);
+                }
+            });
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket connection) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = connection.getOutputStream();
+            StringBuilder answer = new StringBuilder(4096);
+            String line;
+            while(running && (line = in.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if(tokens[0].equals("quit")) {
+                    break;
+                }
+                answer.setLength(0);
+                answer(tokens, answer);
+                out.write(answer.toString().getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch(IOException ex) {
+            // The client closed the connection
+        } finally {
+            try {
+                connection.close();
+            } catch(IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+        Answers a command.
+        @param tokens: Array of strings of the command and its arguments.
+        @param out: StringBuilder the answer is appended to.
+    */
+    void answer(String[] tokens, StringBuilder out) {
+        String command = tokens[0];
+        if(command.equals("metrics") && tokens.length == 1) {
+            for(String name: series.getColumnNames()) {
+                out.append(name).append("\r\n");
+            }
+        } else if(command.equals("warmup") && tokens.length == 1) {
+            out.append("STAT warmup ").append(series.getWarmup()).append("\r\n");
+        } else if((command.equals("stats") || command.equals("series")) && (tokens.length == 2 || tokens.length == 3)) {
+            int column = series.column(tokens[1]);
+            int seconds;
+            try {
+                seconds = tokens.length == 3 ? Integer.parseInt(tokens[2]) : 0;
+            } catch(NumberFormatException ex) {
+                seconds = -1;
+            }
+            if(column < 0) {
+                out.append("CLIENT_ERROR unknown column ").append(tokens[1]).append("\r\n");
+                return;
+            } else if(seconds < 0) {
+                out.append("CLIENT_ERROR the window must be a positive number of seconds\r\n");
+                return;
+            }
+            if(command.equals("series")) {
+                series.appendValues(column, seconds, out);
+            } else {
+                double[] stats = series.summarize(column, seconds);
+                Formatter formatter = new Formatter(out);
+                formatter.format("STAT count %.0f\r\nSTAT mean %.2f\r\nSTAT stddev %.2f\r\nSTAT min %.2f\r\nSTAT max %.2f\r\nSTAT trend %.3f\r\n",
+                                 stats[0], stats[1], stats[2], stats[3], stats[4], stats[5]);
+            }
+        } else {
+            out.append("ERROR\r\n");
+            return;
+        }
+        out.append("END\r\n");
+    }
+}
@@ -0,0 +1,258 @@
+/**
+    FlightEvents.java
+    18-12-2017
+
+    @Description: Event types of the JDK Flight Recorder, emitted where the timestamps of the requests are taken: a request event from arrival to completion, and events for the time in the queue and the time waiting for the servers. The net thread emits an event per selector wake-up, the workers one per connection attempt to the servers, and the depth of the queue is sampled periodically. A recording thus shows a slow request next to the GC pauses, lock contention and slow servers that caused it. Events are only allocated while a recording is running, the thresholds (1 ms by default) limit the recording to slow requests. They can be changed in the settings of the recording or with the -jfr option of the middleware, see start().
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+    Class holding the event types and the state of the recordings.
+*/
+public final class FlightEvents {
+    // True while a recording is running, such that no events are allocated otherwise
+    private static volatile boolean recording = false;
+    private static BlockingQueue<Request> queue = null;
+    private static Runnable sampler = null;
+
+    private FlightEvents() {
+    }
+
+    @Name("asl_project.Request")
+    @Label("Request")
+    @Category({"Middleware", "Requests"})
+    @Description("Request from its arrival at the net thread to the response to the client")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class RequestEvent extends Event {
+        @Label("Type")
+        public String type;
+        @Label("Key")
+        public String key;
+        @Label("Worker")
+        public int worker;
+        @Label("Queue Time")
+        @Timespan(Timespan.MICROSECONDS)
+        public long queueTime;
+        @Label("Server Time")
+        @Timespan(Timespan.MICROSECONDS)
+        public long serverTime;
+        @Label("Hit")
+        public boolean hit;
+    }
+
+    @Name("asl_project.QueueWait")
+    @Label("Queue Wait")
+    @Category({"Middleware", "Requests"})
+    @Description("Time of a request in the queue between the net thread and the workers")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class QueueWaitEvent extends Event {
+        @Label("Worker")
+        public int worker;
+    }
+
+    @Name("asl_project.ServerWait")
+    @Label("Server Wait")
+    @Category({"Middleware", "Requests"})
+    @Description("Time from sending a request to the servers until the response was received")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class ServerWaitEvent extends Event {
+        @Label("Type")
+        public String type;
+    }
+
+    @Name("asl_project.SelectorWakeup")
+    @Label("Selector Wake-up")
+    @Category({"Middleware", "Net Thread"})
+    @Description("Handling of the keys selected by one wake-up of the net thread")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class SelectorEvent extends Event {
+        @Label("Selected Keys")
+        public int keys;
+        @Label("Blocked")
+        @Timespan(Timespan.MICROSECONDS)
+        public long blocked;
+    }
+
+    @Name("asl_project.ServerConnect")
+    @Label("Server Connect")
+    @Category({"Middleware", "Servers"})
+    @Description("Connection attempt of a worker to memcached servers")
+    @Threshold("0 ms")
+    @StackTrace(false)
+    public static class ConnectEvent extends Event {
+        @Label("Worker")
+        public int worker;
+        @Label("Server")
+        public String server;
+        @Label("Attempted")
+        public int attempted;
+        @Label("Failed")
+        public int failed;
+    }
+
+    @Name("asl_project.QueueDepth")
+    @Label("Queue Depth")
+    @Category({"Middleware", "Net Thread"})
+    @Description("Number of requests waiting for a worker")
+    @Period("100 ms")
+    @StackTrace(false)
+    public static class QueueDepthEvent extends Event {
+        @Label("Depth")
+        public int depth;
+    }
+
+    /**
+        Tracks the recordings of the JVM, including ones started with -XX:StartFlightRecording or jcmd, and samples the depth of the queue while one is running.
+        @param requests: BlockingQueue of the requests of the middleware.
+    */
+    public static synchronized void install(BlockingQueue<Request> requests) {
+        queue = requests;
+        if(sampler != null) {
+            return;
+        }
+        sampler = new Runnable() {
+            @Override
+            public void run() {
+                BlockingQueue<Request> current = queue;
+                if(current != null) {
+                    QueueDepthEvent event = new QueueDepthEvent();
+                    event.depth = current.size();
+                    event.commit();
+                }
+            }
+        };
+        FlightRecorder.addPeriodicEvent(QueueDepthEvent.class, sampler);
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                boolean running = false;
+                for(Recording other: FlightRecorder.getFlightRecorder().getRecordings()) {
+                    running |= other.getState() == RecordingState.RUNNING;
+                }
+                recording = running;
+            }
+        });
+    }
+
+    /**
+        Starts a recording with the "profile" settings of the JDK, the events of the middleware recording requests slower than the threshold.
+        @param file: Path of the recording, written when the recording is stopped.
+        @param thresholdMicros: Long of the minimum duration of the recorded requests in microseconds.
+        @return Recording started.
+    */
+    public static Recording start(Path file, long thresholdMicros) throws IOException, ParseException {
+        Recording recording = new Recording(Configuration.getConfiguration("profile"));
+        Duration threshold = Duration.ofNanos(thresholdMicros * 1000);
+        recording.enable(RequestEvent.class).withThreshold(threshold);
+        recording.enable(QueueWaitEvent.class).withThreshold(threshold);
+        recording.enable(ServerWaitEvent.class).withThreshold(threshold);
+        recording.enable(SelectorEvent.class).withThreshold(threshold);
+        recording.setDestination(file);
+        recording.setToDisk(true);
+        recording.start();
+        return recording;
+    }
+
+    /**
+        @return true if a recording is running, the events are only created then.
+    */
+    public static boolean recording() {
+        return recording;
+    }
+
+    /**
+        Called when the request is created, right before it is queued.
+        @param request: Request created.
+    */
+    static void created(Request request) {
+        request.event = new RequestEvent();
+        request.event.begin();
+        request.queueEvent = new QueueWaitEvent();
+        request.queueEvent.begin();
+    }
+
+    /**
+        Called when a worker took the request from the queue.
+    */
+    static void dequeued(Request request, int worker) {
+        QueueWaitEvent event = request.queueEvent;
+        if(event != null) {
+            event.end();
+            if(event.shouldCommit()) {
+                event.worker = worker;
+                event.commit();
+            }
+            request.queueEvent = null;
+        }
+    }
+
+    /**
+        Called when the request was sent to the servers.
+    */
+    static void sent(Request request) {
+        request.serverEvent = new ServerWaitEvent();
+        request.serverEvent.begin();
+    }
+
+    /**
+        Called when the response of the servers was received.
+    */
+    static void received(Request request) {
+        ServerWaitEvent event = request.serverEvent;
+        if(event != null) {
+            event.end();
+            if(event.shouldCommit()) {
+                event.type = request.type.name();
+                event.commit();
+            }
+            request.serverEvent = null;
+        }
+    }
+
+    /**
+        Called when the response was written to the client.
+    */
+    static void completed(Request request, int worker) {
+        RequestEvent event = request.event;
+        if(event != null) {
+            event.end();
+            if(event.shouldCommit()) {
+                event.type = request.type.name();
+                event.key = Worker.firstKey(request.buffer.array());
+                event.worker = worker;
+                event.queueTime = request.time_dqed - request.time_created;
+                event.serverTime = request.time_mmcd_rcvd - request.time_mmcd_sent;
+                event.hit = request.hit;
+                event.commit();
+            }
+            request.event = null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+    HedgePolicy.java
+    07-12-2017
+
+    @Description: Decides when a read is hedged. As SETs are replicated to all servers, a GET or MULTIGET that was not answered by its server within the hedge delay is sent to a second server, and the first response is relayed to the client. The delay is a percentile of the server times measured during the last logging interval, such that only the slowest reads are hedged. The additional load is capped by a budget: every read adds a fraction of a hedge to a token bucket, and a hedge is only sent if a whole one is available. All methods are lock-free and can be called by all workers.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+    Class implementing the hedging policy shared by the workers.
+*/
+public class HedgePolicy {
+    // Largest server time recorded in microseconds, larger times are counted as this value
+    private static final long MAX_VALUE = (1L << 30) - 1;
+    // Minimum number of server times required to compute a new delay
+    private static final long MIN_SAMPLES = 100;
+    // Tokens of a single hedge, the budget is given in tokens per read
+    private static final long HEDGE_TOKENS = 1000;
+    // Maximum number of hedges that can be sent in a burst
+    private static final long MAX_BURST = 100;
+
+    private final double percentile;
+    private final long tokensPerRead;
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.index(MAX_VALUE) + 1);
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private volatile long delay = 0L;
+
+    // Counters for the final statistics
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+
+
+    /**
+        Constructor.
+        @param percentile: Double of the percentile of the server times used as the hedge delay, between 0 and 100.
+        @param budget: Double of the maximum number of hedges in percent of the reads.
+    */
+    public HedgePolicy(double percentile, double budget) {
+        this.percentile = percentile;
+        this.tokensPerRead = Math.round(budget / 100.0 * HEDGE_TOKENS);
+    }
+
+    /**
+        @return Long of the current hedge delay in microseconds, 0 as long as not enough server times were measured.
+    */
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+        Must be called for every read that may be hedged. This adds the budget of the read to the token bucket.
+    */
+    public void read() {
+        reads.incrementAndGet();
+        long current;
+        do {
+            current = tokens.get();
+            if(current >= MAX_BURST * HEDGE_TOKENS) {
+                return;
+            }
+        } while(!tokens.compareAndSet(current, current + tokensPerRead));
+    }
+
+    /**
+        Takes a hedge from the budget.
+        @return true if the budget allows to hedge the read.
+    */
+    public boolean tryHedge() {
+        long current;
+        do {
+            current = tokens.get();
+            if(current < HEDGE_TOKENS) {
+                denied.incrementAndGet();
+                return false;
+            }
+        } while(!tokens.compareAndSet(current, current - HEDGE_TOKENS));
+        hedged.incrementAndGet();
+        return true;
+    }
+
+    /**
+        Must be called when the second server answered a hedged read first.
+    */
+    public void won() {
+        won.incrementAndGet();
+    }
+
+    /**
+        Records the time a server took to answer a read, including the responses that were discarded.
+        @param serverTime: Long of the server time in microseconds.
+    */
+    public void record(long serverTime) {
+        counts.incrementAndGet(LatencyHistogram.index(Math.min(Math.max(serverTime, 0L), MAX_VALUE)));
+        samples.incrementAndGet();
+    }
+
+    /**
+        Computes the hedge delay from the server times recorded since the last update. If too few server times were recorded, they are kept for the next update and the delay is not changed. This should be called once per logging interval.
+    */
+    public void update() {
+        long total = samples.get();
+        if(total < MIN_SAMPLES) {
+            return;
+        }
+        samples.addAndGet(-total);
+
+        long[] snapshot = new long[counts.length()];
+        long count = 0L;
+        for(int idx = 0; idx < snapshot.length; idx++) {
+            snapshot[idx] = counts.getAndSet(idx, 0L);
+            count += snapshot[idx];
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100.0 * count), 1L);
+        long running = 0L;
+        for(int idx = 0; idx < snapshot.length; idx++) {
+            running += snapshot[idx];
+            if(running >= rank) {
+                delay = LatencyHistogram.highestValue(idx);
+                return;
+            }
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the counters of the hedged reads.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(512);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n HEDGED READS (p%.1f of the server time, budget %.1f%% of the reads)\n", percentile, tokensPerRead * 100.0 / HEDGE_TOKENS);
+        formatter.format("%-10s|%10s|%10s|%10s|%10s\n", "Reads", "Hedged", "Won", "Denied", "Delay");
+        formatter.format("%10d|%10d|%10d|%10d|%10d\n", reads.get(), hedged.get(), won.get(), denied.get(), delay);
+        return result.toString();
+    }
+}
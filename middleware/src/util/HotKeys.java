@@ -0,0 +1,181 @@
+/**
+    HotKeys.java
+    10-12-2017
+
+    @Description: Streaming heavy hitters of the keys requested by the clients, using the Space-Saving algorithm. A fixed number of counters is kept. A key without counter replaces the key with the smallest count, and inherits that count as its maximum overestimation. Hence any key requested more often than the total count divided by the number of counters is guaranteed to be tracked, with bounded memory. Every worker owns a sketch that is only updated in Worker.completed(), under the lock the worker already holds for its statistics, hence sampling adds no locking. The sketches of the workers are merged by the logger every interval.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+    Class implementing a Space-Saving sketch of the keys.
+*/
+public class HotKeys {
+
+    /**
+        Counter of a tracked key.
+    */
+    static class Counter {
+        final String key;
+        long count;
+        long error;         // Maximum overestimation of the count
+        long gets;          // Single GETs of the key and the hits among them
+        long hits;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+        @Override
+        public int compare(Counter first, Counter second) {
+            return Long.compare(second.count, first.count);
+        }
+    };
+
+    private final int capacity;
+    private final HashMap<String, Counter> counters;
+    private long total = 0L;
+    private int[] bounds = new int[64];
+
+
+    /**
+        Constructor.
+        @param capacity: Integer of the number of keys tracked.
+    */
+    public HotKeys(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.counters = new HashMap<String, Counter>(2 * this.capacity);
+    }
+
+    /**
+        Counts the keys of a request. Note that this is not thread safe.
+        @param request: Request that was completed.
+    */
+    public void sample(Request request) {
+        if(request.type == Request.Type.MULTIGET) {
+            if(bounds.length < 2 * request.multigetLength) {
+                bounds = new int[2 * request.multigetLength];
+            }
+            int keys = Worker.splitKeys(request.buffer, bounds);
+            byte[] array = request.buffer.array();
+            for(int idx = 0; idx < keys; idx++) {
+                add(new String(array, bounds[2 * idx], bounds[2 * idx + 1] - bounds[2 * idx]), 1L, 0L, 0L, 0L);
+            }
+        } else if(request.type == Request.Type.GET) {
+            add(Worker.firstKey(request.buffer.array()), 1L, 0L, 1L, request.hit ? 1L : 0L);
+        } else if(request.type == Request.Type.SET) {
+            add(Worker.firstKey(request.buffer.array()), 1L, 0L, 0L, 0L);
+        }
+    }
+
+    /**
+        Adds counts to a key, replacing the key with the smallest count if the key is not tracked and all counters are used.
+    */
+    private void add(String key, long count, long error, long gets, long hits) {
+        total += count;
+        Counter counter = counters.get(key);
+        if(counter == null) {
+            counter = new Counter(key);
+            if(counters.size() >= capacity) {
+                Counter smallest = null;
+                for(Counter candidate: counters.values()) {
+                    if(smallest == null || candidate.count < smallest.count) {
+                        smallest = candidate;
+                    }
+                }
+                counters.remove(smallest.key);
+                counter.count = smallest.count;
+                counter.error = smallest.count;
+            }
+            counters.put(key, counter);
+        }
+        counter.count += count;
+        counter.error += error;
+        counter.gets += gets;
+        counter.hits += hits;
+    }
+
+    /**
+        Adds all counters of this sketch to another sketch and clears this one. Note that this is not thread safe.
+        @param other: HotKeys the counters are added to.
+    */
+    public void drainTo(HotKeys other) {
+        for(Counter counter: counters.values()) {
+            other.add(counter.key, counter.count, counter.error, counter.gets, counter.hits);
+        }
+        clear();
+    }
+
+    /**
+        Removes all counters.
+    */
+    public void clear() {
+        counters.clear();
+        total = 0L;
+    }
+
+    /**
+        @param k: Integer of the number of keys.
+        @return List of the counters of the k most requested keys, in descending order of their count.
+    */
+    List<Counter> top(int k) {
+        List<Counter> sorted = new ArrayList<Counter>(counters.values());
+        Collections.sort(sorted, BY_COUNT);
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    /**
+        Formats the most requested keys for the hot key log, in the form "key rate/s (share%, hit%)". The hit ratio is taken over single GETs, "-" if the key was not read by any.
+        @param builder: StringBuilder the line is appended to.
+        @param k: Integer of the number of keys.
+        @param scale: Long by which the sampled counts are multiplied to estimate the number of requests.
+        @param seconds: Double of the duration the counts were collected in.
+    */
+    public void format(StringBuilder builder, int k, long scale, double seconds) {
+        Formatter formatter = new Formatter(builder);
+        for(Counter counter: top(k)) {
+            formatter.format("%s %.0f/s (%.1f%%, %s) ",
+                             counter.key,
+                             counter.count * scale / seconds,
+                             100.0 * counter.count / total,
+                             counter.gets > 0 ? String.format("%.0f%%", 100.0 * counter.hits / counter.gets) : "-");
+        }
+        if(builder.length() > 0) {
+            builder.setLength(builder.length() - 1);
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down, with the sketch the intervals were drained to.
+        @param k: Integer of the number of keys.
+        @param scale: Long by which the sampled counts are multiplied to estimate the number of requests.
+        @param seconds: Double of the duration the counts were collected in.
+        @return String containing the most requested keys.
+    */
+    public String getStats(int k, long scale, double seconds) {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n HOT KEYS (every %d. request sampled, counts are estimates)\n", scale);
+        formatter.format("%-24s|%12s|%10s|%10s|%10s|%12s\n", "Key", "Requests", "Ops/sec", "Share", "Hit ratio", "Max overest");
+        for(Counter counter: top(k)) {
+            formatter.format("%-24s|%12d|%10.2f|%9.2f%%|%10s|%12d\n",
+                             counter.key,
+                             counter.count * scale,
+                             counter.count * scale / seconds,
+                             100.0 * counter.count / total,
+                             counter.gets > 0 ? String.format("%9.2f%%", 100.0 * counter.hits / counter.gets) : "-",
+                             counter.error * scale);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,621 @@
+/**
+    Journal.java
+    15-12-2017
+
+    @Description: Write-ahead journal of the SETs that are replicated asynchronously. With a write quorum, a SET is acknowledged once the servers of its quorum stored it, and appended to the journal for the other servers. A replicator thread applies the journal to every server in order, with backoff while a server is down, such that an outage only delays its replica. The journal consists of segment files that are mapped into memory, a new segment is started when the current one is full, and a segment is deleted once all its SETs were applied. Every record carries a checksum and a flag that is set once it was applied, hence the SETs that were not applied are replayed when the middleware is started again after a crash. A SET that a worker stored on a server directly supersedes the journaled SETs of the same key for that server, which are then skipped. If the direct SET overlapped with the replicator applying a SET of the same key to that server, the order on the server is unknown, hence the direct SET is journaled again to be applied after it. Note that the segments are not forced to disk on every append: the journal survives a crash of the middleware, but not of the host.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import asl_project.logging.RateLimiter;
+
+/**
+    Class implementing the journal and the replicator thread.
+*/
+public class Journal implements Runnable {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
+
+    // Record: length (4 bytes, written last), applied flag (1), sequence number (8), CRC32 of the server and
+    // command (4), length of the server (2), server, command. A length of 0 marks the end of a segment.
+    private static final int HEADER = 19;
+    private static final int APPLIED = 4;
+
+    // Backoff of a server that could not be written to in microseconds, and interval of the lag reports
+    private static final long MIN_BACKOFF = 10000L;
+    private static final long MAX_BACKOFF = 5000000L;
+    private static final long REPORT_INTERVAL = 10000000L;
+
+    // Number of applied records whose completion time is kept to detect direct SETs that overlapped with them
+    private static final int RECENT = 1024;
+
+    /**
+        Segment file mapped into memory.
+    */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int written = 0;
+        int outstanding = 0;        // Records not applied yet
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+        Record to be applied to a server.
+    */
+    private static class Record {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final long seq;
+        final String key;
+        final long appended;
+
+        Record(Segment segment, int offset, int length, long seq, String key, long appended) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.seq = seq;
+            this.key = key;
+            this.appended = appended;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int timeout;
+    private volatile String[] servers;
+
+    // Guarded by the lock of this object
+    private Segment active = null;
+    private long nextSegment = 0L;
+    private long nextSeq = 0L;
+    private final CRC32 crc = new CRC32();
+    private final LinkedHashMap<String, ArrayDeque<Record>> queues = new LinkedHashMap<String, ArrayDeque<Record>>();
+    private final HashMap<String, Long> latest = new HashMap<String, Long>();       // Sequence number of the last record of a server and key
+    private int backlog = 0;
+    private long backlogBytes = 0L;
+    private final AtomicInteger pending = new AtomicInteger();
+    private String applying = null;                                                // Server and key of the record being applied
+    private long evicted = Long.MIN_VALUE;                                         // Completion time of the last record evicted from recent
+    private final LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>(2 * RECENT, 0.75f) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if(size() > RECENT) {
+                evicted = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };                                                                             // Completion time of the last applied records of a server and key
+    private volatile long lastApplied = Long.MIN_VALUE;
+
+    // Used by the replicator thread only
+    private final HashMap<String, Long> backoffUntil = new HashMap<String, Long>();
+    private final HashMap<String, Long> backoff = new HashMap<String, Long>();
+    private final HashMap<String, Socket> sockets = new HashMap<String, Socket>();
+    private final byte[] input = new byte[1024];
+    private Thread thread;
+    private long lastReport;
+    private long appliedAtReport = 0L;
+
+    // Counters for the final statistics, guarded by the lock of this object
+    private long appended = 0L;
+    private long appendedBytes = 0L;
+    private long failedAppends = 0L;
+    private long recovered = 0L;
+    private long applied = 0L;
+    private long superseded = 0L;
+    private long overlapped = 0L;
+    private long rejected = 0L;
+    private long dropped = 0L;
+    private long maxBacklog = 0L;
+    private double peakRate = 0.0;
+    private long segments = 0L;
+
+
+    /**
+        Constructor. Reads the segments left in the directory by a previous run, the SETs that were not applied are replayed once the replicator starts.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers.
+        @param directory: String of the directory of the segment files, created if needed.
+        @param segmentSize: Integer of the size of a segment file in bytes.
+        @param timeout: Long of the timeout of the connections of the replicator in milliseconds.
+    */
+    public Journal(List<String> mcAddresses, String directory, int segmentSize, long timeout) throws IOException {
+        this.servers = mcAddresses.toArray(new String[0]);
+        this.directory = new File(directory);
+        this.segmentSize = Math.max(segmentSize, 1 << 16);
+        this.timeout = (int) timeout;
+        if(!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create the journal directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+        Starts the replicator thread.
+        @param threads: ThreadFactory creating the thread.
+    */
+    public void start(ThreadFactory threads) {
+        lastReport = System.nanoTime() >> 10;
+        thread = threads.newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        Stops the replicator thread. SETs that were not applied stay in the journal and are replayed by the next run.
+    */
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this) {
+            if(active != null) {
+                active.buffer.force();
+            }
+        }
+    }
+
+    /**
+        Replaces the servers the journal is applied to. SETs of servers that were removed are dropped.
+        @param mcAddresses: Array of strings containing the addresses and ports of the memcached servers.
+    */
+    public synchronized void setServers(String[] mcAddresses) {
+        this.servers = mcAddresses;
+        List<String> current = Arrays.asList(mcAddresses);
+        for(Iterator<Map.Entry<String, ArrayDeque<Record>>> iterator = queues.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, ArrayDeque<Record>> entry = iterator.next();
+            if(!current.contains(entry.getKey())) {
+                for(Record record: entry.getValue()) {
+                    complete(record);
+                    dropped++;
+                }
+                iterator.remove();
+            }
+        }
+        pending.set(backlog);
+    }
+
+    // ======================================================================================
+    // CALLED BY THE WORKERS
+    // ======================================================================================
+    /**
+        Appends a SET to be applied to a server.
+        @param server: String of the address and port of the server.
+        @param buffer: ByteBuffer containing the complete SET command from index 0 to its limit.
+        @return true if the SET was appended, false if the journal could not be written.
+    */
+    public boolean append(String server, ByteBuffer buffer) {
+        return append(server, buffer, Worker.firstKey(buffer.array()));
+    }
+
+    /**
+        @param key: String of the key of the SET.
+    */
+    private boolean append(String server, ByteBuffer buffer, String key) {
+        byte[] name = server.getBytes();
+        byte[] command = buffer.array();
+        int commandLength = buffer.limit();
+        int length = HEADER + name.length + commandLength;
+
+        synchronized(this) {
+            crc.reset();
+            crc.update(name);
+            crc.update(command, 0, commandLength);
+            try {
+                if(active == null || active.written + length > active.buffer.capacity()) {
+                    rotate(length);
+                }
+            } catch(IOException ex) {
+                failedAppends++;
+                HOT_LOG.log(SYS_LOG, Level.WARNING, "Could not start a new journal segment: " + ex);
+                return false;
+            }
+            Segment segment = active;
+            int offset = segment.written;
+            long seq = nextSeq++;
+            MappedByteBuffer mapped = segment.buffer;
+            mapped.put(offset + APPLIED, (byte) 0);
+            mapped.putLong(offset + 5, seq);
+            mapped.putInt(offset + 13, (int) crc.getValue());
+            mapped.putShort(offset + 17, (short) name.length);
+            // The absolute bulk methods of ByteBuffer require Java 16, a duplicate keeps the position of the segment
+            ByteBuffer record = mapped.duplicate();
+            record.position(offset + HEADER);
+            record.put(name);
+            record.put(command, 0, commandLength);
+            // The record is complete once its length is written
+            mapped.putInt(offset, length);
+            segment.written += length;
+            segment.outstanding++;
+            appended++;
+            appendedBytes += length;
+            enqueue(server, new Record(segment, offset, length, seq, key, System.nanoTime() >> 10));
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+        Must be called when a worker stored a SET on a server directly. Journaled SETs of the key for the server are skipped. If a SET of the key was applied to the server while the direct SET was outstanding, the direct SET is journaled again, such that it is the last one the server stores.
+        @param server: String of the address and port of the server.
+        @param buffer: ByteBuffer containing the SET command, only its beginning if the value was streamed.
+        @param sent: Long of the time the SET was sent to the server in microseconds (System.nanoTime() >> 10).
+        @param complete: Boolean whether the buffer contains the complete command. A streamed SET cannot be journaled again.
+    */
+    public void stored(String server, ByteBuffer buffer, long sent, boolean complete) {
+        if(pending.get() == 0 && lastApplied < sent) {
+            return;
+        }
+        String key = Worker.firstKey(buffer.array());
+        String id = server + " " + key;
+        boolean overlaps;
+        synchronized(this) {
+            latest.remove(id);
+            Long completed = recent.get(id);
+            overlaps = complete && (id.equals(applying) || (completed != null ? completed >= sent : evicted >= sent));
+            if(overlaps) {
+                overlapped++;
+            }
+        }
+        if(overlaps) {
+            append(server, buffer, key);
+        }
+    }
+
+    /**
+        Adds a record to the queue of its server. Must be called with the lock held.
+    */
+    private void enqueue(String server, Record record) {
+        ArrayDeque<Record> queue = queues.get(server);
+        if(queue == null) {
+            queue = new ArrayDeque<Record>();
+            queues.put(server, queue);
+        }
+        queue.add(record);
+        latest.put(server + " " + record.key, record.seq);
+        backlog++;
+        backlogBytes += record.length;
+        maxBacklog = Math.max(maxBacklog, backlog);
+        pending.set(backlog);
+    }
+
+    /**
+        Marks a record as applied, and deletes its segment once all records of the segment were applied. Must be called with the lock held.
+    */
+    private void complete(Record record) {
+        record.segment.buffer.put(record.offset + APPLIED, (byte) 1);
+        backlog--;
+        backlogBytes -= record.length;
+        if(--record.segment.outstanding == 0 && record.segment != active) {
+            delete(record.segment);
+        }
+    }
+
+    /**
+        Starts a new segment. Must be called with the lock held.
+        @param length: Integer of the length of the record that must fit in the segment.
+    */
+    private void rotate(int length) throws IOException {
+        File file = new File(directory, String.format("journal-%012d.log", nextSegment));
+        int size = Math.max(segmentSize, length + 4);
+        MappedByteBuffer buffer;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        nextSegment++;
+        segments++;
+        Segment previous = active;
+        active = new Segment(file, buffer);
+        if(previous != null) {
+            previous.buffer.force();
+            if(previous.outstanding == 0) {
+                delete(previous);
+            }
+        }
+    }
+
+    private void delete(Segment segment) {
+        if(!segment.file.delete()) {
+            HOT_LOG.log(SYS_LOG, Level.WARNING, "Could not delete the journal segment " + segment.file);
+        }
+    }
+
+    /**
+        Reads the segments of a previous run. Reading a segment stops at the first record that is incomplete or corrupt.
+    */
+    private synchronized void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("journal-") && name.endsWith(".log"));
+        if(files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        long now = System.nanoTime() >> 10;
+        for(File file: files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(8, file.getName().length() - 4));
+            } catch(NumberFormatException ex) {
+                continue;
+            }
+            nextSegment = Math.max(nextSegment, id + 1);
+            MappedByteBuffer buffer;
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+            Segment segment = new Segment(file, buffer);
+            int offset = 0;
+            while(offset + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if(length < HEADER || offset + length > buffer.capacity()) {
+                    break;
+                }
+                int nameLength = buffer.getShort(offset + 17);
+                if(nameLength < 0 || HEADER + nameLength > length) {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                byte[] command = new byte[length - HEADER - nameLength];
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + HEADER);
+                record.get(name);
+                record.get(command);
+                crc.reset();
+                crc.update(name);
+                crc.update(command);
+                if((int) crc.getValue() != buffer.getInt(offset + 13)) {
+                    break;
+                }
+                long seq = buffer.getLong(offset + 5);
+                nextSeq = Math.max(nextSeq, seq + 1);
+                if(buffer.get(offset + APPLIED) == 0) {
+                    segment.outstanding++;
+                    enqueue(new String(name), new Record(segment, offset, length, seq, Worker.firstKey(command), now));
+                    recovered++;
+                }
+                offset += length;
+            }
+            segment.written = offset;
+            if(segment.outstanding == 0) {
+                delete(segment);
+            }
+        }
+        if(recovered > 0) {
+            SYS_LOG.info(String.format("Recovered %d SETs from the journal in %s, they are replayed to the replicas.", recovered, directory));
+        }
+    }
+
+    // ======================================================================================
+    // REPLICATOR THREAD
+    // ======================================================================================
+    /**
+        Override of the run() function from Runnable. Applies the journal to the servers until the thread is interrupted.
+    */
+    @Override
+    public void run() {
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                String server = null;
+                Record record = null;
+                byte[] command = null;
+                synchronized(this) {
+                    long now = System.nanoTime() >> 10;
+                    report(now);
+                    long wait = REPORT_INTERVAL;
+                    for(Map.Entry<String, ArrayDeque<Record>> entry: queues.entrySet()) {
+                        if(entry.getValue().isEmpty()) {
+                            continue;
+                        }
+                        Long until = backoffUntil.get(entry.getKey());
+                        if(until != null && until > now) {
+                            wait = Math.min(wait, until - now);
+                            continue;
+                        }
+                        server = entry.getKey();
+                        record = entry.getValue().peek();
+                        break;
+                    }
+                    if(record == null) {
+                        wait(Math.max(1L, wait / 1000));
+                        continue;
+                    }
+                    // Serve the servers in turn
+                    queues.put(server, queues.remove(server));
+
+                    String id = server + " " + record.key;
+                    Long last = latest.get(id);
+                    if(last == null || last != record.seq) {
+                        // A later SET of the key was journaled or stored directly
+                        queues.get(server).poll();
+                        complete(record);
+                        superseded++;
+                        pending.set(backlog);
+                        continue;
+                    }
+                    int nameLength = record.segment.buffer.getShort(record.offset + 17);
+                    command = new byte[record.length - HEADER - nameLength];
+                    ByteBuffer stored = record.segment.buffer.duplicate();
+                    stored.position(record.offset + HEADER + nameLength);
+                    stored.get(command);
+                    applying = id;
+                }
+
+                String response = request(server, command);
+                synchronized(this) {
+                    String id = server + " " + record.key;
+                    applying = null;
+                    long now = System.nanoTime() >> 10;
+                    recent.remove(id);
+                    recent.put(id, now);
+                    lastApplied = now;
+                    if(response == null) {
+                        long delay = Math.min(2 * backoff.getOrDefault(server, MIN_BACKOFF / 2), MAX_BACKOFF);
+                        backoff.put(server, delay);
+                        backoffUntil.put(server, (System.nanoTime() >> 10) + delay);
+                        HOT_LOG.log(SYS_LOG, Level.INFO, "The journal could not be applied to " + server + ", retrying.");
+                        continue;
+                    }
+                    backoff.remove(server);
+                    backoffUntil.remove(server);
+                    ArrayDeque<Record> queue = queues.get(server);
+                    // The record might have been dropped if the server was removed meanwhile
+                    if(queue != null && queue.peek() == record) {
+                        queue.poll();
+                        // A direct SET of the key might have removed the entry or journaled a later SET meanwhile
+                        Long last = latest.get(id);
+                        if(last != null && last == record.seq) {
+                            latest.remove(id);
+                        }
+                        complete(record);
+                        applied++;
+                        if(!response.equals("STORED\r\n")) {
+                            rejected++;
+                        }
+                        pending.set(backlog);
+                    }
+                }
+            } catch(InterruptedException ex) {
+                break;
+            }
+        }
+        for(String server: new ArrayList<String>(sockets.keySet())) {
+            close(server);
+        }
+    }
+
+    /**
+        Logs the lag of the replicas and the throughput of the replicator every REPORT_INTERVAL while SETs are journaled. Must be called with the lock held.
+        @param now: Long of the current time in microseconds.
+    */
+    private void report(long now) {
+        if(now - lastReport < REPORT_INTERVAL) {
+            return;
+        }
+        double rate = (applied - appliedAtReport) * 1000000.0 / (now - lastReport);
+        peakRate = Math.max(peakRate, rate);
+        if(backlog > 0 || applied > appliedAtReport) {
+            long oldest = now;
+            for(ArrayDeque<Record> queue: queues.values()) {
+                if(!queue.isEmpty()) {
+                    oldest = Math.min(oldest, queue.peek().appended);
+                }
+            }
+            SYS_LOG.info(String.format("Journal lag: %d SETs (%d KiB), oldest %d ms behind. Applied %.0f SETs/s.", backlog, backlogBytes >> 10, (now - oldest) / 1000, rate));
+        }
+        lastReport = now;
+        appliedAtReport = applied;
+    }
+
+    /**
+        Sends a SET to a server and reads its response. The connection is closed and reopened by the next request if this fails.
+        @param server: String of the address and port of the server.
+        @param command: Byte array of the command.
+        @return String of the response, or null if the server did not answer.
+    */
+    private String request(String server, byte[] command) {
+        try {
+            Socket socket = sockets.get(server);
+            if(socket == null) {
+                socket = new Socket();
+                sockets.put(server, socket);
+                socket.connect(new InetSocketAddress(server.split(":")[0], Integer.parseInt(server.split(":")[1])), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+            }
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(command);
+            out.flush();
+
+            // The response to a SET is a single line
+            int length = 0;
+            while(length < 2 || input[length - 2] != '\r' || input[length - 1] != '\n') {
+                if(length == input.length) {
+                    throw new IOException("Response does not fit in the buffer.");
+                }
+                int read = in.read(input, length, input.length - length);
+                if(read < 0) {
+                    throw new IOException("Connection closed by the server.");
+                }
+                length += read;
+            }
+            return new String(input, 0, length);
+        } catch(IOException ex) {
+            close(server);
+            return null;
+        }
+    }
+
+    private void close(String server) {
+        Socket socket = sockets.remove(server);
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch(IOException ex) {
+                // The connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down, after stop().
+        @return String containing the counters of the journal.
+    */
+    public synchronized String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n JOURNAL (%s)\n", directory);
+        formatter.format("%-34s%10d\n", "SETs journaled", appended);
+        formatter.format("%-34s%10d\n", "KiB journaled", appendedBytes >> 10);
+        formatter.format("%-34s%10d\n", "Segments started", segments);
+        formatter.format("%-34s%10d\n", "SETs not journaled (I/O error)", failedAppends);
+        formatter.format("%-34s%10d\n", "Recovered from a previous run", recovered);
+        formatter.format("%-34s%10d\n", "Applied", applied);
+        formatter.format("%-34s%10d\n", "Applied but not stored", rejected);
+        formatter.format("%-34s%10d\n", "Superseded by later SETs", superseded);
+        formatter.format("%-34s%10d\n", "Direct SETs journaled again", overlapped);
+        formatter.format("%-34s%10d\n", "Dropped (server removed)", dropped);
+        formatter.format("%-34s%10d\n", "Still to apply", backlog);
+        formatter.format("%-34s%10d\n", "Maximum lag (SETs)", maxBacklog);
+        formatter.format("%-34s%10.0f\n", "Peak SETs applied per second", peakRate);
+        return result.toString();
+    }
+}
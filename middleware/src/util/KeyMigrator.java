@@ -0,0 +1,179 @@
+/**
+    KeyMigrator.java
+    11-12-2017
+
+    @Description: Copies the keys of a memcached server to a server that was added at runtime, such that the new server does not answer reads with misses once it becomes readable. The keys are listed with "lru_crawler metadump all" (memcached 1.4.31 and later), read from the source in batches and written to the target with "add", which does not overwrite values that were set on the target by the workers meanwhile. The copy runs in its own thread, and the target is made readable once it is done, or at once if the source cannot list its keys. Copied values are written without expiration time.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+    Class copying the keys of one server to another.
+*/
+public class KeyMigrator implements Runnable {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    // Number of keys read from the source with a single get
+    private static final int BATCH = 32;
+
+    private final String source;
+    private final String target;
+    private final Membership membership;
+    private final int timeout;
+
+
+    /**
+        Constructor.
+        @param source: String of the address and port of the server the keys are read from.
+        @param target: String of the address and port of the server the keys are written to.
+        @param membership: Membership the target is made readable in once the copy is done.
+        @param timeout: Long of the timeout of the connections in milliseconds.
+    */
+    public KeyMigrator(String source, String target, Membership membership, long timeout) {
+        this.source = source;
+        this.target = target;
+        this.membership = membership;
+        this.timeout = (int) timeout;
+    }
+
+    /**
+        Starts the copy in a new thread.
+        @param threads: ThreadFactory creating the thread.
+    */
+    public void start(ThreadFactory threads) {
+        Thread thread = threads.newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        Override of the run() function from Runnable. Copies the keys and makes the target readable.
+    */
+    @Override
+    public void run() {
+        long start = System.nanoTime() >> 10;
+        try(Socket from = connect(source); Socket to = connect(target)) {
+            DataInputStream fromIn = new DataInputStream(new BufferedInputStream(from.getInputStream()));
+            OutputStream fromOut = new BufferedOutputStream(from.getOutputStream());
+            DataInputStream toIn = new DataInputStream(new BufferedInputStream(to.getInputStream()));
+            OutputStream toOut = new BufferedOutputStream(to.getOutputStream());
+
+            List<String> keys = listKeys(fromIn, fromOut);
+            if(keys == null) {
+                SYS_LOG.warning(String.format("Memcached server %s cannot list its keys, %s is read from without them.", source, target));
+                return;
+            }
+
+            int copied = 0;
+            for(int first = 0; first < keys.size(); first += BATCH) {
+                List<String> batch = keys.subList(first, Math.min(first + BATCH, keys.size()));
+                copied += copy(batch, fromIn, fromOut, toIn, toOut);
+            }
+            SYS_LOG.info(String.format("Copied %d of %d keys from %s to %s in %d ms.", copied, keys.size(), source, target, ((System.nanoTime() >> 10) - start) / 1000));
+        } catch(IOException ex) {
+            SYS_LOG.warning(String.format("Copying the keys from %s to %s failed, it is read from without them: %s", source, target, ex));
+        } finally {
+            membership.ready(target);
+        }
+    }
+
+    private Socket connect(String address) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(address.split(":")[0], Integer.parseInt(address.split(":")[1])), timeout);
+        socket.setSoTimeout(timeout);
+        return socket;
+    }
+
+    /**
+        Lists the keys of the source.
+        @return List of the keys, or null if the server does not support listing its keys.
+    */
+    private List<String> listKeys(DataInputStream in, OutputStream out) throws IOException {
+        out.write("lru_crawler metadump all\r\n".getBytes());
+        out.flush();
+        List<String> keys = new ArrayList<String>();
+        String line;
+        while(!(line = readLine(in)).equals("END")) {
+            if(!line.startsWith("key=")) {
+                // E.g. ERROR or BUSY
+                return null;
+            }
+            int end = line.indexOf(' ');
+            keys.add(decode(line.substring(4, end < 0 ? line.length() : end)));
+        }
+        return keys;
+    }
+
+    /**
+        Reads a batch of keys from the source and adds them to the target.
+        @return Integer of the number of keys stored on the target.
+    */
+    private int copy(List<String> batch, DataInputStream fromIn, OutputStream fromOut, DataInputStream toIn, OutputStream toOut) throws IOException {
+        StringBuilder command = new StringBuilder("get");
+        for(String key: batch) {
+            command.append(' ').append(key);
+        }
+        fromOut.write(command.append("\r\n").toString().getBytes());
+        fromOut.flush();
+
+        // Every value is added as soon as it was read, the responses of the target are read at the end
+        int sent = 0;
+        String line;
+        while(!(line = readLine(fromIn)).equals("END")) {
+            String[] fields = line.split(" ");
+            if(!fields[0].equals("VALUE") || fields.length < 4) {
+                throw new IOException("Unexpected response from " + source + ": " + line);
+            }
+            byte[] data = new byte[Integer.parseInt(fields[3]) + 2];
+            fromIn.readFully(data);
+            toOut.write(String.format("add %s %s 0 %d\r\n", fields[1], fields[2], data.length - 2).getBytes());
+            toOut.write(data);
+            sent++;
+        }
+        toOut.flush();
+
+        int stored = 0;
+        for(int idx = 0; idx < sent; idx++) {
+            stored += readLine(toIn).equals("STORED") ? 1 : 0;
+        }
+        return stored;
+    }
+
+    /**
+        Reads a line terminated by "\r\n".
+        @return String of the line without the terminator.
+    */
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int current;
+        while((current = in.read()) != '\n') {
+            if(current < 0) {
+                throw new IOException("Connection closed by the server.");
+            }
+            if(current != '\r') {
+                line.append((char) current);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String decode(String key) throws UnsupportedEncodingException {
+        return URLDecoder.decode(key, "UTF-8");
+    }
+}
@@ -0,0 +1,300 @@
+/**
+    KeyRouter.java
+    19-12-2017
+
+    @Description: Routes the keys to pools of memcached servers by their prefix, such that e.g. session data is replicated while bulk data is sharded for capacity. The pools and routes are read from a rules file at startup, see the README for its syntax. The replicas of a key are the servers of its pool starting at the hash of the key, SETs are sent to all of them and GETs to one. By default, all servers of a pool are replicas. Sharded pools read every key of a multiget from its first replica, the others send all keys of the pool to the same replica. The number of requests of a pool handled by the workers at once can be limited, such that a slow pool cannot occupy all workers. Keys without a route go to the default pool of all servers, replicated and sharded like without rules. The prefixes are matched byte by byte in a trie, without copying the key.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+    Class holding the pools and the trie of the prefixes.
+*/
+public class KeyRouter {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    /**
+        Pool of servers with its own replication, sharding and limit of requests in flight.
+    */
+    public static class Pool {
+        public final int id;
+        public final String name;
+        private final String[] servers;         // null for the default pool of all servers
+        private final int replicas;             // 0 if all servers of the pool are replicas
+        public final boolean sharded;
+        private final int maxInflight;          // 0 if not limited
+        private final Semaphore inflight;
+        private final LongAdder rejected = new LongAdder();
+
+        private Pool(int id, String name, String[] servers, int replicas, boolean sharded, int maxInflight) {
+            this.id = id;
+            this.name = name;
+            this.servers = servers;
+            this.replicas = replicas;
+            this.sharded = sharded;
+            this.maxInflight = maxInflight;
+            this.inflight = maxInflight > 0 ? new Semaphore(maxInflight) : null;
+        }
+
+        /**
+            @param view: Array of the addresses of the servers the worker is connected to.
+            @return Integer array of the indices of the servers of the pool in the view, -1 for servers that are not part of it.
+        */
+        public int[] resolve(String[] view) {
+            if(servers == null) {
+                int[] indices = new int[view.length];
+                for(int server = 0; server < view.length; server++) {
+                    indices[server] = server;
+                }
+                return indices;
+            }
+            int[] indices = new int[servers.length];
+            for(int idx = 0; idx < servers.length; idx++) {
+                indices[idx] = Arrays.asList(view).indexOf(servers[idx]);
+            }
+            return indices;
+        }
+
+        /**
+            @param size: Integer of the number of servers of the pool.
+            @return Integer of the number of replicas of every key.
+        */
+        public int getReplicas(int size) {
+            return replicas > 0 ? Math.min(replicas, size) : size;
+        }
+
+        /**
+            Checks whether the request may be handled, if the number of requests in flight is limited. This does not wait for a slot, such that a slow pool cannot hold the workers.
+            @return true if the request may be handled, release() must then be called once it completed.
+        */
+        public boolean tryAcquire() {
+            if(inflight == null || inflight.tryAcquire()) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        public void release() {
+            if(inflight != null) {
+                inflight.release();
+            }
+        }
+
+        /**
+            @return String describing the servers and policies of the pool.
+        */
+        public String describe() {
+            return String.format("%s (servers %s, replicas %s, %s, inflight %s)", name, servers == null ? "all" : String.join(",", servers),
+                                 replicas > 0 ? Integer.toString(replicas) : "all", sharded ? "sharded" : "not sharded", maxInflight > 0 ? Integer.toString(maxInflight) : "unlimited");
+        }
+
+        /**
+            @return Long of the number of requests rejected as the limit of requests in flight was reached.
+        */
+        public long getRejected() {
+            return rejected.sum();
+        }
+    }
+
+    /**
+        Node of the trie, the children are looked up by their byte.
+    */
+    private static class Node {
+        byte[] labels = new byte[0];
+        Node[] children = new Node[0];
+        Pool pool = null;
+
+        Node child(byte label) {
+            for(int idx = 0; idx < labels.length; idx++) {
+                if(labels[idx] == label) {
+                    return children[idx];
+                }
+            }
+            return null;
+        }
+
+        Node add(byte label) {
+            Node child = child(label);
+            if(child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = label;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private final List<Pool> pools = new ArrayList<Pool>();
+    private final Node root = new Node();
+    private int routes = 0;
+
+
+    /**
+        Constructor. Reads the rules file.
+        @param file: String of the path of the rules file.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers of the middleware.
+        @param sharded: Boolean, true if the default pool shards multigets.
+    */
+    public KeyRouter(String file, List<String> mcAddresses, boolean sharded) throws IOException {
+        Pool fallback = new Pool(0, "default", null, 0, sharded, 0);
+        pools.add(fallback);
+        root.pool = fallback;
+        int number = 0;
+        for(String line: Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            number++;
+            String[] fields = line.trim().split("\\s+");
+            if(fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            try {
+                if(fields[0].equals("pool") && fields.length >= 3) {
+                    addPool(fields, mcAddresses);
+                } else if(fields[0].equals("route") && fields.length == 3) {
+                    addRoute(fields[1], fields[2]);
+                } else {
+                    throw new IllegalArgumentException("expected pool <name> <servers> [<key>=<value> ...] or route <prefix> <pool>");
+                }
+            } catch(IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("%s, line %d: %s", file, number, ex.getMessage()));
+            }
+        }
+        for(Pool pool: pools) {
+            SYS_LOG.info("Server pool " + pool.describe() + ".");
+        }
+    }
+
+    private void addPool(String[] fields, List<String> mcAddresses) {
+        String name = fields[1];
+        if(getPool(name) != null) {
+            throw new IllegalArgumentException("pool " + name + " is defined twice");
+        }
+        String[] servers = fields[2].split(",");
+        for(int idx = 0; idx < servers.length; idx++) {
+            if(servers[idx].matches("\\d+")) {
+                int index = Integer.parseInt(servers[idx]);
+                if(index >= mcAddresses.size()) {
+                    throw new IllegalArgumentException("there is no memcached server " + index);
+                }
+                servers[idx] = mcAddresses.get(index);
+            } else if(!mcAddresses.contains(servers[idx])) {
+                SYS_LOG.warning(String.format("Server %s of pool %s is not a memcached server of the middleware, it is used once it is added.", servers[idx], name));
+            }
+        }
+        int replicas = 0;
+        boolean sharded = false;
+        int inflight = 0;
+        for(int idx = 3; idx < fields.length; idx++) {
+            String[] option = fields[idx].split("=", 2);
+            if(option.length != 2) {
+                throw new IllegalArgumentException("expected <key>=<value> instead of " + fields[idx]);
+            }
+            try {
+                if(option[0].equals("replicas")) {
+                    replicas = Integer.parseInt(option[1]);
+                    if(replicas < 1 || replicas > servers.length) {
+                        throw new IllegalArgumentException("replicas must be between 1 and the number of servers of the pool");
+                    }
+                } else if(option[0].equals("sharded")) {
+                    sharded = Boolean.parseBoolean(option[1]);
+                } else if(option[0].equals("inflight")) {
+                    inflight = Integer.parseInt(option[1]);
+                } else {
+                    throw new IllegalArgumentException("unknown setting " + option[0]);
+                }
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException("expected a number instead of " + option[1]);
+            }
+        }
+        pools.add(new Pool(pools.size(), name, servers, replicas, sharded, inflight));
+    }
+
+    private void addRoute(String prefix, String name) {
+        Pool pool = getPool(name);
+        if(pool == null) {
+            throw new IllegalArgumentException("unknown pool " + name);
+        }
+        // A trailing * is allowed, as in "user:*"
+        if(prefix.endsWith("*")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        Node node = root;
+        for(byte label: prefix.getBytes(StandardCharsets.UTF_8)) {
+            node = node.add(label);
+        }
+        node.pool = pool;
+        routes++;
+    }
+
+    /**
+        @param name: String of the name of the pool.
+        @return Pool of that name, null if there is none.
+    */
+    public Pool getPool(String name) {
+        for(Pool pool: pools) {
+            if(pool.name.equals(name)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+        @return List of the pools, indexed by their id. The first one is the default pool.
+    */
+    public List<Pool> getPools() {
+        return pools;
+    }
+
+    /**
+        @return Integer of the number of routes.
+    */
+    public int getRouteCount() {
+        return routes;
+    }
+
+    /**
+        Finds the pool of a key. Called by the workers for every key.
+        @param array: Byte array containing the key.
+        @param from: Integer of the index of the first byte of the key.
+        @param to: Integer of the index after the last byte of the key.
+        @return Pool of the longest prefix of the key that has a route, the default pool if there is none.
+    */
+    public Pool route(byte[] array, int from, int to) {
+        Node node = root;
+        Pool pool = root.pool;
+        for(int idx = from; idx < to && node != null; idx++) {
+            node = node.child(array[idx]);
+            if(node != null && node.pool != null) {
+                pool = node.pool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+        @return Integer of the hash of a key, which decides its replicas. Equal to String.hashCode() for ASCII keys.
+    */
+    public static int hash(byte[] array, int from, int to) {
+        int hash = 0;
+        for(int idx = from; idx < to; idx++) {
+            hash = 31 * hash + array[idx];
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,338 @@
+/**
+    LaneScheduler.java
+    08-12-2017
+
+    @Description: Queue between the net thread and the workers with a separate lane per class of requests, such that cheap GETs do not wait behind bursts of expensive multigets or sets (head-of-line blocking). Requests are classified on enqueue by their command and number of keys, without parsing the whole request. Workers take requests from the lanes using deficit round robin: every round, a lane gets a quantum proportional to its weight, and requests are taken from it while their cost fits into its deficit. The cost of a request is its number of keys. Some workers can be reserved for a lane, these only take requests from their lane. The time every request waited is recorded per lane.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Formatter;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+    Class implementing the scheduler. It can be used wherever a BlockingQueue is expected, take() then does not use reservations.
+*/
+public class LaneScheduler extends AbstractQueue<Request> implements BlockingQueue<Request> {
+    // Lanes
+    public static final int GET = 0;
+    public static final int SET = 1;
+    public static final int MULTIGET = 2;
+    private static final String[] NAMES = {"GET", "SET", "MULTIGET"};
+
+    // Quantum of a lane of weight 1, such that a multiget of 10 keys is taken in one round
+    private static final int QUANTUM = 10;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition shared = lock.newCondition();
+    private final Condition[] reservedReady = new Condition[NAMES.length];
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Request>[] lanes = (ArrayDeque<Request>[]) new ArrayDeque<?>[NAMES.length];
+    private final int[] weights;
+    private final int[] reserved;
+    private final int[] deficits = new int[NAMES.length];
+    private int current = 0;
+    private boolean granted = false;        // Whether the current lane got its quantum in this round
+    private volatile int count = 0;
+
+    // Statistics, guarded by the lock
+    private final long[] dequeued = new long[NAMES.length];
+    private final long[] queueTimes = new long[NAMES.length];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NAMES.length];
+
+
+    /**
+        Constructor.
+        @param weights: Integer array of the weights of the GET, SET and MULTIGET lanes.
+        @param reserved: Integer array of the number of workers reserved for the GET, SET and MULTIGET lanes, may be null. Workers are reserved in the order of their IDs, starting with the GET lane.
+    */
+    public LaneScheduler(int[] weights, int[] reserved) {
+        if(weights.length != NAMES.length || (reserved != null && reserved.length != NAMES.length)) {
+            throw new IllegalArgumentException("A weight and reservation is required for each of the " + NAMES.length + " lanes");
+        }
+        this.weights = weights.clone();
+        this.reserved = reserved != null ? reserved.clone() : new int[NAMES.length];
+        for(int lane = 0; lane < NAMES.length; lane++) {
+            this.lanes[lane] = new ArrayDeque<Request>();
+            this.reservedReady[lane] = lock.newCondition();
+            this.histograms[lane] = new LatencyHistogram();
+            this.weights[lane] = Math.max(this.weights[lane], 1);
+        }
+    }
+
+    /**
+        Classifies a request by the first line of its message. Invalid requests are put in the GET lane, as they are cheap.
+        @param buffer: ByteBuffer containing the message with position at its end, as filled by the net thread.
+        @param request: Request whose lane and cost are set.
+    */
+    static void classify(ByteBuffer buffer, Request request) {
+        int end = buffer.position();
+        request.lane = GET;
+        request.cost = 1;
+        if(end < 4) {
+            return;
+        }
+        byte first = buffer.get(0);
+        if(first == 's' && buffer.get(1) == 'e' && buffer.get(2) == 't') {
+            request.lane = SET;
+        } else if(first == 'g' && buffer.get(1) == 'e' && buffer.get(2) == 't') {
+            int keys = 0;
+            for(int idx = 3; idx < end && buffer.get(idx) != '\r'; idx++) {
+                if(buffer.get(idx) == ' ' && idx + 1 < end && buffer.get(idx + 1) != ' ' && buffer.get(idx + 1) != '\r') {
+                    keys++;
+                }
+            }
+            if(keys > 1) {
+                request.lane = MULTIGET;
+                request.cost = keys;
+            }
+        }
+    }
+
+    /**
+        @param workerID: Integer of the ID of a worker.
+        @return Integer of the lane the worker is reserved for, or -1 if it takes requests from all lanes.
+    */
+    public int reservation(int workerID) {
+        int first = 0;
+        for(int lane = 0; lane < NAMES.length; lane++) {
+            if(workerID < first + reserved[lane]) {
+                return lane;
+            }
+            first += reserved[lane];
+        }
+        return -1;
+    }
+
+    /**
+        @return Integer of the number of workers reserved for a lane.
+    */
+    public int getReservedWorkers() {
+        int total = 0;
+        for(int lane = 0; lane < NAMES.length; lane++) {
+            total += reserved[lane];
+        }
+        return total;
+    }
+
+    /**
+        Classifies the request and appends it to its lane. This never blocks.
+        @param request: Request to be queued.
+        @return true.
+    */
+    @Override
+    public boolean offer(Request request) {
+        classify(request.buffer, request);
+        lock.lock();
+        try {
+            lanes[request.lane].addLast(request);
+            count++;
+            reservedReady[request.lane].signal();
+            shared.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Request request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    /**
+        Takes the next request for a worker, blocking until one is available.
+        @param workerID: Integer of the ID of the worker, used for reservations.
+        @return Request to be processed.
+    */
+    public Request take(int workerID) throws InterruptedException {
+        int lane = reservation(workerID);
+        lock.lockInterruptibly();
+        try {
+            Request request = next(lane);
+            while(request == null) {
+                if(lane >= 0) {
+                    reservedReady[lane].await();
+                } else {
+                    shared.await();
+                }
+                request = next(lane);
+            }
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        return take(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Request request = next(-1);
+            while(request == null && nanos > 0) {
+                nanos = shared.awaitNanos(nanos);
+                request = next(-1);
+            }
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll() {
+        lock.lock();
+        try {
+            return next(-1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+        Takes the next request, must be called with the lock held.
+        @param reservedLane: Integer of the lane the worker is reserved for, or -1 to use deficit round robin.
+        @return Request or null if no request is available for the worker.
+    */
+    private Request next(int reservedLane) {
+        if(reservedLane >= 0) {
+            return lanes[reservedLane].isEmpty() ? null : dequeue(reservedLane);
+        }
+        if(count == 0) {
+            return null;
+        }
+        // Deficit round robin. A non-empty lane gains a quantum once per round and keeps the deficit it did
+        // not use, hence this terminates.
+        while(true) {
+            ArrayDeque<Request> lane = lanes[current];
+            if(lane.isEmpty()) {
+                deficits[current] = 0;
+            } else if(deficits[current] >= lane.peekFirst().cost) {
+                deficits[current] -= lane.peekFirst().cost;
+                return dequeue(current);
+            } else if(!granted) {
+                deficits[current] += weights[current] * QUANTUM;
+                granted = true;
+                continue;
+            }
+            current = (current + 1) % NAMES.length;
+            granted = false;
+        }
+    }
+
+    private Request dequeue(int lane) {
+        Request request = lanes[lane].pollFirst();
+        count--;
+        long queueTime = (System.nanoTime() >> 10) - request.time_created;       // In microseconds
+        dequeued[lane]++;
+        queueTimes[lane] += queueTime;
+        histograms[lane].record(queueTime);
+        return request;
+    }
+
+    @Override
+    public Request peek() {
+        lock.lock();
+        try {
+            for(int lane = 0; lane < NAMES.length; lane++) {
+                if(!lanes[lane].isEmpty()) {
+                    return lanes[lane].peekFirst();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> collection, int maxElements) {
+        int drained = 0;
+        Request request;
+        while(drained < maxElements && (request = poll()) != null) {
+            collection.add(request);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+        @return Iterator over a snapshot of the queued requests.
+    */
+    @Override
+    public Iterator<Request> iterator() {
+        lock.lock();
+        try {
+            ArrayList<Request> snapshot = new ArrayList<Request>(count);
+            for(int lane = 0; lane < NAMES.length; lane++) {
+                snapshot.addAll(lanes[lane]);
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the number of requests and queue times per lane.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        result.append("\n\n LANES (queue times in microseconds)\n");
+        formatter.format("%-10s|%10s|%10s|%10s|%10s|%10s|%10s\n", "Lane", "Weight", "Reserved", "Requests", "Mean Q T", "99% Q T", "Max Q T");
+        lock.lock();
+        try {
+            for(int lane = 0; lane < NAMES.length; lane++) {
+                formatter.format("%-10s|%10d|%10d|%10d|%10.2f|%10d|%10d\n",
+                                 NAMES[lane],
+                                 weights[lane],
+                                 reserved[lane],
+                                 dequeued[lane],
+                                 queueTimes[lane] / (double) dequeued[lane],
+                                 histograms[lane].getValueAtPercentile(99.0),
+                                 histograms[lane].getMax());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result.toString();
+    }
+}
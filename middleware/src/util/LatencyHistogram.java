@@ -0,0 +1,139 @@
+/**
+    LatencyHistogram.java
+    05-12-2017
+
+    @Description: Histogram of latencies with log-linear buckets, giving percentiles with a relative error below 3% over the whole range of values, with constant memory. Values of up to 63 are counted exactly, larger values are grouped in 32 buckets per power of two. The histogram can correct for coordinated omission: if a latency is larger than the interval at which requests are expected, the requests that a closed loop client did not send while waiting are added as synthetic samples, as done by HdrHistogram.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+/**
+    Class implementing the histogram. Note that this class is not thread safe.
+*/
+public class LatencyHistogram {
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = 5;
+    // Largest value that can be recorded, larger values are counted in the last bucket
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] counts = new long[index(MAX_VALUE) + 1];
+    private long count = 0L;
+    private long sum = 0L;
+    private long max = 0L;
+
+
+    /**
+        Records a value.
+        @param value: Long of the value, negative values are recorded as 0.
+    */
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0L), MAX_VALUE);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if(value > max) {
+            max = value;
+        }
+    }
+
+    /**
+        Records a value and corrects for coordinated omission. If the value is larger than the expected interval between two requests, values decreasing by the interval are added down to the interval, representing the requests that would have been sent in the meantime.
+        @param value: Long of the value.
+        @param expectedInterval: Long of the expected interval between requests in the same unit as the value. If this is not positive, no correction is done.
+    */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if(expectedInterval <= 0) {
+            return;
+        }
+        for(long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    /**
+        Adds all values of another histogram to this one.
+        @param other: LatencyHistogram to add.
+    */
+    public void add(LatencyHistogram other) {
+        for(int idx = 0; idx < counts.length; idx++) {
+            counts[idx] += other.counts[idx];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+        Removes all values.
+    */
+    public void clear() {
+        for(int idx = 0; idx < counts.length; idx++) {
+            counts[idx] = 0L;
+        }
+        count = 0L;
+        sum = 0L;
+        max = 0L;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return sum / (double) count;
+    }
+
+    /**
+        Returns the value at a percentile. The value returned is the largest value of the bucket containing the percentile, capped by the maximum recorded value.
+        @param percentile: Double between 0 and 100.
+        @return Long of the value at the percentile, 0 if the histogram is empty.
+    */
+    public long getValueAtPercentile(double percentile) {
+        if(count == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+        rank = Math.max(rank, 1L);
+        long running = 0L;
+        for(int idx = 0; idx < counts.length; idx++) {
+            running += counts[idx];
+            if(running >= rank) {
+                return Math.min(highestValue(idx), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+        @param value: Long between 0 and MAX_VALUE.
+        @return Integer of the index of the bucket the value is counted in.
+    */
+    static int index(long value) {
+        if(value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int top = (int) (value >> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /**
+        @param index: Integer of a bucket index.
+        @return Long of the largest value counted in the bucket.
+    */
+    static long highestValue(int index) {
+        if(index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+    Lz4.java
+    14-12-2017
+
+    @Description: Compressor and decompressor for the LZ4 block format, used to compress values between the middleware and memcached, see Compression. The compressor is the greedy single probe variant of the reference implementation: a hash table of 4 byte sequences finds earlier occurrences within 64 KiB, which are encoded as sequences of literals followed by a match. The hash table is passed by the caller such that it can be reused.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+    Class implementing the LZ4 block format.
+*/
+final class Lz4 {
+    // Size of the hash table of the compressor
+    static final int HASH_LOG = 12;
+    static final int TABLE_SIZE = 1 << HASH_LOG;
+
+    // Constraints of the format: a match is at least 4 bytes long, the last match starts at least 12
+    // bytes before the end, and the last 5 bytes are literals.
+    private static final int MIN_MATCH = 4;
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_DISTANCE = 65535;
+
+    private Lz4() {
+    }
+
+    /**
+        @param length: Integer of the length of the input.
+        @return Integer of the maximum length of the compressed input.
+    */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+        Compresses a block.
+        @param src: Byte array of the input.
+        @param srcOff: Integer of the offset of the input.
+        @param srcLen: Integer of the length of the input.
+        @param dst: Byte array the compressed block is written to.
+        @param dstOff: Integer of the offset of the output.
+        @param dstLen: Integer of the space available for the output.
+        @param table: Integer array of TABLE_SIZE entries, overwritten.
+        @return Integer of the length of the compressed block, or -1 if it does not fit in the output.
+    */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen, int[] table) {
+        Arrays.fill(table, -1);
+        int end = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        if(srcLen > MF_LIMIT) {
+            int matchLimit = end - MF_LIMIT;
+            int lastLiterals = end - LAST_LITERALS;
+            while(ip < matchLimit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = ip;
+                if(ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                // Extend the match backwards into the literals, then forwards
+                while(ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while(ip + matchLength < lastLiterals && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstEnd);
+                if(op < 0) {
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op, dstEnd);
+        return op < 0 ? -1 : op - dstOff;
+    }
+
+    /**
+        Writes a sequence of literals followed by a match, or only literals if the match length is 0.
+        @return Integer of the position after the sequence, or -1 if it does not fit.
+    */
+    private static int writeSequence(byte[] src, int literalOff, int literals, int offset, int matchLength, byte[] dst, int op, int dstEnd) {
+        int matchCode = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+        if(op + 1 + literals / 255 + 1 + literals + 2 + matchCode / 255 + 1 > dstEnd) {
+            return -1;
+        }
+        int token = op++;
+        if(literals >= 15) {
+            dst[token] = (byte) (15 << 4);
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            dst[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, literalOff, dst, op, literals);
+        op += literals;
+        if(matchLength == 0) {
+            return op;
+        }
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if(matchCode >= 15) {
+            dst[token] |= 15;
+            op = writeLength(matchCode - 15, dst, op);
+        } else {
+            dst[token] |= (byte) matchCode;
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while(length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+        Decompresses a block.
+        @param src: Byte array of the compressed block.
+        @param srcOff: Integer of the offset of the block.
+        @param srcLen: Integer of the length of the block.
+        @param dst: Byte array the output is written to.
+        @param dstOff: Integer of the offset of the output.
+        @param dstLen: Integer of the space available for the output.
+        @return Integer of the length of the output.
+        @throws IOException if the block is malformed or does not fit in the output.
+    */
+    static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int end = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        while(ip < end) {
+            int token = src[ip++] & 0xFF;
+
+            int literals = token >>> 4;
+            if(literals == 15) {
+                int value;
+                do {
+                    if(ip >= end) {
+                        throw new IOException("Truncated LZ4 block.");
+                    }
+                    value = src[ip++] & 0xFF;
+                    literals += value;
+                } while(value == 255);
+            }
+            if(literals > end - ip || literals > dstEnd - op) {
+                throw new IOException("Malformed LZ4 block.");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if(ip == end) {
+                break;
+            }
+
+            if(end - ip < 2) {
+                throw new IOException("Truncated LZ4 block.");
+            }
+            int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int matchLength = token & 15;
+            if(matchLength == 15) {
+                int value;
+                do {
+                    if(ip >= end) {
+                        throw new IOException("Truncated LZ4 block.");
+                    }
+                    value = src[ip++] & 0xFF;
+                    matchLength += value;
+                } while(value == 255);
+            }
+            matchLength += MIN_MATCH;
+            if(offset == 0 || offset > op - dstOff || matchLength > dstEnd - op) {
+                throw new IOException("Malformed LZ4 block.");
+            }
+            // The match may overlap the output, hence it is copied byte by byte
+            int ref = op - offset;
+            for(int idx = 0; idx < matchLength; idx++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+        return op - dstOff;
+    }
+
+    private static int readInt(byte[] src, int off) {
+        return (src[off] & 0xFF) | ((src[off + 1] & 0xFF) << 8) | ((src[off + 2] & 0xFF) << 16) | ((src[off + 3] & 0xFF) << 24);
+    }
+}
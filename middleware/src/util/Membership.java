@@ -0,0 +1,156 @@
+/**
+    Membership.java
+    11-12-2017
+
+    @Description: Holds the list of memcached servers, which can be changed while the middleware runs. Every change creates a new immutable view of the servers, with its own replica selector and circuit breaker, that replaces the previous one atomically (copy on write). Workers read the current view without locking and only switch to a new view between two requests, such that no request in flight is affected by a change. Servers that were added are written to at once, but only read from once they are ready, i.e. once their keys were copied from another server, see KeyMigrator.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+    Class holding the current view of the memcached servers.
+*/
+public class Membership {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    /**
+        Immutable list of the servers, in the order of the connections of the workers.
+    */
+    public static class View {
+        public final int version;
+        public final String[] addresses;
+        private final boolean[] readable;
+        public final ReplicaSelector selector;
+        public final CircuitBreaker breaker;        // null if no server timeout is set
+
+        private View(int version, String[] addresses, boolean[] readable, ReplicaSelector selector, CircuitBreaker breaker) {
+            this.version = version;
+            this.addresses = addresses;
+            this.readable = readable;
+            this.selector = selector;
+            this.breaker = breaker;
+        }
+
+        /**
+            @param server: Integer of the index of the server.
+            @return true if reads may be sent to the server.
+        */
+        public boolean isReadable(int server) {
+            return readable[server];
+        }
+
+        /**
+            @param address: String of the address and port of a server.
+            @return Integer of the index of the server, or -1 if it is not part of the view.
+        */
+        public int indexOf(String address) {
+            for(int server = 0; server < addresses.length; server++) {
+                if(addresses[server].equals(address)) {
+                    return server;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final Options options;
+    private volatile View view;
+
+
+    /**
+        Constructor.
+        @param mcAddresses: List of strings containing the addresses and ports of the initial memcached servers, which are all readable.
+        @param options: Options of the middleware, used for the replica selector and circuit breaker of every view.
+    */
+    public Membership(List<String> mcAddresses, Options options) {
+        this.options = options;
+        boolean[] readable = new boolean[mcAddresses.size()];
+        Arrays.fill(readable, true);
+        this.view = create(0, mcAddresses.toArray(new String[0]), readable);
+    }
+
+    /**
+        Creates a view with a new replica selector and circuit breaker, as their counters are indexed by server.
+    */
+    private View create(int version, String[] addresses, boolean[] readable) {
+        ReplicaSelector selector = new ReplicaSelector(Arrays.asList(addresses), options.replicaSelection);
+        CircuitBreaker breaker = null;
+        if(options.serverTimeout > 0) {
+            breaker = new CircuitBreaker(Arrays.asList(addresses), options.failureThreshold, options.probeInterval * 1000);
+        }
+        return new View(version, addresses, readable, selector, breaker);
+    }
+
+    /**
+        @return View of the current servers.
+    */
+    public View getView() {
+        return view;
+    }
+
+    /**
+        Replaces the servers. Servers that were already part of the view keep their state.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers.
+        @param warm: Boolean, if true the added servers are not read from until ready() is called for them.
+        @return List of the addresses that were added, empty if the servers did not change.
+    */
+    public synchronized List<String> setServers(List<String> mcAddresses, boolean warm) {
+        View current = view;
+        List<String> added = new ArrayList<String>();
+        List<String> removed = new ArrayList<String>(Arrays.asList(current.addresses));
+        String[] addresses = mcAddresses.toArray(new String[0]);
+        boolean[] readable = new boolean[addresses.length];
+        for(int server = 0; server < addresses.length; server++) {
+            int previous = current.indexOf(addresses[server]);
+            if(previous >= 0) {
+                readable[server] = current.readable[previous];
+                removed.remove(addresses[server]);
+            } else {
+                readable[server] = !warm;
+                added.add(addresses[server]);
+            }
+        }
+        if(added.isEmpty() && removed.isEmpty()) {
+            return added;
+        }
+        if(addresses.length == 0) {
+            SYS_LOG.warning("Ignoring a change of the memcached servers that would remove all of them.");
+            return new ArrayList<String>();
+        }
+        // Without a readable server, the added servers are read from at once
+        boolean anyReadable = false;
+        for(boolean value: readable) {
+            anyReadable |= value;
+        }
+        if(!anyReadable) {
+            Arrays.fill(readable, true);
+        }
+
+        view = create(current.version + 1, addresses, readable);
+        SYS_LOG.info(String.format("Memcached servers changed (version %d): added %s, removed %s.", current.version + 1, added, removed));
+        return added;
+    }
+
+    /**
+        Makes an added server readable.
+        @param address: String of the address and port of the server.
+    */
+    public synchronized void ready(String address) {
+        View current = view;
+        int server = current.indexOf(address);
+        if(server < 0 || current.readable[server]) {
+            return;
+        }
+        boolean[] readable = Arrays.copyOf(current.readable, current.readable.length);
+        readable[server] = true;
+        view = new View(current.version + 1, current.addresses, readable, current.selector, current.breaker);
+        SYS_LOG.info(String.format("Memcached server %s is ready for reads (version %d).", address, current.version + 1));
+    }
+}
@@ -0,0 +1,120 @@
+/**
+    Options.java
+    05-12-2017
+
+    @Description: Optional settings of the middleware. The defaults reproduce the behaviour of the middleware used for the experiments of the report, hence only the mandatory arguments of RunMW need to be given to run it as before. The same instance is shared by the middleware and all workers and must not be modified once the middleware was created.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+/**
+    Class holding the optional settings of the middleware.
+*/
+public class Options {
+    // Expected interval between two requests of a client in microseconds, used to correct percentiles for
+    // coordinated omission. 0 disables the correction.
+    public long expectedInterval = 0L;
+
+    // Bounds of the number of active workers. If maxWorkers is larger than 0, that many workers are
+    // created and the number of active ones is adapted at runtime, see PoolController.
+    public int minWorkers = 1;
+    public int maxWorkers = 0;
+
+    // Policy choosing the server for GETs and non-sharded MULTIGETs, see ReplicaSelector.
+    public ReplicaSelector.Policy replicaSelection = ReplicaSelector.Policy.ROUND_ROBIN;
+
+    // Percentile of the server times after which a read is sent to a second server, 0 disables hedging.
+    // The budget limits the hedged reads in percent of all reads, see HedgePolicy.
+    public double hedgePercentile = 0.0;
+    public double hedgeBudget = 5.0;
+
+    // Admission control, see AdmissionController. Times are in microseconds, 0 disables the respective check.
+    public long admissionDeadline = 0L;
+    public long codelTarget = 0L;
+    public long codelInterval = 100000L;
+    public int clientLimit = 0;
+
+    // Weights and reserved workers of the GET, SET and MULTIGET lanes, see LaneScheduler. If the weights are
+    // null, all requests share a single FIFO queue.
+    public int[] laneWeights = null;
+    public int[] laneReserved = null;
+
+    // Timeout of the requests to and connections with the memcached servers in milliseconds, 0 waits
+    // indefinitely and disables the circuit breaker. After failureThreshold consecutive failures a server is
+    // marked down and probed again every probeInterval milliseconds, see CircuitBreaker.
+    public long serverTimeout = 0L;
+    public int failureThreshold = 3;
+    public long probeInterval = 1000L;
+
+    // Capacity of the retry log of SETs missed by a server and percentage of the GETs compared on all
+    // servers, see ReplicaRepair. A capacity of 0 disables the repair.
+    public int repairLog = 0;
+    public double readRepairPercent = 1.0;
+
+    // Number of most requested keys written to hotkeys.log every second and to the final statistics, 0
+    // disables the tracking. Only every hotKeySampling-th request is counted, see HotKeys.
+    public int hotKeys = 0;
+    public int hotKeySampling = 1;
+
+    // File containing the memcached servers, reloaded whenever it is modified, see Membership. If
+    // migrateKeys is set, keys are copied to added servers before they are read from, see KeyMigrator.
+    public String membershipFile = null;
+    public boolean migrateKeys = true;
+
+    // Timeout of the connections to the memcached servers in milliseconds. The workers connect to all servers
+    // in parallel once they start, and the middleware is ready once every server has minConnections
+    // connections, see StartupMonitor. Failed connections are retried on demand at most every
+    // reconnectInterval milliseconds.
+    public long connectTimeout = 1000L;
+    public int minConnections = 1;
+    public long reconnectInterval = 1000L;
+
+    // CPU lists of the net thread, the workers and optionally the background threads, or "auto" to place
+    // them by NUMA node, see ThreadPlacement. By default, threads are placed by the OS.
+    public String[] cpuSets = null;
+
+    // Minimum size in bytes of the values compressed before they are sent to the memcached servers, 0
+    // disables the compression, see Compression.
+    public int compressThreshold = 0;
+
+    // Number of memcached servers that store a SET before it is acknowledged, 0 waits for all servers. The
+    // other servers receive the SET asynchronously from a journal in journalDir (<home>/journal if null) made
+    // of segments of journalSegmentMB MiB, see Journal.
+    public int writeQuorum = 0;
+    public String journalDir = null;
+    public int journalSegmentMB = 16;
+
+    // UDP port accepting GETs with the framing of memcached, 0 picks any free port and a negative port
+    // disables UDP. Responses of more than udpMaxDatagrams datagrams are replaced by an error, see UdpFrontEnd.
+    public int udpPort = -1;
+    public int udpMaxDatagrams = 64;
+
+    // Trace file the requests of the clients are captured to, null disables the capture. In HASHED mode,
+    // keys are hashed and values are not captured, see TrafficCapture.
+    public String captureFile = null;
+    public TrafficCapture.Mode captureMode = TrafficCapture.Mode.HASHED;
+
+    // File of a flight recording started with the middleware, null to not start one. Requests slower than
+    // jfrThreshold microseconds are recorded, see FlightEvents.
+    public String jfrFile = null;
+    public long jfrThreshold = 1000L;
+
+    // Computes the queueing models of the middleware every second, written to model.log, and logs the
+    // bottleneck whenever it changes, see QueueingModel.
+    public boolean queueingModel = false;
+
+    // Rules file routing the keys to pools of servers by their prefix, see KeyRouter. All keys go to all
+    // servers if null.
+    public String poolsFile = null;
+
+    // Seconds of records kept in memory, queried over a local control socket on controlPort (-1 for
+    // none, 0 for any free port), see TimeSeries and ControlSocket. No records are kept if 0.
+    public int seriesSeconds = 0;
+    public int controlPort = -1;
+
+    // Seconds after the start that are not logged to the analysis log, or -1 to detect the end of the
+    // warm-up from the records, within at most warmupMaxSeconds.
+    public int warmupSeconds = 10;
+    public int warmupMaxSeconds = 60;
+}
@@ -0,0 +1,105 @@
+/**
+    PoolController.java
+    06-12-2017
+
+    @Description: Controls the number of active workers at runtime. All workers up to the maximum are created on boot and keep their connections open, but only the first ones are allowed to take requests from the queue; the others wait until the pool grows again. The target size is derived from the statistics of the last interval using Little's law: the average number of busy workers is the throughput times the processing time of a request. The pool is sized such that the busy workers make up the target utilisation. If all workers are busy, this grows the pool by the inverse of the target utilisation per interval until the queue drains. Shrinking is limited per interval to avoid oscillations.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.logging.Logger;
+
+/**
+    Class implementing the controller. update() should be called once per logging interval with the record of that interval.
+*/
+public class PoolController {
+    // Fraction of the active workers that should be busy on average
+    private static final double TARGET_UTILISATION = 0.8;
+    // Maximum fraction of the active workers that is deactivated in one interval
+    private static final double MAX_SHRINK = 0.25;
+
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    private final int min;
+    private final int max;
+    private volatile int active;
+    // The first record covers the warm up, whose duration is not known to the controller
+    private boolean skip = true;
+
+
+    /**
+        Constructor.
+        @param min: Integer of the minimum number of active workers.
+        @param max: Integer of the maximum number of active workers, this is the number of workers created.
+        @param initial: Integer of the number of workers active on boot.
+    */
+    public PoolController(int min, int max, int initial) {
+        this.min = Math.max(min, 1);
+        this.max = Math.max(max, this.min);
+        this.active = Math.min(Math.max(initial, this.min), this.max);
+    }
+
+    /**
+        @return Integer of the number of active workers.
+    */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+        Blocks the calling worker as long as it is not part of the active workers. Workers are activated in order of their IDs.
+        @param workerID: Integer of the ID of the worker.
+    */
+    public void awaitActive(int workerID) throws InterruptedException {
+        if(workerID < active) {
+            return;
+        }
+        synchronized(this) {
+            while(workerID >= active) {
+                wait();
+            }
+        }
+    }
+
+    /**
+        Computes the target size of the pool from the statistics of the last interval and resizes it. Every resize decision is logged.
+        @param record: StatsRecord of the last interval.
+        @param intervalSeconds: Double of the duration of an interval in seconds.
+    */
+    public void update(StatsRecord record, double intervalSeconds) {
+        if(skip) {
+            skip = false;
+            return;
+        }
+        int current = active;
+        long count = record.count();
+        double throughput = count / (intervalSeconds * Math.max(record.intervals, 1));
+        double processingTime = count > 0 ? (record.total_time - record.total_q_time) / (double) count : 0.0;
+
+        // Little's law, processing time is in microseconds
+        double busy = throughput * processingTime / 1000000.0;
+        int target = (int) Math.ceil(busy / TARGET_UTILISATION);
+
+        if(target < current) {
+            target = Math.max(target, current - Math.max(1, (int) (current * MAX_SHRINK)));
+        }
+        target = Math.min(Math.max(target, min), max);
+
+        if(target != current) {
+            synchronized(this) {
+                active = target;
+                notifyAll();
+            }
+            SYS_LOG.info(String.format("Resized worker pool from %d to %d workers (throughput %.0f ops/sec, processing time %.2f us, queue time %.2f us, busy workers %.2f, queue length %d).",
+                                       current,
+                                       target,
+                                       throughput,
+                                       processingTime,
+                                       record.queueTime(),
+                                       busy,
+                                       record.queue_length));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+    ProtocolScanner.java
+    19-12-2017
+
+    @Description: Locates the delimiters of the memcached text protocol in the bytes of requests and responses: the "\r\n" ending a line, the spaces between tokens and the values of a get response, without copying them to strings. The byte at a time implementation in this class is used unless the JVM runs with the incubator module of the vector API (--add-modules jdk.incubator.vector), in which case VectorScanner compares 16 to 64 bytes at a time, depending on the CPU. Both work on heap and direct buffers, positions are absolute and the position and limit of the buffers are not modified.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+
+/**
+    Class scanning the protocol one byte at a time, extended by VectorScanner.
+*/
+public class ProtocolScanner {
+    private static final ProtocolScanner SCALAR = new ProtocolScanner();
+    private static final ProtocolScanner VECTOR = loadVector();
+    private static final ProtocolScanner INSTANCE = VECTOR != null ? VECTOR : SCALAR;
+
+    private static final byte[] VALUE = "VALUE ".getBytes();
+
+
+    ProtocolScanner() {
+    }
+
+    /**
+        Loads the vector implementation. The class cannot be linked if the JVM was not started with the incubator module.
+    */
+    private static ProtocolScanner loadVector() {
+        try {
+            return (ProtocolScanner) Class.forName("asl_project.util.VectorScanner").getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+        @return ProtocolScanner used by the middleware, the vector implementation if it is available.
+    */
+    public static ProtocolScanner get() {
+        return INSTANCE;
+    }
+
+    /**
+        @return ProtocolScanner comparing one byte at a time.
+    */
+    public static ProtocolScanner scalar() {
+        return SCALAR;
+    }
+
+    /**
+        @return ProtocolScanner comparing several bytes at a time, null if the vector API is not available.
+    */
+    public static ProtocolScanner vector() {
+        return VECTOR;
+    }
+
+    /**
+        @return String describing the implementation, e.g. for the log.
+    */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+        Finds the first occurrence of a byte.
+        @param buffer: ByteBuffer to search.
+        @param from: Integer of the first index searched.
+        @param to: Integer of the index after the last one searched.
+        @param b: Byte searched.
+        @return Integer of the index of the byte, -1 if it does not occur.
+    */
+    public int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        if(buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for(int idx = from; idx < to; idx++) {
+                if(array[offset + idx] == b) {
+                    return idx;
+                }
+            }
+            return -1;
+        }
+        for(int idx = from; idx < to; idx++) {
+            if(buffer.get(idx) == b) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        Finds the end of a line.
+        @param buffer: ByteBuffer to search.
+        @param from: Integer of the first index searched.
+        @param to: Integer of the index after the last one searched.
+        @return Integer of the index of the '\r' of the first "\r\n", -1 if there is none.
+    */
+    public int indexOfCrlf(ByteBuffer buffer, int from, int to) {
+        for(int idx = indexOf(buffer, from, to, (byte) '\n'); idx >= 0; idx = indexOf(buffer, idx + 1, to, (byte) '\n')) {
+            if(idx > from && buffer.get(idx - 1) == '\r') {
+                return idx - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        Counts the tokens of a line, separated by any number of spaces.
+        @param buffer: ByteBuffer of the line.
+        @param from: Integer of the index of the start of the line.
+        @param to: Integer of the index of the end of the line, without "\r\n".
+        @return Integer of the number of tokens, e.g. the command and the keys of a get.
+    */
+    public int countTokens(ByteBuffer buffer, int from, int to) {
+        return countTokens(buffer, from, to, true);
+    }
+
+    /**
+        @param afterSpace: true if the byte before from is a space or from is the start of the line.
+    */
+    int countTokens(ByteBuffer buffer, int from, int to, boolean afterSpace) {
+        int tokens = 0;
+        for(int idx = from; idx < to; idx++) {
+            boolean space = buffer.get(idx) == ' ';
+            if(!space && afterSpace) {
+                tokens++;
+            }
+            afterSpace = space;
+        }
+        return tokens;
+    }
+
+    /**
+        Finds a token of a line, the tokens being separated by any number of spaces like in countTokens().
+        @param buffer: ByteBuffer of the line.
+        @param from: Integer of the index of the start of the line.
+        @param to: Integer of the index of the end of the line, without "\r\n".
+        @param index: Integer of the token, 0 for the command.
+        @return Integer of the index of the first byte of the token, -1 if the line has fewer tokens. The token ends at the next space or at the end of the line.
+    */
+    public int tokenStart(ByteBuffer buffer, int from, int to, int index) {
+        int idx = from;
+        for(int token = 0; ; token++) {
+            while(idx < to && buffer.get(idx) == ' ') {
+                idx++;
+            }
+            if(idx >= to) {
+                return -1;
+            }
+            if(token == index) {
+                return idx;
+            }
+            idx = indexOf(buffer, idx, to, (byte) ' ');
+            if(idx < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+        @param buffer: ByteBuffer of the line.
+        @param start: Integer of the index of the first byte of a token, see tokenStart().
+        @param to: Integer of the index of the end of the line, without "\r\n".
+        @return Integer of the index after the last byte of the token.
+    */
+    public int tokenEnd(ByteBuffer buffer, int start, int to) {
+        int end = indexOf(buffer, start, to, (byte) ' ');
+        return end < 0 ? to : end;
+    }
+
+    /**
+        Counts the values of a get response. Only the "VALUE <key> <flags> <bytes>" lines are scanned, the values are skipped by their length.
+        @param buffer: ByteBuffer of the response.
+        @param from: Integer of the index of the start of the response.
+        @param to: Integer of the index of the end of the response.
+        @return Integer of the number of values, i.e. the hits of the get.
+    */
+    public int countValues(ByteBuffer buffer, int from, int to) {
+        int values = 0;
+        int idx = from;
+        while(idx + VALUE.length < to && startsWith(buffer, idx, VALUE)) {
+            int end = indexOfCrlf(buffer, idx, to);
+            if(end < 0) {
+                break;
+            }
+            // The length of the value is the fourth token, an optional cas unique may follow
+            int field = idx + VALUE.length;
+            for(int skip = 0; skip < 2 && field > 0; skip++) {
+                field = indexOf(buffer, field, end, (byte) ' ') + 1;
+            }
+            if(field <= 0) {
+                break;
+            }
+            int fieldEnd = indexOf(buffer, field, end, (byte) ' ');
+            long length = parseLong(buffer, field, fieldEnd < 0 ? end : fieldEnd);
+            if(length < 0) {
+                break;
+            }
+            values++;
+            idx = (int) Math.min(end + 2 + length + 2, Integer.MAX_VALUE);
+        }
+        return values;
+    }
+
+    /**
+        Checks if a response to a get is complete, like Worker.isResponseComplete(String) without copying the bytes.
+        @param buffer: ByteBuffer of the response, starting at index 0.
+        @param end: Integer of the index after the last byte received.
+        @return true if the response is terminated by "END\r\n" or an error.
+    */
+    public static boolean isComplete(ByteBuffer buffer, int end) {
+        return endsWith(buffer, end, "END\r\n") || endsWith(buffer, end, "ERROR\r\n");
+    }
+
+    /**
+        @return true if the bytes before end are the ASCII characters of the suffix.
+    */
+    static boolean endsWith(ByteBuffer buffer, int end, String suffix) {
+        int start = end - suffix.length();
+        if(start < 0) {
+            return false;
+        }
+        for(int idx = 0; idx < suffix.length(); idx++) {
+            if(buffer.get(start + idx) != suffix.charAt(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+        @return true if the bytes from start are the bytes of the prefix, which must not extend beyond the buffer.
+    */
+    static boolean startsWith(ByteBuffer buffer, int start, byte[] prefix) {
+        for(int idx = 0; idx < prefix.length; idx++) {
+            if(buffer.get(start + idx) != prefix[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+        @return Long of the decimal number between from and to, -1 if it is not a number.
+    */
+    static long parseLong(ByteBuffer buffer, int from, int to) {
+        if(from >= to || to - from > 18) {
+            return -1L;
+        }
+        long result = 0L;
+        for(int idx = from; idx < to; idx++) {
+            int digit = buffer.get(idx) - '0';
+            if(digit < 0 || digit > 9) {
+                return -1L;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
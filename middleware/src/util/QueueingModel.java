@@ -0,0 +1,243 @@
+/**
+    QueueingModel.java
+    18-12-2017
+
+    @Description: Applies the queueing models of the report to the counters of the middleware every logging interval, instead of offline after an experiment. The net thread is modelled as an M/M/1 queue with the service time measured as its busy time per request. The workers are modelled as an M/M/m queue, m being the number of active workers and the service time the time from dequeuing to completing a request (including the time at the servers), and its predicted queue and response times (Erlang C) are compared to the measured ones. Every memcached server is modelled as an M/M/1 queue as seen from the middleware: by Little's law its mean number of outstanding requests is N = X * R, hence its utilization is N / (N + 1). The component with the highest utilization is the bottleneck. If the measured queue time exceeds twice the predicted one while the workers are not saturated, the queue itself (hand-off between the net thread and the workers) is reported. Note that the clients are closed loop, the predictions of the open models are pessimistic close to saturation.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.Formatter;
+import java.util.logging.Logger;
+
+import asl_project.logging.TextFormat;
+
+/**
+    Class computing the queueing models from the counters of one interval.
+*/
+public class QueueingModel {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    // Utilization above which a component is saturated
+    private static final double SATURATED = 0.9;
+
+    public static enum Component {
+        NONE("none", "nothing to do"),
+        NET_THREAD("net thread", "add middlewares"),
+        QUEUE("queue", "the hand-off to the workers is slower than the model, check for contention"),
+        WORKERS("workers", "add workers"),
+        SERVER("server", "add servers or relieve the slow server");
+
+        final String name;
+        final String advice;
+
+        Component(String name, String advice) {
+            this.name = name;
+            this.advice = advice;
+        }
+    }
+
+    // Counters of the previous interval
+    private long lastTime = System.nanoTime() >> 10;
+    private long lastNetBusy = 0L;
+    private ReplicaSelector lastSelector = null;
+    private long[] lastServed = new long[0];
+    private long[] lastServedTime = new long[0];
+
+    // Bottleneck of the previous interval, logged when it changes
+    private Component bottleneck = Component.NONE;
+    private String bottleneckServer = null;
+
+    // Totals for the final statistics
+    private final long[] intervals = new long[Component.values().length];
+    private long modelled = 0L;
+    private double sumPredictedQueue = 0.0;
+    private double sumMeasuredQueue = 0.0;
+    private double sumPredictedResponse = 0.0;
+    private double sumMeasuredResponse = 0.0;
+    private double maxNetUtilization = 0.0;
+    private double maxWorkerUtilization = 0.0;
+
+
+    /**
+        @return String of the header of the lines written by update().
+    */
+    public static String initLog() {
+        return String.format("%6s %7s %5s %9s %9s %9s %9s %9s %s", "NET U", "WRK U", "WRKS", "SVC T", "PRED Q T", "Q T", "PRED RT", "RSP T", "SERVERS (U, RSP T) / BOTTLENECK");
+    }
+
+    /**
+        Computes the models for the interval since the last call, must be called once per logging interval.
+        @param record: StatsRecord of the interval, see Worker.getRecord().
+        @param netBusy: Long of the total time the net thread was busy in microseconds.
+        @param workers: Integer of the number of active workers.
+        @param selector: ReplicaSelector of the current servers, which counts their responses.
+        @param out: StringBuilder the line of the interval is appended to.
+    */
+    public void update(StatsRecord record, long netBusy, int workers, ReplicaSelector selector, StringBuilder out) {
+        long now = System.nanoTime() >> 10;
+        double seconds = Math.max(now - lastTime, 1L) / 1000000.0;
+        lastTime = now;
+        long count = record.count();
+        double throughput = count / seconds;
+
+        // Net thread: M/M/1
+        double netUtilization = Math.min((netBusy - lastNetBusy) / (seconds * 1000000.0), 1.0);
+        lastNetBusy = netBusy;
+
+        // Workers: M/M/m
+        double service = count > 0 ? (record.total_time - record.total_q_time) / (double) count : 0.0;
+        int m = Math.max(workers, 1);
+        double offered = throughput * service / 1000000.0;
+        double utilization = offered / m;
+        double predictedQueue = erlangC(m, offered) * service / (m - offered);
+        double predictedResponse = predictedQueue + service;
+
+        // Servers: M/M/1 as seen from the middleware
+        if(selector != lastSelector) {
+            lastSelector = selector;
+            lastServed = new long[selector.size()];
+            lastServedTime = new long[selector.size()];
+            for(int server = 0; server < selector.size(); server++) {
+                lastServed[server] = selector.getServed(server);
+                lastServedTime[server] = selector.getServedTime(server);
+            }
+        }
+        double maxServer = 0.0;
+        int slowest = -1;
+        StringBuilder servers = new StringBuilder(64);
+        for(int server = 0; server < selector.size(); server++) {
+            long served = selector.getServed(server);
+            long servedTime = selector.getServedTime(server);
+            long responses = served - lastServed[server];
+            double responseTime = responses > 0 ? (servedTime - lastServedTime[server]) / (double) responses : 0.0;
+            lastServed[server] = served;
+            lastServedTime[server] = servedTime;
+            double outstanding = responses / seconds * responseTime / 1000000.0;
+            double serverUtilization = outstanding / (outstanding + 1.0);
+            if(serverUtilization > maxServer) {
+                maxServer = serverUtilization;
+                slowest = server;
+            }
+            servers.append(' ');
+            TextFormat.appendFixed(servers, serverUtilization, 4, 2);
+            servers.append(' ');
+            TextFormat.appendFixed(servers, responseTime, 8, 1);
+        }
+
+        // Bottleneck: the component with the highest utilization, once anything is busy
+        Component current = Component.NONE;
+        double highest = 0.0;
+        if(count > 0) {
+            current = Component.NET_THREAD;
+            highest = netUtilization;
+            if(utilization > highest) {
+                current = Component.WORKERS;
+                highest = utilization;
+            }
+            if(maxServer > highest) {
+                current = Component.SERVER;
+                highest = maxServer;
+            }
+            if(utilization < SATURATED && record.queueTime() > 2 * predictedQueue + 100.0) {
+                current = Component.QUEUE;
+            }
+        }
+        String currentServer = current == Component.SERVER ? selector.getAddress(slowest) : null;
+
+        TextFormat.appendFixed(out, netUtilization, 6, 2);
+        out.append(' ');
+        TextFormat.appendFixed(out, utilization, 7, 2);
+        out.append(' ');
+        TextFormat.appendPadded(out, m, 5);
+        out.append(' ');
+        TextFormat.appendFixed(out, service, 9, 1);
+        out.append(' ');
+        appendTime(out, predictedQueue);
+        out.append(' ');
+        TextFormat.appendFixed(out, count > 0 ? record.queueTime() : 0.0, 9, 1);
+        out.append(' ');
+        appendTime(out, predictedResponse);
+        out.append(' ');
+        TextFormat.appendFixed(out, count > 0 ? record.responseTime() : 0.0, 9, 1);
+        out.append(servers).append(" / ").append(current.name);
+        if(currentServer != null) {
+            out.append(' ').append(currentServer);
+        }
+
+        // Log every change of the bottleneck
+        if(current != bottleneck || (currentServer != null && !currentServer.equals(bottleneckServer))) {
+            if(current != Component.NONE) {
+                SYS_LOG.info(String.format("Bottleneck: %s%s at %.0f%% utilization and %.0f requests/s, %s.",
+                                           current.name, currentServer != null ? " " + currentServer : "", 100 * highest, throughput, current.advice));
+            }
+            bottleneck = current;
+            bottleneckServer = currentServer;
+        }
+
+        intervals[current.ordinal()]++;
+        maxNetUtilization = Math.max(maxNetUtilization, netUtilization);
+        maxWorkerUtilization = Math.max(maxWorkerUtilization, utilization);
+        if(count > 0 && utilization < 1.0) {
+            modelled++;
+            sumPredictedQueue += predictedQueue;
+            sumMeasuredQueue += record.queueTime();
+            sumPredictedResponse += predictedResponse;
+            sumMeasuredResponse += record.responseTime();
+        }
+    }
+
+    private static void appendTime(StringBuilder out, double time) {
+        if(Double.isInfinite(time) || Double.isNaN(time) || time < 0) {
+            out.append("      inf");
+        } else {
+            TextFormat.appendFixed(out, time, 9, 1);
+        }
+    }
+
+    /**
+        Probability that a request has to wait in an M/M/m queue, computed with the recursion of Erlang B.
+        @param m: Integer of the number of servers.
+        @param offered: Double of the offered load, arrival rate times service time.
+        @return Double of the probability of waiting, 1 if the queue is not stable.
+    */
+    static double erlangC(int m, double offered) {
+        if(offered >= m) {
+            return 1.0;
+        }
+        if(offered <= 0) {
+            return 0.0;
+        }
+        double blocking = 1.0;
+        for(int k = 1; k <= m; k++) {
+            blocking = offered * blocking / (k + offered * blocking);
+        }
+        return m * blocking / (m - offered * (1 - blocking));
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the share of the intervals every component was the bottleneck and the mean predicted and measured times.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(512);
+        Formatter formatter = new Formatter(result);
+        long total = 0L;
+        for(long count: intervals) {
+            total += count;
+        }
+        formatter.format("\n\n QUEUEING MODEL (%d intervals)\n", total);
+        for(Component component: Component.values()) {
+            formatter.format("%-34s%9.1f%%\n", "Bottleneck " + component.name, total > 0 ? 100.0 * intervals[component.ordinal()] / total : 0.0);
+        }
+        formatter.format("%-34s%10.2f\n", "Maximum utilization net thread", maxNetUtilization);
+        formatter.format("%-34s%10.2f\n", "Maximum utilization workers", maxWorkerUtilization);
+        if(modelled > 0) {
+            formatter.format("%-34s%10.1f / %.1f\n", "Queue time predicted / measured", sumPredictedQueue / modelled, sumMeasuredQueue / modelled);
+            formatter.format("%-34s%10.1f / %.1f\n", "Response time predicted / measured", sumPredictedResponse / modelled, sumMeasuredResponse / modelled);
+        }
+        return result.toString();
+    }
+}
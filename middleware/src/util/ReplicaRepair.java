@@ -0,0 +1,506 @@
+/**
+    ReplicaRepair.java
+    10-12-2017
+
+    @Description: Repairs replicas of the memcached servers that diverged, in a background thread such that the workers are not delayed. SETs that were stored on some, but not all servers are recorded in a bounded retry log and replayed with exponential backoff to the servers that missed them. Only the latest SET of a key is kept per server, and an entry is removed as soon as a later SET of the key was stored on the server. Additionally, a sample of the GETs is read from all servers. If the replicas still disagree after a short delay (such that SETs in flight are not mistaken for divergence), the replicas that miss the key or hold a minority value are rewritten with the value held by the majority. Memcached has no versions, hence the repair is best effort: a replay racing with a newer SET of the same key can still overwrite it. Repaired values are written without expiration time.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import asl_project.logging.RateLimiter;
+
+/**
+    Class implementing the retry log and read repair shared by the workers.
+*/
+public class ReplicaRepair implements Runnable {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
+
+    // Backoff of the replays in microseconds, and number of replays after which a SET is abandoned
+    private static final long MIN_BACKOFF = 10000L;
+    private static final long MAX_BACKOFF = 5000000L;
+    private static final int MAX_ATTEMPTS = 10;
+    // Time after which a divergence found by a read is checked again, in microseconds
+    private static final long CONFIRM_DELAY = 100000L;
+    // Maximum number of sampled keys waiting to be read
+    private static final int MAX_SAMPLES = 1024;
+
+    /**
+        A SET to be replayed to a server.
+    */
+    private static class Entry {
+        final String server;
+        final byte[] command;
+        int attempts = 0;
+        long nextAttempt;
+
+        Entry(String server, byte[] command, long nextAttempt) {
+            this.server = server;
+            this.command = command;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+
+    /**
+        A key whose replicas disagreed, to be checked again.
+    */
+    private static class Suspect {
+        final String key;
+        final String[] servers;
+        final String[] responses;
+        final long dueAt;
+
+        Suspect(String key, String[] servers, String[] responses, long dueAt) {
+            this.key = key;
+            this.servers = servers;
+            this.responses = responses;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private volatile String[] servers;
+    private final int timeout;
+    private final int capacity;
+    private final double sampleRate;
+
+    // Retry log, keyed by the server and key of the SET. Guarded by the lock of this object.
+    private final LinkedHashMap<String, Entry> log = new LinkedHashMap<String, Entry>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ArrayBlockingQueue<String> samples = new ArrayBlockingQueue<String>(MAX_SAMPLES);
+    private final ArrayDeque<Suspect> suspects = new ArrayDeque<Suspect>();
+
+    // Connections of the repair thread by server
+    private final HashMap<String, Socket> sockets = new HashMap<String, Socket>();
+    private final byte[] input = new byte[16384];
+    private Thread thread;
+
+    // Counters for the final statistics
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private long replayed = 0L;
+    private long abandoned = 0L;
+    private long checked = 0L;
+    private long divergent = 0L;
+    private long transient_ = 0L;
+    private long conflicts = 0L;
+    private long repaired = 0L;
+
+
+    /**
+        Constructor.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers.
+        @param capacity: Integer of the maximum number of SETs in the retry log. When it is full, the oldest SET is dropped.
+        @param samplePercent: Double of the percentage of the GETs whose replicas are compared.
+        @param timeout: Long of the timeout of the connections of the repair thread in milliseconds.
+    */
+    public ReplicaRepair(List<String> mcAddresses, int capacity, double samplePercent, long timeout) {
+        this.servers = mcAddresses.toArray(new String[0]);
+        this.capacity = Math.max(capacity, 1);
+        this.sampleRate = samplePercent / 100.0;
+        this.timeout = (int) timeout;
+    }
+
+    /**
+        Starts the repair thread.
+        @param threads: ThreadFactory creating the thread.
+    */
+    public void start(ThreadFactory threads) {
+        thread = threads.newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        Stops the repair thread and closes its connections. SETs still in the retry log are not replayed.
+    */
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+        Replaces the servers that are compared and repaired. SETs of servers that were removed are dropped from the log.
+        @param mcAddresses: Array of strings containing the addresses and ports of the memcached servers.
+    */
+    public void setServers(String[] mcAddresses) {
+        this.servers = mcAddresses;
+    }
+
+    // ======================================================================================
+    // CALLED BY THE WORKERS
+    // ======================================================================================
+    /**
+        Must be called for every server a SET was not stored on while it was stored on another server.
+        @param server: String of the address and port of the server.
+        @param buffer: ByteBuffer containing the complete SET command, with limit set to its end.
+    */
+    public void failed(String server, ByteBuffer buffer) {
+        byte[] command = Arrays.copyOfRange(buffer.array(), 0, buffer.limit());
+        String id = server + " " + Worker.firstKey(command);
+        synchronized(this) {
+            // A newer SET of the key replaces the one in the log
+            if(log.remove(id) == null && log.size() >= capacity) {
+                Iterator<Entry> oldest = log.values().iterator();
+                oldest.next();
+                oldest.remove();
+                dropped.incrementAndGet();
+            }
+            log.put(id, new Entry(server, command, System.nanoTime() >> 10));
+            pending.set(log.size());
+            notify();
+        }
+        logged.incrementAndGet();
+    }
+
+    /**
+        Must be called for every server a SET was stored on. A SET of the key still waiting in the log for the server is removed, as it is older.
+        @param server: String of the address and port of the server.
+        @param buffer: ByteBuffer containing the complete SET command.
+    */
+    public void stored(String server, ByteBuffer buffer) {
+        if(pending.get() == 0) {
+            return;
+        }
+        String id = server + " " + Worker.firstKey(buffer.array());
+        synchronized(this) {
+            log.remove(id);
+            pending.set(log.size());
+        }
+    }
+
+    /**
+        Must be called for every GET answered by a single server. A sample of the keys is compared on all servers by the repair thread.
+        @param buffer: ByteBuffer containing the complete GET command.
+    */
+    public void sample(ByteBuffer buffer) {
+        if(ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if(samples.offer(Worker.firstKey(buffer.array()))) {
+            sampled.incrementAndGet();
+        } else {
+            skipped.incrementAndGet();
+        }
+    }
+
+    // ======================================================================================
+    // REPAIR THREAD
+    // ======================================================================================
+    /**
+        Override of the run() function from Runnable. Replays the due SETs of the retry log and compares the sampled keys until the thread is interrupted.
+    */
+    @Override
+    public void run() {
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                long now = System.nanoTime() >> 10;
+                long wait = replay(now);
+
+                Suspect suspect = suspects.peek();
+                if(suspect != null && suspect.dueAt <= now) {
+                    suspects.poll();
+                    confirm(suspect);
+                    continue;
+                }
+                if(suspect != null) {
+                    wait = Math.min(wait, suspect.dueAt - now);
+                }
+
+                String key = samples.poll();
+                if(key != null) {
+                    compare(key);
+                    continue;
+                }
+
+                synchronized(this) {
+                    if(pending.get() == 0 || wait > 0) {
+                        wait(Math.max(1L, Math.min(wait, 10000L) / 1000));
+                    }
+                }
+            } catch(InterruptedException ex) {
+                break;
+            }
+        }
+        for(String server: new ArrayList<String>(sockets.keySet())) {
+            close(server);
+        }
+    }
+
+    /**
+        Replays the SETs of the retry log that are due.
+        @param now: Long of the current time in microseconds.
+        @return Long of the time until the next SET is due in microseconds.
+    */
+    private long replay(long now) {
+        long wait = MAX_BACKOFF;
+        Entry due = null;
+        synchronized(this) {
+            for(Entry entry: log.values()) {
+                if(entry.nextAttempt <= now) {
+                    due = entry;
+                    break;
+                }
+                wait = Math.min(wait, entry.nextAttempt - now);
+            }
+        }
+        if(due == null) {
+            return wait;
+        }
+
+        // SETs of servers that were removed are dropped
+        boolean removed = !Arrays.asList(servers).contains(due.server);
+        if(removed) {
+            close(due.server);
+        }
+        boolean stored = !removed && "STORED\r\n".equals(request(due.server, due.command));
+        String id = due.server + " " + Worker.firstKey(due.command);
+        synchronized(this) {
+            // The entry might have been replaced or removed by a worker meanwhile
+            if(log.get(id) == due) {
+                if(stored) {
+                    log.remove(id);
+                    replayed++;
+                } else if(removed) {
+                    log.remove(id);
+                    dropped.incrementAndGet();
+                } else if(++due.attempts >= MAX_ATTEMPTS) {
+                    log.remove(id);
+                    abandoned++;
+                    HOT_LOG.log(SYS_LOG, Level.INFO, "A SET could not be replayed to a memcached server and was abandoned.");
+                } else {
+                    due.nextAttempt = now + Math.min(MIN_BACKOFF << due.attempts, MAX_BACKOFF);
+                    // Move the entry to the end, such that other due entries are not starved
+                    log.remove(id);
+                    log.put(id, due);
+                }
+                pending.set(log.size());
+            }
+        }
+        return 0L;
+    }
+
+    /**
+        Reads a key from all servers and schedules a second check if the replicas disagree.
+        @param key: String of the key.
+    */
+    private void compare(String key) {
+        checked++;
+        String[] current = servers;
+        String[] responses = readAll(current, key);
+        if(responses != null && !agree(responses)) {
+            divergent++;
+            suspects.add(new Suspect(key, current, responses, (System.nanoTime() >> 10) + CONFIRM_DELAY));
+        }
+    }
+
+    /**
+        Reads a key that diverged again, and repairs the replicas if the responses did not change meanwhile.
+        @param suspect: Suspect of the key.
+    */
+    private void confirm(Suspect suspect) {
+        String[] responses = servers == suspect.servers ? readAll(suspect.servers, suspect.key) : null;
+        if(responses == null || !Arrays.equals(responses, suspect.responses)) {
+            transient_++;
+            return;
+        }
+
+        // Find the value held by the majority of the servers
+        String majority = null;
+        int majorityCount = 0;
+        for(String candidate: responses) {
+            if(!candidate.startsWith("VALUE ")) {
+                continue;
+            }
+            int count = 0;
+            for(String response: responses) {
+                count += candidate.equals(response) ? 1 : 0;
+            }
+            if(count > majorityCount) {
+                majority = candidate;
+                majorityCount = count;
+            }
+        }
+        // Values that differ without majority cannot be decided, a miss is always repaired
+        boolean valuesDiffer = false;
+        for(String response: responses) {
+            valuesDiffer |= response.startsWith("VALUE ") && !response.equals(majority);
+        }
+        if(majority == null || (valuesDiffer && 2 * majorityCount <= responses.length)) {
+            conflicts++;
+            return;
+        }
+
+        byte[] command = setCommand(majority);
+        for(int server = 0; server < responses.length; server++) {
+            if(!responses[server].equals(majority) && "STORED\r\n".equals(request(suspect.servers[server], command))) {
+                repaired++;
+            }
+        }
+    }
+
+    /**
+        @param responses: String array of the responses of the servers.
+        @return true if all responses are equal.
+    */
+    private static boolean agree(String[] responses) {
+        for(String response: responses) {
+            if(!response.equals(responses[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+        Reads a key from all servers.
+        @param current: String array of the addresses and ports of the servers.
+        @param key: String of the key.
+        @return String array of the responses, or null if a server did not answer.
+    */
+    private String[] readAll(String[] current, String key) {
+        byte[] command = ("get " + key + "\r\n").getBytes();
+        String[] responses = new String[current.length];
+        for(int server = 0; server < current.length; server++) {
+            responses[server] = request(current[server], command);
+            if(responses[server] == null || responses[server].endsWith("ERROR\r\n")) {
+                return null;
+            }
+        }
+        return responses;
+    }
+
+    /**
+        Builds the SET command writing a value as returned by a GET.
+        @param response: String of the response to a GET, starting with "VALUE <key> <flags> <bytes>\r\n".
+        @return Byte array of the SET command.
+    */
+    private static byte[] setCommand(String response) {
+        int header = response.indexOf("\r\n");
+        String[] fields = response.substring(0, header).split(" ");
+        int bytes = Integer.parseInt(fields[3]);
+        String data = response.substring(header + 2, header + 2 + bytes);
+        return String.format("set %s %s 0 %d\r\n%s\r\n", fields[1], fields[2], bytes, data).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+        Sends a command to a server and reads its response. The connection is closed and reopened by the next request if this fails.
+        @param server: String of the address and port of the server.
+        @param command: Byte array of the command.
+        @return String of the response, or null if the server did not answer.
+    */
+    private String request(String server, byte[] command) {
+        try {
+            Socket socket = sockets.get(server);
+            if(socket == null) {
+                socket = new Socket();
+                sockets.put(server, socket);
+                socket.connect(new InetSocketAddress(server.split(":")[0], Integer.parseInt(server.split(":")[1])), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+            }
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(command);
+            out.flush();
+
+            int length = 0;
+            String response = "";
+            while(!complete(response)) {
+                if(length == input.length) {
+                    throw new IOException("Response does not fit in the buffer.");
+                }
+                int read = in.read(input, length, input.length - length);
+                if(read < 0) {
+                    throw new IOException("Connection closed by the server.");
+                }
+                length += read;
+                // Values may be binary (e.g. compressed), every byte is mapped to one character
+                response = new String(input, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            return response;
+        } catch(IOException ex) {
+            close(server);
+            return null;
+        }
+    }
+
+    /**
+        @param response: String of the response received so far.
+        @return true if the response to a get or set is complete.
+    */
+    private static boolean complete(String response) {
+        if(!response.endsWith("\r\n")) {
+            return false;
+        }
+        return response.equals("STORED\r\n") || response.equals("NOT_STORED\r\n") || response.startsWith("SERVER_ERROR") || response.startsWith("CLIENT_ERROR") || Worker.isResponseComplete(response);
+    }
+
+    /**
+        Closes the connection of the repair thread to a server.
+        @param server: String of the address and port of the server.
+    */
+    private void close(String server) {
+        Socket socket = sockets.remove(server);
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch(IOException ex) {
+                // The connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down, after stop().
+        @return String containing the counters of the retry log and read repair.
+    */
+    public synchronized String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n REPLICA REPAIR\n");
+        formatter.format("%-34s%10d\n", "SETs missed by a replica", logged.get());
+        formatter.format("%-34s%10d\n", "Replayed", replayed);
+        formatter.format("%-34s%10d\n", "Abandoned after retries", abandoned);
+        formatter.format("%-34s%10d\n", "Dropped from the full log", dropped.get());
+        formatter.format("%-34s%10d\n", "Still in the log", log.size());
+        formatter.format("%-34s%10d\n", "GETs sampled", sampled.get());
+        formatter.format("%-34s%10d\n", "Samples skipped", skipped.get());
+        formatter.format("%-34s%10d\n", "Keys compared", checked);
+        formatter.format("%-34s%10d\n", "Divergent keys", divergent);
+        formatter.format("%-34s%10d\n", "Divergences resolved meanwhile", transient_);
+        formatter.format("%-34s%10d\n", "Conflicts without majority", conflicts);
+        formatter.format("%-34s%10d\n", "Replicas rewritten", repaired);
+        return result.toString();
+    }
+}
@@ -0,0 +1,239 @@
+/**
+    ReplicaSelector.java
+    07-12-2017
+
+    @Description: Chooses the memcached server a GET or non-sharded MULTIGET is sent to. As SETs are replicated to all servers, any server can answer a read. Next to round robin, the selector can take the load of the servers into account: for every server it tracks the number of outstanding requests and an exponentially weighted moving average of its service time. The load of a server is the expected time until a new request would be answered, (outstanding + 1) * average service time. The selector either compares two random servers and takes the less loaded one (power of two choices), or takes the least loaded of all servers. No lock is taken, all counters are atomic and shared by the workers.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.List;
+import java.util.Formatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+    Class implementing the selection of servers for reads.
+*/
+public class ReplicaSelector {
+    // Policy enum
+    public static enum Policy {
+        ROUND_ROBIN,
+        TWO_CHOICES,
+        LEAST_LOADED,
+    }
+
+    // Weight of a new sample in the moving average of the service time
+    private static final double ALPHA = 0.1;
+
+    private final Policy policy;
+    private final String[] addresses;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicIntegerArray outstanding;
+    // Moving averages of the service times in microseconds, stored as the bits of a double
+    private final AtomicLongArray serviceTimes;
+    private final AtomicLongArray picks;
+    private final AtomicLongArray completions;
+    // Responses of every type and their total time in microseconds, see QueueingModel
+    private final AtomicLongArray served;
+    private final AtomicLongArray servedTime;
+
+
+    /**
+        Constructor.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers, in the order of the connections of the workers.
+        @param policy: Policy used by select().
+    */
+    public ReplicaSelector(List<String> mcAddresses, Policy policy) {
+        this.policy = policy;
+        this.addresses = mcAddresses.toArray(new String[0]);
+        this.outstanding = new AtomicIntegerArray(addresses.length);
+        this.serviceTimes = new AtomicLongArray(addresses.length);
+        this.picks = new AtomicLongArray(addresses.length);
+        this.completions = new AtomicLongArray(addresses.length);
+        this.served = new AtomicLongArray(addresses.length);
+        this.servedTime = new AtomicLongArray(addresses.length);
+    }
+
+    /**
+        Parses the name of a policy as given on the command line.
+        @param name: String, one of "rr", "p2c" or "least".
+        @return Policy corresponding to the name.
+    */
+    public static Policy parsePolicy(String name) {
+        switch(name) {
+            case "rr":
+                return Policy.ROUND_ROBIN;
+            case "p2c":
+                return Policy.TWO_CHOICES;
+            case "least":
+                return Policy.LEAST_LOADED;
+            default:
+                throw new IllegalArgumentException("Unknown replica selection policy " + name);
+        }
+    }
+
+    /**
+        @return Policy used by select().
+    */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+        Returns the next server in round robin order. This is used where requests are spread regardless of the policy, e.g. for sharded reads.
+        @return Integer of the index of the server.
+    */
+    public int roundRobin() {
+        return (next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+    }
+
+    /**
+        Chooses the server for a read according to the policy. The choice is counted for the server.
+        @return Integer of the index of the server.
+    */
+    public int select() {
+        int server;
+        int count = addresses.length;
+        if(policy == Policy.ROUND_ROBIN || count == 1) {
+            server = roundRobin();
+        } else if(policy == Policy.TWO_CHOICES && count > 2) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(count);
+            int second = random.nextInt(count - 1);
+            if(second >= first) {
+                second++;
+            }
+            server = load(second) < load(first) ? second : first;
+        } else {
+            // Least loaded, starting at a rotating index such that ties are spread
+            int start = roundRobin();
+            server = start;
+            double best = load(start);
+            for(int idx = 1; idx < count; idx++) {
+                int candidate = (start + idx) % count;
+                double candidateLoad = load(candidate);
+                if(candidateLoad < best) {
+                    best = candidateLoad;
+                    server = candidate;
+                }
+            }
+        }
+        picks.incrementAndGet(server);
+        return server;
+    }
+
+    /**
+        Must be called when a request was sent to a server.
+        @param server: Integer of the index of the server.
+    */
+    public void sent(int server) {
+        outstanding.incrementAndGet(server);
+    }
+
+    /**
+        Must be called when the response of a server was received, or the request failed.
+        @param server: Integer of the index of the server.
+        @param serviceTime: Long of the time between sending the request and receiving the response in microseconds.
+    */
+    public void received(int server, long serviceTime) {
+        outstanding.decrementAndGet(server);
+        completions.incrementAndGet(server);
+        served(server, serviceTime);
+        long current;
+        long updated;
+        do {
+            current = serviceTimes.get(server);
+            double average = Double.longBitsToDouble(current);
+            average = average == 0.0 ? serviceTime : average + ALPHA * (serviceTime - average);
+            updated = Double.doubleToRawLongBits(average);
+        } while(!serviceTimes.compareAndSet(server, current, updated));
+    }
+
+    /**
+        Counts a response of a server to a request that was not chosen by the selector, e.g. a SET. This does not change the load of the server used by select().
+        @param server: Integer of the index of the server.
+        @param serviceTime: Long of the time between sending the request and receiving the response in microseconds.
+    */
+    public void served(int server, long serviceTime) {
+        served.incrementAndGet(server);
+        servedTime.addAndGet(server, serviceTime);
+    }
+
+    /**
+        @return Integer of the number of servers.
+    */
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return String of the address and port of the server.
+    */
+    public String getAddress(int server) {
+        return addresses[server];
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return Long of the number of responses of the server of all types.
+    */
+    public long getServed(int server) {
+        return served.get(server);
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return Long of the total time of the responses of the server in microseconds.
+    */
+    public long getServedTime(int server) {
+        return servedTime.get(server);
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return Double of the moving average of the service time of the server in microseconds.
+    */
+    public double getServiceTime(int server) {
+        return Double.longBitsToDouble(serviceTimes.get(server));
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return Integer of the number of requests sent to the server that were not answered yet.
+    */
+    public int getOutstanding(int server) {
+        return outstanding.get(server);
+    }
+
+    /**
+        Expected time until a new request would be answered by a server. Servers without a measured service time count with 1 microsecond.
+    */
+    private double load(int server) {
+        return (outstanding.get(server) + 1) * Math.max(getServiceTime(server), 1.0);
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the per server counters of the selector.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n SERVERS (replica selection: %s)\n", policy);
+        formatter.format("%-22s|%10s|%10s|%10s|%10s\n", "Server", "Reads", "Responses", "Pending", "Svc Time");
+        for(int server = 0; server < addresses.length; server++) {
+            formatter.format("%-22s|%10d|%10d|%10d|%10.2f\n",
+                             addresses[server],
+                             picks.get(server),
+                             completions.get(server),
+                             outstanding.get(server),
+                             getServiceTime(server));
+        }
+        return result.toString();
+    }
+}
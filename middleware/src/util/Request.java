@@ -8,18 +8,21 @@
 
 package asl_project.util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.logging.*;
-import java.util.Arrays;
 import java.util.ArrayList;
 
+import asl_project.logging.RateLimiter;
+
 /**
     TODO
 */
 public class Request {
     // Logger
     private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
 
     // Type enum
     public static enum Type {
@@ -33,20 +36,36 @@ public class Request {
     public SelectionKey key;
     public ByteBuffer buffer;
     public SocketChannel channel;
+    public UdpFrontEnd.Reply datagram;     // Set instead of the channel for requests received over UDP
     public int messageLength;
     private int commandLength;
     private int dataLength;
     public Type type;
     public boolean hit;
     public int multigetLength;
+    public AdmissionController.Client client;   // Client counting the request while it is in the middleware, see AdmissionController
+    public int lane;                // Lane and cost of the request, see LaneScheduler
+    public int cost;
+    public int remaining;           // Bytes of a streamed SET still to be read from the client, see isPartialSet()
+    public boolean shed;            // Rejected by the net thread, answered by the worker once the value was read
+    public KeyRouter.Pool serverPool;   // Pool of servers of the request while it is handled, see KeyRouter
+
+    // Largest value accepted, the item size limit of memcached
+    public static final int MAX_VALUE = 1 << 20;
 
     // Timing fields
+    public long time_arrived;       // Earliest time the data could have been seen by the net thread
     public long time_created;
     public long time_dqed;
     public long time_mmcd_sent;
     public long time_mmcd_rcvd;
     public long time_completed;
 
+    // Events of the flight recorder, only created while a recording is running, see FlightEvents
+    FlightEvents.RequestEvent event;
+    FlightEvents.QueueWaitEvent queueEvent;
+    FlightEvents.ServerWaitEvent serverEvent;
+
 
     /**
         Constructor. Builds a request object. Note that this creates a timestamp for the time of creating that can be later used in statistics.
@@ -55,12 +74,129 @@ public class Request {
     */
     public Request(ByteBuffer buffer, SelectionKey key){
         this.time_created = System.nanoTime() >> 10;        // In microseconds
+        this.time_arrived = this.time_created;
 
         this.key = key;
         this.buffer = buffer;
         this.channel = (SocketChannel) key.channel();
         this.hit = false;
         this.type = Type.INVALID;
+        if(FlightEvents.recording()) {
+            FlightEvents.created(this);
+        }
+    }
+
+    /**
+        Constructor for requests that were not read through the selector of the net thread. The key of such a request is null.
+        @param buffer: ByteBuffer containing the message of sent by the client.
+        @param channel: SocketChannel the response should be written to.
+    */
+    public Request(ByteBuffer buffer, SocketChannel channel){
+        this.time_created = System.nanoTime() >> 10;        // In microseconds
+        this.time_arrived = this.time_created;
+
+        this.key = null;
+        this.buffer = buffer;
+        this.channel = channel;
+        this.hit = false;
+        this.type = Type.INVALID;
+        if(FlightEvents.recording()) {
+            FlightEvents.created(this);
+        }
+    }
+
+    /**
+        Constructor for requests received over UDP. The key and the channel of such a request are null.
+        @param buffer: ByteBuffer containing the message of sent by the client, without the frame header.
+        @param datagram: Reply the response should be sent to.
+    */
+    public Request(ByteBuffer buffer, UdpFrontEnd.Reply datagram){
+        this.time_created = System.nanoTime() >> 10;        // In microseconds
+        this.time_arrived = this.time_created;
+
+        this.key = null;
+        this.buffer = buffer;
+        this.channel = null;
+        this.datagram = datagram;
+        this.hit = false;
+        this.type = Type.INVALID;
+        if(FlightEvents.recording()) {
+            FlightEvents.created(this);
+        }
+    }
+
+    /**
+        Writes a complete response to the client, over the connection of the client or in datagrams.
+        @param response: ByteBuffer of the response.
+    */
+    public void respond(ByteBuffer response) throws IOException {
+        if(datagram != null) {
+            datagram.send(response);
+        } else {
+            channel.write(response);
+        }
+    }
+
+    /**
+        Takes the time the request was sent to the servers.
+    */
+    public void sent() {
+        time_mmcd_sent = System.nanoTime() >> 10;       // In microseconds
+        if(event != null) {
+            FlightEvents.sent(this);
+        }
+    }
+
+    /**
+        Takes the time the response of the servers was received.
+    */
+    public void received() {
+        time_mmcd_rcvd = System.nanoTime() >> 10;       // In microseconds
+        if(event != null) {
+            FlightEvents.received(this);
+        }
+    }
+
+    /**
+        Checks if the buffer holds the complete command line of a SET, but only the beginning of its value. The rest of the value is then read from the client by the worker as it arrives and forwarded to the servers (cut-through), such that values larger than the buffer can be set and large values are not delayed by store and forward. Until the worker read the value, the net thread must not read from the client. Note that this must be called before parse().
+        @return true if the SET is incomplete, remaining is then set to the number of bytes still to be read.
+    */
+    public boolean isPartialSet() {
+        int read = buffer.position();
+        byte[] array = buffer.array();
+        if(read < 6 || array[0] != 's' || array[1] != 'e' || array[2] != 't' || array[3] != ' ') {
+            return false;
+        }
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int end = scanner.indexOfCrlf(buffer, 0, read);
+        if(end < 0) {
+            return false;
+        }
+        long length = number(scanner, 0, end, 4);
+        long total = end + 2 + length + 2;
+        if(length < 0 || length > Integer.MAX_VALUE / 2 || total <= read) {
+            return false;
+        }
+        // Values larger than memcached accepts are read from the client and rejected by the worker
+        remaining = (int) (total - read);
+        return true;
+    }
+
+    /**
+        Makes the net thread read from the client again once a streamed SET was read completely by the worker.
+    */
+    public void resume() {
+        if(key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+            key.selector().wakeup();
+        }
+    }
+
+    /**
+        @return Integer of the length of the value of a SET, valid after parse().
+    */
+    public int getDataLength() {
+        return dataLength;
     }
 
     /**
@@ -70,36 +206,34 @@ public class Request {
     public boolean parse() {
         buffer.flip();
         messageLength = buffer.limit();
-        // Check if the message finishes with "\r\n"
-        if(buffer.get(messageLength - 1) != '\n' || buffer.get(messageLength - 2) != '\r') {
-            SYS_LOG.warning("Incomplete request.");
+        // Check if the message finishes with "\r\n", the end of a streamed SET is still to be read
+        if(remaining == 0 && (messageLength < 2 || buffer.get(messageLength - 1) != '\n' || buffer.get(messageLength - 2) != '\r')) {
+            HOT_LOG.log(SYS_LOG, Level.WARNING, "Incomplete request.");
             this.type = Type.INVALID;
             return false;
         }
 
-        // Try to read the command
-        buffer.rewind();
-        char prev = (char) buffer.get();
-        char curr = (char) buffer.get();
-        while((prev != '\r' || curr != '\n') && buffer.hasRemaining()) {
-            prev = curr;
-            curr = (char) buffer.get();
-        }
-        commandLength = buffer.position();
-        // Copy the command to a string
-        byte[] barray = new byte[4096];
-        buffer.rewind();        // Not flip as we dont want to set the limit to the end of the command
-        buffer.get(barray, 0, commandLength - 2);
-        String command = new String(Arrays.copyOfRange(barray, 0, commandLength)).trim();
-        if(command.startsWith("get")) {
-            int numGets = command.split(" ").length - 1;
+        // Find the end of the command line, the keys of a get are counted without copying them
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int end = scanner.indexOfCrlf(buffer, 0, messageLength);
+        if(end < 0) {
+            this.type = Type.INVALID;
+            return false;
+        }
+        commandLength = end + 2;
+        int start = 0;
+        while(start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        if(startsWith(start, end, 'g', 'e', 't')) {
+            int numGets = scanner.countTokens(buffer, start, end) - 1;
             if(numGets > 1) {
                 this.type = Type.MULTIGET;
                 this.multigetLength = numGets;
             } else {
                 this.type = Type.GET;
             }
-        } else if(command.startsWith("set")) {
+        } else if(startsWith(start, end, 's', 'e', 't')) {
             this.type = Type.SET;
         } else {
             this.type = Type.INVALID;
@@ -108,17 +242,17 @@ public class Request {
 
         // If the command is of type SET, check if all required data is in the message
         if(type == Type.SET) {
-            try {
-                dataLength = Integer.parseInt(command.trim().split(" ")[4]);
-            } catch(ArrayIndexOutOfBoundsException ex) {
+            long length = number(scanner, start, end, 4);
+            if(length < 0 || length > Integer.MAX_VALUE) {
                 // The command is not used correctly
-                SYS_LOG.info("Client sent invalid command");
+                HOT_LOG.log(SYS_LOG, Level.INFO, "Client sent invalid command");
                 this.type = Type.INVALID;
                 return false;
             }
+            dataLength = (int) length;
 
-            if(messageLength != commandLength + dataLength + 2) {
-                SYS_LOG.info("Incomplete request. Data is incomplete.");
+            if((long) messageLength + remaining != (long) commandLength + dataLength + 2) {
+                HOT_LOG.log(SYS_LOG, Level.INFO, "Incomplete request. Data is incomplete.");
                 this.type = Type.INVALID;
                 return false;
             }
@@ -126,4 +260,23 @@ public class Request {
         buffer.rewind();
         return true;
     }
+
+    /**
+        @return Long of the number in a token of the command line between from and to, -1 if the line has fewer tokens or the token is not a number.
+    */
+    private long number(ProtocolScanner scanner, int from, int to, int index) {
+        int start = scanner.tokenStart(buffer, from, to, index);
+        if(start < 0) {
+            return -1L;
+        }
+        int end = scanner.indexOf(buffer, start, to, (byte) ' ');
+        return ProtocolScanner.parseLong(buffer, start, end < 0 ? to : end);
+    }
+
+    /**
+        @return true if the command line between start and end begins with the three characters.
+    */
+    private boolean startsWith(int start, int end, char first, char second, char third) {
+        return end - start >= 3 && buffer.get(start) == first && buffer.get(start + 1) == second && buffer.get(start + 2) == third;
+    }
 }
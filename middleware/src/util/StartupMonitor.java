@@ -0,0 +1,82 @@
+/**
+    StartupMonitor.java
+    12-12-2017
+
+    @Description: Reports when the middleware is ready. The middleware accepts clients as soon as it was created, while the workers open their connections to the memcached servers in the background. Requests that arrive meanwhile wait in the queue. Every worker reports the connections it opened, and the middleware is ready once every server has the minimum number of connections. If a server is still below the minimum once all workers tried to connect, this is logged together with the servers concerned.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+/**
+    Class tracking the connections opened at startup.
+*/
+public class StartupMonitor {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    private final String[] addresses;
+    private final int minimum;
+    private final long created = System.nanoTime() >> 10;
+    private final AtomicIntegerArray connected;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private int serversBelow;
+    private int workersLeft;
+
+
+    /**
+        Constructor.
+        @param mcAddresses: List of strings containing the addresses and ports of the memcached servers, in the order of the connections of the workers.
+        @param minimum: Integer of the number of connections every server needs for the middleware to be ready.
+        @param workers: Integer of the number of workers that report their connections.
+    */
+    public StartupMonitor(List<String> mcAddresses, int minimum, int workers) {
+        this.addresses = mcAddresses.toArray(new String[0]);
+        this.minimum = Math.max(minimum, 1);
+        this.connected = new AtomicIntegerArray(addresses.length);
+        this.serversBelow = addresses.length;
+        this.workersLeft = workers;
+    }
+
+    /**
+        Must be called by every worker once it tried to connect to all servers.
+        @param connections: List of the connections of the worker in the order of the servers, null for the ones that could not be opened.
+    */
+    public synchronized void connected(List<?> connections) {
+        for(int server = 0; server < addresses.length && server < connections.size(); server++) {
+            if(connections.get(server) != null && connected.incrementAndGet(server) == minimum) {
+                serversBelow--;
+            }
+        }
+        workersLeft--;
+        long elapsed = ((System.nanoTime() >> 10) - created) / 1000;
+        if(serversBelow == 0 && ready.getCount() > 0) {
+            ready.countDown();
+            SYS_LOG.info(String.format("Middleware ready %d ms after it was created, every memcached server has at least %d connections.", elapsed, minimum));
+        } else if(workersLeft == 0 && ready.getCount() > 0) {
+            List<String> below = new ArrayList<String>();
+            for(int server = 0; server < addresses.length; server++) {
+                if(connected.get(server) < minimum) {
+                    below.add(String.format("%s (%d)", addresses[server], connected.get(server)));
+                }
+            }
+            SYS_LOG.warning(String.format("All workers tried to connect %d ms after the middleware was created, but these memcached servers have less than %d connections: %s. They are connected to again on demand.", elapsed, minimum, below));
+        }
+    }
+
+    /**
+        Waits until the middleware is ready.
+        @param timeoutMillis: Long of the maximum time to wait in milliseconds.
+        @return true if the middleware is ready, false if the timeout expired.
+    */
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
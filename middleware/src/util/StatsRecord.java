@@ -0,0 +1,137 @@
+/**
+    StatsRecord.java
+    05-12-2017
+
+    @Description: Statistics aggregated over all workers for one or several logging intervals. This is filled by Worker.getRecord() and formatted using the columns given by Worker.initLog(). Records of several intervals can be added up, in which case the counts are formatted as averages per interval.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import asl_project.logging.TextFormat;
+
+/**
+    Class holding the statistics of one or more logging intervals. Note that this class is not thread safe.
+*/
+public class StatsRecord {
+    public int intervals = 0;
+    public long count_set = 0L;
+    public long count_get = 0L;
+    public long count_multiget = 0L;
+    public long count_invalid = 0L;
+    public long hits = 0L;
+    public long total_time = 0L;
+    public long total_q_time = 0L;
+    public long total_server_time = 0L;
+    public long queue_length = 0L;
+    public long count_shed = 0L;
+
+
+    /**
+        Resets all values to zero.
+    */
+    public void clear() {
+        intervals = 0;
+        count_set = 0L;
+        count_get = 0L;
+        count_multiget = 0L;
+        count_invalid = 0L;
+        hits = 0L;
+        total_time = 0L;
+        total_q_time = 0L;
+        total_server_time = 0L;
+        queue_length = 0L;
+        count_shed = 0L;
+    }
+
+    /**
+        Adds the values of another record to this one.
+        @param other: StatsRecord to add.
+    */
+    public void add(StatsRecord other) {
+        intervals += other.intervals;
+        count_set += other.count_set;
+        count_get += other.count_get;
+        count_multiget += other.count_multiget;
+        count_invalid += other.count_invalid;
+        hits += other.hits;
+        total_time += other.total_time;
+        total_q_time += other.total_q_time;
+        total_server_time += other.total_server_time;
+        queue_length += other.queue_length;
+        count_shed += other.count_shed;
+    }
+
+    /**
+        Copies the values of another record into this one.
+        @param other: StatsRecord to copy.
+    */
+    public void set(StatsRecord other) {
+        clear();
+        add(other);
+    }
+
+    /**
+        @return Long of the number of requests of all types, not including the ones that were shed.
+    */
+    public long count() {
+        return count_set + count_get + count_multiget + count_invalid;
+    }
+
+    /**
+        @return Double of the average response time in microseconds.
+    */
+    public double responseTime() {
+        return total_time / (double) count();
+    }
+
+    /**
+        @return Double of the average queue time in microseconds.
+    */
+    public double queueTime() {
+        return total_q_time / (double) count();
+    }
+
+    /**
+        @return Double of the average server time in microseconds.
+    */
+    public double serverTime() {
+        return total_server_time / (double) count();
+    }
+
+    /**
+        @return Double of the number of requests per interval.
+    */
+    public double throughput() {
+        return count() / (double) Math.max(intervals, 1);
+    }
+
+    /**
+        Formats the record into the given builder using the layout "%6d %6d %6d %7d %6d %6d %9.2f %8.2f %9.2f %6d %6d" matching the columns of Worker.initLog(). Counts and queue length are averaged over the intervals of the record. This does not allocate any objects.
+        @param out: StringBuilder the record is appended to.
+    */
+    public void format(StringBuilder out) {
+        int divisor = Math.max(intervals, 1);
+        TextFormat.appendPadded(out, Math.round(count_set / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(count_get / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(count_multiget / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(count_invalid / (double) divisor), 7);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(count() / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(hits / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendFixed(out, responseTime(), 9, 2);
+        out.append(' ');
+        TextFormat.appendFixed(out, queueTime(), 8, 2);
+        out.append(' ');
+        TextFormat.appendFixed(out, serverTime(), 9, 2);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(queue_length / (double) divisor), 6);
+        out.append(' ');
+        TextFormat.appendPadded(out, Math.round(count_shed / (double) divisor), 6);
+    }
+}
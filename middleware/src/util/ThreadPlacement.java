@@ -0,0 +1,257 @@
+/**
+    ThreadPlacement.java
+    13-12-2017
+
+    @Description: Pins the threads of the middleware to sets of CPUs, such that the net thread and the workers it hands requests to through the queue share the caches of one NUMA node, and background threads (logging, repair, key copies, journal replication, capture, control socket) do not preempt them. Background threads are created through backgroundFactory() and are left to the OS if no CPUs are given for them. The topology is read from /sys/devices/system/node. Threads are pinned with the Linux taskset utility, using the native id of the calling thread from /proc/thread-self. On systems without these, threads are not pinned and this is logged once.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+    Class pinning threads to CPU sets.
+*/
+public class ThreadPlacement {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    private final List<BitSet> nodes;
+    private final BitSet netCpus;
+    private final BitSet workerCpus;
+    private final BitSet backgroundCpus;        // null if background threads are not pinned
+    private final AtomicBoolean supported = new AtomicBoolean(true);
+
+
+    /**
+        Constructor.
+        @param cpuSets: Array of strings, either "auto" or the CPU lists (e.g. "0,2-5") of the net thread, the workers and optionally the background threads. With "auto", the net thread and the workers share the first NUMA node and background threads use the other nodes.
+    */
+    public ThreadPlacement(String[] cpuSets) {
+        this.nodes = readTopology();
+        if(cpuSets.length == 1 && cpuSets[0].equals("auto")) {
+            BitSet node = nodes.get(0);
+            this.netCpus = new BitSet();
+            this.netCpus.set(node.nextSetBit(0));
+            this.workerCpus = (BitSet) node.clone();
+            if(node.cardinality() > 1) {
+                this.workerCpus.clear(node.nextSetBit(0));
+            }
+            BitSet others = new BitSet();
+            for(int idx = 1; idx < nodes.size(); idx++) {
+                others.or(nodes.get(idx));
+            }
+            this.backgroundCpus = others.isEmpty() ? null : others;
+        } else {
+            this.netCpus = parse(cpuSets[0]);
+            this.workerCpus = cpuSets.length > 1 ? parse(cpuSets[1]) : netCpus;
+            this.backgroundCpus = cpuSets.length > 2 ? parse(cpuSets[2]) : null;
+        }
+    }
+
+    /**
+        Logs the NUMA nodes and the CPUs of every group of threads.
+    */
+    public void logTopology() {
+        StringBuilder line = new StringBuilder(256);
+        line.append(String.format("CPU topology: %d NUMA node(s)", nodes.size()));
+        for(int idx = 0; idx < nodes.size(); idx++) {
+            line.append(String.format(", node%d: %s", idx, format(nodes.get(idx))));
+        }
+        line.append(String.format(". Net thread on CPUs %s (node %s), workers on %s (node %s), background threads on %s.",
+                                  format(netCpus), nodesOf(netCpus),
+                                  format(workerCpus), nodesOf(workerCpus),
+                                  backgroundCpus == null ? "any CPU" : format(backgroundCpus)));
+        SYS_LOG.info(line.toString());
+        BitSet online = new BitSet();
+        for(BitSet node: nodes) {
+            online.or(node);
+        }
+        for(BitSet cpus: new BitSet[] {netCpus, workerCpus, backgroundCpus}) {
+            if(cpus != null && !online.intersects(cpus)) {
+                SYS_LOG.warning(String.format("None of the CPUs %s is online, threads are placed by the OS.", format(cpus)));
+                supported.set(false);
+            }
+        }
+        if(!nodesOf(netCpus).equals(nodesOf(workerCpus))) {
+            SYS_LOG.warning("The net thread and the workers are placed on different NUMA nodes.");
+        }
+    }
+
+    /**
+        Pins the calling thread to the CPUs of the net thread.
+    */
+    public void pinNetThread() {
+        pin(netCpus);
+    }
+
+    /**
+        @param name: String prefix of the names of the threads.
+        @return ThreadFactory of threads pinned to the CPUs of the workers.
+    */
+    public ThreadFactory workerFactory(String name) {
+        return factory(name, workerCpus);
+    }
+
+    /**
+        @param name: String prefix of the names of the threads.
+        @return ThreadFactory of threads pinned to the CPUs of background threads.
+    */
+    public ThreadFactory backgroundFactory(String name) {
+        return factory(name, backgroundCpus);
+    }
+
+    /**
+        @param name: String prefix of the names of the threads.
+        @return ThreadFactory of threads that are not pinned, for when no placement is configured.
+    */
+    public static ThreadFactory unpinned(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, name + "-" + count.getAndIncrement());
+            }
+        };
+    }
+
+    private ThreadFactory factory(final String name, final BitSet cpus) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        pin(cpus);
+                        task.run();
+                    }
+                }, name + "-" + count.getAndIncrement());
+            }
+        };
+    }
+
+    /**
+        Pins the calling thread.
+        @param cpus: BitSet of the CPUs, or null to not pin the thread.
+        @return true if the thread was pinned.
+    */
+    private boolean pin(BitSet cpus) {
+        if(cpus == null || !supported.get()) {
+            return false;
+        }
+        try {
+            // The link points to <pid>/task/<tid>
+            String self = Files.readSymbolicLink(Paths.get("/proc/thread-self")).toString();
+            String tid = self.substring(self.lastIndexOf('/') + 1);
+            Process taskset = new ProcessBuilder("taskset", "-p", "-c", format(cpus), tid)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if(taskset.waitFor() != 0) {
+                throw new IOException("taskset exited with " + taskset.exitValue());
+            }
+            return true;
+        } catch(IOException | UnsupportedOperationException ex) {
+            if(supported.compareAndSet(true, false)) {
+                SYS_LOG.warning("Threads cannot be pinned to CPUs on this system, they are placed by the OS: " + ex);
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+        Reads the CPUs of every NUMA node.
+        @return List of the CPUs of the nodes, a single node with all CPUs if the topology is unknown.
+    */
+    private static List<BitSet> readTopology() {
+        List<BitSet> nodes = new ArrayList<BitSet>();
+        for(int idx = 0; ; idx++) {
+            File cpulist = new File("/sys/devices/system/node/node" + idx + "/cpulist");
+            if(!cpulist.exists()) {
+                break;
+            }
+            try {
+                BitSet cpus = parse(new String(Files.readAllBytes(cpulist.toPath())).trim());
+                if(!cpus.isEmpty()) {
+                    nodes.add(cpus);
+                }
+            } catch(IOException | IllegalArgumentException ex) {
+                break;
+            }
+        }
+        if(nodes.isEmpty()) {
+            BitSet cpus = new BitSet();
+            cpus.set(0, Runtime.getRuntime().availableProcessors());
+            nodes.add(cpus);
+        }
+        return nodes;
+    }
+
+    private String nodesOf(BitSet cpus) {
+        List<Integer> result = new ArrayList<Integer>();
+        for(int idx = 0; idx < nodes.size(); idx++) {
+            if(nodes.get(idx).intersects(cpus)) {
+                result.add(idx);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+        Parses a CPU list in the format of the kernel, e.g. "0,2-5".
+        @param list: String of the CPU list.
+        @return BitSet of the CPUs.
+    */
+    public static BitSet parse(String list) {
+        BitSet cpus = new BitSet();
+        for(String range: list.split(",")) {
+            String[] bounds = range.trim().split("-");
+            try {
+                int first = Integer.parseInt(bounds[0]);
+                int last = bounds.length > 1 ? Integer.parseInt(bounds[1]) : first;
+                if(bounds.length > 2 || first < 0 || last < first) {
+                    throw new NumberFormatException();
+                }
+                cpus.set(first, last + 1);
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid CPU list: " + list);
+            }
+        }
+        return cpus;
+    }
+
+    /**
+        @param cpus: BitSet of CPUs.
+        @return String of the CPUs in the format of the kernel.
+    */
+    public static String format(BitSet cpus) {
+        StringBuilder list = new StringBuilder();
+        int first = cpus.nextSetBit(0);
+        while(first >= 0) {
+            int last = cpus.nextClearBit(first) - 1;
+            if(list.length() > 0) {
+                list.append(',');
+            }
+            list.append(first);
+            if(last > first) {
+                list.append('-').append(last);
+            }
+            first = cpus.nextSetBit(last + 1);
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,361 @@
+/**
+    TimeSeries.java
+    19-12-2017
+
+    @Description: Keeps the records of the last seconds in memory, such that the stability of an experiment can be checked while it runs instead of parsing the analysis log afterwards. Every second the logger adds the fields of the record of Worker.getRecord(), the 50th, 90th and 99th percentile of the latencies of every request type and the throughput and response time of every server. The values are stored in a ring of primitive arrays, one per column, hence recording does not allocate. The end of the warm-up can be detected: once the throughput varied by less than 10% and neither the throughput nor the response time had a trend of more than 10% during the last 5 seconds, the middleware is considered warmed up. The records are queried for their windowed mean, standard deviation and trend, see ControlSocket. All methods are synchronized, the logger is the only writer.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+    Class holding the ring of the records of the last seconds.
+*/
+public class TimeSeries {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+
+    /**
+        Columns of the middleware, followed by the columns of the servers.
+    */
+    public static enum Metric {
+        THROUGHPUT("tput"),
+        SETS("sets"),
+        GETS("gets"),
+        MULTIGETS("mgets"),
+        INVALID("invalid"),
+        HITS("hits"),
+        RESPONSE_TIME("rt"),
+        QUEUE_TIME("qt"),
+        SERVER_TIME("st"),
+        QUEUE_LENGTH("ql"),
+        SHED("shed"),
+        SET_P50("set.p50"),
+        SET_P90("set.p90"),
+        SET_P99("set.p99"),
+        GET_P50("get.p50"),
+        GET_P90("get.p90"),
+        GET_P99("get.p99"),
+        MULTIGET_P50("mget.p50"),
+        MULTIGET_P90("mget.p90"),
+        MULTIGET_P99("mget.p99");
+
+        public final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+    }
+
+    // Percentiles of every request type, in the order of the columns
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0};
+    private static final Request.Type[] TYPES = {Request.Type.SET, Request.Type.GET, Request.Type.MULTIGET};
+
+    // Servers get two columns each, throughput and response time, in the order they were first seen
+    public static final int MAX_SERVERS = 16;
+    private static final int METRICS = Metric.values().length;
+    private static final int COLUMNS = METRICS + 2 * MAX_SERVERS;
+
+    // Warm-up detection: window and maximum relative deviation and trend
+    private static final int WINDOW = 5;
+    private static final double STABLE = 0.1;
+
+    private final int capacity;
+    private final long[] times;                 // Wall clock time of the record in milliseconds
+    private final double[][] values;            // [column][slot], NaN if there was no value
+    private int next = 0;
+    private long recorded = 0L;
+
+    // Servers and their cumulative counters of the previous record
+    private final String[] servers = new String[MAX_SERVERS];
+    private final long[] lastServed = new long[MAX_SERVERS];
+    private final long[] lastServedTime = new long[MAX_SERVERS];
+    private ReplicaSelector lastSelector = null;
+
+    // Number of records of the warm-up, -1 while it lasts
+    private final int maxWarmup;
+    private long warmup;
+
+
+    /**
+        Constructor.
+        @param seconds: Integer of the number of records kept.
+        @param detectWarmup: Boolean, true to detect the end of the warm-up. Otherwise all records are after the warm-up.
+        @param maxWarmup: Integer of the number of records after which the warm-up ends even if the middleware is not stable.
+    */
+    public TimeSeries(int seconds, boolean detectWarmup, int maxWarmup) {
+        this.capacity = Math.max(seconds, WINDOW);
+        this.times = new long[capacity];
+        this.values = new double[COLUMNS][capacity];
+        this.maxWarmup = maxWarmup;
+        this.warmup = detectWarmup ? -1L : 0L;
+    }
+
+    /**
+        Adds the record of a second. Called by the logger once per logging interval.
+        @param record: StatsRecord of the interval, see Worker.getRecord().
+        @param latencies: Array of LatencyHistogram of the interval indexed by the ordinal of the request type, null if not available.
+        @param selector: ReplicaSelector of the current servers, which counts their responses.
+        @return true if the warm-up ended with this record.
+    */
+    public synchronized boolean record(StatsRecord record, LatencyHistogram[] latencies, ReplicaSelector selector) {
+        int slot = next;
+        times[slot] = System.currentTimeMillis();
+        long count = record.count();
+        values[Metric.THROUGHPUT.ordinal()][slot] = count;
+        values[Metric.SETS.ordinal()][slot] = record.count_set;
+        values[Metric.GETS.ordinal()][slot] = record.count_get;
+        values[Metric.MULTIGETS.ordinal()][slot] = record.count_multiget;
+        values[Metric.INVALID.ordinal()][slot] = record.count_invalid;
+        values[Metric.HITS.ordinal()][slot] = record.hits;
+        values[Metric.RESPONSE_TIME.ordinal()][slot] = count > 0 ? record.responseTime() : Double.NaN;
+        values[Metric.QUEUE_TIME.ordinal()][slot] = count > 0 ? record.queueTime() : Double.NaN;
+        values[Metric.SERVER_TIME.ordinal()][slot] = count > 0 ? record.serverTime() : Double.NaN;
+        values[Metric.QUEUE_LENGTH.ordinal()][slot] = record.queue_length;
+        values[Metric.SHED.ordinal()][slot] = record.count_shed;
+        int column = Metric.SET_P50.ordinal();
+        for(Request.Type type: TYPES) {
+            LatencyHistogram histogram = latencies != null ? latencies[type.ordinal()] : null;
+            for(double percentile: PERCENTILES) {
+                values[column++][slot] = histogram != null && histogram.getCount() > 0 ? histogram.getValueAtPercentile(percentile) : Double.NaN;
+            }
+        }
+        recordServers(selector, slot);
+
+        next = (slot + 1) % capacity;
+        recorded++;
+        if(warmup < 0) {
+            if(isStable()) {
+                warmup = recorded;
+                SYS_LOG.info(String.format("Warm-up ended after %d seconds.", warmup));
+                return true;
+            } else if(recorded >= maxWarmup) {
+                warmup = recorded;
+                SYS_LOG.warning(String.format("The middleware did not stabilize within %d seconds, the warm-up ends anyway.", warmup));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordServers(ReplicaSelector selector, int slot) {
+        for(int server = 0; server < MAX_SERVERS; server++) {
+            values[METRICS + 2 * server][slot] = Double.NaN;
+            values[METRICS + 2 * server + 1][slot] = Double.NaN;
+        }
+        if(selector == null) {
+            return;
+        }
+        // The counters start at zero for every selector, i.e. whenever the servers change
+        boolean changed = selector != lastSelector;
+        lastSelector = selector;
+        for(int idx = 0; idx < selector.size(); idx++) {
+            int server = serverIndex(selector.getAddress(idx));
+            if(server < 0) {
+                continue;
+            }
+            long served = selector.getServed(idx);
+            long servedTime = selector.getServedTime(idx);
+            if(changed) {
+                lastServed[server] = 0L;
+                lastServedTime[server] = 0L;
+            }
+            long responses = served - lastServed[server];
+            values[METRICS + 2 * server][slot] = responses;
+            values[METRICS + 2 * server + 1][slot] = responses > 0 ? (servedTime - lastServedTime[server]) / (double) responses : Double.NaN;
+            lastServed[server] = served;
+            lastServedTime[server] = servedTime;
+        }
+    }
+
+    /**
+        @return Integer of the columns of the server, assigned when it is first seen. -1 if there are more than MAX_SERVERS.
+    */
+    private int serverIndex(String address) {
+        for(int server = 0; server < MAX_SERVERS; server++) {
+            if(servers[server] == null) {
+                servers[server] = address;
+                return server;
+            }
+            if(servers[server].equals(address)) {
+                return server;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        @return true if the throughput and the response time of the last WINDOW records are stable.
+    */
+    private boolean isStable() {
+        if(recorded < WINDOW) {
+            return false;
+        }
+        double[] throughput = compute(Metric.THROUGHPUT.ordinal(), WINDOW);
+        double[] response = compute(Metric.RESPONSE_TIME.ordinal(), WINDOW);
+        if(throughput[0] < WINDOW || response[0] < WINDOW || throughput[1] <= 0) {
+            return false;
+        }
+        return throughput[2] <= STABLE * throughput[1]
+            && Math.abs(throughput[5]) * WINDOW <= STABLE * throughput[1]
+            && Math.abs(response[5]) * WINDOW <= STABLE * response[1];
+    }
+
+    /**
+        @return Boolean, true once the warm-up ended.
+    */
+    public synchronized boolean isWarmedUp() {
+        return warmup >= 0;
+    }
+
+    /**
+        @return Long of the number of seconds of the warm-up, -1 while it lasts.
+    */
+    public synchronized long getWarmup() {
+        return warmup;
+    }
+
+    /**
+        @return Integer of the number of seconds kept.
+    */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+        @param name: String of the name of a column, e.g. "rt" or "127.0.0.1:11211.rt".
+        @return Integer of the column, -1 if there is none of that name.
+    */
+    public synchronized int column(String name) {
+        for(Metric metric: Metric.values()) {
+            if(metric.name.equals(name)) {
+                return metric.ordinal();
+            }
+        }
+        for(int server = 0; server < MAX_SERVERS && servers[server] != null; server++) {
+            if(name.equals(servers[server] + ".tput")) {
+                return METRICS + 2 * server;
+            } else if(name.equals(servers[server] + ".rt")) {
+                return METRICS + 2 * server + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        @return List of the names of all columns.
+    */
+    public synchronized List<String> getColumnNames() {
+        List<String> names = new ArrayList<String>(COLUMNS);
+        for(Metric metric: Metric.values()) {
+            names.add(metric.name);
+        }
+        for(int server = 0; server < MAX_SERVERS && servers[server] != null; server++) {
+            names.add(servers[server] + ".tput");
+            names.add(servers[server] + ".rt");
+        }
+        return names;
+    }
+
+    /**
+        @param seconds: Integer of the number of seconds asked for, 0 for all seconds after the warm-up.
+        @return Integer of the number of records in the window, the last ones that were kept and are not part of the warm-up.
+    */
+    private int window(int seconds) {
+        long available = Math.min(recorded - Math.max(warmup, 0L), capacity);
+        return (int) (seconds > 0 ? Math.min(seconds, available) : available);
+    }
+
+    /**
+        Computes the statistics of a column over a window. Seconds without a value, e.g. without requests for the response time, are skipped.
+        @param column: Integer of the column, see column().
+        @param seconds: Integer of the length of the window, 0 for all seconds after the warm-up.
+        @return Array of doubles: number of values, mean, standard deviation, minimum, maximum and trend (least squares slope per second).
+    */
+    public synchronized double[] summarize(int column, int seconds) {
+        return compute(column, window(seconds));
+    }
+
+    private double[] compute(int column, int length) {
+        double n = 0.0;
+        double sum = 0.0;
+        double sumSquares = 0.0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        double sumX = 0.0;
+        double sumXX = 0.0;
+        double sumXY = 0.0;
+        for(int age = length - 1; age >= 0; age--) {
+            double value = values[column][slot(age)];
+            if(Double.isNaN(value)) {
+                continue;
+            }
+            double x = length - 1 - age;
+            n++;
+            sum += value;
+            sumSquares += value * value;
+            min = n == 1 || value < min ? value : min;
+            max = n == 1 || value > max ? value : max;
+            sumX += x;
+            sumXX += x * x;
+            sumXY += x * value;
+        }
+        double mean = sum / n;
+        double variance = n > 1 ? Math.max(sumSquares - n * mean * mean, 0.0) / (n - 1) : 0.0;
+        double slope = n > 1 ? (n * sumXY - sumX * sum) / (n * sumXX - sumX * sumX) : 0.0;
+        return new double[] {n, mean, Math.sqrt(variance), min, max, slope};
+    }
+
+    /**
+        @return Integer of the slot of a record by its age, 0 for the last one.
+    */
+    private int slot(int age) {
+        return ((next - 1 - age) % capacity + capacity) % capacity;
+    }
+
+    /**
+        Appends the values of a column over a window, one line per second with the wall clock time in milliseconds and the value.
+        @param column: Integer of the column, see column().
+        @param seconds: Integer of the length of the window, 0 for all seconds after the warm-up.
+        @param out: StringBuilder the lines are appended to.
+    */
+    public synchronized void appendValues(int column, int seconds, StringBuilder out) {
+        int length = window(seconds);
+        Formatter formatter = new Formatter(out);
+        for(int age = length - 1; age >= 0; age--) {
+            formatter.format("%d %.2f\r\n", times[slot(age)], values[column][slot(age)]);
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the warm-up and the statistics of the main columns over the seconds kept after it.
+    */
+    public synchronized String getStats() {
+        StringBuilder result = new StringBuilder(1024);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n TIME SERIES (%d seconds recorded, %d kept, warm-up %s)\n", recorded, window(0), warmup >= 0 ? warmup + " seconds" : "not ended");
+        formatter.format("%-24s|%7s|%10s|%10s|%10s|%10s|%10s\n", "Column", "Seconds", "Mean", "Std dev", "Min", "Max", "Trend/s");
+        List<Integer> columns = new ArrayList<Integer>();
+        for(Metric metric: Metric.values()) {
+            columns.add(metric.ordinal());
+        }
+        for(int server = 0; server < MAX_SERVERS && servers[server] != null; server++) {
+            columns.add(METRICS + 2 * server);
+            columns.add(METRICS + 2 * server + 1);
+        }
+        List<String> names = getColumnNames();
+        for(int idx = 0; idx < columns.size(); idx++) {
+            double[] stats = compute(columns.get(idx), window(0));
+            if(stats[0] > 0) {
+                formatter.format("%-24s|%7.0f|%10.2f|%10.2f|%10.2f|%10.2f|%10.3f\n", names.get(idx), stats[0], stats[1], stats[2], stats[3], stats[4], stats[5]);
+            }
+        }
+        return result.toString();
+    }
+}
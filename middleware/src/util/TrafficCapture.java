@@ -0,0 +1,258 @@
+/**
+    TrafficCapture.java
+    17-12-2017
+
+    @Description: Captures the requests of the clients to a binary trace file, which the load generator replays to benchmark the middleware with real traffic (see RunLoad -replay). The net thread only copies the bytes it read and hands them to a writer thread through a bounded queue, requests that do not fit in the queue are dropped from the trace and counted. Every record holds the time the request arrived, the id of the connection, the command line and the length of the value of SETs. In RAW mode the values are captured as well. In HASHED mode the keys are replaced by a 64 bit hash and values are not captured, such that the trace contains no data of the clients but keeps the distribution of the keys, the value sizes and the multiget lengths.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import asl_project.logging.RateLimiter;
+
+/**
+    Class writing the trace file.
+*/
+public class TrafficCapture implements Runnable {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
+
+    // File header: magic number ("MWTRACE1"), mode (1 byte), wall clock time of the start in milliseconds.
+    // Record: time since the start in microseconds (8 bytes), connection (4), length of the command line (2),
+    // command line without "\r\n", length of the value or -1 if the request is not a SET (4), 1 if the value
+    // follows (1), value without "\r\n".
+    public static final long MAGIC = 0x4D57545241434531L;
+
+    public static enum Mode {
+        RAW,
+        HASHED,
+    }
+
+    // Requests waiting for the writer thread
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /**
+        Request read by the net thread.
+    */
+    private static class Entry {
+        final long time;
+        final int connection;
+        final byte[] bytes;
+
+        Entry(long time, int connection, byte[] bytes) {
+            this.time = time;
+            this.connection = connection;
+            this.bytes = bytes;
+        }
+    }
+
+    // Marks the end of the queue
+    private static final Entry END = new Entry(0L, 0, null);
+
+    private final String file;
+    private final Mode mode;
+    private final DataOutputStream out;
+    private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private final long start = System.nanoTime() >> 10;
+    private Thread thread;
+
+    // Used by the net thread only
+    private final HashMap<SelectionKey, Integer> connections = new HashMap<SelectionKey, Integer>();
+    private int nextConnection = 0;
+    private long dropped = 0L;
+
+    // Used by the writer thread only
+    private long written = 0L;
+    private long bytesWritten = 0L;
+    private long failed = 0L;
+
+
+    /**
+        Constructor. Creates the trace file and writes its header.
+        @param file: String of the path of the trace file, overwritten if it exists.
+        @param mode: Mode of the capture.
+    */
+    public TrafficCapture(String file, Mode mode) throws IOException {
+        this.file = file;
+        this.mode = mode;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeLong(MAGIC);
+        out.writeByte(mode.ordinal());
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+        Starts the writer thread.
+        @param threads: ThreadFactory creating the thread.
+    */
+    public void start(ThreadFactory threads) {
+        thread = threads.newThread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        Writes the requests still in the queue and closes the file.
+    */
+    public void stop() {
+        try {
+            queue.put(END);
+            thread.join(10000);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ======================================================================================
+    // CALLED BY THE NET THREAD
+    // ======================================================================================
+    /**
+        Captures the bytes read from a client.
+        @param key: SelectionKey of the connection of the client.
+        @param buffer: ByteBuffer of the request from index 0 to its position, this is not modified.
+        @param time: Long of the time the request arrived in microseconds.
+    */
+    public void capture(SelectionKey key, ByteBuffer buffer, long time) {
+        Integer connection = connections.get(key);
+        if(connection == null) {
+            connection = nextConnection++;
+            connections.put(key, connection);
+        }
+        byte[] bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        if(!queue.offer(new Entry(time - start, connection, bytes))) {
+            dropped++;
+        }
+    }
+
+    /**
+        Must be called when the connection of a client is closed.
+        @param key: SelectionKey of the connection.
+    */
+    public void closed(SelectionKey key) {
+        connections.remove(key);
+    }
+
+    // ======================================================================================
+    // WRITER THREAD
+    // ======================================================================================
+    /**
+        Override of the run() function from Runnable. Writes the requests until stop() is called.
+    */
+    @Override
+    public void run() {
+        try {
+            while(true) {
+                Entry entry = queue.take();
+                if(entry == END) {
+                    break;
+                }
+                try {
+                    write(entry);
+                } catch(IOException ex) {
+                    failed++;
+                    HOT_LOG.log(SYS_LOG, Level.WARNING, "Could not write to the trace " + file + ": " + ex);
+                }
+            }
+        } catch(InterruptedException ex) {
+            // Close the file with the requests written so far
+        }
+        try {
+            out.close();
+        } catch(IOException ex) {
+            SYS_LOG.warning("Could not close the trace " + file);
+        }
+    }
+
+    /**
+        Writes the record of a request.
+    */
+    private void write(Entry entry) throws IOException {
+        byte[] bytes = entry.bytes;
+        int end = 0;
+        while(end + 1 < bytes.length && (bytes[end] != '\r' || bytes[end + 1] != '\n')) {
+            end++;
+        }
+        if(end + 1 >= bytes.length) {
+            end = bytes.length;
+        }
+        String line = new String(bytes, 0, end);
+        String[] fields = line.split(" ");
+        int valueLength = -1;
+        if(fields[0].equals("set") && fields.length >= 5) {
+            try {
+                valueLength = Integer.parseInt(fields[4]);
+            } catch(NumberFormatException ex) {
+                valueLength = -1;
+            }
+        }
+        boolean value = mode == Mode.RAW && valueLength >= 0 && end + 2 + valueLength <= bytes.length;
+        if(mode == Mode.HASHED) {
+            // The keys are the second field of a SET, and all fields after the first of a GET
+            int last = fields[0].equals("set") ? Math.min(1, fields.length - 1) : fields[0].startsWith("get") ? fields.length - 1 : 0;
+            StringBuilder hashed = new StringBuilder(line.length());
+            for(int idx = 0; idx < fields.length; idx++) {
+                if(idx > 0) {
+                    hashed.append(' ');
+                }
+                hashed.append(idx >= 1 && idx <= last ? "k" + Long.toHexString(hash(fields[idx])) : fields[idx]);
+            }
+            line = hashed.toString();
+        }
+        byte[] command = line.getBytes();
+        int length = Math.min(command.length, 0xFFFF);
+
+        out.writeLong(entry.time);
+        out.writeInt(entry.connection);
+        out.writeShort(length);
+        out.write(command, 0, length);
+        out.writeInt(valueLength);
+        out.writeByte(value ? 1 : 0);
+        if(value) {
+            out.write(bytes, end + 2, valueLength);
+        }
+        written++;
+        bytesWritten += 19 + length + (value ? valueLength : 0);
+    }
+
+    /**
+        @return Long of the FNV-1a hash of a key.
+    */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(int idx = 0; idx < key.length(); idx++) {
+            hash ^= key.charAt(idx);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+        This function should be called as the middleware shuts down, after stop().
+        @return String containing the number of requests captured.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(256);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n CAPTURE (%s, %s)\n", file, mode);
+        formatter.format("%-34s%10d\n", "Requests captured", written);
+        formatter.format("%-34s%10d\n", "KiB written", bytesWritten >> 10);
+        formatter.format("%-34s%10d\n", "Dropped (queue full)", dropped);
+        formatter.format("%-34s%10d\n", "Not written (I/O error)", failed);
+        return result.toString();
+    }
+}
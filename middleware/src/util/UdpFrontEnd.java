@@ -0,0 +1,218 @@
+/**
+    UdpFrontEnd.java
+    16-12-2017
+
+    @Description: Accepts GETs over UDP with the framing of memcached. Every datagram starts with an 8 byte frame header: request id, sequence number, number of datagrams of the message and a reserved field (2 bytes each, big endian). A request must fit in a single datagram. The datagram channel is read by the net thread like the connections of the clients, and the requests are handled by the workers like any other GET. Responses are split into datagrams of at most 1400 bytes that carry the request id of the request. No connection state is kept per client, lost datagrams are not sent again and clients retry on timeout. Responses of more than the maximum number of datagrams are replaced by an error, as a client is unlikely to receive all of them.
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Formatter;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import asl_project.logging.RateLimiter;
+
+/**
+    Class implementing the UDP listener of the middleware.
+*/
+public class UdpFrontEnd {
+    // Logger
+    private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
+
+    // Frame header and maximum size of a datagram, as used by memcached
+    public static final int HEADER = 8;
+    public static final int MAX_DATAGRAM = 1400;
+
+    // Answers to requests that are not supported over UDP and to responses that are too large
+    private static final byte[] UNSUPPORTED = "CLIENT_ERROR only get and gets are supported over UDP\r\n".getBytes();
+    private static final byte[] TOO_LARGE = "SERVER_ERROR response too large for UDP\r\n".getBytes();
+
+    private final DatagramChannel channel;
+    private final int maxDatagrams;
+    private final int port;
+    private final ByteBuffer input = ByteBuffer.allocate(65536);
+
+    // Counters for the final statistics
+    private final LongAdder received = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder fragmented = new LongAdder();
+    private final LongAdder unsupported = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder sendDropped = new LongAdder();
+    private final LongAdder oversize = new LongAdder();
+
+
+    /**
+        Constructor. Opens the datagram channel.
+        @param myIP: String of the address to listen on.
+        @param port: Integer of the port to listen on, 0 for any free port.
+        @param maxDatagrams: Integer of the maximum number of datagrams of a response.
+    */
+    public UdpFrontEnd(String myIP, int port, int maxDatagrams) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(myIP, port));
+        this.channel.configureBlocking(false);
+        this.port = channel.socket().getLocalPort();
+        this.maxDatagrams = Math.max(maxDatagrams, 1);
+    }
+
+    /**
+        Registers the channel with the selector of the net thread.
+        @param selector: Selector of the net thread.
+    */
+    public void register(Selector selector) throws IOException {
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+        @return Integer of the port the channel listens on.
+    */
+    public int getLocalPort() {
+        return port;
+    }
+
+    /**
+        Closes the channel.
+    */
+    public void close() {
+        try {
+            channel.close();
+        } catch(IOException ex) {
+            SYS_LOG.info("The DatagramChannel did not close properly.");
+        }
+    }
+
+    /**
+        Reads the next datagram. Called by the net thread while the channel is readable. Datagrams that are not valid requests are dropped or answered directly.
+        @return Request of the next GET to hand to the workers, null if no datagram is left to read.
+    */
+    public Request receive() {
+        while(true) {
+            SocketAddress client;
+            input.clear();
+            try {
+                client = channel.receive(input);
+            } catch(IOException ex) {
+                HOT_LOG.log(SYS_LOG, Level.INFO, "Could not read a datagram: " + ex);
+                return null;
+            }
+            if(client == null) {
+                return null;
+            }
+            received.increment();
+            input.flip();
+            if(input.remaining() <= HEADER) {
+                malformed.increment();
+                continue;
+            }
+            int requestId = input.getShort(0) & 0xFFFF;
+            int sequence = input.getShort(2) & 0xFFFF;
+            int total = input.getShort(4) & 0xFFFF;
+            if(total != 1 || sequence != 0) {
+                // Like memcached, only requests of a single datagram are supported
+                fragmented.increment();
+                continue;
+            }
+            Reply reply = new Reply(client, requestId);
+            int length = input.remaining() - HEADER;
+            if(length < 4 || input.get(HEADER) != 'g' || input.get(HEADER + 1) != 'e' || input.get(HEADER + 2) != 't') {
+                unsupported.increment();
+                reply.send(ByteBuffer.wrap(UNSUPPORTED));
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(length, 4096));
+            buffer.put(input.array(), HEADER, length);
+            return new Request(buffer, reply);
+        }
+    }
+
+    /**
+        Answers a request that was not admitted, see AdmissionController.
+        @param request: Request received by this front end.
+    */
+    public void reject(Request request) {
+        shed.increment();
+        request.datagram.send(ByteBuffer.wrap(AdmissionController.REJECTED));
+    }
+
+    /**
+        Destination of the response to a request received over UDP. Responses can be sent by any thread.
+    */
+    public class Reply {
+        private final SocketAddress client;
+        private final int requestId;
+
+        private Reply(SocketAddress client, int requestId) {
+            this.client = client;
+            this.requestId = requestId;
+        }
+
+        /**
+            Sends a complete response to the client, split into datagrams. A datagram the socket buffer cannot hold is dropped.
+            @param response: ByteBuffer of the response from its position to its limit.
+        */
+        public void send(ByteBuffer response) {
+            int payload = MAX_DATAGRAM - HEADER;
+            int total = (response.remaining() + payload - 1) / payload;
+            if(total > maxDatagrams || total > 0xFFFF) {
+                oversize.increment();
+                response = ByteBuffer.wrap(TOO_LARGE);
+                total = 1;
+            }
+            total = Math.max(total, 1);
+            ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+            for(int sequence = 0; sequence < total; sequence++) {
+                datagram.clear();
+                datagram.putShort((short) requestId).putShort((short) sequence).putShort((short) total).putShort((short) 0);
+                int length = Math.min(payload, response.remaining());
+                datagram.put(response.array(), response.arrayOffset() + response.position(), length);
+                response.position(response.position() + length);
+                datagram.flip();
+                try {
+                    if(channel.send(datagram, client) == 0) {
+                        sendDropped.increment();
+                    } else {
+                        datagramsSent.increment();
+                    }
+                } catch(IOException ex) {
+                    sendDropped.increment();
+                    HOT_LOG.log(SYS_LOG, Level.INFO, "Could not send a datagram to " + client + ": " + ex);
+                }
+            }
+            responses.increment();
+        }
+    }
+
+    /**
+        This function should be called as the middleware shuts down.
+        @return String containing the counters of the datagrams received and sent.
+    */
+    public String getStats() {
+        StringBuilder result = new StringBuilder(512);
+        Formatter formatter = new Formatter(result);
+        formatter.format("\n\n UDP (port %d, responses of at most %d datagrams)\n", getLocalPort(), maxDatagrams);
+        formatter.format("%-40s%10d\n", "Datagrams received", received.sum());
+        formatter.format("%-40s%10d\n", "Dropped, shorter than the frame header", malformed.sum());
+        formatter.format("%-40s%10d\n", "Dropped, request of several datagrams", fragmented.sum());
+        formatter.format("%-40s%10d\n", "Answered, not a get or gets", unsupported.sum());
+        formatter.format("%-40s%10d\n", "Answered, rejected by admission", shed.sum());
+        formatter.format("%-40s%10d\n", "Responses", responses.sum());
+        formatter.format("%-40s%10d\n", "Datagrams sent", datagramsSent.sum());
+        formatter.format("%-40s%10d\n", "Datagrams dropped, socket buffer full", sendDropped.sum());
+        formatter.format("%-40s%10d\n", "Oversize responses replaced by errors", oversize.sum());
+        return result.toString();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+    VectorScanner.java
+    19-12-2017
+
+    @Description: Implementation of ProtocolScanner with the incubator vector API of the JDK. A block of the preferred vector size of the CPU (16 bytes with SSE or NEON, 32 with AVX2, 64 with AVX-512) is loaded and compared to the delimiter at once, the resulting mask gives the first match and the number of matches. The end of a line is found by comparing a block to '\r' and the block one byte further to '\n', the start of a token by comparing a block and the block one byte before to a space. The bytes after the last complete block are scanned one at a time. This class can only be loaded if the JVM runs with --add-modules jdk.incubator.vector, see ProtocolScanner.get().
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+    Class scanning the protocol a vector at a time.
+*/
+final class VectorScanner extends ProtocolScanner {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+
+    /**
+        Constructor. Fails if the CPU has no vector registers of at least 16 bytes, the scalar implementation is then used.
+    */
+    VectorScanner() {
+        if(LANES < 16 || LANES > 64) {
+            throw new UnsupportedOperationException("Vectors of " + LANES + " bytes are not supported.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + LANES + " bytes)";
+    }
+
+    /**
+        Loads the block starting at an index.
+    */
+    private static ByteVector load(ByteBuffer buffer, int idx) {
+        if(buffer.hasArray()) {
+            return ByteVector.fromArray(SPECIES, buffer.array(), buffer.arrayOffset() + idx);
+        }
+        return ByteVector.fromByteBuffer(SPECIES, buffer, idx, ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        int idx = from;
+        for(; idx + LANES <= to; idx += LANES) {
+            VectorMask<Byte> matches = load(buffer, idx).eq(b);
+            if(matches.anyTrue()) {
+                return idx + matches.firstTrue();
+            }
+        }
+        return super.indexOf(buffer, idx, to, b);
+    }
+
+    @Override
+    public int indexOfCrlf(ByteBuffer buffer, int from, int to) {
+        // The block starting one byte later holds the byte following every byte of the block
+        int idx = from;
+        for(; idx + LANES < to; idx += LANES) {
+            VectorMask<Byte> cr = load(buffer, idx).eq((byte) '\r');
+            if(cr.anyTrue()) {
+                VectorMask<Byte> crlf = cr.and(load(buffer, idx + 1).eq((byte) '\n'));
+                if(crlf.anyTrue()) {
+                    return idx + crlf.firstTrue();
+                }
+            }
+        }
+        return super.indexOfCrlf(buffer, idx, to);
+    }
+
+    @Override
+    int countTokens(ByteBuffer buffer, int from, int to, boolean afterSpace) {
+        if(from >= to) {
+            return 0;
+        }
+        // A token starts at every byte that is not a space and follows a space, the first byte is
+        // compared to the previous one given by afterSpace
+        int tokens = afterSpace && buffer.get(from) != ' ' ? 1 : 0;
+        int idx = from + 1;
+        for(; idx + LANES <= to; idx += LANES) {
+            VectorMask<Byte> previous = load(buffer, idx - 1).eq((byte) ' ');
+            tokens += previous.andNot(load(buffer, idx).eq((byte) ' ')).trueCount();
+        }
+        return tokens + super.countTokens(buffer, idx, to, buffer.get(idx - 1) == ' ');
+    }
+}
@@ -2,7 +2,7 @@
     Worker.java
     21-10-2017
 
-    @Description: Implements a worker thread that will take requests from the queue filled by the middleware and process these requests. On initialisation, it will connnect to all Memcached servers and keep the connections alive until the middleware is shutdown.
+    @Description: Implements a worker thread that will take requests from the queue filled by the middleware and process these requests. Once it runs, it will connect to all Memcached servers in parallel and keep the connections alive until the middleware is shutdown.
     @Author: Jakob Beckmann
 */
 
@@ -11,13 +11,20 @@ package asl_project.util;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Formatter;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.nio.channels.*;
 import java.nio.ByteBuffer;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import asl_project.logging.RateLimiter;
 
 
 /**
@@ -25,7 +32,7 @@ import java.util.logging.Logger;
 */
 public class Worker implements Runnable {
     // This is a flag to clear the histogram on the first call to getRecord()
-    private static boolean clear_histogram = true;
+    private boolean clear_histogram = true;
 
     // Private fields for analysis
     private int hist_count = 0;
@@ -63,23 +70,117 @@ public class Worker implements Runnable {
     // Histogram
     public ArrayList<Integer> histogram;
 
+    // Latencies from the arrival at the net thread, and corrected for coordinated omission
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private LatencyHistogram latencies_corrected = new LatencyHistogram();
+    // Latencies of the current logging interval by request type, null unless the time series is kept
+    private LatencyHistogram[] latencies_interval = null;
+
+    // Separator line used in the final statistics
+    private static final String SEPARATOR = new String(new char[80]).replace('\0', '=');
+
 
     // Logger
     private static final Logger SYS_LOG = Logger.getLogger("System");
+    private static final RateLimiter HOT_LOG = new RateLimiter(10);
 
     // Private fields
     private BlockingQueue<Request> queue;
+    private LaneScheduler lanes = null;
     private int id;
     private boolean sharded;
     private ArrayList<SocketChannel> connections;
     private int serverCount;
+    private Options options;
+    private PoolController pool = null;
 
     // Used to block the complete function when logging is performed.
     private CountDownLatch lock_complete;
     private CountDownLatch lock_logger;
 
-    // Variable used for load balancing
-    private static int server = 0;
+    // Used for load balancing, shared by all workers of a middleware
+    private ReplicaSelector selector;
+
+    // Servers the worker is connected to. If the servers can change, the worker switches to the current
+    // view of the membership between two requests.
+    private Membership membership = null;
+    private Membership.View view = null;
+    private String[] names;
+
+    private HedgePolicy hedge = null;
+    private AdmissionController admission = null;
+    private CircuitBreaker breaker = null;
+    private ReplicaRepair repair = null;
+    private Compression.Codec codec = null;
+    private Journal journal = null;
+    private int writeQuorum;
+
+    // Pools of servers the keys are routed to by their prefix. The servers of every pool are resolved to the
+    // connections of the worker, see resolvePools(). Targets are the servers the current request may be sent to.
+    private KeyRouter router = null;
+    private int[][] poolServers;
+    private boolean[] targets;
+    private int targetCount;
+    private KeyRouter.Pool routedPool;
+
+    // Statistics per pool, guarded by the lock of the worker
+    private long[] poolSets;
+    private long[] poolGets;
+    private long[] poolMultigets;
+    private long[] poolServerTime;
+    private LatencyHistogram[] poolLatencies;
+
+    // Sketch of the keys of every sampleEvery-th completed request, guarded by the lock of the worker
+    private HotKeys hotKeys = null;
+    private int sampleEvery;
+    private int sampleCount = 0;
+
+    // Used for hedged reads and timeouts. The connections are then non-blocking and waited for with the
+    // selector of the worker. A connection is stale if a response is still to be discarded, e.g. the one
+    // of a hedged read that lost. Connections to failed servers are null.
+    private InetSocketAddress[] addresses;
+    private long timeout;
+    private Selector ioSelector = null;
+    private SelectionKey[] ioKeys;
+    private boolean[] stale;
+    private long[] staleSince;
+    private boolean[] sentTo;
+    private boolean[] storedOn;
+    private int[] up;
+    private ByteBuffer scratch;
+
+    // Get commands of the servers a multiget is split across and the offsets of its keys, see gather()
+    private ByteBuffer[] commands;
+    private int[] keyBounds;
+
+    // Buffers the responses of the servers are read into. They grow for large values, see grow().
+    private ByteBuffer response;
+    private ByteBuffer temp;
+
+    // Used to forward the rest of the value of a streamed SET from the client to the servers
+    private ByteBuffer chunk = null;
+    private Selector clientSelector = null;
+
+    // Connections are opened by the worker thread once it starts, see connectAll(). Failed connections
+    // are opened again on demand, not before nextConnect (in microseconds), see available(). Without
+    // circuit breaker, they are opened without blocking, nextConnect is then the connect deadline.
+    private long[] nextConnect;
+    private SocketChannel[] connecting;
+    private StartupMonitor startup = null;
+
+    // Response if no server could answer a request
+    private static final byte[] NO_SERVER = "SERVER_ERROR no memcached server available\r\n".getBytes();
+    private static final byte[] TOO_LARGE = "SERVER_ERROR object too large for cache\r\n".getBytes();
+    private static final byte[] POOL_BUSY = "SERVER_ERROR too many requests in flight for the server pool\r\n".getBytes();
+    private static final byte[] STORED = "STORED\r\n".getBytes();
+    private static final byte[] GET = "get".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    // Time in milliseconds the rest of a streamed SET may take to arrive in addition to its transfer at the
+    // minimum rate in bytes per second, such that a slow client cannot hold a worker, and largest response read
+    private static final long STREAM_TIMEOUT = 1000L;
+    private static final long STREAM_MIN_RATE = 1L << 20;
+    private static final int MAX_RESPONSE = 32 * Request.MAX_VALUE;
 
 
 
@@ -91,274 +192,1620 @@ public class Worker implements Runnable {
         @param readSharded: Boolean for read sharding. See MyMiddleware for more information.
     */
     public Worker(BlockingQueue<Request> queue, int threadID, List<String> mcAddresses, boolean readSharded) {
+        this(queue, threadID, mcAddresses, readSharded, new Options());
+    }
+
+    /**
+        Contructor. Creates a runnable object listening for requests on queue and processing them with the servers listen in its third argument, potentially sharding reads.
+        @param queue: A blocking queue of requests. This is the queue the worker thread will get the requests to process from.
+        @param threadID: Integer giving the unique ID for the middleware to be able to identify it.
+        @param mcAddresses: List of strings containing all addresses and ports of the Memcached servers the worker will connect to.
+        @param readSharded: Boolean for read sharding. See MyMiddleware for more information.
+        @param options: Options of the middleware.
+    */
+    public Worker(BlockingQueue<Request> queue, int threadID, List<String> mcAddresses, boolean readSharded, Options options) {
         this.queue = queue;
+        if(queue instanceof LaneScheduler) {
+            // Take requests through the scheduler such that reservations of workers apply
+            this.lanes = (LaneScheduler) queue;
+        }
+        this.options = options;
         this.id = threadID;
         this.sharded = readSharded;
         this.connections = new ArrayList<SocketChannel>();
         this.lock_complete = new CountDownLatch(0);
         this.lock_logger = new CountDownLatch(0);
         this.histogram = new ArrayList<Integer>();
+        this.selector = new ReplicaSelector(mcAddresses, ReplicaSelector.Policy.ROUND_ROBIN);
+
+        this.timeout = options.serverTimeout;
+        this.serverCount = mcAddresses.size();
+        this.names = mcAddresses.toArray(new String[0]);
+        this.addresses = new InetSocketAddress[this.serverCount];
+        this.stale = new boolean[this.serverCount];
+        this.staleSince = new long[this.serverCount];
+        this.sentTo = new boolean[this.serverCount];
+        this.storedOn = new boolean[this.serverCount];
+        this.up = new int[this.serverCount];
+        this.commands = new ByteBuffer[this.serverCount];
+        this.keyBounds = new int[64];
+        this.nextConnect = new long[this.serverCount];
+        this.connecting = new SocketChannel[this.serverCount];
+        this.scratch = ByteBuffer.allocate(16384);
+        this.response = ByteBuffer.allocate(16384);
+        this.temp = ByteBuffer.allocate(16384);
+
+        // Resolve the Memcached servers, the connections are opened once the worker runs
+        for(int server = 0; server < this.serverCount; server++) {
+            String address = mcAddresses.get(server);
+            String host = address.split(":")[0];
+            int port = Integer.parseInt(address.split(":")[1]);
+            addresses[server] = new InetSocketAddress(host, port);
+            connections.add(null);
+        }
+
+        // Reads can only time out on non-blocking connections
+        if(this.timeout > 0) {
+            enableSelector();
+        }
+    }
+
+
+    /**
+        Makes the worker only take requests while it is part of the active workers of the pool.
+        @param pool: PoolController deciding on the number of active workers.
+    */
+    public void setPoolController(PoolController pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+        Makes the worker follow the servers of a membership, and use the replica selector and circuit breaker of its current view, which are shared with the other workers. By default, each worker balances its own reads in round robin over the servers given to the constructor.
+        @param membership: Membership whose current view contains the servers given to the constructor.
+    */
+    public void setMembership(Membership membership) {
+        this.membership = membership;
+        this.view = membership.getView();
+        this.selector = view.selector;
+        this.breaker = view.breaker;
+    }
+
+
+    /**
+        Makes the worker report the connections it opened when it starts.
+        @param startup: StartupMonitor shared by the workers.
+    */
+    public void setStartupMonitor(StartupMonitor startup) {
+        this.startup = startup;
+    }
+
+
+    /**
+        Makes the worker drop requests that waited too long in the queue, as decided by the admission controller.
+        @param admission: AdmissionController shared by the workers.
+    */
+    public void setAdmissionController(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+
+    /**
+        Enables hedged reads. This switches the connections of the worker to non-blocking mode, such that the worker can wait for two servers at once. If this fails, reads are not hedged.
+        @param hedge: HedgePolicy shared by the workers.
+    */
+    public void setHedgePolicy(HedgePolicy hedge) {
+        if(this.serverCount < 2 || !enableSelector()) {
+            return;
+        }
+        this.hedge = hedge;
+    }
+
+
+    /**
+        Makes the worker record SETs missed by a server in the retry log, and sample GETs for read repair.
+        @param repair: ReplicaRepair shared by the workers.
+    */
+    public void setReplicaRepair(ReplicaRepair repair) {
+        this.repair = repair;
+    }
+
+
+    /**
+        Makes the worker compress the values of SETs sent to the servers, and decompress them in the responses to the clients.
+        @param compression: Compression shared by the workers.
+    */
+    public void setCompression(Compression compression) {
+        this.codec = compression.newCodec();
+    }
+
+
+    /**
+        Makes the worker acknowledge SETs once a quorum of the servers stored them, and append them to the journal for the others.
+        @param journal: Journal shared by the workers.
+        @param writeQuorum: Integer of the number of servers that store a SET before it is acknowledged.
+    */
+    public void setJournal(Journal journal, int writeQuorum) {
+        this.journal = journal;
+        this.writeQuorum = writeQuorum;
+    }
+
+
+    /**
+        Makes the worker route the keys to pools of servers by their prefix.
+        @param router: KeyRouter shared by the workers.
+    */
+    public void setKeyRouter(KeyRouter router) {
+        this.router = router;
+        int count = router.getPools().size();
+        this.poolSets = new long[count];
+        this.poolGets = new long[count];
+        this.poolMultigets = new long[count];
+        this.poolServerTime = new long[count];
+        this.poolLatencies = new LatencyHistogram[count];
+        for(int idx = 0; idx < count; idx++) {
+            this.poolLatencies[idx] = new LatencyHistogram();
+        }
+        resolvePools();
+    }
+
+    /**
+        Resolves the servers of the pools to the connections of the worker, whenever the servers change.
+    */
+    private void resolvePools() {
+        List<KeyRouter.Pool> pools = router.getPools();
+        this.poolServers = new int[pools.size()][];
+        for(KeyRouter.Pool pool: pools) {
+            this.poolServers[pool.id] = pool.resolve(this.names);
+        }
+        this.targets = new boolean[this.serverCount];
+    }
+
+
+    /**
+        Makes the worker track the most requested keys, see drainHotKeys().
+        @param capacity: Integer of the number of keys tracked by the worker.
+        @param sampleEvery: Integer, every sampleEvery-th completed request is counted.
+    */
+    public void setHotKeys(int capacity, int sampleEvery) {
+        this.hotKeys = new HotKeys(capacity);
+        this.sampleEvery = Math.max(sampleEvery, 1);
+    }
+
+
+    /**
+        Makes the worker record the latencies of every logging interval by request type, see getRecord().
+    */
+    public synchronized void setIntervalLatencies() {
+        this.latencies_interval = new LatencyHistogram[Request.Type.values().length];
+        for(int type = 0; type < latencies_interval.length; type++) {
+            this.latencies_interval[type] = new LatencyHistogram();
+        }
+    }
+
+
+    /**
+        Switches the connections of the worker to non-blocking mode and registers them with the selector of the worker.
+        @return true if the connections are non-blocking.
+    */
+    private boolean enableSelector() {
+        if(ioSelector != null) {
+            return true;
+        }
+        try {
+            this.ioSelector = Selector.open();
+            this.ioKeys = new SelectionKey[this.serverCount];
+            for(int server = 0; server < this.serverCount; server++) {
+                if(connections.get(server) != null) {
+                    connections.get(server).configureBlocking(false);
+                    ioKeys[server] = connections.get(server).register(ioSelector, 0);
+                }
+            }
+        } catch(IOException ex) {
+            SYS_LOG.warning("Could not set up non-blocking connections for thread " + this.id);
+            this.ioSelector = null;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+        Override of the run() function from Runnable. This runs the worker thread when the thread is started.
+    */
+    @Override
+    public void run() {
+        // Requests arriving meanwhile wait in the queue
+        connectAll();
+        if(startup != null) {
+            startup.connected(connections);
+        }
+        while(true) {
+            // First check if the thread has been interrupted
+            if(Thread.interrupted()) {
+                for(SocketChannel connection: connecting) {
+                    close(connection);
+                }
+                for(SocketChannel connection: connections) {
+                    if(connection == null) {
+                        continue;
+                    }
+                    try {
+                        connection.close();
+                    } catch(IOException ex) {
+                        SYS_LOG.info("A connection to a Memcached server could not be closed on shutdown for thread " + this.id);
+                    }
+                }
+                if(clientSelector != null) {
+                    try {
+                        clientSelector.close();
+                    } catch(IOException ex) {
+                        // The selector is discarded anyway
+                    }
+                }
+                if(ioSelector != null) {
+                    try {
+                        ioSelector.close();
+                    } catch(IOException ex) {
+                        SYS_LOG.info("The selector for the server connections could not be closed on shutdown for thread " + this.id);
+                    }
+                }
+                return;
+            }
+
+            // Process requests since the thread is not interrupted
+            Request request = null;
+            try {
+                if(pool != null) {
+                    pool.awaitActive(this.id);          // This blocks while the worker is deactivated
+                }
+                request = lanes != null ? lanes.take(this.id) : queue.take();            // This blocks until a request becomes available
+                request.time_dqed = System.nanoTime() >> 10;            // In microseconds
+                if(request.queueEvent != null) {
+                    FlightEvents.dequeued(request, this.id);
+                }
+
+                // Switch to the current servers, no request of this worker is in flight
+                if(membership != null && membership.getView() != view) {
+                    reconfigure(membership.getView());
+                }
+
+                // Drop the request if the queue is overloaded, or if the net thread rejected it. Shed requests
+                // are only counted by the admission controller, not by completed().
+                if(request.shed || admission != null && admission.drop(request)) {
+                    reject(request, AdmissionController.REJECTED);
+                    continue;
+                }
+
+                // Parse request to find out type
+                if(!request.parse()) {
+                    // The command sent by the client is invalid, send ERROR back
+                    reject(request, "ERROR\r\n".getBytes());
+                    completed(request);
+                    continue;
+                }
+
+                // Find the servers of the keys, the request is rejected if their pool is full
+                boolean split = false;
+                if(router != null) {
+                    split = request.type == Request.Type.MULTIGET ? targetKeys(request) : targetKey(request);
+                    if(!routedPool.tryAcquire()) {
+                        // Counted like other answered requests, but neither as a hit nor for the pool
+                        request.hit = false;
+                        reject(request, POOL_BUSY);
+                        completed(request);
+                        continue;
+                    }
+                    request.serverPool = routedPool;
+                }
+
+                response.clear();
+                temp.clear();
+                if(split) {
+                    // ===================================================================================================
+                    // MULTIGET ACROSS SERVERS OF POOLS
+                    // ===================================================================================================
+                    routedRead(request);
+                    completed(request);
+                } else if(this.sharded && router == null && request.type == Request.Type.MULTIGET) {
+                    // ===================================================================================================
+                    // SHARDED MUTLIGET
+                    // ===================================================================================================
+                    shardedRead(request);
+                    completed(request);
+                } else if(request.type == Request.Type.SET) {
+                    // ===================================================================================================
+                    // SET REQUEST: send request to all servers
+                    // ===================================================================================================
+                    if(request.getDataLength() > Request.MAX_VALUE) {
+                        reject(request, TOO_LARGE);
+                        completed(request);
+                        continue;
+                    }
+                    // The value is compressed once for all servers, unless it is streamed
+                    ByteBuffer command = codec != null ? codec.encode(request.buffer) : request.buffer;
+                    if(command == null) {
+                        reject(request, Compression.RESERVED_FLAG);
+                        completed(request);
+                        continue;
+                    }
+                    // With a journal, the key determines the servers of the quorum, such that every server
+                    // receives the SETs of a key in order. Streamed values are not held by the worker and
+                    // hence sent to all servers.
+                    boolean async = journal != null && request.remaining == 0 && writeQuorum < this.serverCount;
+                    int first = 0;
+                    if(async) {
+                        int start = keyStart(command);
+                        first = Math.floorMod(KeyRouter.hash(command.array(), start, keyEnd(command.array(), start)), this.serverCount);
+                    }
+                    request.sent();
+                    int replicas = router != null ? targetCount : this.serverCount;
+                    for(int server = 0; server < this.serverCount; server++) {
+                        sentTo[server] = false;
+                        if(async && (server - first + this.serverCount) % this.serverCount >= writeQuorum) {
+                            continue;
+                        }
+                        if(router != null && !targets[server]) {
+                            continue;
+                        }
+                        if(available(server)) {
+                            try {
+                                send(server, command);
+                                sentTo[server] = true;
+                            } catch(BackendException ex) {
+                                fail(ex.server);
+                            }
+                        }
+                        command.rewind();
+                    }
+                    // The rest of a streamed value is forwarded as it arrives
+                    if(request.remaining > 0 && !forward(request)) {
+                        request.received();
+                        completed(request);
+                        continue;
+                    }
+
+                    request.hit = true;
+                    int stored = 0;
+                    for(int server = 0; server < this.serverCount; server++) {
+                        storedOn[server] = false;
+                        if(!sentTo[server]) {
+                            continue;
+                        }
+                        temp.clear();
+                        try {
+                            receive(server, temp);
+                            succeeded(server);
+                        } catch(BackendException ex) {
+                            fail(ex.server);
+                            continue;
+                        }
+                        selector.served(server, (System.nanoTime() >> 10) - request.time_mmcd_sent);
+                        // Check if the server reponded something else than stored
+                        if(temp.position() != STORED.length || !ProtocolScanner.endsWith(temp, STORED.length, "STORED\r\n")) {
+                            if(request.hit == true) {
+                                request.received();
+                                request.hit = false;
+                                // It did, relay the message to the client
+                                temp.flip();
+                                request.respond(temp);
+                            }
+                        } else {
+                            stored++;
+                            storedOn[server] = true;
+                            if(repair != null) {
+                                repair.stored(names[server], command);
+                            }
+                            if(journal != null) {
+                                journal.stored(names[server], command, request.time_mmcd_sent, request.remaining == 0);
+                            }
+                        }
+                    }
+                    request.received();
+                    // The other servers, and the ones of the quorum that failed, receive the SET from the journal
+                    if(async && stored > 0) {
+                        for(int server = 0; server < this.serverCount; server++) {
+                            if(!storedOn[server] && !journal.append(names[server], command) && repair != null) {
+                                repair.failed(names[server], command);
+                            }
+                        }
+                    }
+                    // The servers that missed the SET are repaired in the background, unless the value was
+                    // streamed and hence is not held by the worker
+                    if(repair != null && !async && stored > 0 && stored < replicas && request.remaining == 0) {
+                        for(int server = 0; server < this.serverCount; server++) {
+                            if(!storedOn[server] && (router == null || targets[server])) {
+                                repair.failed(names[server], command);
+                            }
+                        }
+                    }
+                    if(request.hit == false) {
+                        completed(request);
+                        // Request is completed, skip to next request
+                        continue;
+                    }
+                    if(stored == 0) {
+                        noServer(request);
+                        completed(request);
+                        continue;
+                    }
+                    // Servers that are down or failed are repaired by later SETs only
+                    if(stored < (async ? writeQuorum : replicas) && breaker != null) {
+                        breaker.degraded();
+                    }
+                    // All servers that could be reached responded with STORED
+                    request.respond(ByteBuffer.wrap(STORED));
+                    completed(request);
+                    // Request is completed, skip to next request
+                    continue;
+                } else {
+                    // ===================================================================================================
+                    // GET / NON-SHARDED MULTIGET
+                    // ===================================================================================================
+                    // If the server fails, the request is retried once on another server
+                    boolean read = false;
+                    for(int attempt = 0; !read && attempt < 2; attempt++) {
+                        response.clear();
+                        request.buffer.rewind();
+                        try {
+                            read = this.hedge != null ? hedgedRead(request) : read(request);
+                        } catch(BackendException ex) {
+                            fail(ex.server);
+                        }
+                    }
+                    if(!read) {
+                        noServer(request);
+                        completed(request);
+                        continue;
+                    }
+
+                    // Only the lines of the values are scanned, the values themselves are skipped
+                    int num_hits = ProtocolScanner.get().countValues(response, 0, response.position());
+                    if(request.type == Request.Type.MULTIGET) {
+                        synchronized(this) {
+                            this.hits_multiget += num_hits;
+                            this.hits_interval += num_hits;
+                            this.misses_multiget += request.multigetLength - num_hits;
+                        }
+                    }
+
+                    request.hit = num_hits > 0;
+                    // Keys are only on all servers without pools
+                    if(repair != null && router == null && request.type == Request.Type.GET) {
+                        repair.sample(request.buffer);
+                    }
+
+
+                    response.flip();
+                    request.respond(codec != null ? codec.decode(response) : response);
+                    completed(request);
+                }
+
+            } catch(BackendException ex) {
+                fail(ex.server);
+                HOT_LOG.log(SYS_LOG, Level.INFO, "Error communicating with server.");
+            } catch(IOException ex) {
+                HOT_LOG.log(SYS_LOG, Level.INFO, "Error communicating with client or server.");
+            } catch(InterruptedException ex) {
+                SYS_LOG.info(String.format("Thread %d was interrupted. Shutting it down.", this.id));
+                Thread.currentThread().interrupt();
+            } finally {
+                if(request != null) {
+                    if(request.serverPool != null) {
+                        request.serverPool.release();
+                    }
+                    AdmissionController.release(request);
+                    if(request.remaining > 0) {
+                        request.resume();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+        This function takes care of sharding multigets across servers and return their composite response. Servers that are down are skipped. If a server fails, the client gets an error and the responses of the other servers are discarded.
+        @param request: Request to be sharded
+    */
+    private void shardedRead(Request request) throws IOException {
+
+        // Get the offsets of the individual keys in the get command
+        if(keyBounds.length < 2 * request.multigetLength) {
+            keyBounds = new int[2 * request.multigetLength];
+        }
+        int keys = Worker.splitKeys(request.buffer, keyBounds);
+        byte[] array = request.buffer.array();
+
+        // Servers the keys are distributed accross
+        int upCount = 0;
+        for(int server = 0; server < this.serverCount; server++) {
+            sentTo[server] = false;
+            if(readable(server) && available(server)) {
+                up[upCount++] = server;
+            }
+        }
+        if(upCount == 0) {
+            noServer(request);
+            return;
+        }
+
+        clearCommands(request.buffer.limit());
+        if(keys < upCount) {
+            // We have less arguments than available servers, every key goes to a different server
+            int start = selector.roundRobin();
+            for(int idx = 0; idx < keys; idx++) {
+                Worker.appendKey(commands[up[(start + idx + 1) % upCount]], array, keyBounds[2 * idx], keyBounds[2 * idx + 1]);
+            }
+        } else {
+            // We have more arguments than available servers
+            for(int idx = 0; idx < upCount; idx++) {
+                Worker.shardCommand(commands[up[idx]], array, keyBounds, keys, idx, upCount);
+            }
+        }
+        gather(request);
+    }
+
+    /**
+        Empties the get commands of all servers before the keys of a multiget are appended to them, see appendKey().
+        @param length: Integer of the length of the multiget, none of the commands is longer.
+    */
+    private void clearCommands(int length) {
+        for(int server = 0; server < this.serverCount; server++) {
+            if(commands[server] == null || commands[server].capacity() < length + GET.length) {
+                commands[server] = ByteBuffer.allocate(Math.max(length + GET.length, 1024));
+            }
+            commands[server].clear();
+        }
+    }
+
+    /**
+        Sends a multiget to every server with the keys of the multiget it holds, see shardedRead() and routedRead(), and responds with the composite response. If a server fails, the client gets an error and the responses of the other servers are discarded.
+        @param request: Request of the multiget, whose keys were appended to the get commands of the servers.
+    */
+    private void gather(Request request) throws IOException {
+        boolean responded = false;
+        request.sent();
+        try {
+            for(int server = 0; server < this.serverCount; server++) {
+                if(Worker.endCommand(commands[server]).hasRemaining()) {
+                    // Keep track of which servers we sent a request to
+                    sentTo[server] = true;
+                    selector.sent(server);
+                    send(server, commands[server]);
+                }
+            }
+
+            for(int server = 0; server < this.serverCount; server++) {
+                if(!sentTo[server]) {
+                    continue;
+                }
+                temp.clear();
+                do {
+                    if(!temp.hasRemaining()) {
+                        temp = grow(temp);
+                    }
+                    receive(server, temp);
+                } while(!Worker.isResponseComplete(temp));
+                sentTo[server] = false;
+                selector.received(server, (System.nanoTime() >> 10) - request.time_mmcd_sent);
+                succeeded(server);
+
+                // Check if an error occured
+                if(ProtocolScanner.endsWith(temp, temp.position(), "ERROR\r\n")) {
+                    if(!responded) {
+                        responded = true;
+                        request.respond(ByteBuffer.wrap("ERROR\r\n".getBytes()));
+                    }
+                }
+
+                // Remove the "END\r\n" of the end of the message
+                temp.position(temp.position() - 5);
+                temp.flip();
+                while(response.remaining() < temp.remaining() + 5) {
+                    response = grow(response);
+                }
+                response.put(temp);
+            }
+        } catch(BackendException ex) {
+            // The responses of the other servers are discarded before their connections are used again
+            for(int server = 0; server < this.serverCount; server++) {
+                if(sentTo[server] && server != ex.server) {
+                    stale[server] = true;
+                    staleSince[server] = request.time_mmcd_sent;
+                }
+            }
+            if(sentTo[ex.server]) {
+                selector.received(ex.server, (System.nanoTime() >> 10) - request.time_mmcd_sent);
+            }
+            fail(ex.server);
+            request.received();
+            if(!responded) {
+                noServer(request);
+            }
+            return;
+        }
+        request.received();
+        response.put("END\r\n".getBytes());
+        response.flip();
+
+        // Count number of hits / misses
+        int num_hits = responded ? 0 : ProtocolScanner.get().countValues(response, 0, response.limit());
+        if(!responded) {
+            request.respond(codec != null ? codec.decode(response) : response);
+        }
+        synchronized(this) {
+            this.hits_multiget += num_hits;
+            this.hits_interval += num_hits;
+            this.misses_multiget += request.multigetLength - num_hits;
+        }
+    }
+
+    /**
+        Sends every key of a multiget to a replica of the key in its pool, see targetKeys(). The keys of a sharded pool are read from their first replica, the other pools send all their keys to the same replica, chosen round robin.
+        @param request: Request of the multiget.
+    */
+    private void routedRead(Request request) throws IOException {
+        for(int server = 0; server < this.serverCount; server++) {
+            sentTo[server] = false;
+        }
+        clearCommands(request.buffer.limit());
+        byte[] array = request.buffer.array();
+        int end = request.buffer.limit() - 2;
+        int rotation = selector.roundRobin();
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int from = keyStart(request.buffer);
+        while(from >= 0 && from < end) {
+            if(array[from] == ' ') {
+                from++;
+                continue;
+            }
+            int to = scanner.indexOf(request.buffer, from, end, (byte) ' ');
+            to = to < 0 ? end : to;
+            int server = replica(router.route(array, from, to), array, from, to, rotation);
+            if(server < 0) {
+                noServer(request);
+                return;
+            }
+            Worker.appendKey(commands[server], array, from, to);
+            from = to;
+        }
+        gather(request);
+    }
+
+    /**
+        Chooses the server a key of a multiget is read from.
+        @param pool: Pool of the key.
+        @param array: Byte array containing the key.
+        @param from: Integer of the index of the first byte of the key.
+        @param to: Integer of the index after the last byte of the key.
+        @param rotation: Integer choosing the replica of pools that are not sharded, the same for all keys of a request.
+        @return Integer of the index of the first readable and available replica, -1 if there is none.
+    */
+    private int replica(KeyRouter.Pool pool, byte[] array, int from, int to, int rotation) {
+        int[] servers = poolServers[pool.id];
+        int size = servers.length;
+        int replicas = pool.getReplicas(size);
+        if(size == 0) {
+            return -1;
+        }
+        int first = Math.floorMod(KeyRouter.hash(array, from, to), size);
+        for(int idx = 0; idx < replicas; idx++) {
+            int slot;
+            if(pool.sharded) {
+                slot = (first + idx) % size;
+            } else if(replicas == size) {
+                slot = Math.floorMod(rotation + idx, size);
+            } else {
+                slot = (first + Math.floorMod(rotation + idx, replicas)) % size;
+            }
+            int server = servers[slot];
+            if(server >= 0 && readable(server) && available(server)) {
+                return server;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        Routes a GET or SET to the replicas of its key, which are then the only targets of the request.
+        @param request: Request that was parsed.
+        @return false, as the request is sent like without pools.
+    */
+    private boolean targetKey(Request request) {
+        byte[] array = request.buffer.array();
+        int start = keyStart(request.buffer);
+        int end = keyEnd(array, start);
+        routedPool = router.route(array, start, end);
+        Arrays.fill(targets, false);
+        targetCount = 0;
+        int[] servers = poolServers[routedPool.id];
+        int size = servers.length;
+        int replicas = routedPool.getReplicas(size);
+        int first = size > 0 ? Math.floorMod(KeyRouter.hash(array, start, end), size) : 0;
+        for(int idx = 0; idx < replicas; idx++) {
+            int server = servers[(first + idx) % size];
+            if(server >= 0) {
+                targets[server] = true;
+                targetCount++;
+            }
+        }
+        return false;
+    }
+
+    /**
+        Routes a multiget. If all keys are in the same pool, whose servers all hold all keys and which is not sharded, the multiget is sent to one server of the pool like without pools. Otherwise the keys are split across servers by routedRead(). The request counts for the pool of its first key.
+        @param request: Request that was parsed.
+        @return true if the keys must be split.
+    */
+    private boolean targetKeys(Request request) {
+        byte[] array = request.buffer.array();
+        int end = request.buffer.limit() - 2;
+        int start = keyStart(request.buffer);
+        routedPool = router.route(array, start, keyEnd(array, start));
+        int size = poolServers[routedPool.id].length;
+        if(routedPool.sharded || routedPool.getReplicas(size) < size) {
+            return true;
+        }
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int from = start;
+        while(from >= 0 && from < end) {
+            if(array[from] == ' ') {
+                from++;
+                continue;
+            }
+            int to = scanner.indexOf(request.buffer, from, end, (byte) ' ');
+            to = to < 0 ? end : to;
+            if(router.route(array, from, to) != routedPool) {
+                return true;
+            }
+            from = to;
+        }
+        Arrays.fill(targets, false);
+        targetCount = 0;
+        for(int server: poolServers[routedPool.id]) {
+            if(server >= 0) {
+                targets[server] = true;
+                targetCount++;
+            }
+        }
+        return false;
+    }
+
+    /**
+        Sends a GET or MULTIGET to a single server.
+        @param request: Request to be sent.
+        @return true if the response was read into the response buffer, false if no server is available.
+    */
+    private boolean read(Request request) throws IOException {
+        // Load balancing
+        int server = route(selector.select() % this.serverCount);
+        if(server < 0) {
+            return false;
+        }
+
+        // Send request to server
+        request.sent();
+        selector.sent(server);
+        try {
+            send(server, request.buffer);
+
+            // Get response from server
+            do {
+                if(!response.hasRemaining()) {
+                    response = grow(response);
+                }
+                receive(server, response);
+            } while(!Worker.isResponseComplete(response));
+        } finally {
+            request.received();
+            selector.received(server, request.time_mmcd_rcvd - request.time_mmcd_sent);
+        }
+        succeeded(server);
+        return true;
+    }
+
+    /**
+        Sends a GET or MULTIGET to a server, and to a second server if the first did not answer within the hedge delay. The first response is read into the buffer, the other one is discarded before the connection is used again.
+        @param request: Request to be sent.
+        @return true if the response was read into the response buffer, false if no server is available.
+    */
+    private boolean hedgedRead(Request request) throws IOException {
+        hedge.read();
+        int primary = route(selector.select() % this.serverCount);
+        if(primary < 0) {
+            return false;
+        }
+        request.sent();
+        selector.sent(primary);
+        send(primary, request.buffer);
+
+        // The selector only waits in milliseconds, the delay is rounded up
+        int server = primary;
+        long time_sent = request.time_mmcd_sent;
+        long delay = hedge.getDelay();
+        if(delay > 0 && await(primary, -1, (delay + 999) / 1000) < 0) {
+            int secondary = -1;
+            for(int idx = 1; secondary < 0 && idx < this.serverCount; idx++) {
+                int candidate = (primary + idx) % this.serverCount;
+                if(!stale[candidate] && (router == null || targets[candidate]) && readable(candidate) && available(candidate)) {
+                    secondary = candidate;
+                }
+            }
+            if(secondary >= 0 && hedge.tryHedge()) {
+                long time_hedged = System.nanoTime() >> 10;       // In microseconds
+                request.buffer.rewind();
+                selector.sent(secondary);
+                try {
+                    send(secondary, request.buffer);
+                } catch(BackendException ex) {
+                    // The primary is still waited for
+                    selector.received(secondary, 0L);
+                    fail(secondary);
+                    secondary = -1;
+                }
+
+                if(secondary >= 0) {
+                    // Wait for the first server to answer, the other one is stale
+                    server = await(primary, secondary, this.timeout);
+                    if(server < 0) {
+                        stale[secondary] = true;
+                        staleSince[secondary] = time_hedged;
+                        selector.received(primary, (System.nanoTime() >> 10) - time_sent);
+                        throw new BackendException(primary, new SocketTimeoutException("No response within " + this.timeout + " ms."));
+                    }
+                    int loser = server == primary ? secondary : primary;
+                    stale[loser] = true;
+                    staleSince[loser] = server == primary ? time_hedged : time_sent;
+                    if(server == secondary) {
+                        time_sent = time_hedged;
+                        hedge.won();
+                    }
+                }
+            }
+        }
+
+        try {
+            do {
+                if(!response.hasRemaining()) {
+                    response = grow(response);
+                }
+                receive(server, response);
+            } while(!Worker.isResponseComplete(response));
+        } finally {
+            request.received();
+            selector.received(server, request.time_mmcd_rcvd - time_sent);
+        }
+        hedge.record(request.time_mmcd_rcvd - time_sent);
+        succeeded(server);
+        return true;
+    }
+
+    /**
+        Checks if a request may be sent to a server. If the connection to the server could not be opened or was closed after a failure, it is reestablished once the reconnect interval passed and the circuit breaker lets a request through.
+        @param server: Integer of the index of the server.
+        @return true if the server is available.
+    */
+    private boolean available(int server) {
+        if(breaker != null && !breaker.isAvailable(server)) {
+            return false;
+        }
+        if(connections.get(server) != null) {
+            return true;
+        }
+        if(breaker == null) {
+            return reconnect(server);
+        }
+        // The worker holds the trial request of the circuit breaker
+        try {
+            connect(server);
+            return true;
+        } catch(IOException ex) {
+            breaker.failure(server);
+            return false;
+        }
+    }
+
+    /**
+        Opens the connection to a server without blocking, such that an unreachable server does not delay requests. Every call checks if the connection was established.
+        @param server: Integer of the index of the server.
+        @return true if the connection is established.
+    */
+    private boolean reconnect(int server) {
+        long now = System.nanoTime() >> 10;
+        SocketChannel connection = connecting[server];
+        try {
+            if(connection == null) {
+                if(now < nextConnect[server]) {
+                    return false;
+                }
+                connection = SocketChannel.open();
+                connecting[server] = connection;
+                connection.configureBlocking(false);
+                nextConnect[server] = options.connectTimeout > 0 ? now + options.connectTimeout * 1000 : Long.MAX_VALUE;
+                if(!connection.connect(addresses[server])) {
+                    return false;
+                }
+            } else if(!connection.finishConnect()) {
+                if(now < nextConnect[server]) {
+                    return false;
+                }
+                throw new SocketTimeoutException("Connect timed out");
+            }
+            connecting[server] = null;
+            opened(server, connection);
+            return true;
+        } catch(IOException ex) {
+            close(connection);
+            connecting[server] = null;
+            nextConnect[server] = now + options.reconnectInterval * 1000;
+            return false;
+        }
+    }
+
+    /**
+        @param server: Integer of the index of the server.
+        @return true if reads may be sent to the server, which is not the case while keys are copied to it.
+    */
+    private boolean readable(int server) {
+        return view == null || view.isReadable(server);
+    }
+
+    /**
+        @param preferred: Integer of the index of the server chosen by the load balancing.
+        @return Integer of the index of the first available server for reads starting from the preferred one, or -1 if no server is available.
+    */
+    private int route(int preferred) {
+        for(int idx = 0; idx < this.serverCount; idx++) {
+            int server = (preferred + idx) % this.serverCount;
+            if((router == null || targets[server]) && readable(server) && available(server)) {
+                return server;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        Switches the worker to a new view of the servers. Stale responses are discarded first, then the connections to servers that were removed are closed, and connections to servers that were added are opened.
+        @param next: View to switch to.
+    */
+    private void reconfigure(Membership.View next) {
+        for(int server = 0; server < this.serverCount; server++) {
+            if(stale[server]) {
+                try {
+                    discard(server);
+                } catch(IOException ex) {
+                    fail(server);
+                }
+            }
+        }
+
+        for(SocketChannel connection: connecting) {
+            close(connection);
+        }
+        ArrayList<SocketChannel> previous = this.connections;
+        SelectionKey[] previousKeys = this.ioKeys;
+        String[] previousNames = this.names;
+
+        int count = next.addresses.length;
+        this.connections = new ArrayList<SocketChannel>(count);
+        this.names = next.addresses;
+        this.addresses = new InetSocketAddress[count];
+        this.ioKeys = ioSelector != null ? new SelectionKey[count] : null;
+        this.stale = new boolean[count];
+        this.staleSince = new long[count];
+        this.sentTo = new boolean[count];
+        this.storedOn = new boolean[count];
+        this.up = new int[count];
+        this.commands = new ByteBuffer[count];
+        this.nextConnect = new long[count];
+        this.connecting = new SocketChannel[count];
+        this.serverCount = count;
+        this.view = next;
+        this.selector = next.selector;
+        this.breaker = next.breaker;
+
+        for(int server = 0; server < count; server++) {
+            String address = names[server];
+            addresses[server] = new InetSocketAddress(address.split(":")[0], Integer.parseInt(address.split(":")[1]));
+            int old = Arrays.asList(previousNames).indexOf(address);
+            if(old >= 0) {
+                // Keep the connection
+                connections.add(previous.get(old));
+                if(ioKeys != null) {
+                    ioKeys[server] = previousKeys[old];
+                }
+                previous.set(old, null);
+                continue;
+            }
+            connections.add(null);
+        }
+        if(router != null) {
+            resolvePools();
+        }
+        connectAll();
+
+        // Close the connections to the servers that were removed
+        for(SocketChannel connection: previous) {
+            if(connection != null) {
+                try {
+                    connection.close();
+                } catch(IOException ex) {
+                    // The connection is discarded anyway
+                }
+            }
+        }
+    }
+
+    /**
+        Opens the connections to all servers the worker is not connected to in parallel, waiting at most the connect timeout for all of them. Servers that could not be connected to are connected to again on demand, see available().
+    */
+    private void connectAll() {
+        long start = System.nanoTime() >> 10;
+        FlightEvents.ConnectEvent event = FlightEvents.recording() ? new FlightEvents.ConnectEvent() : null;
+        if(event != null) {
+            event.begin();
+        }
+        SocketChannel[] pending = new SocketChannel[this.serverCount];
+        int left = 0;
+        try(Selector connector = Selector.open()) {
+            for(int server = 0; server < this.serverCount; server++) {
+                if(connections.get(server) != null) {
+                    continue;
+                }
+                SocketChannel connection = null;
+                try {
+                    connection = SocketChannel.open();
+                    connection.configureBlocking(false);
+                    if(!connection.connect(addresses[server])) {
+                        connection.register(connector, SelectionKey.OP_CONNECT, server);
+                        left++;
+                    }
+                    pending[server] = connection;
+                } catch(IOException ex) {
+                    close(connection);
+                }
+            }
+
+            long deadline = options.connectTimeout > 0 ? start + options.connectTimeout * 1000 : Long.MAX_VALUE;
+            long now = start;
+            while(left > 0 && now < deadline && !Thread.currentThread().isInterrupted()) {
+                connector.select(Math.max((deadline - now) / 1000, 1));
+                for(SelectionKey key: connector.selectedKeys()) {
+                    int server = (Integer) key.attachment();
+                    key.cancel();
+                    left--;
+                    try {
+                        pending[server].finishConnect();
+                    } catch(IOException ex) {
+                        close(pending[server]);
+                        pending[server] = null;
+                    }
+                }
+                connector.selectedKeys().clear();
+                now = System.nanoTime() >> 10;
+            }
+        } catch(IOException ex) {
+            SYS_LOG.warning("Could not open the selector for the server connections of thread " + this.id);
+        }
+
+        // The keys of the connector are deregistered once it is closed
+        int attempted = 0;
+        int failed = 0;
+        for(int server = 0; server < this.serverCount; server++) {
+            if(connections.get(server) != null) {
+                continue;
+            }
+            attempted++;
+            SocketChannel connection = pending[server];
+            try {
+                if(connection == null || !connection.isConnected()) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+                opened(server, connection);
+            } catch(IOException ex) {
+                close(connection);
+                nextConnect[server] = (System.nanoTime() >> 10) + options.reconnectInterval * 1000;
+                failed++;
+            }
+        }
+        if(failed > 0) {
+            SYS_LOG.warning(String.format("%d connections with Memcached servers could not be established for thread %d.", failed, this.id));
+        }
+        if(event != null) {
+            event.end();
+            if(event.shouldCommit()) {
+                event.worker = this.id;
+                event.attempted = attempted;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+        Uses a connection that was opened without blocking.
+        @param server: Integer of the index of the server.
+        @param connection: SocketChannel connected to the server, in non-blocking mode and not registered with any selector.
+    */
+    private void opened(int server, SocketChannel connection) throws IOException {
+        if(ioSelector != null) {
+            ioKeys[server] = connection.register(ioSelector, 0);
+        } else {
+            connection.configureBlocking(true);
+        }
+        connections.set(server, connection);
+    }
+
+    private static void close(SocketChannel connection) {
+        if(connection != null) {
+            try {
+                connection.close();
+            } catch(IOException ex) {
+                // The connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+        Opens the connection to a server, with the connect timeout.
+        @param server: Integer of the index of the server.
+    */
+    private void connect(int server) throws IOException {
+        FlightEvents.ConnectEvent event = FlightEvents.recording() ? new FlightEvents.ConnectEvent() : null;
+        if(event != null) {
+            event.begin();
+            event.worker = this.id;
+            event.server = names[server];
+            event.attempted = 1;
+        }
+        SocketChannel connection = SocketChannel.open();
+        try {
+            connection.socket().connect(addresses[server], (int) options.connectTimeout);
+            if(ioSelector != null) {
+                connection.configureBlocking(false);
+                ioKeys[server] = connection.register(ioSelector, 0);
+            }
+        } catch(IOException ex) {
+            connection.close();
+            if(event != null) {
+                event.failed = 1;
+                event.commit();
+            }
+            throw ex;
+        }
+        connections.set(server, connection);
+        if(event != null) {
+            event.commit();
+        }
+    }
 
-        // Generate sockets for the Memcached servers
-        for(String address: mcAddresses) {
-            String host = address.split(":")[0];
-            int port = Integer.parseInt(address.split(":")[1]);
-            SocketChannel connection;
+    /**
+        Closes the connection to a server after an error or timeout and reports the failure. The connection is reestablished by available().
+        @param server: Integer of the index of the server.
+    */
+    private void fail(int server) {
+        SocketChannel connection = connections.get(server);
+        if(connection != null) {
             try {
-                connection = SocketChannel.open(new InetSocketAddress(host, port));
-                connection.configureBlocking(true);
-                connections.add(connection);
+                connection.close();
             } catch(IOException ex) {
-                SYS_LOG.warning("A connection with a Memcached server could not be established for thread " + this.id);
+                // The connection is discarded anyway
             }
+            connections.set(server, null);
         }
+        if(ioKeys != null) {
+            ioKeys[server] = null;
+        }
+        nextConnect[server] = (System.nanoTime() >> 10) + options.reconnectInterval * 1000;
+        if(stale[server]) {
+            stale[server] = false;
+            selector.received(server, (System.nanoTime() >> 10) - staleSince[server]);
+        }
+        if(breaker != null) {
+            breaker.failure(server);
+        }
+        HOT_LOG.log(SYS_LOG, Level.INFO, "Connection to a memcached server failed and was closed.");
+    }
 
-        this.serverCount = connections.size();
+    /**
+        Reports that a server answered.
+        @param server: Integer of the index of the server.
+    */
+    private void succeeded(int server) {
+        if(breaker != null) {
+            breaker.success(server);
+        }
     }
 
+    /**
+        Answers a request no server could be reached for with an error.
+        @param request: Request to be answered.
+    */
+    private void noServer(Request request) throws IOException {
+        request.hit = false;
+        if(breaker != null) {
+            breaker.failed();
+        }
+        request.respond(ByteBuffer.wrap(NO_SERVER));
+    }
 
     /**
-        Override of the run() function from Runnable. This runs the worker thread when the thread is started.
+        Writes the whole buffer to a server. A stale response of the server is discarded first.
+        @param server: Integer of the index of the server.
+        @param buffer: ByteBuffer to be written.
     */
-    @Override
-    public void run() {
-        ByteBuffer response = ByteBuffer.allocate(16384);
-        ByteBuffer temp = ByteBuffer.allocate(16384);
-        while(true) {
-            // First check if the thread has been interrupted
-            if(Thread.interrupted()) {
-                for(SocketChannel connection: connections) {
-                    try {
-                        connection.close();
-                    } catch(IOException ex) {
-                        SYS_LOG.info("A connection to a Memcached server could not be closed on shutdown for thread " + this.id);
-                    }
+    private void send(int server, ByteBuffer buffer) throws IOException {
+        if(stale[server]) {
+            discard(server);
+        }
+        SocketChannel connection = connections.get(server);
+        try {
+            while(buffer.hasRemaining()) {
+                if(connection.write(buffer) == 0) {
+                    awaitWrite(server);
                 }
-                return;
             }
+        } catch(IOException ex) {
+            throw backendException(server, ex);
+        }
+    }
 
-            // Process requests since the thread is not interrupted
-            try {
-                Request request = queue.take();            // This blocks until a request becomes available
-                request.time_dqed = System.nanoTime() >> 10;            // In microseconds
-
-
-                // Parse request to find out type
-                if(!request.parse()) {
-                    // The command sent by the client is invalid, send ERROR back
-                    request.channel.write(ByteBuffer.wrap("ERROR\r\n".getBytes()));
-                    completed(request);
-                    continue;
+    /**
+        Reads from a server. This blocks until at least one byte was read, the buffer is full or the server timeout expired.
+        @param server: Integer of the index of the server.
+        @param buffer: ByteBuffer to read into.
+        @return Integer of the number of bytes read.
+    */
+    private int receive(int server, ByteBuffer buffer) throws IOException {
+        SocketChannel connection = connections.get(server);
+        int read;
+        try {
+            read = connection.read(buffer);
+            while(read == 0 && ioSelector != null && buffer.hasRemaining()) {
+                if(await(server, -1, this.timeout) < 0) {
+                    throw new BackendException(server, new SocketTimeoutException("No response within " + this.timeout + " ms."));
                 }
+                read = connection.read(buffer);
+            }
+        } catch(IOException ex) {
+            throw backendException(server, ex);
+        }
+        if(read < 0) {
+            throw new BackendException(server, new EOFException("Connection closed by the server."));
+        }
+        return read;
+    }
 
-                response.clear();
-                temp.clear();
-                if(this.sharded && request.type == Request.Type.MULTIGET) {
-                    // ===================================================================================================
-                    // SHARDED MUTLIGET
-                    // ===================================================================================================
-                    shardedRead(request, response, temp);
-                    completed(request);
-                } else if(request.type == Request.Type.SET) {
-                    // ===================================================================================================
-                    // SET REQUEST: send request to all servers
-                    // ===================================================================================================
-                    request.time_mmcd_sent = System.nanoTime() >> 10;       // In microseconds
-                    for(int server = 0; server < this.serverCount; server++) {
-                        connections.get(server).write(request.buffer);
-                        request.buffer.rewind();
-                    }
-
-                    String response_str = "";
-                    request.hit = true;
-                    for(int server = 0; server < this.serverCount; server++) {
-                        temp.clear();
-                        connections.get(server).read(temp);
-                        temp.flip();
-                        response_str = new String(Arrays.copyOfRange(temp.array(), 0, temp.limit()));
-                        // Check if the server reponded something else than stored
-                        if(!response_str.equals("STORED\r\n")) {
-                            if(request.hit == true) {
-                                request.time_mmcd_rcvd = System.nanoTime() >> 10;       // In microseconds
-                                request.hit = false;
-                                // It did, relay the message to the client
-                                request.channel.write(ByteBuffer.wrap(response_str.getBytes()));
-                            }
-                        }
-                    }
-                    request.time_mmcd_rcvd = System.nanoTime() >> 10;       // In microseconds
-                    if(request.hit == false) {
-                        completed(request);
-                        // Request is completed, skip to next request
-                        continue;
+    /**
+        Reads the rest of the value of a streamed SET from the client and forwards it in chunks as it arrives to the servers the SET was sent to. A server that fails is not forwarded to anymore. If the client closes the connection or does not send the value within STREAM_TIMEOUT plus its transfer time at STREAM_MIN_RATE, the SET cannot be completed: the connections to the servers, which wait for the rest of the value, and the connection to the client are closed.
+        @param request: Request of the SET, with the number of bytes still to be read.
+        @return true if the whole value was forwarded.
+    */
+    private boolean forward(Request request) throws IOException {
+        if(chunk == null) {
+            this.chunk = ByteBuffer.allocate(16384);
+            this.clientSelector = Selector.open();
+        }
+        int remaining = request.remaining;
+        long allowed = STREAM_TIMEOUT + remaining * 1000L / STREAM_MIN_RATE;
+        long deadline = System.currentTimeMillis() + allowed;
+        SelectionKey clientKey = null;
+        try {
+            clientKey = request.channel.register(clientSelector, SelectionKey.OP_READ);
+            while(remaining > 0) {
+                chunk.clear();
+                chunk.limit(Math.min(chunk.capacity(), remaining));
+                int read = request.channel.read(chunk);
+                if(read == 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0 || clientSelector.select(wait) == 0 && System.currentTimeMillis() >= deadline) {
+                        throw new SocketTimeoutException("Rest of the value not received within " + allowed + " ms.");
                     }
-                    // All servers desponded with STORED
-                    request.channel.write(ByteBuffer.wrap(response_str.getBytes()));
-                    completed(request);
-                    // Request is completed, skip to next request
+                    clientSelector.selectedKeys().clear();
                     continue;
-                } else {
-                    // ===================================================================================================
-                    // GET / NON-SHARDED MULTIGET
-                    // ===================================================================================================
-                    // Load balancing
-                    int server = Worker.getServer() % this.serverCount;
-
-                    // Send request to server
-                    request.time_mmcd_sent = System.nanoTime() >> 10;       // In microseconds
-                    connections.get(server).write(request.buffer);
-
-                    // Get response from server
-                    String response_str = "response";
-                    while(!response_str.endsWith("END\r\n") && !response_str.endsWith("ERROR\r\n")) {
-                        connections.get(server).read(response);
-
-                        // Convert response into string
-                        response_str = new String(Arrays.copyOfRange(response.array(), 0, response.position()));
-                    }
-                    request.time_mmcd_rcvd = System.nanoTime() >> 10;       // In microseconds
-
-                    if(request.type == Request.Type.MULTIGET) {
-                        synchronized(this) {
-                            int num_hits = response_str.split("VALUE").length - 1;
-                            this.hits_multiget += num_hits;
-                            this.hits_interval += num_hits;
-                            this.misses_multiget += request.multigetLength - num_hits;
-                        }
+                }
+                if(read < 0) {
+                    throw new EOFException("Connection closed by the client.");
+                }
+                remaining -= read;
+                chunk.flip();
+                for(int server = 0; server < this.serverCount; server++) {
+                    if(!sentTo[server]) {
+                        continue;
                     }
-
-                    request.hit = true;
-                    if(response_str.equals("END\r\n") || response_str.endsWith("ERROR\r\n")) {
-                        request.hit = false;
+                    try {
+                        send(server, chunk);
+                    } catch(BackendException ex) {
+                        sentTo[server] = false;
+                        fail(ex.server);
                     }
-
-
-                    response.flip();
-                    request.channel.write(response);
-                    completed(request);
+                    chunk.rewind();
                 }
-
-            } catch(IOException ex) {
-                SYS_LOG.info("Error communicating with client or server.");
-            } catch(InterruptedException ex) {
-                SYS_LOG.info(String.format("Thread %d was interrupted. Shutting it down.", this.id));
-                Thread.currentThread().interrupt();
+            }
+            return true;
+        } catch(IOException ex) {
+            if(ex instanceof InterruptedIOException || Thread.currentThread().isInterrupted()) {
+                throw ex;
+            }
+            HOT_LOG.log(SYS_LOG, Level.INFO, "Streamed SET aborted, closing the connections it was sent to: " + ex.getMessage());
+            for(int server = 0; server < this.serverCount; server++) {
+                if(sentTo[server]) {
+                    sentTo[server] = false;
+                    abandon(server);
+                }
+            }
+            request.channel.close();
+            return false;
+        } finally {
+            if(clientKey != null) {
+                clientKey.cancel();
+                clientSelector.selectNow();
             }
         }
     }
 
     /**
-        This function is used for load balancing. It basically just increments a counter and the server takes this modulo the number of servers to get the server it should access.
-        @return Integer
+        Answers a request without sending it to the servers. The rest of the value of a streamed SET is read and dropped first.
+        @param request: Request to answer.
+        @param answer: Byte array of the response to the client.
     */
-    private static synchronized int getServer() {
-        return Worker.server++;
+    private void reject(Request request, byte[] answer) throws IOException {
+        if(request.remaining > 0) {
+            Arrays.fill(sentTo, false);
+            if(!forward(request)) {
+                return;
+            }
+        }
+        request.respond(ByteBuffer.wrap(answer));
     }
 
+    /**
+        Closes the connection to a server that waits for the rest of a command that will not be sent. Unlike fail(), this is not the failure of the server, the connection is opened again on the next request.
+        @param server: Integer of the index of the server.
+    */
+    private void abandon(int server) {
+        close(connections.get(server));
+        connections.set(server, null);
+        if(ioKeys != null) {
+            ioKeys[server] = null;
+        }
+        nextConnect[server] = 0L;
+    }
 
     /**
-        This function takes care of sharding multigets across servers and return their composite response.
-        @param request: Request to be sharded
-        @return ByteBuffer that contains the aggregated responses of the servers.
+        Doubles a buffer the response of a server is read into, such that large values fit.
+        @param buffer: ByteBuffer that is full.
+        @return ByteBuffer with the content of the buffer and twice its capacity.
     */
-    private void shardedRead(Request request, ByteBuffer response, ByteBuffer temp) throws IOException {
+    private static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+        if(buffer.capacity() >= MAX_RESPONSE) {
+            throw new IOException("Response larger than " + MAX_RESPONSE + " bytes.");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
 
-        // Get the individual keys in the get command
-        String command = new String(Arrays.copyOfRange(request.buffer.array(), 0, request.buffer.limit() - 2)).trim();
-        String[] arguments = command.split(" ");
+    /**
+        Attributes an IOException of a server connection to the server, unless the worker was interrupted.
+        @param server: Integer of the index of the server.
+        @param ex: IOException raised by the connection.
+        @return IOException to be thrown.
+    */
+    private IOException backendException(int server, IOException ex) {
+        if(ex instanceof BackendException || Thread.currentThread().isInterrupted()) {
+            return ex;
+        }
+        return new BackendException(server, ex);
+    }
 
-        boolean responded = false;
-        String response_str = "response";
-        if(arguments.length - 1 < this.serverCount) {
-            // We have less arguments than available servers
+    /**
+        Reads and discards a stale response, e.g. the one to a hedged read that lost. The response is only checked for its end, hence only the last bytes are kept if it does not fit in the buffer.
+        @param server: Integer of the index of the server.
+    */
+    private void discard(int server) throws IOException {
+        scratch.clear();
+        do {
+            if(!scratch.hasRemaining()) {
+                scratch.flip();
+                scratch.position(scratch.limit() - 8);
+                scratch.compact();
+            }
+            receive(server, scratch);
+        } while(!Worker.isResponseComplete(scratch));
+        stale[server] = false;
+        long serverTime = (System.nanoTime() >> 10) - staleSince[server];
+        selector.received(server, serverTime);
+        if(hedge != null) {
+            hedge.record(serverTime);
+        }
+        succeeded(server);
+    }
 
-            // Use to keep track which servers were used
-            int[] servers = new int[this.serverCount];
-            request.time_mmcd_sent = System.nanoTime() >> 10;       // In microseconds
-            for(int idx = 1; idx < arguments.length; idx++) {
-                int server = Worker.getServer() % this.serverCount;
-                // Keep track of which servers we sent a request to
-                servers[server] = 1;
-                connections.get(server).write(ByteBuffer.wrap(("get " + arguments[idx] + "\r\n").getBytes()));
+    /**
+        Waits until one of up to two servers can be read from.
+        @param first: Integer of the index of a server.
+        @param second: Integer of the index of a second server, or -1.
+        @param timeout: Long of the maximum time to wait in milliseconds, 0 to wait indefinitely.
+        @return Integer of the index of the server that can be read from, the first one if both can, or -1 if the timeout expired.
+    */
+    private int await(int first, int second, long timeout) throws IOException {
+        ioKeys[first].interestOps(SelectionKey.OP_READ);
+        if(second >= 0) {
+            ioKeys[second].interestOps(SelectionKey.OP_READ);
+        }
+        int ready = -1;
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + timeout;
+        while(ready < 0 && !interrupted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(timeout > 0 && remaining <= 0) {
+                break;
+            }
+            int selected = timeout > 0 ? ioSelector.select(remaining) : ioSelector.select();
+            if(ioSelector.selectedKeys().contains(ioKeys[first])) {
+                ready = first;
+            } else if(second >= 0 && ioSelector.selectedKeys().contains(ioKeys[second])) {
+                ready = second;
             }
+            ioSelector.selectedKeys().clear();
+            interrupted = Thread.currentThread().isInterrupted();
+        }
+        ioKeys[first].interestOps(0);
+        if(second >= 0) {
+            ioKeys[second].interestOps(0);
+        }
+        if(interrupted) {
+            throw new InterruptedIOException("Thread " + this.id + " was interrupted while waiting for a server.");
+        }
+        return ready;
+    }
 
-            responded = false;
-            for(int server = 0; server < this.serverCount; server++) {
-                temp.clear();
-                response_str = "response";
-                if(servers[server] == 1) {
-                    while(!response_str.endsWith("END\r\n") && !response_str.endsWith("ERROR\r\n")) {
-                        this.connections.get(server).read(temp);
-
-                        // Convert response into string
-                        response_str = new String(Arrays.copyOfRange(temp.array(), 0, temp.position()));
-                    }
-                    // Check if an error occured
-                    if(response_str.endsWith("ERROR\r\n")) {
-                        if(!responded) {
-                            responded = true;
-                            request.channel.write(ByteBuffer.wrap("ERROR\r\n".getBytes()));
-                        }
-                    }
+    /**
+        Waits until a server can be written to.
+        @param server: Integer of the index of the server.
+    */
+    private void awaitWrite(int server) throws IOException {
+        ioKeys[server].interestOps(SelectionKey.OP_WRITE);
+        ioSelector.select();
+        ioSelector.selectedKeys().clear();
+        ioKeys[server].interestOps(0);
+        if(Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Thread " + this.id + " was interrupted while waiting for a server.");
+        }
+    }
 
-                    // Remove the "END\r\n" of the end of the message
-                    temp.position(temp.position() - 5);
-                    temp.flip();
-                    response.put(temp);
-                }
-            }
-        } else {
-            // We have more arguments than available servers
-            request.time_mmcd_sent = System.nanoTime() >> 10;       // In microseconds
-            for(int server = 0; server < this.serverCount; server++) {
-                String commandSvr = "get";
-                for(int idx = server + 1; idx < arguments.length; idx += this.serverCount) {
-                    commandSvr += " " + arguments[idx];
-                }
-                commandSvr += "\r\n";
-                connections.get(server).write(ByteBuffer.wrap(commandSvr.getBytes()));
+    /**
+        Locates the keys of a multiget command without copying them.
+        @param buffer: ByteBuffer containing the complete command, with limit set to the end of the command.
+        @param bounds: Integer array the index of the first byte and the index after the last byte of every key are written to, in pairs. Keys that do not fit are left out.
+        @return Integer of the number of keys located.
+    */
+    static int splitKeys(ByteBuffer buffer, int[] bounds) {
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int end = scanner.indexOfCrlf(buffer, 0, buffer.limit());
+        end = end < 0 ? buffer.limit() : end;
+        int keys = 0;
+        int from = keyStart(buffer);
+        while(from < end && 2 * keys + 1 < bounds.length) {
+            int to = scanner.indexOf(buffer, from, end, (byte) ' ');
+            to = to < 0 ? end : to;
+            bounds[2 * keys] = from;
+            bounds[2 * keys + 1] = to;
+            keys++;
+            from = to;
+            while(from < end && buffer.get(from) == ' ') {
+                from++;
             }
+        }
+        return keys;
+    }
 
-            responded = false;
-            for(int server = 0; server < this.serverCount; server++) {
-                temp.clear();
-                response_str = "response";
-                while(!response_str.endsWith("END\r\n") && !response_str.endsWith("ERROR\r\n")) {
-                    this.connections.get(server).read(temp);
+    /**
+        Extracts the first key of a get or set command.
+        @param command: Byte array starting with the command.
+        @return String of the key.
+    */
+    static String firstKey(byte[] command) {
+        int start = keyStart(ByteBuffer.wrap(command));
+        return new String(command, start, keyEnd(command, start) - start);
+    }
 
-                    // Convert response into string
-                    response_str = new String(Arrays.copyOfRange(temp.array(), 0, temp.position()));
-                }
-                // Check if an error occured
-                if(response_str.endsWith("ERROR\r\n")) {
-                    if(!responded) {
-                        responded = true;
-                        request.channel.write(ByteBuffer.wrap("ERROR\r\n".getBytes()));
-                    }
-                }
+    /**
+        Finds the first key of a get, gets or set command, which follows the command and any number of spaces.
+        @param buffer: ByteBuffer starting with the command at index 0, up to its limit.
+        @return Integer of the index of the first byte of the key, the end of the command line if there is none.
+    */
+    static int keyStart(ByteBuffer buffer) {
+        ProtocolScanner scanner = ProtocolScanner.get();
+        int end = scanner.indexOfCrlf(buffer, 0, buffer.limit());
+        end = end < 0 ? buffer.limit() : end;
+        int start = 0;
+        while(start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        start = scanner.indexOf(buffer, start, end, (byte) ' ');
+        if(start < 0) {
+            return end;
+        }
+        while(start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
 
-                // Remove the "END\r\n" of the end of the message
-                temp.position(temp.position() - 5);
-                temp.flip();
-                response.put(temp);
-            }
+    /**
+        @param command: Byte array of a command.
+        @param from: Integer of the index of the first byte of a key.
+        @return Integer of the index after the last byte of the key.
+    */
+    static int keyEnd(byte[] command, int from) {
+        int end = from;
+        while(end < command.length && command[end] != ' ' && command[end] != '\r') {
+            end++;
         }
-        request.time_mmcd_rcvd = System.nanoTime() >> 10;       // In microseconds
-        response.put("END\r\n".getBytes());
-        response.flip();
+        return end;
+    }
 
-        if(!responded) {
-            response_str = new String(Arrays.copyOfRange(response.array(), 0, response.limit()));
-            request.channel.write(response);
+    /**
+        Builds the command sent to one server when a multiget has more keys than there are servers. The keys are distributed accross the servers in a round robin fashion.
+        @param command: ByteBuffer the keys of the server are appended to, see appendKey().
+        @param array: Byte array of the multiget.
+        @param bounds: Integer array of the offsets of the keys as returned by splitKeys().
+        @param keys: Integer of the number of keys.
+        @param server: Integer of the index of the server the command is built for.
+        @param serverCount: Integer of the number of servers the keys are distributed accross.
+    */
+    static void shardCommand(ByteBuffer command, byte[] array, int[] bounds, int keys, int server, int serverCount) {
+        for(int idx = server; idx < keys; idx += serverCount) {
+            Worker.appendKey(command, array, bounds[2 * idx], bounds[2 * idx + 1]);
         }
+    }
 
-        // Count number of hits / misses
-        synchronized(this) {
-            int num_hits = response_str.split("VALUE").length - 1;
-            this.hits_multiget += num_hits;
-            this.hits_interval += num_hits;
-            this.misses_multiget += request.multigetLength - num_hits;
+    /**
+        Appends a key to the get command of a server, which is started with its first key.
+        @param command: ByteBuffer of the command, empty if it holds no key yet.
+        @param array: Byte array containing the key.
+        @param from: Integer of the index of the first byte of the key.
+        @param to: Integer of the index after the last byte of the key.
+    */
+    static void appendKey(ByteBuffer command, byte[] array, int from, int to) {
+        if(command.position() == 0) {
+            command.put(GET);
         }
+        command.put((byte) ' ').put(array, from, to - from);
+    }
+
+    /**
+        Terminates a get command built by appendKey() with "\r\n".
+        @param command: ByteBuffer of the command.
+        @return ByteBuffer of the command ready to be sent, without remaining bytes if it holds no key.
+    */
+    static ByteBuffer endCommand(ByteBuffer command) {
+        if(command.position() > 0) {
+            command.put(CRLF);
+        }
+        command.flip();
+        return command;
+    }
+
+    /**
+        Checks if a response from a server to a get request is complete.
+        @param response: String of the response received so far.
+        @return true if the response is terminated by "END\r\n" or an error.
+    */
+    static boolean isResponseComplete(String response) {
+        return response.endsWith("END\r\n") || response.endsWith("ERROR\r\n");
+    }
+
+    /**
+        Checks if a response from a server to a get request is complete, without copying the bytes received.
+        @param buffer: ByteBuffer the response is read into, with position set to the end of the data read.
+        @return true if the response is terminated by "END\r\n" or an error.
+    */
+    static boolean isResponseComplete(ByteBuffer buffer) {
+        return ProtocolScanner.isComplete(buffer, buffer.position());
     }
 
     // ======================================================================================
@@ -368,8 +1815,11 @@ public class Worker implements Runnable {
         Gathers information about the request. Note that this blocks the logger from accessing this workers statistics.
         @param request: Request object from which to gather data.
     */
-    private synchronized void completed(Request request) throws InterruptedException {
+    synchronized void completed(Request request) throws InterruptedException {
         request.time_completed = System.nanoTime() >> 10;   // In microseconds
+        if(request.event != null) {
+            FlightEvents.completed(request, this.id);
+        }
         this.hist_count++;
 
         if(request.type == Request.Type.SET) {
@@ -422,6 +1872,28 @@ public class Worker implements Runnable {
             }
         }
         this.histogram.set(index, this.histogram.get(index) + 1);
+
+        // Latencies including the time the request waited to be read by the net thread
+        long latency = request.time_completed - request.time_arrived;
+        this.latencies.record(latency);
+        this.latencies_corrected.recordCorrected(latency, options.expectedInterval);
+        if(this.latencies_interval != null) {
+            this.latencies_interval[request.type.ordinal()].record(latency);
+        }
+
+        if(request.serverPool != null) {
+            int pool = request.serverPool.id;
+            this.poolSets[pool] += request.type == Request.Type.SET ? 1 : 0;
+            this.poolGets[pool] += request.type == Request.Type.GET ? 1 : 0;
+            this.poolMultigets[pool] += request.type == Request.Type.MULTIGET ? 1 : 0;
+            this.poolServerTime[pool] += (request.time_mmcd_rcvd - request.time_mmcd_sent);
+            this.poolLatencies[pool].record(latency);
+        }
+
+        if(this.hotKeys != null && ++this.sampleCount >= this.sampleEvery) {
+            this.sampleCount = 0;
+            this.hotKeys.sample(request);
+        }
     }
 
     /**
@@ -429,7 +1901,7 @@ public class Worker implements Runnable {
         @return String containing the column titles of the statistical output of the middleware.
     */
     public static String initLog() {
-        return String.format("%6s %6s %6s %7s %6s %6s %9s %8s %9s %6s",
+        return String.format("%6s %6s %6s %7s %6s %6s %9s %8s %9s %6s %6s",
                              "SETS",
                              "GETS",
                              "MGETS",
@@ -439,38 +1911,44 @@ public class Worker implements Runnable {
                              "RSP T",
                              "Q T",
                              "SVR T",
-                             "Q LEN");
+                             "Q LEN",
+                             "SHED");
     }
 
 
     /**
-        This function aggregates statistical data from all workers given as arguments. Note that this function blocks workers from completing tasks while data is read from them.
+        This function aggregates statistical data from all workers given as arguments. Note that this function blocks workers from completing tasks while data is read from them. The record is reused by the caller, such that no objects are allocated by the periodic logging.
         @param workers: ArrayList of Worker from which to retrieve data.
         @param queueLength: Integer of the queue length to be written in the last column.
-        @return String containing data aggregated since the last call to this function.
+        @param record: StatsRecord that is overwritten with the data aggregated since the last call to this function.
     */
-    public static String getRecord(ArrayList<Worker> workers, int queueLength) throws InterruptedException {
-        int result_count_set_interval = 0;
-        int result_count_get_interval = 0;
-        int result_count_multiget_interval = 0;
-        int result_count_invalid_interval = 0;
-        int result_hits_interval = 0;
-        long result_total_time = 0L;
-        long result_total_q_time = 0L;
-        long result_total_server_time = 0L;
+    public static void getRecord(ArrayList<Worker> workers, int queueLength, StatsRecord record) throws InterruptedException {
+        getRecord(workers, queueLength, record, null);
+    }
 
+    /**
+        Like getRecord(), also moving the latencies of the interval by request type of the workers that record them, see setIntervalLatencies().
+        @param latencies: Array of LatencyHistogram indexed by the ordinal of the request type, cleared and filled with the latencies since the last call. Ignored if null.
+    */
+    public static void getRecord(ArrayList<Worker> workers, int queueLength, StatsRecord record, LatencyHistogram[] latencies) throws InterruptedException {
+        for(int type = 0; latencies != null && type < latencies.length; type++) {
+            latencies[type].clear();
+        }
+        record.clear();
+        record.intervals = 1;
+        record.queue_length = queueLength;
 
         for(Worker worker: workers) {
             // Block the worker from writing to its statistic values
             synchronized(worker) {
-                result_count_set_interval += worker.count_set_interval;
-                result_count_get_interval += worker.count_get_interval;
-                result_count_multiget_interval += worker.count_multiget_interval;
-                result_count_invalid_interval += worker.count_invalid_interval;
-                result_hits_interval += worker.hits_interval;
-                result_total_time += worker.total_time_interval;
-                result_total_q_time += worker.total_q_time_interval;
-                result_total_server_time += worker.total_server_time_interval;
+                record.count_set += worker.count_set_interval;
+                record.count_get += worker.count_get_interval;
+                record.count_multiget += worker.count_multiget_interval;
+                record.count_invalid += worker.count_invalid_interval;
+                record.hits += worker.hits_interval;
+                record.total_time += worker.total_time_interval;
+                record.total_q_time += worker.total_q_time_interval;
+                record.total_server_time += worker.total_server_time_interval;
 
                 // Reset values for each worker
                 worker.count_set_interval = 0;
@@ -481,37 +1959,56 @@ public class Worker implements Runnable {
                 worker.total_time_interval = 0L;
                 worker.total_q_time_interval = 0L;
                 worker.total_server_time_interval = 0L;
+                if(latencies != null && worker.latencies_interval != null) {
+                    for(int type = 0; type < latencies.length; type++) {
+                        latencies[type].add(worker.latencies_interval[type]);
+                        worker.latencies_interval[type].clear();
+                    }
+                }
 
                 // If the clear_histogram is true, clear the histograms of the workers
-                // and reset all statistics.
-                if(Worker.clear_histogram) {
+                // and reset all statistics. It hence gets triggered only on the first call
+                // to this function for every worker.
+                if(worker.clear_histogram) {
                     worker.histogram = new ArrayList<Integer>();
                     worker.hist_count = 0;
+                    worker.latencies.clear();
+                    worker.latencies_corrected.clear();
+                    worker.clear_histogram = false;
                 }
             }
         }
+    }
 
-        // Set the clear_histogram to be false, it hence get triggered only on the first call to this function
-        Worker.clear_histogram = false;
-
-        int result_count_interval = result_count_get_interval + result_count_set_interval + result_count_multiget_interval + result_count_invalid_interval;
-        double result_response_time = result_total_time / (double) result_count_interval;
-        double result_q_time = result_total_q_time / (double) result_count_interval;
-        double result_server_time = result_total_server_time / (double) result_count_interval;
-
-        String result = String.format("%6d %6d %6d %7d %6d %6d %9.2f %8.2f %9.2f %6d",
-                                      result_count_set_interval,
-                                      result_count_get_interval,
-                                      result_count_multiget_interval,
-                                      result_count_invalid_interval,
-                                      result_count_interval,
-                                      result_hits_interval,
-                                      result_response_time,
-                                      result_q_time,
-                                      result_server_time,
-                                      queueLength);
+    /**
+        Clears the histograms of the final statistics of all workers, such that they do not contain the warm-up. This is done by the first call to getRecord() unless the end of the warm-up is detected, see TimeSeries.
+        @param workers: ArrayList of Worker whose histograms are cleared.
+    */
+    public static void clearHistograms(ArrayList<Worker> workers) {
+        for(Worker worker: workers) {
+            synchronized(worker) {
+                worker.histogram = new ArrayList<Integer>();
+                worker.hist_count = 0;
+                worker.latencies.clear();
+                worker.latencies_corrected.clear();
+                worker.clear_histogram = false;
+            }
+        }
+    }
 
-        return result;
+    /**
+        Moves the keys counted by the workers since the last call to this function to a sketch. Note that this function blocks workers from completing tasks while their keys are read.
+        @param workers: ArrayList of Worker from which to retrieve the keys.
+        @param into: HotKeys the keys are added to.
+    */
+    public static void drainHotKeys(ArrayList<Worker> workers, HotKeys into) {
+        for(Worker worker: workers) {
+            synchronized(worker) {
+                if(worker.hotKeys != null) {
+                    worker.hotKeys.drainTo(into);
+                }
+            }
+        }
     }
 
     /**
@@ -523,10 +2020,15 @@ public class Worker implements Runnable {
     public static String getFinalStats(ArrayList<Worker> workers, long timeRun) {
         long timeRunSec = timeRun >> 20;            // Convert from microseconds to seconds
 
-        String result = new String(new char[80]).replace('\0', '=') + "\nALL STATS (timing measures are in microseconds)\n";
+        StringBuilder result = new StringBuilder(16384);
+        Formatter formatter = new Formatter(result);
+        result.append(SEPARATOR).append("\nALL STATS (timing measures are in microseconds)\n");
 
         int maxHistogramSize = 0;
         ArrayList<Integer> histogram = new ArrayList<Integer>();
+        LatencyHistogram latencies = new LatencyHistogram();
+        LatencyHistogram latencies_corrected = new LatencyHistogram();
+        long expectedInterval = 0L;
 
         int hist_count_total = 0;
 
@@ -585,6 +2087,9 @@ public class Worker implements Runnable {
 
             total_multiget_length_all += worker.total_multiget_length;
             hist_count_total += worker.hist_count;
+            latencies.add(worker.latencies);
+            latencies_corrected.add(worker.latencies_corrected);
+            expectedInterval = worker.options.expectedInterval;
 
 
             // Create a cummulative histogram from data from workers
@@ -600,127 +2105,191 @@ public class Worker implements Runnable {
             }
 
             // Add worker related info to string.
-            result = result.concat(String.format("WORKER %d:\n", worker.id));
-            result = result.concat(String.format("%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s\n",
-                                                 "Type",
-                                                 "Total",
-                                                 "Ops/sec",
-                                                 "Hits/sec",
-                                                 "Miss/Sec",
-                                                 "Resp Time",
-                                                 "Proc Time",
-                                                 "Srvr Time"));
-
-            result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                                 "SET",
-                                                 worker.count_set,
-                                                 worker.count_set / (double) timeRunSec,
-                                                 worker.hits_set / (double) timeRunSec,
-                                                 (worker.count_set - worker.hits_set) / (double) timeRunSec,
-                                                 worker.total_time_set / (double) worker.count_set,
-                                                 worker.total_proc_time_set / (double) worker.count_set,
-                                                 worker.total_server_time_set / (double) worker.count_set));
-
-            result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                                 "GET",
-                                                 worker.count_get,
-                                                 worker.count_get / (double) timeRunSec,
-                                                 worker.hits_get / (double) timeRunSec,
-                                                 (worker.count_get - worker.hits_get) / (double) timeRunSec,
-                                                 worker.total_time_get / (double) worker.count_get,
-                                                 worker.total_proc_time_get / (double) worker.count_get,
-                                                 worker.total_server_time_get / (double) worker.count_get));
-
-            result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                                 "MULTIGET",
-                                                 worker.count_multiget,
-                                                 worker.count_multiget / (double) timeRunSec,
-                                                 worker.hits_multiget / (double) timeRunSec,
-                                                 worker.misses_multiget / (double) timeRunSec,
-                                                 worker.total_time_multiget / (double) worker.count_multiget,
-                                                 worker.total_proc_time_multiget / (double) worker.count_multiget,
-                                                 worker.total_server_time_multiget / (double) worker.count_multiget));
-
-            result = result.concat(String.format("%-9s|%9d|%9.2f|%9s|%9s|%9.2f|%9.2f|%9s\n",
-                                                 "INVALID",
-                                                 worker.count_invalid,
-                                                 worker.count_invalid / (double) timeRunSec,
-                                                 "---",
-                                                 "---",
-                                                 worker.total_time_invalid / (double) worker.count_invalid,
-                                                 worker.total_proc_time_invalid / (double) worker.count_invalid,
-                                                 "---"));
-
-            result = result.concat(String.format("Average mutliget length: %.2f\n",
-                                                 worker.total_multiget_length / (double) worker.count_multiget));
-
-            result = result.concat(new String(new char[80]).replace('\0', '=') + "\n");
-        }
-
-        result = result.concat(new String(new char[80]).replace('\0', '=') + "\n\nAGGREGATE FOR ALL WORKERS:\n");
-        result = result.concat(String.format("%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s\n",
-                                             "Type",
-                                             "Total",
-                                             "Ops/sec",
-                                             "Hits/sec",
-                                             "Miss/Sec",
-                                             "Resp Time",
-                                             "Proc Time",
-                                             "Srvr Time"));
-
-        result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                             "SET",
-                                             type_set,
-                                             type_set / (double) timeRunSec,
-                                             type_hit_set / (double) timeRunSec,
-                                             (type_set - type_hit_set) / (double) timeRunSec,
-                                             resp_time_set / (double) type_set,
-                                             proc_time_set / (double) type_set,
-                                             srvr_time_set / (double) type_set));
-
-        result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                             "GET",
-                                             type_get,
-                                             type_get / (double) timeRunSec,
-                                             type_hit_get / (double) timeRunSec,
-                                             (type_get - type_hit_get) / (double) timeRunSec,
-                                             resp_time_get / (double) type_get,
-                                             proc_time_get / (double) type_get,
-                                             srvr_time_get / (double) type_get));
-
-        result = result.concat(String.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
-                                             "MULTIGET",
-                                             type_multiget,
-                                             type_multiget / (double) timeRunSec,
-                                             type_hit_multiget / (double) timeRunSec,
-                                             type_miss_multiget / (double) timeRunSec,
-                                             resp_time_multiget / (double) type_multiget,
-                                             proc_time_multiget / (double) type_multiget,
-                                             srvr_time_multiget / (double) type_multiget));
-
-        result = result.concat(String.format("%-9s|%9d|%9.2f|%9s|%9s|%9.2f|%9.2f|%9s\n",
-                                             "INVALID",
-                                             type_invalid,
-                                             type_invalid / (double) timeRunSec,
-                                             "---",
-                                             "---",
-                                             resp_time_invalid / (double) type_invalid,
-                                             proc_time_invalid / (double) type_invalid,
-                                             "---"));
-
-        result = result.concat(String.format("Average mutliget length: %.2f\n",
-                                             total_multiget_length_all / (double) type_multiget));
-
-        result = result.concat("\n\n HISTOGRAM\n");
-        result = result.concat(String.format("%20s%10s\n", "Response time (ms)", "Percent"));
+            formatter.format("WORKER %d:\n", worker.id);
+            formatter.format("%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s\n",
+                             "Type",
+                             "Total",
+                             "Ops/sec",
+                             "Hits/sec",
+                             "Miss/Sec",
+                             "Resp Time",
+                             "Proc Time",
+                             "Srvr Time");
+
+            formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                             "SET",
+                             worker.count_set,
+                             worker.count_set / (double) timeRunSec,
+                             worker.hits_set / (double) timeRunSec,
+                             (worker.count_set - worker.hits_set) / (double) timeRunSec,
+                             worker.total_time_set / (double) worker.count_set,
+                             worker.total_proc_time_set / (double) worker.count_set,
+                             worker.total_server_time_set / (double) worker.count_set);
+
+            formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                             "GET",
+                             worker.count_get,
+                             worker.count_get / (double) timeRunSec,
+                             worker.hits_get / (double) timeRunSec,
+                             (worker.count_get - worker.hits_get) / (double) timeRunSec,
+                             worker.total_time_get / (double) worker.count_get,
+                             worker.total_proc_time_get / (double) worker.count_get,
+                             worker.total_server_time_get / (double) worker.count_get);
+
+            formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                             "MULTIGET",
+                             worker.count_multiget,
+                             worker.count_multiget / (double) timeRunSec,
+                             worker.hits_multiget / (double) timeRunSec,
+                             worker.misses_multiget / (double) timeRunSec,
+                             worker.total_time_multiget / (double) worker.count_multiget,
+                             worker.total_proc_time_multiget / (double) worker.count_multiget,
+                             worker.total_server_time_multiget / (double) worker.count_multiget);
+
+            formatter.format("%-9s|%9d|%9.2f|%9s|%9s|%9.2f|%9.2f|%9s\n",
+                             "INVALID",
+                             worker.count_invalid,
+                             worker.count_invalid / (double) timeRunSec,
+                             "---",
+                             "---",
+                             worker.total_time_invalid / (double) worker.count_invalid,
+                             worker.total_proc_time_invalid / (double) worker.count_invalid,
+                             "---");
+
+            formatter.format("Average mutliget length: %.2f\n",
+                             worker.total_multiget_length / (double) worker.count_multiget);
+
+            result.append(SEPARATOR).append("\n");
+        }
+
+        result.append(SEPARATOR).append("\n\nAGGREGATE FOR ALL WORKERS:\n");
+        formatter.format("%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s|%-9s\n",
+                         "Type",
+                         "Total",
+                         "Ops/sec",
+                         "Hits/sec",
+                         "Miss/Sec",
+                         "Resp Time",
+                         "Proc Time",
+                         "Srvr Time");
+
+        formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                         "SET",
+                         type_set,
+                         type_set / (double) timeRunSec,
+                         type_hit_set / (double) timeRunSec,
+                         (type_set - type_hit_set) / (double) timeRunSec,
+                         resp_time_set / (double) type_set,
+                         proc_time_set / (double) type_set,
+                         srvr_time_set / (double) type_set);
+
+        formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                         "GET",
+                         type_get,
+                         type_get / (double) timeRunSec,
+                         type_hit_get / (double) timeRunSec,
+                         (type_get - type_hit_get) / (double) timeRunSec,
+                         resp_time_get / (double) type_get,
+                         proc_time_get / (double) type_get,
+                         srvr_time_get / (double) type_get);
+
+        formatter.format("%-9s|%9d|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f|%9.2f\n",
+                         "MULTIGET",
+                         type_multiget,
+                         type_multiget / (double) timeRunSec,
+                         type_hit_multiget / (double) timeRunSec,
+                         type_miss_multiget / (double) timeRunSec,
+                         resp_time_multiget / (double) type_multiget,
+                         proc_time_multiget / (double) type_multiget,
+                         srvr_time_multiget / (double) type_multiget);
+
+        formatter.format("%-9s|%9d|%9.2f|%9s|%9s|%9.2f|%9.2f|%9s\n",
+                         "INVALID",
+                         type_invalid,
+                         type_invalid / (double) timeRunSec,
+                         "---",
+                         "---",
+                         resp_time_invalid / (double) type_invalid,
+                         proc_time_invalid / (double) type_invalid,
+                         "---");
+
+        formatter.format("Average mutliget length: %.2f\n",
+                         total_multiget_length_all / (double) type_multiget);
+
+        result.append("\n\n HISTOGRAM\n");
+        formatter.format("%20s%10s\n", "Response time (ms)", "Percent");
 
         // Running sum used for percentiles
         int runningSum = 0;
         for(int idx = 0; idx < histogram.size(); idx++) {
             runningSum += histogram.get(idx);
-            result = result.concat(String.format("%20.1f%10.2f%%\n", (idx + 1) / 10.0f, 100 * runningSum / (double) hist_count_total));
+            formatter.format("%20.1f%10.2f%%\n", (idx + 1) / 10.0f, 100 * runningSum / (double) hist_count_total);
+        }
+
+        // Percentiles of the latencies from the arrival at the net thread
+        result.append("\n\n PERCENTILES (from arrival at the net thread, in microseconds)\n");
+        formatter.format("%-10s|%10s|%10s|%10s|%10s|%10s|%10s|%10s\n", "Latency", "Count", "Mean", "50%", "90%", "99%", "99.9%", "Max");
+        appendPercentiles(formatter, "Measured", latencies);
+        if(expectedInterval > 0) {
+            appendPercentiles(formatter, "Corrected", latencies_corrected);
+            formatter.format("Corrected for coordinated omission with an expected interval of %d microseconds.\n", expectedInterval);
+        }
+
+        // Throughput and latencies per pool of servers
+        KeyRouter router = workers.isEmpty() ? null : workers.get(0).router;
+        if(router != null) {
+            result.append("\n\n SERVER POOLS (latencies from arrival at the net thread, in microseconds)\n");
+            formatter.format("%-10s|%9s|%9s|%9s|%9s|%9s|%9s|%9s\n", "Pool", "Total", "Ops/sec", "SETs", "GETs", "MGETs", "Srvr Time", "Rejected");
+            List<KeyRouter.Pool> pools = router.getPools();
+            LatencyHistogram[] poolLatencies = new LatencyHistogram[pools.size()];
+            for(KeyRouter.Pool pool: pools) {
+                long sets = 0L;
+                long gets = 0L;
+                long multigets = 0L;
+                long serverTime = 0L;
+                poolLatencies[pool.id] = new LatencyHistogram();
+                for(Worker worker: workers) {
+                    sets += worker.poolSets[pool.id];
+                    gets += worker.poolGets[pool.id];
+                    multigets += worker.poolMultigets[pool.id];
+                    serverTime += worker.poolServerTime[pool.id];
+                    poolLatencies[pool.id].add(worker.poolLatencies[pool.id]);
+                }
+                long total = sets + gets + multigets;
+                formatter.format("%-10s|%9d|%9.2f|%9d|%9d|%9d|%9.2f|%9d\n",
+                                 pool.name,
+                                 total,
+                                 total / (double) timeRunSec,
+                                 sets,
+                                 gets,
+                                 multigets,
+                                 serverTime / (double) total,
+                                 pool.getRejected());
+            }
+            formatter.format("%-10s|%10s|%10s|%10s|%10s|%10s|%10s|%10s\n", "Pool", "Count", "Mean", "50%", "90%", "99%", "99.9%", "Max");
+            for(KeyRouter.Pool pool: pools) {
+                appendPercentiles(formatter, pool.name, poolLatencies[pool.id]);
+            }
         }
 
-        return result;
+        return result.toString();
+    }
+
+    /**
+        Formats a row of percentiles of the final statistics.
+        @param formatter: Formatter to write to.
+        @param name: String of the name of the row.
+        @param histogram: LatencyHistogram containing the latencies.
+    */
+    private static void appendPercentiles(Formatter formatter, String name, LatencyHistogram histogram) {
+        formatter.format("%-10s|%10d|%10.2f|%10d|%10d|%10d|%10d|%10d\n",
+                         name,
+                         histogram.getCount(),
+                         histogram.getMean(),
+                         histogram.getValueAtPercentile(50.0),
+                         histogram.getValueAtPercentile(90.0),
+                         histogram.getValueAtPercentile(99.0),
+                         histogram.getValueAtPercentile(99.9),
+                         histogram.getMax());
     }
 }
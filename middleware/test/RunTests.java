@@ -0,0 +1,70 @@
+/**
+    RunTests.java
+    20-12-2017
+
+    @Description: Runs the tests of the middleware components on the local machine. Tests whose name contains one of the arguments are run, all tests if there are none. The process exits with 1 if a test failed. This should be run through "ant test".
+    @Author: Jakob Beckmann
+*/
+
+package asl_project;
+
+import java.util.*;
+
+import asl_project.harness.*;
+import asl_project.util.*;
+
+public class RunTests {
+
+    static List<String> filters = new ArrayList<String>();
+
+    public static void main(String[] args) throws Exception {
+        filters.addAll(Arrays.asList(args));
+
+        int failed = 0;
+        int run = 0;
+        for(UnitTest test: tests()) {
+            if(!selected(test.getName())) {
+                continue;
+            }
+            run++;
+            long start = System.nanoTime();
+            try {
+                test.run();
+                System.out.println(String.format("PASS %-50s %6d ms", test.getName(), (System.nanoTime() - start) / 1000000));
+            } catch(Throwable ex) {
+                failed++;
+                System.out.println(String.format("FAIL %-50s %6d ms", test.getName(), (System.nanoTime() - start) / 1000000));
+                ex.printStackTrace(System.out);
+            }
+        }
+        System.out.println(String.format("%d tests run, %d failed.", run, failed));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+        @return List of all tests.
+    */
+    private static List<UnitTest> tests() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+
+        tests.addAll(CompressionTest.all());
+        tests.addAll(JournalTest.all());
+        tests.addAll(LaneSchedulerTest.all());
+        tests.addAll(UdpFrontEndTest.all());
+        tests.addAll(WorkerTest.all());
+
+        return tests;
+    }
+
+    private static boolean selected(String name) {
+        if(filters.isEmpty()) {
+            return true;
+        }
+        for(String filter: filters) {
+            if(name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
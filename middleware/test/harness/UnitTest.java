@@ -0,0 +1,69 @@
+/*
+    UnitTest.java
+    20-12-2017
+
+    @Description: Base class of the tests of the middleware components. A test runs a scenario against a component and throws an AssertionError through the check functions as soon as the component does not behave as expected. Tests are run without a test framework, see RunTests.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.harness;
+
+import java.util.Arrays;
+
+
+public abstract class UnitTest {
+    private final String name;
+
+
+    /**
+        Constructor.
+        @param name: String identifying the test.
+    */
+    protected UnitTest(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+        Runs the scenario under test.
+    */
+    public abstract void run() throws Exception;
+
+
+    /**
+        @param condition: Boolean that must hold.
+        @param message: String describing the condition.
+    */
+    protected static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+        @param expected: Object the actual value must be equal to.
+        @param actual: Object of the actual value.
+        @param what: String naming the value.
+    */
+    protected static void checkEquals(Object expected, Object actual, String what) {
+        if(expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(String.format("%s: expected <%s> but was <%s>", what, expected, actual));
+        }
+    }
+
+    /**
+        @param expected: Byte array the actual bytes must be equal to.
+        @param actual: Byte array of the actual bytes.
+        @param what: String naming the bytes.
+    */
+    protected static void checkEquals(byte[] expected, byte[] actual, String what) {
+        if(!Arrays.equals(expected, actual)) {
+            throw new AssertionError(String.format("%s: expected %d bytes but was %s", what, expected.length,
+                                                   actual == null ? "null" : actual.length + " different bytes"));
+        }
+    }
+}
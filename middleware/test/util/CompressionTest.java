@@ -0,0 +1,210 @@
+/*
+    CompressionTest.java
+    20-12-2017
+
+    @Description: Tests of the value compression: LZ4 blocks of random, repetitive and text-like inputs decompress to the input at any offset, SETs encoded by a codec are decoded to the original value and flags when the server returns them, and malformed SETs or SETs using the reserved flag are not compressed.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import asl_project.harness.*;
+
+
+public abstract class CompressionTest extends UnitTest {
+    // Seed of the random inputs, such that a failure can be reproduced
+    private static final long SEED = 20171220L;
+
+    protected CompressionTest(String name) {
+        super("Compression:" + name);
+    }
+
+    /**
+        @return List of all compression tests.
+    */
+    public static List<UnitTest> all() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+        tests.add(new Lz4RoundTrip());
+        tests.add(new CodecRoundTrip());
+        tests.add(new Malformed());
+        return tests;
+    }
+
+
+    /**
+        Compresses and decompresses inputs of every kind and size up to 64 KiB.
+    */
+    static class Lz4RoundTrip extends CompressionTest {
+        Lz4RoundTrip() {
+            super("lz4-round-trip");
+        }
+
+        @Override
+        public void run() throws IOException {
+            Random random = new Random(SEED);
+            int[] table = new int[Lz4.TABLE_SIZE];
+            for(int round = 0; round < 5000; round++) {
+                int length = round < 64 ? round : random.nextInt(round % 10 == 0 ? 1 << 16 : 4096);
+                byte[] input = value(random, length, round % 3);
+                int offset = random.nextInt(16);
+                byte[] src = new byte[offset + length];
+                System.arraycopy(input, 0, src, offset, length);
+
+                byte[] compressed = new byte[offset + Lz4.maxCompressedLength(length)];
+                int size = Lz4.compress(src, offset, length, compressed, offset, compressed.length - offset, table);
+                check(size >= 0, "A block of " + length + " bytes did not fit in the bound.");
+                byte[] output = new byte[offset + length];
+                int decompressed = Lz4.decompress(compressed, offset, size, output, offset, length);
+                checkEquals(length, decompressed, "decompressed length");
+                checkEquals(input, Arrays.copyOfRange(output, offset, offset + length), "round " + round);
+            }
+        }
+    }
+
+    /**
+        Encodes SETs and decodes the GET responses of their values, alone and within multiget responses.
+    */
+    static class CodecRoundTrip extends CompressionTest {
+        CodecRoundTrip() {
+            super("codec-round-trip");
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(SEED);
+            Compression compression = new Compression(64);
+            Compression.Codec codec = compression.newCodec();
+            for(int round = 0; round < 2000; round++) {
+                int count = 1 + random.nextInt(4);
+                ByteBuffer stored = ByteBuffer.allocate(1 << 20);
+                ByteBuffer expected = ByteBuffer.allocate(1 << 20);
+                for(int idx = 0; idx < count; idx++) {
+                    String key = "key-" + round + "-" + idx;
+                    long flags = random.nextInt(1 << 16);
+                    byte[] value = value(random, random.nextInt(8192), random.nextInt(3));
+                    String noreply = random.nextBoolean() ? " noreply" : "";
+                    ByteBuffer command = set(key, flags, value, noreply);
+                    ByteBuffer encoded = codec.encode(command);
+                    check(encoded != null, "SET was rejected.");
+                    check(value.length >= 64 || encoded == command, "A value below the threshold was compressed.");
+
+                    // The server returns the value and flags it stored
+                    String[] fields = line(encoded).split(" ");
+                    checkEquals(5 + (noreply.isEmpty() ? 0 : 1), fields.length, "fields of the encoded SET");
+                    int length = Integer.parseInt(fields[4]);
+                    int data = line(encoded).length() + 2;
+                    checkEquals("\r\n", new String(encoded.array(), data + length, 2, StandardCharsets.US_ASCII), "end of the encoded SET");
+                    stored.put(("VALUE " + key + " " + fields[2] + " " + length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    stored.put(encoded.array(), data, length + 2);
+                    expected.put(("VALUE " + key + " " + flags + " " + value.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    expected.put(value).put("\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                stored.put("END\r\n".getBytes(StandardCharsets.US_ASCII)).flip();
+                expected.put("END\r\n".getBytes(StandardCharsets.US_ASCII)).flip();
+
+                ByteBuffer decoded = codec.decode(stored);
+                checkEquals(Arrays.copyOf(expected.array(), expected.limit()), Arrays.copyOf(decoded.array(), decoded.limit()), "response of round " + round);
+            }
+            check(compression.getStats().contains("corrupt: 0"), "Values were reported corrupt.");
+        }
+    }
+
+    /**
+        Passes malformed SETs on unchanged, rejects SETs using the reserved flag and answers corrupt values with an error.
+    */
+    static class Malformed extends CompressionTest {
+        Malformed() {
+            super("malformed");
+        }
+
+        @Override
+        public void run() {
+            Compression.Codec codec = new Compression(1).newCodec();
+            byte[] value = new byte[256];
+            for(String line: new String[] {"set k abc 0 256", "set k 0 0 abc", "set k 0 0 99999999999", "set k -1 0 256", "set k 0 0"}) {
+                ByteBuffer command = ByteBuffer.wrap(concat(line + "\r\n", value));
+                check(codec.encode(command) == command, "Malformed SET \"" + line + "\" was modified.");
+            }
+            // Like memcached, any number of spaces separates the fields
+            String spaced = "set  k 0  0 256\r\n";
+            ByteBuffer encoded = codec.encode(ByteBuffer.wrap(concat(spaced, value)));
+            String head = "set  k " + Compression.FLAG + "  0 ";
+            checkEquals(head, new String(encoded.array(), 0, head.length()), "header of \"" + spaced.trim() + "\"");
+            ByteBuffer reserved = set("k", Compression.FLAG | 1, value, "");
+            check(codec.encode(reserved) == null, "SET using the reserved flag was accepted.");
+
+            ByteBuffer corrupt = ByteBuffer.wrap(concat("VALUE k " + Compression.FLAG + " 6\r\n", new byte[] {0, 0, 1, 0, (byte) 0xF0, 0}, "\r\nEND\r\n".getBytes()));
+            checkEquals(Compression.CORRUPT, Arrays.copyOf(codec.decode(corrupt).array(), codec.decode(corrupt).limit()), "response to a corrupt value");
+        }
+    }
+
+
+    // ======================================================================================
+    // HELPERS
+    // ======================================================================================
+    /**
+        @param kind: Integer, 0 for random bytes, 1 for runs of a few bytes and 2 for text with repeated words.
+        @return Byte array of a value of the given kind.
+    */
+    protected static byte[] value(Random random, int length, int kind) {
+        byte[] value = new byte[length];
+        if(kind == 0) {
+            random.nextBytes(value);
+        } else if(kind == 1) {
+            for(int idx = 0; idx < length; ) {
+                byte b = (byte) random.nextInt(4);
+                for(int run = random.nextInt(40); run > 0 && idx < length; run--) {
+                    value[idx++] = b;
+                }
+            }
+        } else {
+            String[] words = {"memcached ", "middleware ", "worker ", "request ", "value ", "key ", "set ", "get "};
+            for(int idx = 0; idx < length; ) {
+                for(byte b: words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII)) {
+                    if(idx < length) {
+                        value[idx++] = b;
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    protected static ByteBuffer set(String key, long flags, byte[] value, String noreply) {
+        return ByteBuffer.wrap(concat("set " + key + " " + flags + " 0 " + value.length + noreply + "\r\n", value, "\r\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static byte[] concat(String head, byte[]... parts) {
+        int length = head.length();
+        for(byte[] part: parts) {
+            length += part.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        result.put(head.getBytes(StandardCharsets.US_ASCII));
+        for(byte[] part: parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+    /**
+        @return String of the first line of a command, without "\r\n".
+    */
+    private static String line(ByteBuffer command) {
+        byte[] array = command.array();
+        int end = 0;
+        while(array[end] != '\r') {
+            end++;
+        }
+        return new String(array, 0, end, StandardCharsets.US_ASCII);
+    }
+}
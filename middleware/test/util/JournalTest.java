@@ -0,0 +1,300 @@
+/*
+    JournalTest.java
+    20-12-2017
+
+    @Description: Tests of the write-ahead journal: SETs are applied to the servers in order, the SETs that were not applied are recovered from the segments of a previous run, and SETs that workers stored directly are not overwritten by older journaled ones, also while the replicator is applying a SET of the same key. The servers are in-process stand-ins, see FakeMemcached.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import asl_project.harness.*;
+import asl_project.loadgen.FakeMemcached;
+
+
+public abstract class JournalTest extends UnitTest {
+    // Time a test waits for the replicator to apply the journal (in milliseconds)
+    private static final long AWAIT = 5000L;
+
+    protected FakeMemcached memcached;
+    protected String server;
+    protected File directory;
+
+
+    protected JournalTest(String name) {
+        super("Journal:" + name);
+    }
+
+    /**
+        @return List of all journal tests.
+    */
+    public static List<UnitTest> all() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+        tests.add(new Apply());
+        tests.add(new Recover());
+        tests.add(new Superseded());
+        tests.add(new StoredWhileApplying());
+        tests.add(new StoredAfterApplying());
+        return tests;
+    }
+
+    @Override
+    public void run() throws Exception {
+        directory = Files.createTempDirectory("journal").toFile();
+        try {
+            scenario();
+        } finally {
+            if(memcached != null) {
+                memcached.stop();
+            }
+            File[] files = directory.listFiles();
+            for(File file: files != null ? files : new File[0]) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    protected abstract void scenario() throws Exception;
+
+    /**
+        Starts the server the journal is applied to.
+        @param serviceMicros: Long of the time the server takes to answer a request in microseconds.
+    */
+    protected void startServer(long serviceMicros) throws IOException {
+        memcached = new FakeMemcached(serviceMicros, false, 1.0, 0);
+        server = "127.0.0.1:" + memcached.start();
+    }
+
+    protected Journal journal() throws IOException {
+        return new Journal(Collections.singletonList(server), directory.getPath(), 1 << 16, 1000L);
+    }
+
+
+    /**
+        Applies SETs of a running journal.
+    */
+    static class Apply extends JournalTest {
+        Apply() {
+            super("apply");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            startServer(0L);
+            Journal journal = journal();
+            journal.start(ThreadPlacement.unpinned("journal-test"));
+            check(journal.append(server, set("a", "1")), "append failed");
+            check(journal.append(server, set("b", "2")), "append failed");
+            check(journal.append(server, set("a", "3")), "append failed");
+            await(journal);
+            checkEquals("3", get("a"), "value of a");
+            checkEquals("2", get("b"), "value of b");
+            journal.stop();
+            checkEquals(3L, counter(journal.getStats(), "SETs journaled"), "journaled");
+            checkEquals(0L, counter(journal.getStats(), "Still to apply"), "still to apply");
+            checkEquals(0, directory.listFiles().length - 1, "segments left besides the active one");
+        }
+    }
+
+    /**
+        Recovers the SETs that were not applied by a previous run, which is not stopped to simulate a crash.
+    */
+    static class Recover extends JournalTest {
+        Recover() {
+            super("recover");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            startServer(0L);
+            Journal crashed = journal();
+            crashed.append(server, set("a", "1"));
+            crashed.append(server, set("b", "2"));
+            crashed.append(server, set("a", "3"));
+
+            Journal journal = journal();
+            checkEquals(3L, counter(journal.getStats(), "Recovered from a previous run"), "recovered");
+            journal.start(ThreadPlacement.unpinned("journal-test"));
+            await(journal);
+            journal.stop();
+            checkEquals("3", get("a"), "value of a");
+            checkEquals("2", get("b"), "value of b");
+            checkEquals(2L, counter(journal.getStats(), "Applied"), "applied");
+            checkEquals(1L, counter(journal.getStats(), "Superseded by later SETs"), "superseded");
+
+            // Applied SETs are not replayed again
+            Journal next = journal();
+            checkEquals(0L, counter(next.getStats(), "Recovered from a previous run"), "recovered again");
+        }
+    }
+
+    /**
+        Skips journaled SETs of a key that was stored directly afterwards.
+    */
+    static class Superseded extends JournalTest {
+        Superseded() {
+            super("superseded");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            startServer(0L);
+            Journal journal = journal();
+            journal.append(server, set("a", "1"));
+            long sent = System.nanoTime() >> 10;
+            ByteBuffer direct = set("a", "2");
+            send(direct);
+            journal.stored(server, direct, sent, true);
+            journal.start(ThreadPlacement.unpinned("journal-test"));
+            await(journal);
+            journal.stop();
+            checkEquals("2", get("a"), "value of a");
+            checkEquals(0L, counter(journal.getStats(), "Applied"), "applied");
+            checkEquals(1L, counter(journal.getStats(), "Superseded by later SETs"), "superseded");
+            checkEquals(0L, counter(journal.getStats(), "Direct SETs journaled again"), "journaled again");
+        }
+    }
+
+    /**
+        Stores a SET directly while the replicator applies an older SET of the same key. The older SET must not be the last one the server stores, and the replicator must keep applying the journal.
+    */
+    static class StoredWhileApplying extends JournalTest {
+        StoredWhileApplying() {
+            super("stored-while-applying");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            startServer(200000L);
+            Journal journal = journal();
+            journal.append(server, set("a", "1"));
+            journal.start(ThreadPlacement.unpinned("journal-test"));
+            Thread.sleep(50);
+            // The direct SET reached the server before the one of the replicator, as if it was overwritten
+            long sent = System.nanoTime() >> 10;
+            ByteBuffer direct = set("a", "2");
+            journal.stored(server, direct, sent, true);
+            await(journal);
+            checkEquals("2", get("a"), "value of a");
+            checkEquals(1L, counter(journal.getStats(), "Direct SETs journaled again"), "journaled again");
+
+            journal.append(server, set("b", "3"));
+            await(journal);
+            journal.stop();
+            checkEquals("3", get("b"), "value of b");
+        }
+    }
+
+    /**
+        Stores a SET directly that was sent before the replicator completed applying an older SET of the same key, and one that was sent afterwards.
+    */
+    static class StoredAfterApplying extends JournalTest {
+        StoredAfterApplying() {
+            super("stored-after-applying");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            startServer(0L);
+            Journal journal = journal();
+            long sent = System.nanoTime() >> 10;
+            journal.append(server, set("a", "1"));
+            journal.start(ThreadPlacement.unpinned("journal-test"));
+            await(journal);
+            // The direct SET was sent before the SET of the replicator completed, as if it was overwritten
+            ByteBuffer direct = set("a", "2");
+            journal.stored(server, direct, sent, true);
+            await(journal);
+            checkEquals("2", get("a"), "value of a");
+            checkEquals(1L, counter(journal.getStats(), "Direct SETs journaled again"), "journaled again");
+
+            sent = System.nanoTime() >> 10;
+            direct = set("a", "3");
+            send(direct);
+            journal.stored(server, direct, sent, true);
+            await(journal);
+            journal.stop();
+            checkEquals("3", get("a"), "value of a");
+            checkEquals(1L, counter(journal.getStats(), "Direct SETs journaled again"), "journaled again");
+        }
+    }
+
+
+    // ======================================================================================
+    // HELPERS
+    // ======================================================================================
+    protected static ByteBuffer set(String key, String value) {
+        return ByteBuffer.wrap(("set " + key + " 0 0 " + value.length() + "\r\n" + value + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+        Waits until the journal was applied.
+    */
+    protected static void await(Journal journal) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT;
+        while(counter(journal.getStats(), "Still to apply") > 0) {
+            check(System.currentTimeMillis() < deadline, "The journal was not applied within " + AWAIT + " ms.");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+        @param stats: String of the statistics of the journal.
+        @param label: String of the label of the counter.
+        @return Long of the counter.
+    */
+    protected static long counter(String stats, String label) {
+        for(String line: stats.split("\n")) {
+            if(line.startsWith(label + " ") && line.substring(label.length()).trim().matches("\\d+")) {
+                return Long.parseLong(line.substring(label.length()).trim());
+            }
+        }
+        throw new AssertionError("No counter " + label + " in the statistics.");
+    }
+
+    /**
+        Sends a command to the server directly, as a worker does, and waits for its response.
+    */
+    protected void send(ByteBuffer command) throws IOException {
+        request(command.array());
+    }
+
+    /**
+        @return String of the value of a key on the server, the empty string if the key was never set.
+    */
+    protected String get(String key) throws IOException {
+        String response = request(("get " + key + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        String[] lines = response.split("\r\n");
+        check(lines.length == 3 && lines[0].startsWith("VALUE " + key + " "), "Unexpected response " + response);
+        return lines[1];
+    }
+
+    private String request(byte[] command) throws IOException {
+        String[] address = server.split(":");
+        try(Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+            socket.setSoTimeout((int) AWAIT);
+            socket.getOutputStream().write(command);
+            InputStream in = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            while(!response.toString().endsWith("END\r\n") && !response.toString().endsWith("STORED\r\n")) {
+                int read = in.read();
+                check(read >= 0, "Connection closed by the server.");
+                response.append((char) read);
+            }
+            return response.toString();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+    LaneSchedulerTest.java
+    21-12-2017
+
+    @Description: Tests of the lanes between the net thread and the workers: requests are classified by their command and number of keys, the lanes are served by deficit round robin in proportion to their weights with the cost of a request being its number of keys, and reserved workers only take requests from their lane and are woken up once it has one.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import asl_project.harness.*;
+
+
+public abstract class LaneSchedulerTest extends UnitTest {
+    // Time a test waits for a worker to take a request (in milliseconds)
+    private static final long AWAIT = 5000L;
+
+    // Letter of every lane in the order requests are taken, see order()
+    private static final char[] LETTERS = {'G', 'S', 'M'};
+
+
+    protected LaneSchedulerTest(String name) {
+        super("LaneScheduler:" + name);
+    }
+
+    /**
+        @return List of all lane scheduler tests.
+    */
+    public static List<UnitTest> all() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+        tests.add(new Classify());
+        tests.add(new Fairness());
+        tests.add(new Weights());
+        tests.add(new Cost());
+        tests.add(new Reserved());
+        return tests;
+    }
+
+
+    /**
+        Puts requests in lanes by their command and counts the keys of multigets as their cost.
+    */
+    static class Classify extends LaneSchedulerTest {
+        Classify() {
+            super("classify");
+        }
+
+        @Override
+        public void run() {
+            checkLane("get key-1\r\n", LaneScheduler.GET, 1);
+            checkLane("get  key-1 \r\n", LaneScheduler.GET, 1);
+            checkLane("get key-1 key-2 key-3\r\n", LaneScheduler.MULTIGET, 3);
+            checkLane("gets key-1 key-2\r\n", LaneScheduler.MULTIGET, 2);
+            checkLane("set key-1 0 0 5\r\nva ue\r\n", LaneScheduler.SET, 1);
+            checkLane("delete key-1\r\n", LaneScheduler.GET, 1);
+            checkLane("ge", LaneScheduler.GET, 1);
+        }
+
+        private static void checkLane(String message, int lane, int cost) {
+            Request request = request(message);
+            LaneScheduler.classify(request.buffer, request);
+            checkEquals(lane, request.lane, "lane of \"" + message.trim() + "\"");
+            checkEquals(cost, request.cost, "cost of \"" + message.trim() + "\"");
+        }
+    }
+
+    /**
+        Serves a lane for one quantum per round, such that GETs are taken between the multigets of a burst and not after all of them.
+    */
+    static class Fairness extends LaneSchedulerTest {
+        Fairness() {
+            super("fairness");
+        }
+
+        @Override
+        public void run() {
+            LaneScheduler lanes = new LaneScheduler(new int[] {1, 1, 1}, null);
+            offer(lanes, multiget(10), 3);
+            offer(lanes, request("get key\r\n"), 20);
+            offer(lanes, request("set key 0 0 1\r\nv\r\n"), 2);
+            checkEquals("GGGGGGGGGGSSMGGGGGGGGGGMM", order(lanes), "order of the requests taken");
+            checkEquals(0, lanes.size(), "requests left");
+        }
+    }
+
+    /**
+        Gives a lane a quantum proportional to its weight.
+    */
+    static class Weights extends LaneSchedulerTest {
+        Weights() {
+            super("weights");
+        }
+
+        @Override
+        public void run() {
+            LaneScheduler lanes = new LaneScheduler(new int[] {1, 1, 2}, null);
+            offer(lanes, request("get key\r\n"), 20);
+            offer(lanes, multiget(10), 4);
+            checkEquals("GGGGGGGGGGMMGGGGGGGGGGMM", order(lanes), "order of the requests taken");
+        }
+    }
+
+    /**
+        Takes a request whose cost exceeds the quantum once its lane saved enough deficit over several rounds.
+    */
+    static class Cost extends LaneSchedulerTest {
+        Cost() {
+            super("cost");
+        }
+
+        @Override
+        public void run() {
+            LaneScheduler lanes = new LaneScheduler(new int[] {1, 1, 1}, null);
+            offer(lanes, request("get key\r\n"), 30);
+            offer(lanes, multiget(15), 2);
+            checkEquals("GGGGGGGGGGGGGGGGGGGGMGGGGGGGGGGM", order(lanes), "order of the requests taken");
+        }
+    }
+
+    /**
+        Wakes a reserved worker only for a request of its lane, which the other workers may take as well.
+    */
+    static class Reserved extends LaneSchedulerTest {
+        Reserved() {
+            super("reserved");
+        }
+
+        @Override
+        public void run() throws Exception {
+            final LaneScheduler lanes = new LaneScheduler(new int[] {1, 1, 1}, new int[] {0, 0, 1});
+            checkEquals(LaneScheduler.MULTIGET, lanes.reservation(0), "lane of worker 0");
+            checkEquals(-1, lanes.reservation(1), "lane of worker 1");
+            checkEquals(1, lanes.getReservedWorkers(), "reserved workers");
+
+            final Request[] taken = new Request[1];
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        taken[0] = lanes.take(0);
+                    } catch(InterruptedException ex) {
+                        // The test failed, the worker is stopped
+                    }
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+
+            Request get = request("get key\r\n");
+            lanes.offer(get);
+            worker.join(100L);
+            check(worker.isAlive(), "The reserved worker took a request of another lane.");
+            check(lanes.take(1) == get, "The shared worker did not take the GET.");
+
+            Request multiget = multiget(3);
+            lanes.offer(multiget);
+            worker.join(AWAIT);
+            if(worker.isAlive()) {
+                worker.interrupt();
+                throw new AssertionError("The reserved worker was not woken up by a request of its lane.");
+            }
+            check(taken[0] == multiget, "The reserved worker did not take the multiget.");
+            checkEquals(0, lanes.size(), "requests left");
+        }
+    }
+
+
+    // ======================================================================================
+    // HELPERS
+    // ======================================================================================
+    /**
+        @return Request of the message, with the position of its buffer at the end of the message like after a read of the net thread.
+    */
+    protected static Request request(String message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(message.getBytes(StandardCharsets.US_ASCII));
+        return new Request(buffer, (SocketChannel) null);
+    }
+
+    /**
+        @return Request of a multiget of the given number of keys.
+    */
+    protected static Request multiget(int keys) {
+        StringBuilder command = new StringBuilder("get");
+        for(int idx = 0; idx < keys; idx++) {
+            command.append(" key-").append(idx);
+        }
+        return request(command.append("\r\n").toString());
+    }
+
+    /**
+        Queues copies of a request.
+    */
+    protected static void offer(LaneScheduler lanes, Request request, int copies) {
+        byte[] message = new byte[request.buffer.position()];
+        System.arraycopy(request.buffer.array(), 0, message, 0, message.length);
+        for(int copy = 0; copy < copies; copy++) {
+            lanes.offer(request(new String(message, StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+        Takes all requests like a worker that is not reserved.
+        @return String with the letter of the lane of every request taken, e.g. "GGM".
+    */
+    protected static String order(LaneScheduler lanes) {
+        StringBuilder order = new StringBuilder();
+        Request request;
+        while((request = lanes.poll()) != null) {
+            order.append(LETTERS[request.lane]);
+        }
+        return order.toString();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+    UdpFrontEndTest.java
+    21-12-2017
+
+    @Description: Tests of the UDP front end: the frame header of a request is parsed and stripped, requests that span several datagrams or are not GETs are not handed to the workers, and responses are split into datagrams that carry the request id, their sequence number and the number of datagrams of the response. The client is a datagram socket on the loopback address.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import asl_project.harness.*;
+
+
+public abstract class UdpFrontEndTest extends UnitTest {
+    // Time a test waits for a datagram (in milliseconds)
+    private static final int AWAIT = 5000;
+
+    protected UdpFrontEnd frontEnd;
+    protected DatagramSocket client;
+
+
+    protected UdpFrontEndTest(String name) {
+        super("UdpFrontEnd:" + name);
+    }
+
+    /**
+        @return List of all UDP front end tests.
+    */
+    public static List<UnitTest> all() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+        tests.add(new RoundTrip());
+        tests.add(new Dropped());
+        tests.add(new Unsupported());
+        tests.add(new Oversize());
+        return tests;
+    }
+
+    @Override
+    public void run() throws Exception {
+        frontEnd = new UdpFrontEnd("127.0.0.1", 0, 4);
+        client = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        client.setSoTimeout(AWAIT);
+        try {
+            scenario();
+        } finally {
+            client.close();
+            frontEnd.close();
+        }
+    }
+
+    /**
+        Runs the scenario of the test against the front end and the client.
+    */
+    protected abstract void scenario() throws Exception;
+
+
+    /**
+        Hands a GET to the workers without its frame header and sends the response in several datagrams.
+    */
+    static class RoundTrip extends UdpFrontEndTest {
+        RoundTrip() {
+            super("round-trip");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            send(0x8001, 0, 1, "get key-1\r\n");
+            Request request = receive();
+            checkEquals("get key-1\r\n", new String(request.buffer.array(), 0, request.buffer.position(), StandardCharsets.US_ASCII), "command of the request");
+
+            byte[] response = response(3000);
+            request.respond(ByteBuffer.wrap(response));
+            int payload = UdpFrontEnd.MAX_DATAGRAM - UdpFrontEnd.HEADER;
+            checkEquals(response, reply(0x8001, (response.length + payload - 1) / payload), "response reassembled from the datagrams");
+        }
+    }
+
+    /**
+        Drops datagrams shorter than the frame header and requests of several datagrams without answering them.
+    */
+    static class Dropped extends UdpFrontEndTest {
+        Dropped() {
+            super("dropped");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            client.send(new DatagramPacket(new byte[4], 4, address()));
+            send(2, 0, 2, "get key-1\r\n");
+            send(3, 1, 2, "get key-2\r\n");
+            send(4, 0, 1, "get key-3\r\n");
+            Request request = receive();
+            checkEquals("get key-3\r\n", new String(request.buffer.array(), 0, request.buffer.position(), StandardCharsets.US_ASCII), "command of the first request handed on");
+            request.respond(ByteBuffer.wrap("END\r\n".getBytes(StandardCharsets.US_ASCII)));
+            checkEquals("END\r\n".getBytes(StandardCharsets.US_ASCII), reply(4, 1), "response to the request handed on");
+        }
+    }
+
+    /**
+        Answers commands other than get and gets with an error instead of handing them to the workers.
+    */
+    static class Unsupported extends UdpFrontEndTest {
+        Unsupported() {
+            super("unsupported");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            send(5, 0, 1, "set key-1 0 0 1\r\nv\r\n");
+            send(6, 0, 1, "get key-1\r\n");
+            Request request = receive();
+            checkEquals("get key-1\r\n", new String(request.buffer.array(), 0, request.buffer.position(), StandardCharsets.US_ASCII), "command of the first request handed on");
+            byte[] error = reply(5, 1);
+            check(new String(error, StandardCharsets.US_ASCII).startsWith("CLIENT_ERROR"), "The SET was not answered with a CLIENT_ERROR.");
+        }
+    }
+
+    /**
+        Replaces a response of more than the maximum number of datagrams by an error in a single datagram.
+    */
+    static class Oversize extends UdpFrontEndTest {
+        Oversize() {
+            super("oversize");
+        }
+
+        @Override
+        protected void scenario() throws Exception {
+            send(7, 0, 1, "get key-1\r\n");
+            Request request = receive();
+            request.respond(ByteBuffer.wrap(response(5 * UdpFrontEnd.MAX_DATAGRAM)));
+            byte[] error = reply(7, 1);
+            check(new String(error, StandardCharsets.US_ASCII).startsWith("SERVER_ERROR"), "The oversize response was not replaced by a SERVER_ERROR.");
+        }
+    }
+
+
+    // ======================================================================================
+    // HELPERS
+    // ======================================================================================
+    protected InetSocketAddress address() {
+        return new InetSocketAddress("127.0.0.1", frontEnd.getLocalPort());
+    }
+
+    /**
+        Sends a datagram with a frame header to the front end.
+    */
+    protected void send(int requestId, int sequence, int total, String message) throws Exception {
+        byte[] command = message.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer datagram = ByteBuffer.allocate(UdpFrontEnd.HEADER + command.length);
+        datagram.putShort((short) requestId).putShort((short) sequence).putShort((short) total).putShort((short) 0);
+        datagram.put(command);
+        client.send(new DatagramPacket(datagram.array(), datagram.capacity(), address()));
+    }
+
+    /**
+        Reads datagrams like the net thread until one is handed to the workers.
+        @return Request of the datagram.
+    */
+    protected Request receive() throws Exception {
+        long deadline = System.currentTimeMillis() + AWAIT;
+        Request request;
+        while((request = frontEnd.receive()) == null) {
+            check(System.currentTimeMillis() < deadline, "No request was handed to the workers.");
+            Thread.sleep(1L);
+        }
+        return request;
+    }
+
+    /**
+        Receives the datagrams of a response and checks their frame headers.
+        @param requestId: Integer of the request id every datagram must carry.
+        @param total: Integer of the number of datagrams of the response.
+        @return Byte array of the payloads of the datagrams in order of their sequence numbers.
+    */
+    protected byte[] reply(int requestId, int total) throws Exception {
+        byte[][] payloads = new byte[total][];
+        for(int received = 0; received < total; received++) {
+            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            client.receive(packet);
+            check(packet.getLength() >= UdpFrontEnd.HEADER && packet.getLength() <= UdpFrontEnd.MAX_DATAGRAM, "Datagram of " + packet.getLength() + " bytes.");
+            ByteBuffer header = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            checkEquals(requestId, header.getShort(0) & 0xFFFF, "request id of a datagram");
+            checkEquals(total, header.getShort(4) & 0xFFFF, "number of datagrams");
+            int sequence = header.getShort(2) & 0xFFFF;
+            check(sequence < total && payloads[sequence] == null, "Datagram with sequence number " + sequence + ".");
+            payloads[sequence] = Arrays.copyOfRange(packet.getData(), UdpFrontEnd.HEADER, packet.getLength());
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        for(byte[] payload: payloads) {
+            response.write(payload);
+        }
+        return response.toByteArray();
+    }
+
+    /**
+        @return Byte array of a response to a GET with a value of the given length.
+    */
+    protected static byte[] response(int length) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] head = ("VALUE key-1 0 " + length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        response.write(head, 0, head.length);
+        for(int idx = 0; idx < length; idx++) {
+            response.write('a' + idx % 26);
+        }
+        byte[] end = "\r\nEND\r\n".getBytes(StandardCharsets.US_ASCII);
+        response.write(end, 0, end.length);
+        return response.toByteArray();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+    WorkerTest.java
+    20-12-2017
+
+    @Description: Tests of the functions of the workers that locate the keys in the bytes of a command, which route the requests to the pools of servers and identify the SETs of the journal, the retry log and the hot keys.
+
+    @Author: Jakob Beckmann
+*/
+
+package asl_project.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import asl_project.harness.*;
+
+
+public abstract class WorkerTest extends UnitTest {
+
+    protected WorkerTest(String name) {
+        super("Worker:" + name);
+    }
+
+    /**
+        @return List of all worker tests.
+    */
+    public static List<UnitTest> all() {
+        List<UnitTest> tests = new ArrayList<UnitTest>();
+        tests.add(new FirstKey());
+        tests.add(new ShardKeys());
+        return tests;
+    }
+
+
+    /**
+        Finds the first key after the command, whatever its length and the number of spaces.
+    */
+    static class FirstKey extends WorkerTest {
+        FirstKey() {
+            super("first-key");
+        }
+
+        @Override
+        public void run() {
+            checkKey("get key-1\r\n", "key-1");
+            checkKey("gets key-1\r\n", "key-1");
+            checkKey("gets key-1 key-2 key-3\r\n", "key-1");
+            checkKey("get  key-1\r\n", "key-1");
+            checkKey(" get key-1 \r\n", "key-1");
+            checkKey("set key-1 0 0 5\r\nva ue\r\n", "key-1");
+            checkKey("set key-1 0 0 5 noreply\r\nvalue\r\n", "key-1");
+            checkKey("get\r\n", "");
+        }
+
+        private static void checkKey(String command, String key) {
+            byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+            checkEquals(key, Worker.firstKey(bytes), "first key of \"" + command.trim() + "\"");
+            int start = Worker.keyStart(ByteBuffer.wrap(bytes));
+            checkEquals(key, new String(bytes, start, Worker.keyEnd(bytes, start) - start, StandardCharsets.US_ASCII), "key at the start of \"" + command.trim() + "\"");
+        }
+    }
+
+
+    /**
+        Splits the keys of a multiget across the servers, whatever the number of spaces between them.
+    */
+    static class ShardKeys extends WorkerTest {
+        ShardKeys() {
+            super("shard-keys");
+        }
+
+        @Override
+        public void run() {
+            checkShards("get a b c d e\r\n", 2, "get a c e\r\n", "get b d\r\n");
+            checkShards("gets  a   b c \r\n", 3, "get a\r\n", "get b\r\n", "get c\r\n");
+            checkShards("get a b\r\n", 3, "get a\r\n", "get b\r\n", "");
+            checkShards("get\r\n", 1, "");
+        }
+
+        private static void checkShards(String multiget, int serverCount, String... expected) {
+            byte[] bytes = multiget.getBytes(StandardCharsets.US_ASCII);
+            int[] bounds = new int[2 * bytes.length];
+            int keys = Worker.splitKeys(ByteBuffer.wrap(bytes), bounds);
+            for(int server = 0; server < serverCount; server++) {
+                ByteBuffer command = ByteBuffer.allocate(bytes.length + 3);
+                Worker.shardCommand(command, bytes, bounds, keys, server, serverCount);
+                Worker.endCommand(command);
+                checkEquals(expected[server], StandardCharsets.US_ASCII.decode(command).toString(), "command of server " + server + " for \"" + multiget.trim() + "\"");
+            }
+        }
+    }
+}